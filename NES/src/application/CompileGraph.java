@@ -0,0 +1,38 @@
+package application;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import util.CsvImporter;
+import util.nodes.CustomDSA.GraphFile;
+
+/**
+ * Compiles the location and neighbour CSV files into a binary graph file that
+ * loads by mapping it into memory. Roads naming an unknown location, or rows
+ * that can't be parsed, are skipped and printed, like loading the files does.
+ *
+ * <p>
+ * Usage: CompileGraph [locations csv] [neighbours csv] [graph file]
+ * defaults: the London files into London.nesg
+ * </p>
+ */
+
+public class CompileGraph {
+	public static void main(String[] args) throws IOException {
+		Path locations = Paths.get(args.length > 0 ? args[0] : "Locations.csv");
+		Path neighbours = Paths.get(args.length > 1 ? args[1] : "NeighborGraph.csv");
+		Path out = Paths.get(args.length > 2 ? args[2] : "London.nesg");
+
+		long t0 = System.nanoTime();
+		CsvImporter.Report r = new CsvImporter(Runtime.getRuntime().availableProcessors()).compile(locations, neighbours, out);
+		double secs = (System.nanoTime() - t0) / 1e9;
+		for (String skipped: r.getSkippedRows()) {
+			System.out.println(skipped);
+		}
+		GraphFile g = GraphFile.map(out);
+		System.out.println(g.size() + " nodes, " + r.getRoads() + " roads, " + Files.size(out)
+				+ " bytes written to " + out + " in " + String.format("%.2f", secs) + " s");
+	}
+}
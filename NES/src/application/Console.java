@@ -1,23 +1,107 @@
 package application;
 
-import javafx.application.Platform;
+import javafx.animation.AnimationTimer;
 import javafx.scene.control.TextArea;
 
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.io.IOException;
+import java.util.ArrayDeque;
 
-public class Console extends OutputStream {
+import util.Log;
+
+/**
+ * The console under the node list, fed by the log and by System.out / System.err.
+ *
+ * Lines are queued from any thread and appended to the TextArea in one go once
+ * per frame, and only the last maxLines lines are kept. Printing a byte no
+ * longer costs a Platform.runLater.
+ */
+public class Console extends OutputStream implements Log.Sink {
+
+    /** lines shown by default **/
+    public static final int MAX_LINES = 1000;
 
     private final TextArea console;
+    private final int maxLines;
+
+    /** lines waiting for the next frame **/
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    /** the printed line not finished yet **/
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    /** lengths of the lines in the TextArea, with their line break **/
+    private final ArrayDeque<Integer> shown = new ArrayDeque<>();
 
     public Console(TextArea console) {
+        this(console, MAX_LINES);
+    }
+
+    /**
+     * @param console the TextArea to show the lines in
+     * @param maxLines lines kept in it
+     */
+    public Console(TextArea console, int maxLines) {
         this.console = console;
+        this.maxLines = maxLines;
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                frame();
+            }
+        }.start();
+    }
+
+    private void add(String line) {
+        synchronized (this.pending) {
+            this.pending.add(line);
+            // older lines would be cut off anyway
+            if (this.pending.size() > this.maxLines) this.pending.poll();
+        }
     }
 
     @Override
-    public void write(int b) throws IOException {
-        Platform.runLater(() ->
-            console.appendText(String.valueOf((char) b))
-        );
+    public void write(long millis, Log.Level level, Log.Category category, String line) {
+        this.add(line);
+    }
+
+    @Override
+    public void write(int b) {
+        synchronized (this.partial) {
+            if (b == '\n') {
+                this.add(this.partial.toString());
+                this.partial.reset();
+            }
+            else if (b != '\r') {
+                this.partial.write(b);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        synchronized (this.partial) {
+            for (int i = off; i < off + len; i++) {
+                this.write(b[i]);
+            }
+        }
+    }
+
+    /** on the FX thread, once per frame **/
+    private void frame() {
+        StringBuilder sb;
+        synchronized (this.pending) {
+            if (this.pending.isEmpty()) return;
+            sb = new StringBuilder();
+            for (String line: this.pending) {
+                sb.append(line).append('\n');
+                this.shown.add(line.length() + 1);
+            }
+            this.pending.clear();
+        }
+        this.console.appendText(sb.toString());
+        int cut = 0;
+        while (this.shown.size() > this.maxLines) {
+            cut += this.shown.poll();
+        }
+        if (cut > 0) this.console.deleteText(0, cut);
     }
 }
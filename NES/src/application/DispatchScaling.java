@@ -0,0 +1,110 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import util.Ambulance;
+import util.Environment;
+import util.EnvironmentLoader;
+import util.FireTruck;
+import util.Incident;
+import util.Police;
+import util.Service;
+import util.nodes.Node;
+
+/**
+ * Measures how concurrent dispatch scales with the number of workers.
+ *
+ * <p>
+ * For 1, 2, 4 ... up to the number of cores the same incidents are queued on a
+ * freshly loaded environment and dispatched through the intake, and the time
+ * of the drains is reported together with a check that no unit went to two
+ * incidents. Only draining the intake is timed, the units move between
+ * drains without being counted.
+ * </p>
+ *
+ * <p>
+ * Usage: DispatchScaling [incidents] [units per node and type] [locations csv] [neighbours csv]
+ * </p>
+ *
+ * <p>
+ * Every node ends up with exactly the given number of units of each type, the
+ * units the loader placed count towards it.
+ * </p>
+ */
+
+public class DispatchScaling {
+	public static void main(String[] args) throws Exception {
+		int incidents = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+		int units = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		String locations = args.length > 2 ? args[2] : "Locations.csv";
+		String neighbours = args.length > 3 ? args[3] : "NeighborGraph.csv";
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		// one untimed run so the first timed one doesn't pay for the JIT
+		run(incidents, units, locations, neighbours, 1);
+		System.out.println("workers,ms,incidents/s,speedup,units dispatched,double dispatched");
+		double base = 0;
+		for (int workers = 1; workers <= cores; workers = workers < cores ? Math.min(cores, workers * 2) : cores + 1) {
+			long[] r = run(incidents, units, locations, neighbours, workers);
+			double ms = r[0] / 1e6;
+			if (workers == 1) base = ms;
+			System.out.println(workers + "," + String.format("%.1f", ms) + "," + String.format("%.0f", incidents / (ms / 1000))
+					+ "," + String.format("%.2f", base / ms) + "," + r[1] + "," + r[2]);
+		}
+	}
+
+	/**
+	 * @return nanoseconds spent dispatching, units dispatched, units dispatched more than once
+	 */
+	private static long[] run(int incidents, int units, String locations, String neighbours, int workers) throws Exception {
+		Environment env = new Environment();
+		EnvironmentLoader.load(env, locations, neighbours);
+		List<Node> nodes = new ArrayList<>(env.getNodes().values());
+		nodes.sort((a, b) -> Integer.compare(a.getID(), b.getID()));
+		// topped up to the given number, on top of what the loader put there
+		for (Node n: nodes) {
+			for (String type: new String[] {Police.Type, Ambulance.Type, FireTruck.Type}) {
+				Map<Integer, Service> here = n.getServices().get(type);
+				for (int i = here == null ? 0 : here.size(); i < units; i++) {
+					Service x = type.equals(Police.Type) ? new Police(n, env.getNewServiceId())
+							: type.equals(Ambulance.Type) ? new Ambulance(n, env.getNewServiceId()) : new FireTruck(n, env.getNewServiceId());
+					env.addService(x);
+					n.addService(x);
+				}
+			}
+		}
+		env.enableConcurrentDispatch(workers);
+
+		Random r = new Random(42);
+		List<CompletableFuture<Incident>> results = new ArrayList<>();
+		long elapsed = 0;
+		for (int i = 0; i < incidents; i++) {
+			Node n = nodes.get(r.nextInt(nodes.size()));
+			results.add(env.getIncidentIntake().submit(1 + r.nextInt(3), 1 + r.nextInt(10), n));
+			if (results.size() % Environment.INTAKE_CAPACITY == 0 || i == incidents - 1) {
+				// only the dispatch is timed, moving the units would be measured by update()
+				long t0 = System.nanoTime();
+				env.drainIntake();
+				elapsed += System.nanoTime() - t0;
+				env.update(false);
+			}
+		}
+		env.disableConcurrentDispatch();
+
+		long dispatched = 0;
+		Set<Integer> seen = new HashSet<>();
+		for (CompletableFuture<Incident> f: results) {
+			for (Map.Entry<String, ArrayList<Integer>> e: f.get().getDispatchList().entrySet()) {
+				dispatched += e.getValue().size();
+				seen.addAll(e.getValue());
+			}
+		}
+		return new long[] {elapsed, dispatched, dispatched - seen.size()};
+	}
+}
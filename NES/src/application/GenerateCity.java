@@ -0,0 +1,39 @@
+package application;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import util.CityGenerator;
+
+/**
+ * Writes a synthetic city for scale tests.
+ *
+ * <p>
+ * Usage: GenerateCity [GRID | RANDOM_GEOMETRIC | SCALE_FREE] [nodes] [seed] [out] [degree]
+ * defaults: a 10000 node grid with seed 1 written to city.nesg. An out name ending in .csv writes
+ * out-locations.csv and out-neighbours.csv for EnvironmentLoader instead of a graph file.
+ * </p>
+ */
+
+public class GenerateCity {
+	public static void main(String[] args) throws IOException {
+		CityGenerator.Topology topology = args.length > 0 ? CityGenerator.Topology.valueOf(args[0]) : CityGenerator.Topology.GRID;
+		int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		String out = args.length > 3 ? args[3] : "city.nesg";
+
+		CityGenerator g = new CityGenerator(topology, nodes, seed);
+		if (args.length > 4) g.setDegree(Integer.parseInt(args[4]));
+		long t0 = System.nanoTime();
+		if (out.endsWith(".csv")) {
+			String base = out.substring(0, out.length() - 4);
+			g.writeCsv(Paths.get(base + "-locations.csv"), Paths.get(base + "-neighbours.csv"));
+		}
+		else {
+			g.writeGraphFile(Paths.get(out));
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+		System.out.println(topology + ": " + nodes + " nodes, " + g.roadCount() + " roads written to " + out
+				+ " in " + String.format("%.2f", secs) + " s");
+	}
+}
@@ -0,0 +1,46 @@
+package application;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import util.IncidentTrace;
+import util.IncidentWorkload;
+import util.nodes.CustomDSA.GraphFile;
+
+/**
+ * Writes a synthetic incident trace for a compiled city, to be fed to Headless with -Dnes.workload.
+ *
+ * <p>
+ * Usage: GenerateWorkload [graph file] [incidents per hour] [hours] [seed] [out] [branching] [flat | day]
+ * defaults: city.nesg, 3600 incidents per simulated hour for 24 hours with seed 1 written to workload.trace.gz,
+ * no follow ups (branching 0, with a mean delay of 10 minutes otherwise) and the typical daily profile.
+ * </p>
+ */
+
+public class GenerateWorkload {
+	public static void main(String[] args) throws IOException {
+		String graph = args.length > 0 ? args[0] : "city.nesg";
+		double perHour = args.length > 1 ? Double.parseDouble(args[1]) : 3600;
+		long hours = args.length > 2 ? Long.parseLong(args[2]) : 24;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		String out = args.length > 4 ? args[4] : "workload.trace.gz";
+		double branching = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+		boolean flat = args.length > 6 && args[6].equals("flat");
+
+		GraphFile f = GraphFile.map(Paths.get(graph));
+		int[] ids = new int[f.size()];
+		for (int v = 0; v < ids.length; v++) {
+			ids[v] = f.nodeId(v);
+		}
+		IncidentWorkload w = new IncidentWorkload(ids, seed);
+		w.setRate(perHour);
+		if (!flat) w.setDailyProfile(IncidentWorkload.TYPICAL_DAY);
+		if (branching > 0) w.setExcitation(branching, 600);
+		w.setEnd(hours * IncidentWorkload.HOUR);
+		long t0 = System.nanoTime();
+		long n = IncidentTrace.write(w, Paths.get(out));
+		double secs = (System.nanoTime() - t0) / 1e9;
+		System.out.println(n + " incidents over " + hours + " simulated hours written to " + out
+				+ " in " + String.format("%.2f", secs) + " s (mean rate " + String.format("%.0f", w.getMeanRate()) + " per hour)");
+	}
+}
@@ -0,0 +1,131 @@
+package application;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import util.Checkpoint;
+import util.Checkpointer;
+import util.CsvImporter;
+import util.Environment;
+import util.EnvironmentLoader;
+import util.IncidentFeed;
+import util.IncidentRecorder;
+import util.IncidentTrace;
+import util.Journal;
+import util.Log;
+import util.RollingFileSink;
+import util.SimulationClock;
+import util.SimulationEngine;
+import util.TickMode;
+
+/**
+ * Runs the simulation without a display, as fast as possible.
+ *
+ * <p>
+ * Usage: Headless [simulated seconds] [tick rate] [locations csv] [neighbours csv] [tick mode] [journal]
+ * defaults: one simulated week at 4 ticks per second on the London files, EVENT tick mode, no journal.
+ * With a journal the run starts from the state it holds and is recorded to it.
+ * A locations file ending in .nesg is a compiled graph file and the neighbours file is not read.
+ * -Dnes.workload=trace feeds the incidents of a trace file, e.g. one from GenerateWorkload, into the run.
+ * -Dnes.record=trace records the incidents of the run to a trace file for Replay.
+ * -Dnes.checkpoint=file takes a checkpoint every -Dnes.checkpoint.every simulated seconds, 600 by default.
+ * If the file already exists the run is restored from it instead of loaded, and the journal is
+ * replayed from where the checkpoint left it.
+ * Nothing is logged unless -Dnes.log=file names a log file.
+ * </p>
+ */
+
+public class Headless {
+	public static void main(String[] args) throws InterruptedException, IOException {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 7L * 24 * 60 * 60;
+		int tickRate = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		String locations = args.length > 2 ? args[2] : "Locations.csv";
+		String neighbours = args.length > 3 ? args[3] : "NeighborGraph.csv";
+		TickMode mode = args.length > 4 ? TickMode.valueOf(args[4]) : TickMode.EVENT;
+
+		String log = System.getProperty("nes.log");
+		RollingFileSink logFile = null;
+		if (log != null) {
+			logFile = new RollingFileSink(Paths.get(log), 64L << 20, 5);
+			Log.addSink(logFile);
+		}
+		Environment env = new Environment();
+		String checkpoint = System.getProperty("nes.checkpoint");
+		long journalFrom = 0;
+		if (checkpoint != null && Files.exists(Paths.get(checkpoint))) {
+			long t0 = System.nanoTime();
+			journalFrom = Checkpoint.restore(Paths.get(checkpoint), env);
+			System.out.println("restored tick " + env.getTick() + " from " + checkpoint + " in "
+					+ String.format("%.2f", (System.nanoTime() - t0) / 1e9) + " s");
+			if (journalFrom < 0 && args.length > 5) {
+				throw new IOException(checkpoint + " was taken without a journal, there is no telling where to replay " + args[5] + " from");
+			}
+		}
+		else if (locations.endsWith(".nesg")) {
+			EnvironmentLoader.load(env, locations);
+		}
+		else {
+			CsvImporter.Report r = new CsvImporter(Runtime.getRuntime().availableProcessors())
+					.load(env, Paths.get(locations), Paths.get(neighbours));
+			for (String skipped: r.getSkippedRows()) {
+				System.out.println(skipped);
+			}
+			System.out.println("imported " + r);
+		}
+		Journal journal = null;
+		if (args.length > 5) {
+			long t0 = System.nanoTime();
+			journal = Journal.open(Paths.get(args[5]), env, journalFrom);
+			double secs = (System.nanoTime() - t0) / 1e9;
+			System.out.println("replayed " + journal.getReplayedCount() + " journal records in " + String.format("%.2f", secs) + " s");
+			env.setJournal(journal);
+		}
+		env.setTickMode(mode);
+		SimulationEngine engine = new SimulationEngine(env, SimulationClock.system(), tickRate);
+		engine.setPacing(SimulationEngine.Pacing.AS_FAST_AS_POSSIBLE);
+		String workload = System.getProperty("nes.workload");
+		IncidentTrace.Reader trace = null;
+		IncidentFeed feed = null;
+		if (workload != null) {
+			trace = IncidentTrace.open(Paths.get(workload));
+			feed = new IncidentFeed(env, trace);
+			feed.attach(engine);
+		}
+		Checkpointer checkpoints = null;
+		if (checkpoint != null) {
+			long every = Long.getLong("nes.checkpoint.every", 600) * tickRate;
+			checkpoints = new Checkpointer(env, Paths.get(checkpoint), every);
+			checkpoints.attach(engine);
+		}
+		String record = System.getProperty("nes.record");
+		IncidentRecorder recorder = record != null ? new IncidentRecorder(engine, Paths.get(record)) : null;
+
+		long start = System.nanoTime();
+		engine.runFor(seconds * 1_000_000_000L);
+		double wall = (System.nanoTime() - start) / 1e9;
+		System.out.println(engine.getTick() + " ticks, " + seconds + " simulated seconds in "
+				+ String.format("%.2f", wall) + " s (" + String.format("%.0f", engine.getTick() / wall) + " ticks/s)");
+		if (checkpoints != null) {
+			checkpoints.await();
+			System.out.println(checkpoints.getWritten() + " checkpoints written to " + checkpoint
+					+ (checkpoints.getFailed() > 0 ? ", " + checkpoints.getFailed() + " failed" : ""));
+		}
+		if (recorder != null) {
+			recorder.close();
+			System.out.println(recorder.getCount() + " incidents recorded to " + record);
+		}
+		if (feed != null) {
+			trace.close();
+			System.out.println(feed.getMade() + " incidents made, " + feed.getClosed() + " closed, " + feed.getSkipped() + " skipped");
+		}
+		if (journal != null) {
+			env.setJournal(null);
+			journal.close();
+		}
+		if (logFile != null) {
+			Log.removeSink(logFile);
+			if (Log.getDropped() > 0) System.out.println(Log.getDropped() + " log events dropped");
+		}
+	}
+}
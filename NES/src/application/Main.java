@@ -1,8 +1,11 @@
 package application;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
@@ -16,63 +19,94 @@ import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextArea;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
+import util.Checkpoint;
+import util.Checkpointer;
 import util.Environment;
+import util.EnvironmentLoader;
+import util.IncidentRecorder;
+import util.Journal;
+import util.Log;
 import util.Police;
+import util.RollingFileSink;
+import util.SimulationClock;
+import util.SimulationEngine;
+import util.Snapshot;
+import util.SnapshotPublisher;
 import util.Ambulance;
 import util.FireTruck;
-import util.nodes.Borough;
-import util.nodes.CustomDSA.NeighbourNode;
-
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
 
 public class Main extends Application{
 	private Environment env = new Environment();
 	private final int fps = 4;
-	private final long frameInterval = 1_000_000_000L/fps;
-	
-	private long lastUpdate = 0;
-	private long lastUpdateAll = 0;
+	/** made once the environment is loaded, so a restored one goes on from its tick **/
+	private SimulationEngine engine;
+	private Checkpointer checkpoints = null;
+	private IncidentRecorder recorder = null;
+	private Console consoleSink = null;
+	private RollingFileSink logFile = null;
+	/** what the UI draws from, at most four times a second **/
+	private final SnapshotPublisher snapshots = new SnapshotPublisher(env, 250_000_000L);
+	private final ArrayList<NodeCard> cards = new ArrayList<>();
 	
 	private VBox leftContent = new VBox(10);
 	private VBox detailsContainer = new VBox();
 	@Override
 	public void init() {
-		String locations = "Locations.csv";
-		String neighborCSV = "NeighborGraph.csv";
-		Map<String, Integer> map = new HashMap<>();
-		try (BufferedReader br = new BufferedReader(new FileReader(locations))){
-			String line;
-			boolean skipHeader = true;
-			int i = 1;
-			while((line = br.readLine()) != null) {
-				if (skipHeader) {
-					skipHeader = false;
-					continue;
-				}
-				line = line.trim();
-				Borough New = new Borough(i, line);
-				map.put(line, i);
-				for (int j = 0; j<3; j++) {
-					Police p = new Police(New, env.getNewServiceId());
-					env.addService(p);
-					FireTruck f = new FireTruck(New, env.getNewServiceId());
-					env.addService(f);
-					Ambulance a = new Ambulance(New, env.getNewServiceId());
-					env.addService(a);
-					New.addService(a);
-					New.addService(p);
-					New.addService(f);
-					
-				}
-				
-				env.addNode(i, New);
-				i ++;
-				
+		// -Dnes.log=file names the rolling log file, nes.log by default
+		try {
+			logFile = new RollingFileSink(Paths.get(System.getProperty("nes.log", "nes.log")), 10 << 20, 5);
+			Log.addSink(logFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		// -Dnes.checkpoint=file restores the run from the file if it exists and checkpoints to it
+		// every -Dnes.checkpoint.every simulated seconds, 600 by default
+		String checkpoint = System.getProperty("nes.checkpoint");
+		long journalFrom = 0;
+		// -Dnes.graph=file loads a graph compiled with CompileGraph instead of the CSV files
+		String graph = System.getProperty("nes.graph");
+		if (checkpoint != null && Files.exists(Paths.get(checkpoint))) {
+			try {
+				journalFrom = Checkpoint.restore(Paths.get(checkpoint), env);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		else if (graph != null) {
+			try {
+				EnvironmentLoader.load(env, graph);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		else {
+			EnvironmentLoader.load(env, "Locations.csv", "NeighborGraph.csv");
+		}
+		// -Dnes.journal=file picks up where the last run or checkpoint left off and records this run
+		String journal = System.getProperty("nes.journal");
+		if (journal != null) {
+			if (journalFrom < 0) {
+				throw new IllegalStateException(checkpoint + " was taken without a journal, there is no telling where to replay " + journal + " from");
+			}
+			try {
+				env.setJournal(Journal.open(Paths.get(journal), env, journalFrom));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		engine = new SimulationEngine(env, SimulationClock.system(), fps);
+		if (checkpoint != null) {
+			checkpoints = new Checkpointer(env, Paths.get(checkpoint), Long.getLong("nes.checkpoint.every", 600) * fps);
+			checkpoints.attach(engine);
+		}
+		// -Dnes.record=file records the incidents of this run for Replay
+		String record = System.getProperty("nes.record");
+		if (record != null) {
+			try {
+				recorder = new IncidentRecorder(engine, Paths.get(record));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
-		} catch(IOException e) {
-			System.out.println(e.getMessage());
 		}
 	
 		util.nodes.Node nd = env.getNodes().get(4);
@@ -82,39 +116,32 @@ public class Main extends Application{
 		mpa.put(FireTruck.Type, 100);
 		nd.requiredServices = mpa;
 		
-		try( BufferedReader br = new BufferedReader(new FileReader(neighborCSV))){
-			String line;
-			boolean skipHeader = true;
-			Map<Integer, util.nodes.Node> mp = env.getNodes();
-			while((line = br.readLine()) != null) {
-				if (skipHeader) {
-					skipHeader = false;
-					continue;
-				}
-				String[] parts = line.split(",");
-				String l1 = parts[0].trim();
-				String l2 = parts[1].trim();
-				float dist = Float.parseFloat(parts[2].trim());
-				util.nodes.Node nd1 = mp.get(map.get(l1));
-				util.nodes.Node nd2 = mp.get(map.get(l2));
-				nd1.addNeighbor(new NeighbourNode(nd2, dist));
-				nd2.addNeighbor(new NeighbourNode(nd1, dist));
-			}
-		} catch (IOException e) {
-			System.out.println(e.getMessage());
-		}
-		
+		snapshots.attach(engine);
 	}
 	
 	private void rebuildUI() {
 	    leftContent.getChildren().clear();
+	    cards.clear();
+	    Snapshot s = snapshots.getLatest();
 	    for(util.nodes.Node n: env.getNodes().values()) {			
-			VBox card = new NodeCard(n, env, detailsContainer).createNodeCard();
+			NodeCard card = new NodeCard(s, s.indexOf(n.getID()), env, engine, snapshots, detailsContainer);
+			card.createNodeCard();
             VBox.setMargin(card, new Insets(6));
             leftContent.getChildren().add(card);
+            cards.add(card);
 	    }
 	}
 	
+	/** redraws what changed once a newer snapshot is out, on the FX thread **/
+	private void redraw(Snapshot s) {
+		for (NodeCard card: cards) {
+			card.show(s);
+		}
+		for (javafx.scene.Node pane: detailsContainer.getChildren()) {
+			if (pane instanceof NodeDetailPane) ((NodeDetailPane) pane).refresh(s);
+		}
+	}
+	
 	
 	public void start(Stage primaryStage) throws Exception {
 		// ENVIRONMENT 
@@ -124,7 +151,7 @@ public class Main extends Application{
         
         detailsContainer.setPadding(new Insets(10));
         detailsContainer.setPrefWidth(600);
-        detailsContainer.getChildren().add(new NodeDetailPane(null, null));
+        detailsContainer.getChildren().add(new NodeDetailPane(-1, null, null, null));
 
         // LEFT NODE LIST 
         leftContent.setPadding(new Insets(10));
@@ -142,8 +169,11 @@ public class Main extends Application{
         console.setMaxWidth(Double.MAX_VALUE);
         console.setStyle("-fx-font-family: monospace;");
 
-        System.setOut(new PrintStream(new Console(console), true));
-        System.setErr(new PrintStream(new Console(console), true));
+        // the log and anything still printed reach the console once per frame
+        consoleSink = new Console(console);
+        System.setOut(new PrintStream(consoleSink, true));
+        System.setErr(new PrintStream(consoleSink, true));
+        Log.addSink(consoleSink);
 
         VBox leftColumn = new VBox(5, leftScroll, console);
         leftColumn.setFillWidth(true);
@@ -160,6 +190,17 @@ public class Main extends Application{
         primaryStage.setScene(scene);
         primaryStage.setTitle("Security System");
         primaryStage.show();		
+        new AnimationTimer() {
+        	private long shown = snapshots.getLatest().getVersion();
+        	
+			@Override
+			public void handle(long now) {
+				Snapshot s = snapshots.getLatest();
+				if (s.getVersion() == shown) return;
+				shown = s.getVersion();
+				redraw(s);
+			}
+		}.start();
         loop();
 	}
 	
@@ -170,28 +211,32 @@ public class Main extends Application{
 	}
 	
 	public void loop() {
-		AnimationTimer timer = new AnimationTimer() {
-			@Override
-            public void handle(long now) {
-				if (lastUpdate == 0) {
-                    lastUpdate = now;
-                    lastUpdateAll = now;
-                    return;
-				}
-                if (now - lastUpdate < frameInterval) return;                
-                
-                lastUpdate = now;
-                
-                if ((now-lastUpdateAll) >= 10_000_000_000l) {
-                	lastUpdateAll = now;
-                	env.update(true);
-                	return;
-                }
-                env.update(false);
-                
-            }
-		};
-		timer.start();
+		// the ticks run on the engine's thread, the UI only reads the snapshots
+		engine.start();
+	}
+	
+	@Override
+	public void stop() throws IOException {
+		engine.stop();
+		snapshots.detach(engine);
+		if (checkpoints != null) {
+			checkpoints.detach(engine);
+			checkpoints.await();
+		}
+		if (recorder != null) {
+			recorder.close();
+		}
+		if (consoleSink != null) {
+			Log.removeSink(consoleSink);
+		}
+		if (logFile != null) {
+			Log.removeSink(logFile);
+		}
+		Journal j = env.getJournal();
+		if (j != null) {
+			env.setJournal(null);
+			j.close();
+		}
 	}
 	
 }
@@ -1,95 +1,65 @@
 package application;
-import java.util.Map;
 
-import javafx.beans.Observable;
-import javafx.beans.binding.Bindings;
-import javafx.collections.MapChangeListener;
-import javafx.collections.ObservableMap;
 import javafx.geometry.Insets;
 import javafx.scene.Cursor;
 import javafx.scene.control.Label;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
 import util.Environment;
-import util.Incident;
-import util.nodes.Node;
+import util.SimulationEngine;
+import util.Snapshot;
+import util.SnapshotPublisher;
 
 public class NodeCard extends VBox{
 	private VBox detailsPane;
 	private Environment env;
-	private util.nodes.Node node = null;
+	private SimulationEngine engine;
+	private SnapshotPublisher snapshots;
+	/** index of the node in the snapshots **/
+	private final int v;
+	/** version of the snapshot the card was last drawn from **/
+	private long shownVersion = -1;
 	private final Label incidents = new Label();
 	private final Label services = new Label();
-	
-	public void bindValues() {
-		
-		
-		Observable[] incidentBindings = node.getIncidents()
-											.values()
-											.stream()
-											.toArray(size -> new Observable[size]);
-		
-		this.styleProperty().bind(
-				Bindings.createStringBinding(
-						() -> {
-							if (node.hasIncident()) {
-								return String.format("-fx-border-color: red; -fx-background-color: #ffecec;");
-							}else {
-								return String.format("-fx-border-color: lightgray; -fx-background-color: white;");
-							}
-						}, incidentBindings
-						)
-				
-				);
-		
-		incidents.textProperty().bind(
-			    Bindings.createStringBinding(
-			        () -> "Incidents: " + node.getIncidents()
-			                                  .values()
-			                                  .stream()
-			                                  .mapToInt(Map::size)
-			                                  .sum()
-			    , incidentBindings
-			        
-			    )
-			);
-		
-		Observable[] servicesBinding = node.getServices()
-										   .values()
-										   .stream()
-										   .toArray(size -> new Observable[size]);
-				
-				
-		services.textProperty().bind(
-				Bindings.createStringBinding(
-						() -> "Services: " + node.getServices()
-												 .values()
-												 .stream()
-												 .mapToInt(Map::size)
-						 						 .sum()
-						, servicesBinding
-						)
-				
-				);
+
+	/**
+	 * draws the card from a snapshot, skipped if the node hasn't changed since the last one
+	 * @param s the snapshot
+	 */
+	public void show(Snapshot s) {
+		if (s.changedAt(v) <= shownVersion) {
+			return;
+		}
+		shownVersion = s.getVersion();
+		if (s.hasIncident(v)) {
+			this.setStyle("-fx-border-color: red; -fx-background-color: #ffecec;");
+		}else {
+			this.setStyle("-fx-border-color: lightgray; -fx-background-color: white;");
+		}
+		incidents.setText("Incidents: " + s.incidentCount(v));
+		services.setText("Services: " + s.serviceCount(v));
 	}
-    public NodeCard(util.nodes.Node node,Environment env, VBox detailsPane) {
-    	this.node = node;
+
+    public NodeCard(Snapshot s, int v, Environment env, SimulationEngine engine, SnapshotPublisher snapshots, VBox detailsPane) {
+    	this.v = v;
     	this.env = env;
+    	this.engine = engine;
+    	this.snapshots = snapshots;
     	this.detailsPane = detailsPane;
-    	
-    	bindValues();
-    	
+
+    	show(s);
+
     }
-    
+
     public VBox createNodeCard() {
-    	Label id = new Label("ID: " + node.getID() + " ");
+    	Snapshot s = snapshots.getLatest();
+    	int nodeId = s.nodeId(v);
+    	Label id = new Label("ID: " + nodeId + " ");
 
-        Label name = new Label(node.getLocationName());
+        Label name = new Label(s.name(v));
         name.setStyle("-fx-font-weight: bold;");
 
         HBox r1 = new HBox();
         r1.getChildren().addAll(id, name);
-        HBox r2 = new HBox();                
 
         this.getChildren().addAll(r1, this.incidents, this.services);
         this.setPadding(new Insets(8));
@@ -97,11 +67,11 @@ public class NodeCard extends VBox{
 
         this.setOnMouseClicked(e ->
             detailsPane.getChildren().setAll(
-                new NodeDetailPane(node, env)
+                new NodeDetailPane(nodeId, env, engine, snapshots)
             )
         );
         return this;
-    	
+
     }
-    
-}
\ No newline at end of file
+
+}
@@ -5,23 +5,19 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.Spinner;
 
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.List;
 
 import javafx.collections.ObservableList;
-import javafx.collections.ObservableMap;
 import javafx.geometry.Insets;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
-import util.FireTruck;
-import util.Ambulance;
 import util.Environment;
 import util.Incident;
-import util.Police;
-import util.Service;
-import util.nodes.Node;
+import util.Log;
+import util.SimulationEngine;
+import util.Snapshot;
+import util.SnapshotPublisher;
 
 
 
@@ -29,55 +25,58 @@ public class NodeDetailPane extends VBox {
 
     private final VBox detailBlock = new VBox(8);
     private Environment env;
-    private Node node;
-    
-    public NodeDetailPane(Node node, Environment env) {
-    	
+    private SimulationEngine engine;
+    private SnapshotPublisher snapshots;
+    private int nodeId;
+    /** index of the node in the snapshots, -1 for none **/
+    private int v = -1;
+    /** version of the snapshot the panes were last drawn from **/
+    private long shownVersion = -1;
+    private final HBox row1 = new HBox(10);
+    private final HBox row2 = new HBox(10);
+
+    /**
+     * @param nodeId the node shown, -1 for an empty pane
+     * @param env the environment new requests go to
+     * @param engine runs the changes made from the pane on its tick thread
+     * @param snapshots where the pane is drawn from
+     */
+    public NodeDetailPane(int nodeId, Environment env, SimulationEngine engine, SnapshotPublisher snapshots) {
+
     	this.env = env;
-    	this.node = node;
+    	this.engine = engine;
+    	this.snapshots = snapshots;
+    	this.nodeId = nodeId;
+    	if (snapshots != null && snapshots.getLatest() != null) {
+    		this.v = snapshots.getLatest().indexOf(nodeId);
+    	}
         buildUI();
     }
-    
-    
+
+
     private void buildUI() {
-    	if (node == null || env == null) {
+    	if (v < 0 || env == null) {
     		return;
     	}
     	getChildren().clear();
     	setSpacing(10);
         setPadding(new Insets(10));
 
-        HBox row1 = new HBox(10);
         row1.setPrefHeight(300);
-
-        VBox infoPane = createInfoPane(node);
-        
-        ScrollPane policePane = createServicePane(Police.Type, node);
-        ScrollPane firePane = createServicePane(FireTruck.Type, node);
-        ScrollPane ambulancePane = createServicePane(Ambulance.Type, node);
-
-        HBox.setHgrow(policePane, Priority.ALWAYS);
-        HBox.setHgrow(firePane, Priority.ALWAYS);
-        HBox.setHgrow(ambulancePane, Priority.ALWAYS);
-
-        row1.getChildren().addAll(infoPane, policePane, firePane, ambulancePane);
-
-        HBox row2 = new HBox(10);
         row2.setPrefHeight(300);
-        
+
         HBox row3 = new HBox(10);
         row3.setPrefHeight(30);
-        HBox functions = createFunctionButton(node);
+        HBox functions = createFunctionButton();
         row3.getChildren().add(functions);
-        ScrollPane incidentsPane = createIncidentPane(node);
         detailBlock.getChildren().clear();
-        ScrollPane ongoingIncidentPane = createOngoingIncidentPane(node);
         detailBlock.setStyle("-fx-border-color: gray;");
         detailBlock.setPadding(new Insets(10));
 
         HBox.setHgrow(detailBlock, Priority.ALWAYS);
 
-        row2.getChildren().addAll(incidentsPane, ongoingIncidentPane, detailBlock);
+        row2.getChildren().add(detailBlock);
+        refresh(snapshots.getLatest());
 
         getChildren().addAll(row1, row2, row3);
         VBox.setVgrow(row1, Priority.ALWAYS);
@@ -85,21 +84,45 @@ public class NodeDetailPane extends VBox {
         VBox.setVgrow(row3, Priority.ALWAYS);
     }
 
+    /**
+     * redraws the node from a snapshot, skipped if it hasn't changed since the last one.
+     * the detail block is kept
+     * @param s the snapshot
+     */
+    public void refresh(Snapshot s) {
+    	if (v < 0 || s.changedAt(v) <= shownVersion) {
+    		return;
+    	}
+    	shownVersion = s.getVersion();
+
+        VBox infoPane = createInfoPane(s);
+        row1.getChildren().setAll(infoPane);
+        for (int t = 0; t < Snapshot.TYPES.length; t++) {
+        	ScrollPane servicePane = createServicePane(s, t);
+        	HBox.setHgrow(servicePane, Priority.ALWAYS);
+        	row1.getChildren().add(servicePane);
+        }
+
+        ScrollPane incidentsPane = createIncidentPane(s);
+        ScrollPane ongoingIncidentPane = createOngoingIncidentPane(s);
+        row2.getChildren().remove(0, row2.getChildren().size() - 1);
+        row2.getChildren().addAll(0, List.of(incidentsPane, ongoingIncidentPane));
+    }
+
     // INFO
 
-    private VBox createInfoPane(Node node) {
+    private VBox createInfoPane(Snapshot s) {
     	VBox box = new VBox(5);
     	ObservableList<javafx.scene.Node> boxChildren = box.getChildren();
-        Label id = new Label("ID: " + node.getID());
-        Label name = new Label(node.getLocationName());
-        ObservableMap<String, ObservableMap<Integer, Incident>> ls = node.getIncidents();
+        Label id = new Label("ID: " + nodeId);
+        Label name = new Label(s.name(v));
         Label incidentHeader = new Label("Incidents");
         name.setStyle("-fx-font-weight: bold;");
         boxChildren.addAll(id, name);
         int total = 0;
-        for (String s: ls.keySet()) {
-        	int num = ls.get(s).size();
-        	Label lb = new Label(s +": " + num);
+        for (int t = 0; t < Snapshot.TYPES.length; t++) {
+        	int num = s.incidentCount(v, t);
+        	Label lb = new Label(Snapshot.TYPES[t] +": " + num);
         	box.getChildren().add(lb);
         	total += num;
         }
@@ -108,23 +131,23 @@ public class NodeDetailPane extends VBox {
         required.setStyle("-fx-font-weight: bold;");
         incidentHeader.setStyle("-fx-font-weight: bold;");
         boxChildren.addAll(lTotal, required);
-        
-        Map<String, Integer>req = node.getRequiredServices();
+
         total = 0;
-        for (String s: req.keySet()) {
-        	int num = req.get(s); 
-        	Label lb = new Label(s + ": " + num);
+        for (int t = 0; t < Snapshot.TYPES.length; t++) {
+        	int num = s.required(v, t);
+        	Label lb = new Label(Snapshot.TYPES[t] + ": " + num);
         	boxChildren.add(lb);
+        	total += num;
         }
         Label rTotal = new Label("Total: "+total);
-        
+
         boxChildren.add(rTotal);
-      
+
         box.setPadding(new Insets(8));
         box.setPrefWidth(160);
         box.setStyle("-fx-border-color: lightgray;");
 
-        if (node.hasIncident()) {
+        if (s.hasIncident(v)) {
             box.setStyle("-fx-border-color: red; -fx-background-color: #ffecec;");
         }
 
@@ -133,24 +156,16 @@ public class NodeDetailPane extends VBox {
 
     // SERVICES
 
-    private ScrollPane createServicePane(String type, Node node) {
+    private ScrollPane createServicePane(Snapshot s, int t) {
         VBox content = new VBox(6);
         content.setPadding(new Insets(6));
 
-        Map<Integer, Service> services = node.getServices().get(type);
-        
-        
-        if (services != null) {
-        	Label header = new Label(type + " (" + services.size() + ")");
-        	content.getChildren().add(header);
-            for (Service s : services.values()) {
-                VBox card = createServiceCard(s);
-                content.getChildren().add(card);
-            }	
-        }
-        else {
-        	Label header = new Label(type + " (" + 0 + ")");
-        	content.getChildren().add(header);
+        int count = s.serviceCount(v, t);
+        Label header = new Label(Snapshot.TYPES[t] + " (" + count + ")");
+        content.getChildren().add(header);
+        for (int k = 0; k < count; k++) {
+            VBox card = createServiceCard(s.serviceId(v, t, k), s.isAvailable(v, t, k));
+            content.getChildren().add(card);
         }
 
         ScrollPane sp = new ScrollPane(content);
@@ -161,41 +176,37 @@ public class NodeDetailPane extends VBox {
         return sp;
     }
 
-    private VBox createServiceCard(Service service) {
-        Label id = new Label("Service ID: " + service.getID());
-        Label status = new Label(service.getAvailability() ? "Available" : "Busy");
+    private VBox createServiceCard(int serviceId, boolean available) {
+        Label id = new Label("Service ID: " + serviceId);
+        Label status = new Label(available ? "Available" : "Busy");
 
         VBox card = new VBox(4, id, status);
         card.setPadding(new Insets(6));
         card.setStyle("-fx-border-color: gray;");
-        card.setOnMouseClicked(e -> showServiceDetails(service));
+        card.setOnMouseClicked(e -> showServiceDetails(serviceId, available));
 
         return card;
     }
 
-    private void showServiceDetails(Service s) {
+    private void showServiceDetails(int serviceId, boolean available) {
         detailBlock.getChildren().setAll(
                 new Label("SERVICE DETAILS"),
-                new Label("ID: " + s.getID()),
-                new Label("Available: " + s.getAvailability())
+                new Label("ID: " + serviceId),
+                new Label("Available: " + available)
         );
     }
 
 
-    private ScrollPane createIncidentPane(Node node) {
+    private ScrollPane createIncidentPane(Snapshot s) {
         VBox content = new VBox(6);
         content.setPadding(new Insets(6));
-        int count = 0;
-        
-        for (Map<Integer, Incident> map : node.getIncidents().values()) {
-            for (Incident i : map.values()) {
-                VBox card = createIncidentCard(i);
-                content.getChildren().add(card);
-            }
-            count += map.size();
+
+        for (Snapshot.IncidentView i : s.incidents(v)) {
+            VBox card = createIncidentCard(i);
+            content.getChildren().add(card);
         }
-        
-        Label lb = new Label("Incidents" + " (" + count +")");
+
+        Label lb = new Label("Incidents" + " (" + s.incidentCount(v) +")");
         content.getChildren().add(0, lb);
         ScrollPane sp = new ScrollPane(content);
         sp.setFitToWidth(true);
@@ -203,26 +214,25 @@ public class NodeDetailPane extends VBox {
         sp.setStyle("-fx-border-color: lightgray;");
         return sp;
     }
-    
-    private ScrollPane createOngoingIncidentPane(Node node) {
+
+    private ScrollPane createOngoingIncidentPane(Snapshot s) {
     	VBox content = new VBox(8);
-    	
+
     	Label header = new Label("Ongoing Incident");
     	content.getChildren().add(header);
-    	PriorityQueue<Incident> queue = node.getRunningIncident();
-    	for (Incident s: queue) {
-    		VBox card = createIncidentCard(s);
+    	for (Snapshot.IncidentView i: s.runningIncidents(v)) {
+    		VBox card = createIncidentCard(i);
             content.getChildren().add(card);
     	}
-    		
+
     	ScrollPane sp = new ScrollPane(content);
     	sp.setFitToWidth(true);
         sp.setPrefWidth(220);
         sp.setStyle("-fx-border-color: lightgray;");
     	return sp;
     }
-    
-    private VBox createIncidentCard(Incident incident) {
+
+    private VBox createIncidentCard(Snapshot.IncidentView incident) {
         Label id = new Label("Incident #" + incident.getId());
         Label type = new Label("Type: " + incident.getType());
 
@@ -234,17 +244,16 @@ public class NodeDetailPane extends VBox {
         return card;
     }
 
-    private void showIncidentDetails(Incident inc) {
+    private void showIncidentDetails(Snapshot.IncidentView inc) {
     	HBox hb = new HBox();
-    	Map<String, ArrayList<Integer>> map = inc.getDispatchList();
-    	for (String s: map.keySet()) {
+    	for (int t = 0; t < Snapshot.TYPES.length; t++) {
+    		int count = inc.dispatchedCount(t);
+    		if (count == 0) continue;
     		VBox ls = new VBox(8);
-    		int count = 0;
-    		for (int i: map.get(s)) {
-    			ls.getChildren().add(new Label("" + i));
-    			count += 1;
+    		for (int k = 0; k < count; k++) {
+    			ls.getChildren().add(new Label("" + inc.dispatched(t, k)));
     		}
-    		ls.getChildren().add(0, new Label(s + " " + count));
+    		ls.getChildren().add(0, new Label(Snapshot.TYPES[t] + " " + count));
     		ScrollPane sp = new ScrollPane(ls);
             sp.setFitToWidth(true);
             sp.setPrefWidth(100);
@@ -255,36 +264,40 @@ public class NodeDetailPane extends VBox {
                 new Label("INCIDENT DETAILS"),
                 new Label("ID: " + inc.getId()),
                 new Label("Type: " + inc.getType()),
-                new Label("Level: " + inc.getIncidentLevel()),
+                new Label("Level: " + inc.getLevel()),
                 hb
-                
+
         );
-    	if (inc.getRunning() == true) {
+    	if (inc.isRunning() == true) {
     		Button btn = new Button("Set incident delt with");
     		btn.setOnAction(e -> {
-    			env.incidentDelt(inc);
-    			buildUI();
-    			
+    			// the simulation is only changed between two ticks, the next snapshot shows it
+    			int id = inc.getId();
+    			engine.post(() -> {
+    				Incident i = env.getIncidents().get(id);
+    				if (i != null && i.getRunning()) env.incidentDelt(i);
+    			});
+    			btn.setDisable(true);
     		});
     		detailBlock.getChildren().add(btn);
     	}
-    	
-        
+
+
     }
-    
-    private HBox createFunctionButton(Node node) {
+
+    private HBox createFunctionButton() {
     	HBox hb = new HBox();
     	VBox makeIncidentRequest = new VBox();
     	Label lb = new Label("Make a new Incident request");
     	makeIncidentRequest.getChildren().add(lb);
     	makeIncidentRequest.setPadding(new Insets(6));
         makeIncidentRequest.setStyle("-fx-border-color: gray;");
-        makeIncidentRequest.setOnMouseClicked(e -> showIncidentRequest(node));
+        makeIncidentRequest.setOnMouseClicked(e -> showIncidentRequest());
         hb.getChildren().add(makeIncidentRequest);
     	return hb;
     }
-    
-    private void showIncidentRequest(Node node) {
+
+    private void showIncidentRequest() {
     	Spinner<Integer> level = new Spinner<>(1, 10, 0);
     	Label lb1 = new Label("Incident level: ");
     	Label lb2 = new Label("Incident type: ");
@@ -295,8 +308,12 @@ public class NodeDetailPane extends VBox {
     	type.setPromptText("Select type");
     	Button btn = new Button("Submit");
     	btn.setOnAction(e -> {
-    		new Thread(() -> {env.MakeRequest(type.getValue(), level.getValue(), env.getNodes().get(node.getID()));}).start();
-    		buildUI();
+    		// dispatched by the next tick, the panes pick it up from the snapshot after
+    		env.getIncidentIntake()
+    			.trySubmit(type.getValue(), level.getValue(), env.getNodes().get(nodeId))
+    			.whenComplete((inc, err) -> {
+    				if (err != null) Log.warn(Log.Category.DISPATCH, "incident request dropped: " + err.getMessage());
+    			});
     	});
     	detailBlock.getChildren().setAll(
     			new Label("Make request"),
@@ -0,0 +1,249 @@
+package application;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import util.Checkpoint;
+import util.Checkpointer;
+import util.Environment;
+import util.EnvironmentLoader;
+import util.IncidentFeed;
+import util.IncidentWorkload;
+import util.Journal;
+import util.Service;
+import util.SimulationClock;
+import util.SimulationEngine;
+import util.TickMode;
+import util.nodes.Node;
+import util.nodes.CustomDSA.RoadGraph;
+
+/**
+ * Checks that a run can be recovered from what it wrote to disk.
+ *
+ * <p>
+ * Journal: a seeded workload is run with a journal, then the journal is replayed
+ * into a freshly loaded environment and its state is compared with the live one.
+ * A journal whose last record fills a segment exactly is then written, reopened
+ * and appended to, which must replay like any other.
+ * </p>
+ *
+ * <p>
+ * Checkpoint: a run is checkpointed, restored, and the live and the restored
+ * environment are both run on without new incidents; they must stay the same,
+ * down to how far every unit is along its road. Then a journaled run is
+ * checkpointed half way, and restoring the checkpoint and replaying the journal
+ * after it must give the state at the end.
+ * </p>
+ *
+ * <p>
+ * Prints every check with OK or the first difference, and exits with 1 if one failed.
+ * </p>
+ *
+ * <p>
+ * Usage: RecoveryCheck [locations] [neighbours csv] [simulated seconds] [tick mode] [seed]
+ * defaults: the London files, one simulated hour, EVENT tick mode, seed 1.
+ * A locations file ending in .nesg is a compiled graph file and the neighbours file is not read.
+ * </p>
+ */
+
+public class RecoveryCheck {
+	private static String locations;
+	private static String neighbours;
+	private static int failed = 0;
+
+	public static void main(String[] args) throws Exception {
+		locations = args.length > 0 ? args[0] : "Locations.csv";
+		neighbours = args.length > 1 ? args[1] : "NeighborGraph.csv";
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 60 * 60;
+		TickMode mode = args.length > 3 ? TickMode.valueOf(args[3]) : TickMode.EVENT;
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+
+		journalRoundTrip(seconds, mode, seed);
+		fullSegment();
+		checkpointRoundTrip(seconds, mode, seed);
+		checkpointAndJournal(seconds, mode, seed);
+		if (failed > 0) {
+			System.out.println(failed + " checks failed");
+			System.exit(1);
+		}
+	}
+
+	private static Environment load() {
+		Environment env = new Environment();
+		try {
+			if (locations.endsWith(".nesg")) EnvironmentLoader.load(env, locations);
+			else EnvironmentLoader.load(env, locations, neighbours);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return env;
+	}
+
+	private static void report(String check, String difference) {
+		if (difference == null) {
+			System.out.println(check + ": OK");
+		}
+		else {
+			System.out.println(check + ": " + difference);
+			failed++;
+		}
+	}
+
+	private static SimulationEngine engine(Environment env, TickMode mode) {
+		env.setTickMode(mode);
+		SimulationEngine engine = new SimulationEngine(env, SimulationClock.system(), 4);
+		engine.setPacing(SimulationEngine.Pacing.AS_FAST_AS_POSSIBLE);
+		return engine;
+	}
+
+	/** feeds a seeded workload of the simulated length into the engine's environment **/
+	private static IncidentFeed feed(SimulationEngine engine, long seed, long seconds) {
+		IncidentWorkload work = new IncidentWorkload(engine.getEnvironment(), seed);
+		work.setRate(60);
+		work.setOnScene(300);
+		work.setEnd(seconds * 1_000_000_000L);
+		IncidentFeed feed = new IncidentFeed(engine.getEnvironment(), work);
+		feed.attach(engine);
+		return feed;
+	}
+
+	/** runs a seeded workload on a fresh environment for the simulated time **/
+	private static void run(Environment env, TickMode mode, long seed, long seconds) throws InterruptedException {
+		SimulationEngine engine = engine(env, mode);
+		feed(engine, seed, seconds);
+		engine.runFor(seconds * 1_000_000_000L);
+	}
+
+	private static void journalRoundTrip(long seconds, TickMode mode, long seed) throws IOException, InterruptedException {
+		Path file = Files.createTempFile("nes", ".journal");
+		try {
+			Environment live = load();
+			Journal j = Journal.open(file, live);
+			live.setJournal(j);
+			run(live, mode, seed, seconds);
+			live.setJournal(null);
+			j.close();
+			Checkpoint expected = Checkpoint.capture(live);
+
+			Environment back = load();
+			Journal k = Journal.open(file, back);
+			k.close();
+			report("journal replay, " + k.getReplayedCount() + " records", expected.difference(Checkpoint.capture(back), false));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static void checkpointRoundTrip(long seconds, TickMode mode, long seed) throws IOException, InterruptedException {
+		Path file = Files.createTempFile("nes", ".checkpoint");
+		try {
+			Environment live = load();
+			SimulationEngine a = engine(live, mode);
+			IncidentFeed feed = feed(a, seed, seconds);
+			a.runFor(seconds * 1_000_000_000L);
+			a.unsubscribe(feed);
+			// the cut is taken while units are on their way, half way between two nodes
+			int moving = moving(live);
+			for (int i = 0; i < 4 * 60 * 60 && moving == 0; i++) {
+				live.MakeRequest(1, 5, live.getNodes().values().iterator().next());
+				a.runTicks(3);
+				moving = moving(live);
+			}
+			Checkpoint.capture(live).write(file);
+
+			Environment back = Checkpoint.restore(file);
+			SimulationEngine b = engine(back, mode);
+			report("checkpoint restore, tick " + back.getTick() + ", " + moving + " units on the road",
+					Checkpoint.capture(live).difference(Checkpoint.capture(back), true));
+			// the units on their way must get where they are going at the same ticks, compared after
+			// every tick until they are all there or ten simulated minutes have gone by
+			String difference = null;
+			for (int i = 0; i < 10 * 60 * 4 && difference == null && moving(live) > 0; i++) {
+				a.runTicks(1);
+				b.runTicks(1);
+				difference = Checkpoint.capture(live).difference(Checkpoint.capture(back), true);
+			}
+			report("checkpoint restore, " + mode + " run on to tick " + back.getTick(), difference);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static int moving(Environment env) {
+		int n = 0;
+		for (Service s: env.getServices().values()) {
+			if (s.getPath() != null) n++;
+		}
+		return n;
+	}
+
+	private static void checkpointAndJournal(long seconds, TickMode mode, long seed) throws IOException, InterruptedException {
+		Path file = Files.createTempFile("nes", ".checkpoint");
+		Path journal = Files.createTempFile("nes", ".journal");
+		try {
+			Environment live = load();
+			Journal j = Journal.open(journal, live);
+			live.setJournal(j);
+			SimulationEngine engine = engine(live, mode);
+			feed(engine, seed, seconds);
+			Checkpointer checkpoints = new Checkpointer(live, file, Long.MAX_VALUE);
+			engine.runFor(seconds * 1_000_000_000L / 2);
+			checkpoints.checkpoint().join();
+			engine.runFor(seconds * 1_000_000_000L / 2);
+			live.setJournal(null);
+			j.close();
+
+			Environment back = new Environment();
+			long from = Checkpoint.restore(file, back);
+			Journal k = Journal.open(journal, back, from);
+			k.close();
+			report("checkpoint and " + k.getReplayedCount() + " journal records after it",
+					Checkpoint.capture(live).difference(Checkpoint.capture(back), false));
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(journal);
+		}
+	}
+
+	private static void fullSegment() throws IOException {
+		Path file = Files.createTempFile("nes", ".journal");
+		try {
+			Environment env = load();
+			Journal j = Journal.open(file, env);
+			Service s = env.getServices().values().iterator().next();
+			Node at = s.getPlace();
+			RoadGraph g = env.getGraph();
+			// a move record is 9 bytes and a road record 10, enough of both to end exactly on the segment
+			long room = Journal.SEGMENT_SIZE - j.position();
+			long moves = 0;
+			while ((room - 9 * moves) % 10 != 0) moves++;
+			long roads = (room - 9 * moves) / 10;
+			for (long i = 0; i < moves; i++) {
+				j.moved(s, at, at);
+			}
+			for (long i = 0; i < roads; i++) {
+				j.edgeChanged(g, 0);
+			}
+			long end = j.position();
+			j.close();
+
+			Journal k = Journal.open(file, load());
+			long replayed = k.getReplayedCount();
+			k.moved(s, at, at);
+			k.close();
+			Journal l = Journal.open(file, load());
+			l.close();
+			String difference = null;
+			if (end != Journal.SEGMENT_SIZE) difference = "appends went on at " + end + ", not the next segment";
+			else if (replayed != moves + roads) difference = "replayed " + replayed + " of " + (moves + roads) + " records";
+			else if (l.getReplayedCount() != replayed + 1) difference = "record appended after reopening lost";
+			report("journal ending on a segment boundary", difference);
+		} catch (IllegalStateException e) {
+			report("journal ending on a segment boundary", e.getMessage());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package application;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import util.Backtest;
+import util.Environment;
+import util.EnvironmentLoader;
+import util.TickMode;
+
+/**
+ * Replays an incident trace with two dispatch strategies and reports the differences.
+ *
+ * <p>
+ * Usage: Replay [trace] [strategy a] [strategy b] [locations] [neighbours] [out] [tick rate]
+ * defaults: workload.trace.gz, default against ch+nearest, city.nesg, out prefix replay, 4 ticks per second.
+ * A strategy is a list of options joined with +: a tick mode (EVERY_SERVICE, EVENT, PARALLEL, COLUMNAR),
+ * oracle, landmarks, ch, nearest, batch, concurrent, or default for none of them.
+ * Writes out-a.csv and out-b.csv with a row per incident and out-diff.csv with their differences.
+ * A trace can be recorded from a live run with -Dnes.record, or made with GenerateWorkload.
+ * </p>
+ */
+
+public class Replay {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String trace = args.length > 0 ? args[0] : "workload.trace.gz";
+		String a = args.length > 1 ? args[1] : "default";
+		String b = args.length > 2 ? args[2] : "ch+nearest";
+		String locations = args.length > 3 ? args[3] : "city.nesg";
+		String neighbours = args.length > 4 ? args[4] : "NeighborGraph.csv";
+		String out = args.length > 5 ? args[5] : "replay";
+		int tickRate = args.length > 6 ? Integer.parseInt(args[6]) : 4;
+
+		Supplier<Environment> city = () -> {
+			Environment env = new Environment();
+			try {
+				if (locations.endsWith(".nesg")) EnvironmentLoader.load(env, locations);
+				else EnvironmentLoader.load(env, locations, neighbours);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return env;
+		};
+		Backtest bt = new Backtest(city, tickRate);
+		Backtest.Result ra = bt.run(Paths.get(trace), strategy(a), Paths.get(out + "-a.csv"));
+		System.out.println("a (" + a + "): " + ra);
+		Backtest.Result rb = bt.run(Paths.get(trace), strategy(b), Paths.get(out + "-b.csv"));
+		System.out.println("b (" + b + "): " + rb);
+		System.out.println(Backtest.diff(Paths.get(out + "-a.csv"), Paths.get(out + "-b.csv"), Paths.get(out + "-diff.csv")));
+	}
+
+	private static Consumer<Environment> strategy(String spec) {
+		Consumer<Environment> c = env -> { };
+		for (String option: spec.split("\\+")) {
+			c = c.andThen(option(option));
+		}
+		return c;
+	}
+
+	private static Consumer<Environment> option(String option) {
+		switch (option) {
+			case "default": return env -> { };
+			case "oracle": return Environment::enableDistanceOracle;
+			case "landmarks": return env -> env.enableLandmarks(16);
+			case "ch": return Environment::enableContractionHierarchy;
+			case "nearest": return Environment::enableNearestUnitIndex;
+			case "batch": return Environment::enableBatchDispatch;
+			case "concurrent": return env -> env.enableConcurrentDispatch(Runtime.getRuntime().availableProcessors());
+			default:
+				TickMode mode = TickMode.valueOf(option);
+				return env -> env.setTickMode(mode);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Small benchmark harness in the spirit of JMH, for a tree that has no build to pull JMH in.
+ *
+ * <p>
+ * A Case is run in iterations of a fixed time. The first warmup iterations give
+ * the JIT time to compile the code and are thrown away, every other iteration
+ * gives one sample of throughput, average time and bytes allocated per call.
+ * Only run() is timed, before() and after() are for per call setup and cleanup
+ * like JMH's Level.Invocation fixtures. Everything run() returns is folded into
+ * a sink so the JIT can't drop the work.
+ * </p>
+ *
+ * <p>
+ * Allocation is read from the thread's allocation counter around every call, so
+ * it counts what run() allocates on the benchmark thread, not other threads.
+ * Every call is timed on its own, so calls under about 100 ns carry some of
+ * the timer's own cost.
+ * </p>
+ */
+
+public final class Bench {
+	/** one benchmark **/
+	public interface Case {
+		/**
+		 * untimed, before every call of run()
+		 */
+		default void before() throws Exception {
+		}
+
+		/**
+		 * the timed operation
+		 * @return anything the operation produced, so it is not optimised away
+		 */
+		Object run() throws Exception;
+
+		/**
+		 * untimed, after every call of run()
+		 */
+		default void after() throws Exception {
+		}
+	}
+
+	/** samples of one benchmark with one set of parameters **/
+	public static final class Result {
+		private final String name;
+		private final String params;
+		private final double[] opsPerSecond;
+		private final double[] nanosPerOp;
+		private final double[] bytesPerOp;
+		private final double[] bytesPerSecond;
+
+		private Result(String name, String params, int samples) {
+			this.name = name;
+			this.params = params;
+			this.opsPerSecond = new double[samples];
+			this.nanosPerOp = new double[samples];
+			this.bytesPerOp = new double[samples];
+			this.bytesPerSecond = new double[samples];
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getParams() {
+			return this.params;
+		}
+
+		/**
+		 * @return mean calls per second of timed time
+		 */
+		public double getOpsPerSecond() {
+			return mean(this.opsPerSecond);
+		}
+
+		/**
+		 * @return mean nanoseconds per call
+		 */
+		public double getNanosPerOp() {
+			return mean(this.nanosPerOp);
+		}
+
+		/**
+		 * @return mean bytes allocated per call
+		 */
+		public double getBytesPerOp() {
+			return mean(this.bytesPerOp);
+		}
+
+		/**
+		 * @return the table rows of the result: throughput, average time, allocation per call and rate
+		 */
+		public String[] rows() {
+			int n = this.opsPerSecond.length;
+			return new String[] {
+				row(this.name, this.params, "thrpt", n, mean(this.opsPerSecond), error(this.opsPerSecond), "ops/s"),
+				row(this.name, this.params, "avgt", n, mean(this.nanosPerOp) / 1e3, error(this.nanosPerOp) / 1e3, "us/op"),
+				row(this.name, this.params, "alloc", n, mean(this.bytesPerOp), error(this.bytesPerOp), "B/op"),
+				row(this.name, this.params, "alloc.rate", n, mean(this.bytesPerSecond) / (1 << 20), error(this.bytesPerSecond) / (1 << 20), "MB/s"),
+			};
+		}
+
+		/**
+		 * @return one csv line: name, params, ops/s, error, ns/op, error, B/op, MB/s
+		 */
+		public String csv() {
+			return this.name + "," + this.params.replace(',', ' ') + "," + String.format(Locale.ROOT, "%.3f,%.3f,%.1f,%.1f,%.1f,%.3f",
+					mean(this.opsPerSecond), error(this.opsPerSecond), mean(this.nanosPerOp), error(this.nanosPerOp),
+					mean(this.bytesPerOp), mean(this.bytesPerSecond) / (1 << 20));
+		}
+	}
+
+	/** header of the rows of a Result **/
+	public static final String HEADER = String.format(Locale.ROOT, "%-28s %-34s %10s %4s %14s   %12s  %s",
+			"Benchmark", "(params)", "Mode", "Cnt", "Score", "Error", "Units");
+
+	private static String row(String name, String params, String mode, int n, double score, double error, String units) {
+		return String.format(Locale.ROOT, "%-28s %-34s %10s %4d %14.3f +- %12.3f  %s", name, params, mode, n, score, error, units);
+	}
+
+	private static double mean(double[] x) {
+		double s = 0;
+		for (double v: x) {
+			s += v;
+		}
+		return s / x.length;
+	}
+
+	/** standard deviation of the samples **/
+	private static double error(double[] x) {
+		if (x.length < 2) return 0;
+		double m = mean(x);
+		double s = 0;
+		for (double v: x) {
+			s += (v - m) * (v - m);
+		}
+		return Math.sqrt(s / (x.length - 1));
+	}
+
+	private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final int warmups;
+	private final int iterations;
+	private final long iterationNanos;
+	private volatile int sink;
+
+	/**
+	 * @param warmups iterations run before measuring
+	 * @param iterations measured iterations, one sample each
+	 * @param iterationNanos timed nanoseconds per iteration, an iteration makes at least one call
+	 */
+	public Bench(int warmups, int iterations, long iterationNanos) {
+		if (iterations < 1) throw new IllegalArgumentException("at least one measured iteration: " + iterations);
+		this.warmups = Math.max(0, warmups);
+		this.iterations = iterations;
+		this.iterationNanos = iterationNanos;
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * runs the warmup and measured iterations of a case
+	 * @param name name of the benchmark
+	 * @param params the parameters it runs with, for the report
+	 * @param c the benchmark
+	 * @return the samples of the measured iterations
+	 * @throws Exception whatever the case throws
+	 */
+	public Result measure(String name, String params, Case c) throws Exception {
+		Result r = new Result(name, params, this.iterations);
+		int h = 0;
+		for (int it = 0; it < this.warmups + this.iterations; it++) {
+			long ops = 0;
+			long timed = 0;
+			long bytes = 0;
+			long wall = System.nanoTime();
+			// slow setups must not stretch an iteration forever
+			while (ops == 0 || timed < this.iterationNanos && System.nanoTime() - wall < 20 * this.iterationNanos) {
+				c.before();
+				long a0 = THREADS.getCurrentThreadAllocatedBytes();
+				long t0 = System.nanoTime();
+				Object o = c.run();
+				long t1 = System.nanoTime();
+				long a1 = THREADS.getCurrentThreadAllocatedBytes();
+				c.after();
+				h += System.identityHashCode(o);
+				timed += t1 - t0;
+				bytes += a1 - a0;
+				ops++;
+			}
+			int k = it - this.warmups;
+			if (k >= 0) {
+				double t = Math.max(1, timed);
+				r.opsPerSecond[k] = ops * 1e9 / t;
+				r.nanosPerOp[k] = t / ops;
+				r.bytesPerOp[k] = (double) bytes / ops;
+				r.bytesPerSecond[k] = bytes * 1e9 / t;
+			}
+		}
+		this.sink = h;
+		return r;
+	}
+}
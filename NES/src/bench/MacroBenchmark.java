@@ -0,0 +1,315 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import util.CityGenerator;
+import util.Environment;
+import util.Incident;
+import util.Service;
+import util.ServiceListener;
+import util.SimulationClock;
+import util.SimulationEngine;
+import util.TickMode;
+import util.nodes.Node;
+import util.nodes.CustomDSA.RoadGraph;
+
+/**
+ * End to end benchmark of the headless simulation under a seeded stream of incidents.
+ *
+ * <p>
+ * For every combination of graph size, units per node and incident rate a random
+ * geometric city is generated and run tick by tick for the simulated duration.
+ * Incidents arrive as a Poisson process at random nodes and are opened with
+ * MakeRequest. Once every unit sent to an incident has arrived it stays on scene
+ * for a random time, drawn when the incident was opened, and is then closed with
+ * incidentDelt, which also reallocates the spare units. An incident whose units
+ * don't all get there is closed after an hour. The same seed gives the same
+ * workload however fast the units get there, so two builds can be compared.
+ * </p>
+ *
+ * <p>
+ * Measured per configuration:
+ * <ul>
+ *     <li>incidents per wall second over the whole run, and the mean time of one MakeRequest</li>
+ *     <li>tick time, mean, median, 99th percentile and worst</li>
+ *     <li>peak heap in use while running, and heap still in use after a GC at the end</li>
+ *     <li>simulated seconds from dispatch to arrival of every unit, median, 90th, 99th percentile and worst</li>
+ * </ul>
+ * Results are printed and written as CSV and JSON, one record per configuration.
+ * </p>
+ *
+ * <p>
+ * Usage: MacroBenchmark [-p nodes=..] [-p units=..] [-p rate=incidents per simulated minute,..]
+ * [-t simulated seconds] [-mode tick mode] [-seed n] [-csv file] [-json file]
+ * defaults: nodes=1000,10000,100000 units=1,3 rate=1,10,60 for 1800 simulated seconds in EVENT mode,
+ * results in macro.csv and macro.json.
+ * </p>
+ */
+
+public class MacroBenchmark {
+	/** ticks per simulated second **/
+	public static final int TICK_RATE = 4;
+	/** an incident is closed after this long even if not all of its units got there **/
+	public static final int GIVE_UP_TICKS = 3600 * TICK_RATE;
+
+	/** what one configuration measured **/
+	private static final class Run {
+		final Map<String, Object> values = new LinkedHashMap<>();
+
+		void put(String key, Object value) {
+			this.values.put(key, value);
+		}
+
+		String csvHeader() {
+			return String.join(",", this.values.keySet());
+		}
+
+		String csv() {
+			List<String> v = new ArrayList<>();
+			for (Object o: this.values.values()) {
+				v.add(format(o));
+			}
+			return String.join(",", v);
+		}
+
+		String json() {
+			StringBuilder sb = new StringBuilder("{");
+			for (Map.Entry<String, Object> e: this.values.entrySet()) {
+				if (sb.length() > 1) sb.append(", ");
+				sb.append('"').append(e.getKey()).append("\": ");
+				if (e.getValue() instanceof String) sb.append('"').append(e.getValue()).append('"');
+				else sb.append(format(e.getValue()));
+			}
+			return sb.append('}').toString();
+		}
+
+		private static String format(Object o) {
+			if (o instanceof Double) return String.format(Locale.ROOT, "%.3f", (Double) o);
+			return String.valueOf(o);
+		}
+	}
+
+	/** an incident that is open, with its units still on the way **/
+	private static final class Open {
+		final Incident incident;
+		final long opened;
+		/** ticks on scene once every unit got there, drawn with the incident **/
+		final long onScene;
+		int onTheWay;
+		long closeAt;
+
+		Open(Incident incident, long opened, long onScene) {
+			this.incident = incident;
+			this.opened = opened;
+			this.onScene = onScene;
+			this.closeAt = opened + GIVE_UP_TICKS;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String[]> params = new LinkedHashMap<>();
+		params.put("nodes", new String[] {"1000", "10000", "100000"});
+		params.put("units", new String[] {"1", "3"});
+		params.put("rate", new String[] {"1", "10", "60"});
+		long seconds = 1800;
+		TickMode mode = TickMode.EVENT;
+		long seed = 1;
+		String csv = "macro.csv";
+		String json = "macro.json";
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-p":
+					String[] kv = args[++i].split("=", 2);
+					if (!params.containsKey(kv[0])) throw new IllegalArgumentException("unknown parameter " + kv[0]);
+					params.put(kv[0], kv[1].split(","));
+					break;
+				case "-t": seconds = Long.parseLong(args[++i]); break;
+				case "-mode": mode = TickMode.valueOf(args[++i]); break;
+				case "-seed": seed = Long.parseLong(args[++i]); break;
+				case "-csv": csv = args[++i]; break;
+				case "-json": json = args[++i]; break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		// one small untimed run so the first configuration doesn't pay for the JIT
+		run(1000, 1, 60, 300, mode, seed);
+		List<Run> runs = new ArrayList<>();
+		for (String nodes: params.get("nodes")) {
+			for (String units: params.get("units")) {
+				for (String rate: params.get("rate")) {
+					Run r = run(Integer.parseInt(nodes), Integer.parseInt(units), Double.parseDouble(rate), seconds, mode, seed);
+					runs.add(r);
+					if (runs.size() == 1) System.out.println(r.csvHeader());
+					System.out.println(r.csv());
+				}
+			}
+		}
+
+		List<String> lines = new ArrayList<>();
+		lines.add(runs.get(0).csvHeader());
+		for (Run r: runs) {
+			lines.add(r.csv());
+		}
+		Files.write(Paths.get(csv), lines);
+		StringBuilder sb = new StringBuilder("[\n");
+		for (int i = 0; i < runs.size(); i++) {
+			sb.append("  ").append(runs.get(i).json()).append(i < runs.size() - 1 ? ",\n" : "\n");
+		}
+		Files.write(Paths.get(json), sb.append("]\n").toString().getBytes());
+	}
+
+	private static Run run(int size, int units, double perMinute, long seconds, TickMode mode, long seed) throws Exception {
+		CityGenerator g = new CityGenerator(CityGenerator.Topology.RANDOM_GEOMETRIC, size, seed);
+		g.setUnitsPerNode(units);
+		Environment env = new Environment();
+		g.load(env);
+		env.setTickMode(mode);
+		RoadGraph graph = env.getGraph();
+		SimulationEngine engine = new SimulationEngine(env, SimulationClock.system(), TICK_RATE);
+		engine.setPacing(SimulationEngine.Pacing.AS_FAST_AS_POSSIBLE);
+
+		// units on their way: the incident they go to, by service id
+		Map<Integer, Open> goingTo = new HashMap<>();
+		PriorityQueue<Open> closing = new PriorityQueue<>((a, b) -> Long.compare(a.closeAt, b.closeAt));
+		Random r = new Random(seed);
+		// simulated ticks from dispatch to arrival of every unit that got there
+		List<Long> late = new ArrayList<>();
+		long[] now = {0};
+		ServiceListener arrivalsOf = new ServiceListener() {
+			@Override
+			public void moved(Service s, Node from, Node to) {
+				Open o = goingTo.get(s.getID());
+				if (o == null || to != o.incident.getNode()) return;
+				goingTo.remove(s.getID());
+				late.add(now[0] - o.opened);
+				if (--o.onTheWay == 0) reschedule(o, now[0] + o.onScene);
+			}
+
+			void reschedule(Open o, long at) {
+				closing.remove(o);
+				o.closeAt = at;
+				closing.add(o);
+			}
+		};
+		for (Service s: env.getServices().values()) {
+			s.addListener(arrivalsOf);
+		}
+
+		long ticks = seconds * TICK_RATE;
+		long[] tickNanos = new long[(int) ticks];
+		double perTick = perMinute / 60.0 / TICK_RATE;
+		double nextArrival = -Math.log(1 - r.nextDouble()) / perTick;
+		long incidents = 0;
+		long dispatched = 0;
+		long dispatchNanos = 0;
+		long peakHeap = 0;
+		Runtime rt = Runtime.getRuntime();
+		long wall0 = System.nanoTime();
+		for (long t = 0; t < ticks; t++) {
+			now[0] = t;
+			while (nextArrival < t + 1) {
+				Node n = graph.nodeAt(r.nextInt(graph.size()));
+				long d0 = System.nanoTime();
+				Incident inc = env.MakeRequest(1 + r.nextInt(3), 1 + r.nextInt(10), n);
+				dispatchNanos += System.nanoTime() - d0;
+				incidents++;
+				// drawn now rather than on arrival, so when units arrive can't change the stream
+				Open o = new Open(inc, t, onScene(r));
+				for (List<Integer> ids: inc.getDispatchList().values()) {
+					for (int id: ids) {
+						dispatched++;
+						Service s = env.getServices().get(id);
+						if (s.getPlace() == n) {
+							// already there
+							late.add(0L);
+							continue;
+						}
+						goingTo.put(id, o);
+						o.onTheWay++;
+					}
+				}
+				if (o.onTheWay == 0) o.closeAt = t + o.onScene;
+				closing.add(o);
+				nextArrival += -Math.log(1 - r.nextDouble()) / perTick;
+			}
+			while (!closing.isEmpty() && closing.peek().closeAt <= t) {
+				Open o = closing.poll();
+				for (List<Integer> ids: o.incident.getDispatchList().values()) {
+					for (int id: ids) {
+						goingTo.remove(id, o);
+					}
+				}
+				env.incidentDelt(o.incident);
+			}
+			long t0 = System.nanoTime();
+			engine.runTicks(1);
+			tickNanos[(int) t] = System.nanoTime() - t0;
+			if ((t & 1023) == 0) peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+		}
+		double wall = (System.nanoTime() - wall0) / 1e9;
+		peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+		System.gc();
+		long retained = rt.totalMemory() - rt.freeMemory();
+
+		long[] arrival = new long[late.size()];
+		for (int i = 0; i < arrival.length; i++) {
+			arrival[i] = late.get(i);
+		}
+		Arrays.sort(arrival);
+		long[] sortedTicks = tickNanos.clone();
+		Arrays.sort(sortedTicks);
+		long tickSum = 0;
+		for (long x: tickNanos) {
+			tickSum += x;
+		}
+
+		Run run = new Run();
+		run.put("nodes", size);
+		run.put("units", units);
+		run.put("rate_per_min", perMinute);
+		run.put("mode", mode.name());
+		run.put("fleet", env.getServices().size());
+		run.put("sim_s", seconds);
+		run.put("wall_s", wall);
+		run.put("incidents", incidents);
+		run.put("units_dispatched", dispatched);
+		run.put("incidents_per_s", incidents / wall);
+		run.put("dispatch_us", incidents == 0 ? 0.0 : dispatchNanos / 1e3 / incidents);
+		run.put("tick_mean_us", tickSum / 1e3 / ticks);
+		run.put("tick_p50_us", percentile(sortedTicks, 0.5) / 1e3);
+		run.put("tick_p99_us", percentile(sortedTicks, 0.99) / 1e3);
+		run.put("tick_max_us", sortedTicks[sortedTicks.length - 1] / 1e3);
+		run.put("heap_peak_mb", peakHeap / 1048576.0);
+		run.put("heap_retained_mb", retained / 1048576.0);
+		run.put("arrived", arrival.length);
+		run.put("not_arrived", dispatched - arrival.length);
+		run.put("arrival_p50_s", percentile(arrival, 0.5) / (double) TICK_RATE);
+		run.put("arrival_p90_s", percentile(arrival, 0.9) / (double) TICK_RATE);
+		run.put("arrival_p99_s", percentile(arrival, 0.99) / (double) TICK_RATE);
+		run.put("arrival_max_s", arrival.length == 0 ? 0.0 : arrival[arrival.length - 1] / (double) TICK_RATE);
+		return run;
+	}
+
+	/** on scene for 5 to 20 simulated minutes **/
+	private static long onScene(Random r) {
+		return (300 + r.nextInt(900)) * (long) TICK_RATE;
+	}
+
+	/** nearest rank percentile of sorted values, 0 for none **/
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		int k = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, k))];
+	}
+}
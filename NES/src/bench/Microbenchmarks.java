@@ -0,0 +1,285 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import util.CityGenerator;
+import util.Environment;
+import util.Incident;
+import util.Service;
+import util.nodes.Node;
+import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+import util.nodes.CustomDSA.SearchContext;
+
+/**
+ * Microbenchmarks of the dispatch and movement hot paths.
+ *
+ * <p>
+ * Every benchmark runs on a random geometric city from CityGenerator for each
+ * combination of the parameters:
+ * <ul>
+ *     <li>nodes - size of the road graph</li>
+ *     <li>units - units of every type on every node</li>
+ *     <li>blocked - share of the roads that are closed or congested, half each</li>
+ * </ul>
+ * The benchmarks:
+ * <ul>
+ *     <li>searchForServices - Environment.SearchForServices for a new incident at a random node</li>
+ *     <li>dispatchServices - Environment.DispatchServices at the settled incident node</li>
+ *     <li>routeTo - building a Route from a finished search, what makeDuplicate used to copy</li>
+ *     <li>flipStartPos, flipPath - the views of a route the dispatch hands to units</li>
+ *     <li>reallocateServices - Environment.incidentDelt, which releases the units and reallocates the spare ones</li>
+ *     <li>recalculateServiceRequired - Node.recalculateServiceRequired on a random node</li>
+ *     <li>serviceRun - Service.run on a unit driving a route</li>
+ * </ul>
+ * Units sent out by a benchmark are released again outside of the timed part, so
+ * the fleet looks the same for every call. Nothing touches the JavaFX toolkit.
+ * </p>
+ *
+ * <p>
+ * Usage: Microbenchmarks [regex] [-p name=v1,v2 ...] [-wi warmups] [-i iterations] [-r ms per iteration] [-csv file]
+ * defaults: every benchmark, nodes=1000,10000,100000 units=1,5 blocked=0,0.1, 3 warmups, 5 iterations of 500 ms.
+ * </p>
+ */
+
+public class Microbenchmarks {
+	/** the environment of one set of parameters **/
+	private static final class Fixture {
+		final Environment env;
+		final RoadGraph graph;
+		final Node[] nodes;
+		final Random random = new Random(7);
+		int incidentIds = 0;
+
+		Fixture(int size, int units, double blocked) {
+			CityGenerator g = new CityGenerator(CityGenerator.Topology.RANDOM_GEOMETRIC, size, 1);
+			g.setUnitsPerNode(units);
+			this.env = new Environment();
+			g.load(this.env);
+			this.graph = this.env.getGraph();
+			this.nodes = new Node[this.graph.size()];
+			for (int v = 0; v < this.nodes.length; v++) {
+				this.nodes[v] = this.graph.nodeAt(v);
+			}
+			Random r = new Random(3);
+			for (Node n: this.nodes) {
+				for (NeighbourNode road: n.getNeighbour()) {
+					double x = r.nextDouble();
+					if (x < blocked / 2) road.toggleOpen();
+					else if (x < blocked) road.toggleCOngested();
+				}
+			}
+		}
+
+		Node randomNode() {
+			return this.nodes[this.random.nextInt(this.nodes.length)];
+		}
+
+		Incident newIncident() {
+			return new Incident(++this.incidentIds, this.randomNode(), 1 + this.random.nextInt(10), 1 + this.random.nextInt(3));
+		}
+
+		/** sends the units of the incident back to waiting where they are **/
+		void release(Incident inc) {
+			for (List<Integer> ids: inc.getDispatchList().values()) {
+				for (int id: ids) {
+					Service s = this.env.getServices().get(id);
+					s.setAvailable();
+					s.setPath(null);
+				}
+			}
+		}
+
+		/** stops every unit at the node **/
+		void settle(Node n) {
+			for (Map<Integer, Service> byType: n.getServices().values()) {
+				for (Service s: byType.values()) {
+					if (s.getPath() != null) s.setPath(null);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String[]> params = new LinkedHashMap<>();
+		params.put("nodes", new String[] {"1000", "10000", "100000"});
+		params.put("units", new String[] {"1", "5"});
+		params.put("blocked", new String[] {"0", "0.1"});
+		Pattern filter = Pattern.compile(".*");
+		int warmups = 3;
+		int iterations = 5;
+		long iterationMs = 500;
+		String csv = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-p":
+					String[] kv = args[++i].split("=", 2);
+					if (!params.containsKey(kv[0])) throw new IllegalArgumentException("unknown parameter " + kv[0]);
+					params.put(kv[0], kv[1].split(","));
+					break;
+				case "-wi": warmups = Integer.parseInt(args[++i]); break;
+				case "-i": iterations = Integer.parseInt(args[++i]); break;
+				case "-r": iterationMs = Long.parseLong(args[++i]); break;
+				case "-csv": csv = args[++i]; break;
+				default: filter = Pattern.compile(".*" + args[i] + ".*");
+			}
+		}
+
+		Bench bench = new Bench(warmups, iterations, iterationMs * 1_000_000L);
+		List<Bench.Result> results = new ArrayList<>();
+		System.out.println(Bench.HEADER);
+		for (String size: params.get("nodes")) {
+			for (String units: params.get("units")) {
+				for (String blocked: params.get("blocked")) {
+					String p = "nodes=" + size + ",units=" + units + ",blocked=" + blocked;
+					Fixture f = new Fixture(Integer.parseInt(size), Integer.parseInt(units), Double.parseDouble(blocked));
+					for (Map.Entry<String, Bench.Case> c: cases(f).entrySet()) {
+						if (!filter.matcher(c.getKey()).matches()) continue;
+						Bench.Result r = bench.measure(c.getKey(), p, c.getValue());
+						results.add(r);
+						for (String row: r.rows()) {
+							System.out.println(row);
+						}
+					}
+				}
+			}
+		}
+		if (csv != null) {
+			List<String> lines = new ArrayList<>();
+			lines.add("benchmark,params,ops/s,ops/s error,ns/op,ns/op error,B/op,alloc MB/s");
+			for (Bench.Result r: results) {
+				lines.add(r.csv());
+			}
+			Files.write(Paths.get(csv), lines);
+		}
+	}
+
+	private static Map<String, Bench.Case> cases(Fixture f) {
+		Map<String, Bench.Case> cases = new LinkedHashMap<>();
+		Environment env = f.env;
+
+		cases.put("searchForServices", new Bench.Case() {
+			Incident inc;
+			Map<String, Integer> required;
+
+			public void before() {
+				this.inc = f.newIncident();
+				this.required = Environment.requiredServices(this.inc.getIncidentType(), this.inc.getIncidentLevel());
+			}
+
+			public Object run() {
+				env.SearchForServices(this.required, this.inc);
+				return this.inc;
+			}
+
+			public void after() {
+				f.release(this.inc);
+			}
+		});
+
+		SearchContext ctx = new SearchContext();
+		ctx.prepare(f.graph);
+		cases.put("dispatchServices", new Bench.Case() {
+			Incident inc;
+			Map<String, Integer> required;
+			int source;
+
+			public void before() {
+				this.inc = f.newIncident();
+				this.required = Environment.requiredServices(this.inc.getIncidentType(), this.inc.getIncidentLevel());
+				this.source = f.graph.indexOf(this.inc.getNode());
+				ctx.start(this.source);
+				ctx.next();
+			}
+
+			public Object run() {
+				return env.DispatchServices(this.required, ctx, this.source, this.inc);
+			}
+
+			public void after() {
+				f.release(this.inc);
+			}
+		});
+
+		// one search settles the whole graph, the routes to 64 of its nodes are used by the route benchmarks
+		SearchContext full = new SearchContext();
+		full.prepare(f.graph);
+		full.start(0);
+		List<Integer> reached = new ArrayList<>();
+		for (int v; (v = full.next()) >= 0; ) {
+			reached.add(v);
+		}
+		int[] targets = new int[64];
+		Route[] routes = new Route[targets.length];
+		Random r = new Random(5);
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = reached.get(r.nextInt(reached.size()));
+			routes[i] = full.routeTo(targets[i]);
+		}
+		int[] next = {0};
+		cases.put("routeTo", () -> full.routeTo(targets[next[0]++ & 63]));
+		cases.put("flipStartPos", () -> env.flipStartPos(routes[next[0]++ & 63]));
+		cases.put("flipPath", () -> env.flipPath(routes[next[0]++ & 63]));
+
+		cases.put("reallocateServices", new Bench.Case() {
+			Incident inc;
+
+			public void before() {
+				this.inc = f.newIncident();
+				env.SearchForServices(Environment.requiredServices(this.inc.getIncidentType(), this.inc.getIncidentLevel()), this.inc);
+			}
+
+			public Object run() {
+				env.incidentDelt(this.inc);
+				return this.inc;
+			}
+
+			public void after() {
+				f.settle(this.inc.getNode());
+			}
+		});
+
+		cases.put("recalculateServiceRequired", () -> {
+			Node n = f.randomNode();
+			n.recalculateServiceRequired();
+			return n;
+		});
+
+		Service[] drivers = env.getServices().values().toArray(new Service[0]);
+		Arrays.sort(drivers, (a, b) -> Integer.compare(a.getID(), b.getID()));
+		SearchContext toward = new SearchContext();
+		toward.prepare(f.graph);
+		cases.put("serviceRun", new Bench.Case() {
+			Service s;
+			int i = 0;
+
+			public void before() {
+				this.s = drivers[this.i++ % Math.min(drivers.length, 1024)];
+				if (this.s.getPath() != null) return;
+				// a route from where the unit is to a random node it can reach
+				int at = f.graph.indexOf(this.s.getPlace());
+				toward.start(at);
+				int last = at;
+				for (int v, k = f.random.nextInt(2000); k > 0 && (v = toward.next()) >= 0; k--) {
+					last = v;
+				}
+				this.s.reallocate(env.flipPath(toward.routeTo(last)));
+			}
+
+			public Object run() {
+				this.s.run();
+				return this.s;
+			}
+		});
+		return cases;
+	}
+}
@@ -2,6 +2,7 @@ module NES {
 	requires javafx.controls;
 	requires javafx.graphics;
 	requires javafx.base;
+	requires jdk.management;
 	
 	opens application to javafx.graphics, javafx.fxml;
 }
@@ -0,0 +1,345 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import util.nodes.CustomDSA.Route;
+
+/**
+ * Replays an incident trace through a fresh environment as fast as possible, to compare
+ * dispatch strategies and catch performance regressions.
+ *
+ * <p>
+ * The trace is streamed from its file, every incident is made when the simulated
+ * time reaches it and dealt with after its recorded duration, or when the trace
+ * closes it. For every incident one row is written to a CSV file:
+ * <ul>
+ *     <li>units - units dispatched to it</li>
+ *     <li>unserved - units it needed that weren't dispatched</li>
+ *     <li>distance - length of the routes the dispatched units were given, units already there count 0</li>
+ *     <li>dispatch_us - wall microseconds MakeRequest took</li>
+ * </ul>
+ * An incident is measured after the tick following the one it was made in, so batch dispatch has solved it.
+ * With batch dispatch MakeRequest only queues the incident, its dispatch time is in the tick time instead.
+ * </p>
+ *
+ * <p>
+ * diff() reads the rows of two runs of the same trace side by side and writes the
+ * differences per incident, with the totals as a summary. Nothing but the rows in
+ * flight is held in memory, so traces of any length can be compared.
+ * </p>
+ */
+
+public class Backtest {
+	public static final String HEADER = "incident,time_s,node,type,level,units,unserved,distance,dispatch_us";
+	public static final String DIFF_HEADER = "incident,node,type,level,units_a,units_b,unserved_a,unserved_b,"
+			+ "distance_a,distance_b,distance_delta,dispatch_us_a,dispatch_us_b";
+
+	/** totals of one run **/
+	public static final class Result {
+		private long incidents;
+		private long skipped;
+		private long units;
+		private long unserved;
+		private double distance;
+		private long dispatchNanos;
+		private long ticks;
+		private long wallNanos;
+
+		public long getIncidents() {
+			return this.incidents;
+		}
+
+		public long getSkipped() {
+			return this.skipped;
+		}
+
+		public long getUnits() {
+			return this.units;
+		}
+
+		public long getUnserved() {
+			return this.unserved;
+		}
+
+		public double getDistance() {
+			return this.distance;
+		}
+
+		/**
+		 * @return mean wall microseconds of MakeRequest
+		 */
+		public double getDispatchMicros() {
+			return this.incidents == 0 ? 0 : this.dispatchNanos / 1e3 / this.incidents;
+		}
+
+		public long getTicks() {
+			return this.ticks;
+		}
+
+		public double getSeconds() {
+			return this.wallNanos / 1e9;
+		}
+
+		@Override
+		public String toString() {
+			double s = Math.max(this.getSeconds(), 1e-9);
+			return String.format(Locale.ROOT, "%d incidents (%d skipped), %d units, %d unserved, distance %.1f, "
+					+ "dispatch %.1f us, %d ticks in %.2f s (%.0f incidents/s, %.0f ticks/s)",
+					this.incidents, this.skipped, this.units, this.unserved, this.distance,
+					this.getDispatchMicros(), this.ticks, this.getSeconds(), this.incidents / s, this.ticks / s);
+		}
+	}
+
+	/** totals of a diff of two runs **/
+	public static final class Diff {
+		private long incidents;
+		private long better;
+		private long worse;
+		private long unitsA;
+		private long unitsB;
+		private long unservedA;
+		private long unservedB;
+		private double distanceA;
+		private double distanceB;
+		private double dispatchA;
+		private double dispatchB;
+		private int worstIncident = -1;
+		private double worstDelta = 0;
+
+		public long getIncidents() {
+			return this.incidents;
+		}
+
+		/**
+		 * @return incidents b sent units a shorter way to
+		 */
+		public long getBetter() {
+			return this.better;
+		}
+
+		/**
+		 * @return incidents b sent units a longer way to
+		 */
+		public long getWorse() {
+			return this.worse;
+		}
+
+		public double getDistanceDelta() {
+			return this.distanceB - this.distanceA;
+		}
+
+		@Override
+		public String toString() {
+			long n = Math.max(1, this.incidents);
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.ROOT, "%d incidents, b shorter for %d, longer for %d, same for %d%n",
+					this.incidents, this.better, this.worse, this.incidents - this.better - this.worse));
+			sb.append(String.format(Locale.ROOT, "distance  a %.1f  b %.1f  (%+.2f%%)%n", this.distanceA, this.distanceB,
+					this.distanceA == 0 ? 0 : 100 * (this.distanceB - this.distanceA) / this.distanceA));
+			sb.append(String.format(Locale.ROOT, "units     a %d  b %d%n", this.unitsA, this.unitsB));
+			sb.append(String.format(Locale.ROOT, "unserved  a %d  b %d%n", this.unservedA, this.unservedB));
+			sb.append(String.format(Locale.ROOT, "dispatch  a %.1f us  b %.1f us", this.dispatchA / n, this.dispatchB / n));
+			if (this.worstIncident >= 0) {
+				sb.append(String.format(Locale.ROOT, "%nworst regression: incident %d, %+.1f distance", this.worstIncident, this.worstDelta));
+			}
+			return sb.toString();
+		}
+	}
+
+	/** an incident made but not measured yet **/
+	private static final class Made {
+		final int seq;
+		final long time;
+		final Incident incident;
+		final long dispatchNanos;
+
+		Made(int seq, long time, Incident incident, long dispatchNanos) {
+			this.seq = seq;
+			this.time = time;
+			this.incident = incident;
+			this.dispatchNanos = dispatchNanos;
+		}
+	}
+
+	private final Supplier<Environment> city;
+	private final int tickRate;
+
+	/**
+	 * @param city makes a fresh environment for every run, all from the same city
+	 * @param tickRate ticks per simulated second
+	 */
+	public Backtest(Supplier<Environment> city, int tickRate) {
+		this.city = city;
+		this.tickRate = tickRate;
+	}
+
+	/**
+	 * replays a trace
+	 * @param trace the trace file
+	 * @param strategy sets up the dispatch of the fresh environment, e.g. enables an index or a tick mode
+	 * @param out the CSV file of one row per incident
+	 * @return the totals
+	 * @throws IOException if a file can't be read or written
+	 * @throws InterruptedException if interrupted while running
+	 */
+	public Result run(Path trace, Consumer<Environment> strategy, Path out) throws IOException, InterruptedException {
+		Environment env = this.city.get();
+		strategy.accept(env);
+		SimulationEngine engine = new SimulationEngine(env, SimulationClock.system(), this.tickRate);
+		engine.setPacing(SimulationEngine.Pacing.AS_FAST_AS_POSSIBLE);
+
+		// length of the route every unit was last sent out on
+		Map<Integer, Float> sent = new ConcurrentHashMap<>();
+		ServiceListener routes = new ServiceListener() {
+			@Override
+			public void pathChanged(Service s) {
+				Route p = s.getPath();
+				if (p != null && s.getIncidentLevel() > 0) sent.put(s.getID(), p.totalDistance());
+			}
+		};
+		for (Service s: env.getServices().values()) {
+			s.addListener(routes);
+		}
+
+		Result r = new Result();
+		ArrayDeque<Made> made = new ArrayDeque<>();
+		try (IncidentTrace.Reader src = IncidentTrace.open(trace); BufferedWriter w = Files.newBufferedWriter(out)) {
+			w.write(HEADER);
+			w.newLine();
+			SimulationEngine.TickListener measure = (tick, nanos) -> {
+				try {
+					while (!made.isEmpty()) {
+						this.measure(made.poll(), sent, r, w);
+					}
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			};
+			IncidentFeed feed = new IncidentFeed(env, src) {
+				private int seq = 0;
+
+				@Override
+				protected void made(long time, Incident inc, long dispatchNanos) {
+					made.add(new Made(this.seq++, time, inc, dispatchNanos));
+				}
+			};
+			// measured before the feed makes the next incidents
+			engine.subscribe(measure, SimulationEngine.DIRECT);
+			feed.attach(engine);
+
+			long t0 = System.nanoTime();
+			while (!feed.isExhausted()) {
+				engine.runTicks(60L * this.tickRate);
+			}
+			// the last incidents are dispatched and measured in one more tick
+			engine.runTicks(1);
+			r.wallNanos = System.nanoTime() - t0;
+			r.ticks = engine.getTick();
+			r.skipped = feed.getSkipped();
+			engine.unsubscribe(measure);
+			engine.unsubscribe(feed);
+		}
+		for (Service s: env.getServices().values()) {
+			s.removeListener(routes);
+		}
+		return r;
+	}
+
+	private void measure(Made m, Map<Integer, Float> sent, Result r, BufferedWriter w) throws IOException {
+		Incident inc = m.incident;
+		int units = 0;
+		double distance = 0;
+		for (List<Integer> ids: inc.getDispatchList().values()) {
+			for (int id: ids) {
+				units++;
+				Float d = sent.remove(id);
+				if (d != null) distance += d;
+			}
+		}
+		int needed = 0;
+		for (int k: Environment.requiredServices(inc.getIncidentType(), inc.getIncidentLevel()).values()) {
+			needed += k;
+		}
+		int unserved = Math.max(0, needed - units);
+		r.incidents++;
+		r.units += units;
+		r.unserved += unserved;
+		r.distance += distance;
+		r.dispatchNanos += m.dispatchNanos;
+		w.write(String.format(Locale.ROOT, "%d,%.3f,%d,%d,%d,%d,%d,%.3f,%.3f", m.seq, m.time / 1e9, inc.getNodeId(),
+				inc.getIncidentType(), inc.getIncidentLevel(), units, unserved, distance, m.dispatchNanos / 1e3));
+		w.newLine();
+	}
+
+	/**
+	 * compares the rows of two runs of the same trace
+	 * @param a rows of the first run, the baseline
+	 * @param b rows of the second run
+	 * @param out CSV file of the differences per incident
+	 * @return the totals
+	 * @throws IOException if a file can't be read or written, or the runs are not of the same trace
+	 */
+	public static Diff diff(Path a, Path b, Path out) throws IOException {
+		Diff d = new Diff();
+		try (BufferedReader ra = Files.newBufferedReader(a); BufferedReader rb = Files.newBufferedReader(b);
+				BufferedWriter w = Files.newBufferedWriter(out)) {
+			if (!HEADER.equals(ra.readLine()) || !HEADER.equals(rb.readLine())) throw new IOException("not backtest rows: " + a + ", " + b);
+			w.write(DIFF_HEADER);
+			w.newLine();
+			String la;
+			String lb;
+			while (true) {
+				la = ra.readLine();
+				lb = rb.readLine();
+				if (la == null || lb == null) break;
+				String[] x = la.split(",");
+				String[] y = lb.split(",");
+				// incident, time and node must agree or the runs are not of the same trace
+				if (!x[0].equals(y[0]) || !x[1].equals(y[1]) || !x[2].equals(y[2])) {
+					throw new IOException("runs differ at incident " + x[0] + " / " + y[0] + ", not the same trace");
+				}
+				int ua = Integer.parseInt(x[5]);
+				int ub = Integer.parseInt(y[5]);
+				int sa = Integer.parseInt(x[6]);
+				int sb = Integer.parseInt(y[6]);
+				double da = Double.parseDouble(x[7]);
+				double db = Double.parseDouble(y[7]);
+				double delta = db - da;
+				d.incidents++;
+				d.unitsA += ua;
+				d.unitsB += ub;
+				d.unservedA += sa;
+				d.unservedB += sb;
+				d.distanceA += da;
+				d.distanceB += db;
+				d.dispatchA += Double.parseDouble(x[8]);
+				d.dispatchB += Double.parseDouble(y[8]);
+				// rounding of the printed distances is not a difference
+				if (delta < -1e-3) d.better++;
+				else if (delta > 1e-3) d.worse++;
+				if (delta > d.worstDelta) {
+					d.worstDelta = delta;
+					d.worstIncident = Integer.parseInt(x[0]);
+				}
+				w.write(String.format(Locale.ROOT, "%s,%s,%s,%s,%d,%d,%d,%d,%s,%s,%.3f,%s,%s", x[0], x[2], x[3], x[4],
+						ua, ub, sa, sb, x[7], y[7], delta, x[8], y[8]));
+				w.newLine();
+			}
+			if (la != null || lb != null) throw new IOException("runs have a different number of incidents, not the same trace");
+		}
+		return d;
+	}
+}
@@ -0,0 +1,480 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.nodes.Node;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+import util.nodes.CustomDSA.SearchContext;
+
+/**
+ * Dispatches the incidents of one tick together instead of one at a time.
+ *
+ * <p>
+ * Incidents are collected with submit() and solved on flush() as one
+ * min-cost flow problem:
+ * <ul>
+ *     <li>source -> unit, capacity 1</li>
+ *     <li>unit -> demand (incident, service type), capacity 1,
+ *         cost travel distance - REWARD * incident level</li>
+ *     <li>demand -> sink, capacity the number of units the incident needs</li>
+ * </ul>
+ * The reward is bigger than any travel distance in the batch, so the solution
+ * first serves as many units times incident level as possible and only then
+ * minimises the total travel distance. A level 9 incident therefore keeps the
+ * units it needs even if a level 2 incident reported them first.
+ * </p>
+ *
+ * <p>
+ * To keep the problem sparse, each demand is only connected to the closest
+ * available units of its type, found with one backward search from the
+ * incident. Successive shortest paths with node potentials solve the flow, one
+ * unit per augmentation. Demand the batch could not serve goes through the
+ * normal search dispatch afterwards, highest level first.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * submit() can be called from any thread, flush() from one thread at a time
+ * (the tick).
+ * </p>
+ */
+
+public class BatchDispatcher {
+	/** candidate units per demand beyond the number it needs **/
+	public static final int CANDIDATE_SLACK = 3;
+
+	/** one incident waiting for the next flush **/
+	private static final class Pending {
+		private final Incident incident;
+		private final Map<String, Integer> required;
+
+		private Pending(Incident incident, Map<String, Integer> required) {
+			this.incident = incident;
+			this.required = required;
+		}
+	}
+
+	/**
+	 * what a flush did and how long solving took
+	 */
+	public static final class Report {
+		private final int incidents;
+		private final int candidates;
+		private final int assigned;
+		private final int unserved;
+		private final double totalDistance;
+		private final long solveNanos;
+
+		private Report(int incidents, int candidates, int assigned, int unserved, double totalDistance, long solveNanos) {
+			this.incidents = incidents;
+			this.candidates = candidates;
+			this.assigned = assigned;
+			this.unserved = unserved;
+			this.totalDistance = totalDistance;
+			this.solveNanos = solveNanos;
+		}
+
+		/** @return incidents in the batch **/
+		public int getIncidents() {
+			return this.incidents;
+		}
+
+		/** @return distinct units considered **/
+		public int getCandidates() {
+			return this.candidates;
+		}
+
+		/** @return units assigned by the solver **/
+		public int getAssigned() {
+			return this.assigned;
+		}
+
+		/** @return units still required after the solve, handed to the search dispatch **/
+		public int getUnserved() {
+			return this.unserved;
+		}
+
+		/** @return total travel distance of the assigned units **/
+		public double getTotalDistance() {
+			return this.totalDistance;
+		}
+
+		/** @return time spent building and solving the flow problem **/
+		public long getSolveNanos() {
+			return this.solveNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "batch of " + this.incidents + " incidents: " + this.assigned + " units assigned from "
+					+ this.candidates + " candidates, " + this.unserved + " unserved, distance "
+					+ String.format("%.1f", this.totalDistance) + ", solved in "
+					+ String.format("%.3f", this.solveNanos / 1e6) + " ms";
+		}
+	}
+
+	private final Environment env;
+	private List<Pending> pending = new ArrayList<>();
+	private final SearchContext ctx = new SearchContext();
+	private volatile Report lastReport = null;
+
+	/**
+	 * @param env environment whose services are dispatched
+	 */
+	public BatchDispatcher(Environment env) {
+		this.env = env;
+	}
+
+	/**
+	 * queues an incident for the next flush
+	 * @param incident the incident
+	 * @param required Map of service type to number of services required
+	 */
+	public void submit(Incident incident, Map<String, Integer> required) {
+		synchronized(this) {
+			this.pending.add(new Pending(incident, new HashMap<>(required)));
+		}
+	}
+
+	/**
+	 * @return number of incidents waiting for the next flush
+	 */
+	public int pendingCount() {
+		synchronized(this) {
+			return this.pending.size();
+		}
+	}
+
+	/**
+	 * @return the report of the last non empty flush or null
+	 */
+	public Report getLastReport() {
+		return this.lastReport;
+	}
+
+	/**
+	 * solves and dispatches every incident submitted since the last flush
+	 * @return the report or null if nothing was pending
+	 */
+	public Report flush() {
+		List<Pending> batch;
+		synchronized(this) {
+			if (this.pending.isEmpty()) return null;
+			batch = this.pending;
+			this.pending = new ArrayList<>();
+		}
+		long start = System.nanoTime();
+		RoadGraph g = this.env.getGraph();
+		this.ctx.prepare(g);
+
+		// demands and the closest available units of each
+		List<Incident> demandIncident = new ArrayList<>();
+		List<String> demandType = new ArrayList<>();
+		List<Integer> demandCount = new ArrayList<>();
+		Map<Service, Integer> unitIndex = new HashMap<>();
+		List<Service> units = new ArrayList<>();
+		// candidate arcs: unit, demand, distance
+		int[] candUnit = new int[16];
+		int[] candDemand = new int[16];
+		float[] candDist = new float[16];
+		int candCount = 0;
+		float maxDist = 0;
+		for (Pending p: batch) {
+			int target = g.indexOf(p.incident.getNode());
+			if (target < 0) continue;
+			Map<String, Integer> demandOf = new HashMap<>();
+			Map<String, Integer> wanted = new HashMap<>();
+			for (Map.Entry<String, Integer> entry: p.required.entrySet()) {
+				if (entry.getValue() <= 0) continue;
+				demandOf.put(entry.getKey(), demandIncident.size());
+				demandIncident.add(p.incident);
+				demandType.add(entry.getKey());
+				demandCount.add(entry.getValue());
+				wanted.put(entry.getKey(), entry.getValue() + CANDIDATE_SLACK);
+			}
+			// backward search: distances from every node to the incident
+			this.ctx.start(target, true, null);
+			int settled;
+			while (!wanted.isEmpty() && (settled = this.ctx.next()) >= 0) {
+				Node node = g.nodeAt(settled);
+				float d = this.ctx.distance(settled);
+				for (String type: new ArrayList<>(wanted.keySet())) {
+					Map<Integer, Service> here = node.getServices().get(type);
+					if (here == null) continue;
+					int left = wanted.get(type);
+					for (Service curr: here.values()) {
+						if (left <= 0) break;
+						if (!curr.getAvailability()) continue;
+						Integer u = unitIndex.get(curr);
+						if (u == null) {
+							u = units.size();
+							unitIndex.put(curr, u);
+							units.add(curr);
+						}
+						if (candCount == candUnit.length) {
+							candUnit = Arrays.copyOf(candUnit, candCount * 2);
+							candDemand = Arrays.copyOf(candDemand, candCount * 2);
+							candDist = Arrays.copyOf(candDist, candCount * 2);
+						}
+						candUnit[candCount] = u;
+						candDemand[candCount] = demandOf.get(type);
+						candDist[candCount] = d;
+						candCount++;
+						maxDist = Math.max(maxDist, d);
+						left--;
+					}
+					if (left <= 0) wanted.remove(type);
+					else wanted.put(type, left);
+				}
+			}
+		}
+
+		int unitCount = units.size();
+		int demands = demandIncident.size();
+		// node ids: source, units, demands, sink
+		int source = 0;
+		int sink = unitCount + demands + 1;
+		FlowGraph flow = new FlowGraph(sink + 1, unitCount + candCount + demands);
+		for (int u = 0; u < unitCount; u++) {
+			flow.addArc(source, 1 + u, 1, 0);
+		}
+		// any single assignment's reward outweighs every travel distance a batch can add up to
+		double reward = (maxDist + 1.0) * (candCount + 1);
+		int[] candArc = new int[candCount];
+		for (int c = 0; c < candCount; c++) {
+			int level = Math.max(1, demandIncident.get(candDemand[c]).getIncidentLevel());
+			candArc[c] = flow.addArc(1 + candUnit[c], 1 + unitCount + candDemand[c], 1, candDist[c] - reward * level);
+		}
+		for (int d = 0; d < demands; d++) {
+			flow.addArc(1 + unitCount + d, sink, demandCount.get(d), 0);
+		}
+		flow.solve(source, sink);
+		long solveNanos = System.nanoTime() - start;
+
+		// dispatch the assignments
+		int assigned = 0;
+		double total = 0;
+		for (int c = 0; c < candCount; c++) {
+			if (!flow.isUsed(candArc[c])) continue;
+			Service curr = units.get(candUnit[c]);
+			int d = candDemand[c];
+			Incident inc = demandIncident.get(d);
+			// the availability seen while collecting candidates is only a hint, the claim decides.
+			// a unit lost to another dispatch leaves its demand to the normal dispatch below
+			if (!curr.tryReserve()) continue;
+			Route route = this.env.route(curr.getPlace(), inc.getNode());
+			if (route == null) {
+				curr.setAvailable();
+				continue;
+			}
+			curr.allocate(route, inc.getIncidentLevel());
+			this.env.assign(inc, curr);
+			demandCount.set(d, demandCount.get(d) - 1);
+			assigned++;
+			total += candDist[c];
+		}
+
+		// whatever is left goes through the normal dispatch, most severe first
+		batch.sort((a, b) -> Integer.compare(b.incident.getIncidentLevel(), a.incident.getIncidentLevel()));
+		int unserved = 0;
+		for (Pending p: batch) {
+			Map<String, Integer> left = new HashMap<>();
+			for (int d = 0; d < demands; d++) {
+				if (demandIncident.get(d) == p.incident && demandCount.get(d) > 0) {
+					left.put(demandType.get(d), demandCount.get(d));
+					unserved += demandCount.get(d);
+				}
+			}
+			if (g.indexOf(p.incident.getNode()) < 0) continue;
+			if (!left.isEmpty()) this.env.SearchForServices(left, p.incident);
+		}
+
+		Report report = new Report(batch.size(), unitCount, assigned, unserved, total, solveNanos);
+		this.lastReport = report;
+		Log.info(Log.Category.DISPATCH, report);
+		return report;
+	}
+
+	/**
+	 * residual graph for min-cost flow with successive shortest paths.
+	 * arcs are stored in pairs, arc a ^ 1 is the reverse of a
+	 */
+	private static final class FlowGraph {
+		private final int n;
+		private int[] head;
+		private int[] next;
+		private int[] to;
+		private int[] cap;
+		private double[] cost;
+		private int arcs = 0;
+
+		private FlowGraph(int n, int expectedArcs) {
+			this.n = n;
+			this.head = new int[n];
+			Arrays.fill(this.head, -1);
+			int m = Math.max(2, 2 * expectedArcs);
+			this.next = new int[m];
+			this.to = new int[m];
+			this.cap = new int[m];
+			this.cost = new double[m];
+		}
+
+		/** @return id of the forward arc **/
+		private int addArc(int u, int v, int capacity, double c) {
+			this.push(u, v, capacity, c);
+			this.push(v, u, 0, -c);
+			return this.arcs - 2;
+		}
+
+		private void push(int u, int v, int capacity, double c) {
+			if (this.arcs == this.to.length) {
+				int m = this.arcs * 2;
+				this.next = Arrays.copyOf(this.next, m);
+				this.to = Arrays.copyOf(this.to, m);
+				this.cap = Arrays.copyOf(this.cap, m);
+				this.cost = Arrays.copyOf(this.cost, m);
+			}
+			this.to[this.arcs] = v;
+			this.cap[this.arcs] = capacity;
+			this.cost[this.arcs] = c;
+			this.next[this.arcs] = this.head[u];
+			this.head[u] = this.arcs++;
+		}
+
+		/** @return if flow was sent over the forward arc a **/
+		private boolean isUsed(int a) {
+			return this.cap[a ^ 1] > 0;
+		}
+
+		/**
+		 * augments along the cheapest source-sink path while it has negative cost,
+		 * i.e. while one more assignment still improves the objective
+		 */
+		private void solve(int source, int sink) {
+			double[] potential = this.initialPotentials(source);
+			double[] dist = new double[this.n];
+			int[] via = new int[this.n];
+			DoubleHeap heap = new DoubleHeap(this.n);
+			while (true) {
+				Arrays.fill(dist, Double.POSITIVE_INFINITY);
+				Arrays.fill(via, -1);
+				dist[source] = 0;
+				heap.clear();
+				heap.push(source, 0);
+				while (!heap.isEmpty()) {
+					double d = heap.peekKey();
+					int u = heap.poll();
+					if (d > dist[u]) continue;
+					for (int a = this.head[u]; a >= 0; a = this.next[a]) {
+						if (this.cap[a] <= 0) continue;
+						int v = this.to[a];
+						// reduced costs are never negative, clamp float noise
+						double nd = d + Math.max(0, this.cost[a] + potential[u] - potential[v]);
+						if (nd < dist[v]) {
+							dist[v] = nd;
+							via[v] = a;
+							heap.push(v, nd);
+						}
+					}
+				}
+				if (dist[sink] == Double.POSITIVE_INFINITY) return;
+				for (int v = 0; v < this.n; v++) {
+					if (dist[v] != Double.POSITIVE_INFINITY) potential[v] += dist[v];
+				}
+				// real cost of the path is the change of the sink potential
+				if (potential[sink] - potential[source] >= 0) return;
+				for (int v = sink; v != source; v = this.to[via[v] ^ 1]) {
+					this.cap[via[v]]--;
+					this.cap[via[v] ^ 1]++;
+				}
+			}
+		}
+
+		/**
+		 * shortest distances from the source before any flow, the network is a DAG
+		 * source -> units -> demands -> sink so one pass per layer is enough
+		 */
+		private double[] initialPotentials(int source) {
+			double[] p = new double[this.n];
+			Arrays.fill(p, Double.POSITIVE_INFINITY);
+			p[source] = 0;
+			for (int layer = 0; layer < 3; layer++) {
+				for (int u = 0; u < this.n; u++) {
+					if (p[u] == Double.POSITIVE_INFINITY) continue;
+					for (int a = this.head[u]; a >= 0; a = this.next[a]) {
+						if (this.cap[a] > 0 && p[u] + this.cost[a] < p[this.to[a]]) p[this.to[a]] = p[u] + this.cost[a];
+					}
+				}
+			}
+			for (int v = 0; v < this.n; v++) {
+				if (p[v] == Double.POSITIVE_INFINITY) p[v] = 0;
+			}
+			return p;
+		}
+	}
+
+	/** binary heap of (node, double key) pairs, stale entries are skipped by the caller **/
+	private static final class DoubleHeap {
+		private int[] items;
+		private double[] keys;
+		private int size = 0;
+
+		private DoubleHeap(int capacity) {
+			this.items = new int[Math.max(4, capacity)];
+			this.keys = new double[this.items.length];
+		}
+
+		private boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		private void clear() {
+			this.size = 0;
+		}
+
+		private double peekKey() {
+			return this.keys[0];
+		}
+
+		private void push(int item, double key) {
+			if (this.size == this.items.length) {
+				this.items = Arrays.copyOf(this.items, this.size * 2);
+				this.keys = Arrays.copyOf(this.keys, this.size * 2);
+			}
+			int p = this.size++;
+			while (p > 0) {
+				int parent = (p - 1) >> 1;
+				if (this.keys[parent] <= key) break;
+				this.items[p] = this.items[parent];
+				this.keys[p] = this.keys[parent];
+				p = parent;
+			}
+			this.items[p] = item;
+			this.keys[p] = key;
+		}
+
+		private int poll() {
+			int top = this.items[0];
+			int item = this.items[--this.size];
+			double key = this.keys[this.size];
+			int p = 0;
+			while (true) {
+				int child = 2 * p + 1;
+				if (child >= this.size) break;
+				if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) child++;
+				if (this.keys[child] >= key) break;
+				this.items[p] = this.items[child];
+				this.keys[p] = this.keys[child];
+				p = child;
+			}
+			this.items[p] = item;
+			this.keys[p] = key;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,546 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import util.nodes.Borough;
+import util.nodes.City;
+import util.nodes.FireStation;
+import util.nodes.Hospital;
+import util.nodes.Node;
+import util.nodes.PoliceStation;
+import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+
+/**
+ * A consistent copy of the state of an Environment that can be written to a
+ * versioned binary file and restored into a new Environment.
+ *
+ * <p>
+ * capture() copies the nodes, roads, units, routes and incidents into flat
+ * arrays. It must run on the thread that updates the environment, between two
+ * updates, which makes it a consistent cut; it only copies numbers and references
+ * to immutable Routes so it takes a fraction of a tick. In EVENT tick mode the
+ * moving units are first brought up to the cut, their progress is otherwise only
+ * updated when they pass a node. Writing the file is then
+ * done from the copy, on any thread, while the simulation goes on.
+ * </p>
+ *
+ * <p>
+ * The checkpoint keeps the offset of the journal at the cut, if one was recording,
+ * so a restart restores the checkpoint and replays only the journal after it.
+ * </p>
+ *
+ * <p>
+ * File layout, big endian: magic, version, tick, journal offset, then the node,
+ * road, route, unit and incident sections, each starting with its count. The file
+ * is written next to the target and moved over it, so a crash while writing
+ * leaves the previous checkpoint.
+ * </p>
+ */
+
+public class Checkpoint {
+	public static final int MAGIC = 0x4E455343; // "NESC"
+	public static final int VERSION = 1;
+
+	/** service types in the order their codes are written **/
+	private static final String[] SERVICE_TYPES = {Police.Type, Ambulance.Type, FireTruck.Type};
+
+	/** writes checkpoints in the background, one at a time **/
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "checkpoint-writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final long tick;
+	private final long journalOffset;
+
+	private final int[] nodeId;
+	private final String[] nodeName;
+	private final String[] nodeType;
+	/** required services per node in SERVICE_TYPES order **/
+	private final int[] nodeRequired;
+
+	private final int[] roadFrom;
+	private final int[] roadTo;
+	private final float[] roadDist;
+	/** 1 open, 2 congested **/
+	private final byte[] roadFlags;
+
+	private final Route[] routes;
+
+	private final int[] unitId;
+	private final byte[] unitType;
+	private final int[] unitNode;
+	private final boolean[] unitAvailable;
+	private final int[] unitLevel;
+	/** index into routes, -1 for none **/
+	private final int[] unitRoute;
+	private final int[] unitHop;
+	private final float[] unitTravelled;
+	private final float[] unitSpeed;
+
+	private final int[] incidentId;
+	private final int[] incidentNode;
+	private final int[] incidentType;
+	private final int[] incidentLevel;
+	private final boolean[] incidentRunning;
+	/** dispatched units of each incident as service type code and id pairs **/
+	private final int[][] incidentDispatch;
+
+	private Checkpoint(long tick, long journalOffset, int nodes, int roads, int routes, int units, int incidents) {
+		this.tick = tick;
+		this.journalOffset = journalOffset;
+		this.nodeId = new int[nodes];
+		this.nodeName = new String[nodes];
+		this.nodeType = new String[nodes];
+		this.nodeRequired = new int[nodes * SERVICE_TYPES.length];
+		this.roadFrom = new int[roads];
+		this.roadTo = new int[roads];
+		this.roadDist = new float[roads];
+		this.roadFlags = new byte[roads];
+		this.routes = new Route[routes];
+		this.unitId = new int[units];
+		this.unitType = new byte[units];
+		this.unitNode = new int[units];
+		this.unitAvailable = new boolean[units];
+		this.unitLevel = new int[units];
+		this.unitRoute = new int[units];
+		this.unitHop = new int[units];
+		this.unitTravelled = new float[units];
+		this.unitSpeed = new float[units];
+		this.incidentId = new int[incidents];
+		this.incidentNode = new int[incidents];
+		this.incidentType = new int[incidents];
+		this.incidentLevel = new int[incidents];
+		this.incidentRunning = new boolean[incidents];
+		this.incidentDispatch = new int[incidents][];
+	}
+
+	/**
+	 * copies the state of the environment. call it on the thread that updates it, between updates
+	 * @param env the environment
+	 * @return the checkpoint
+	 */
+	public static Checkpoint capture(Environment env) {
+		env.settleEvents();
+		Map<Integer, Node> nodes = env.getNodes();
+		Map<Integer, Service> services = env.getServices();
+		Map<Integer, Incident> incidents = env.getIncidents();
+		int roads = 0;
+		for (Node n: nodes.values()) {
+			roads += n.getNeighbour().size();
+		}
+		// routes are immutable and shared between the units sent together, each is kept once
+		IdentityHashMap<Route, Integer> routeIndex = new IdentityHashMap<>();
+		List<Route> routeList = new ArrayList<>();
+		for (Service s: services.values()) {
+			Route r = s.getPath();
+			if (r != null && routeIndex.putIfAbsent(r, routeList.size()) == null) routeList.add(r);
+		}
+		Journal j = env.getJournal();
+		Checkpoint c = new Checkpoint(env.getTick(), j == null ? -1 : j.position(), nodes.size(), roads, routeList.size(),
+				services.size(), incidents.size());
+		routeList.toArray(c.routes);
+
+		int i = 0;
+		int k = 0;
+		for (Node n: nodes.values()) {
+			c.nodeId[i] = n.getID();
+			c.nodeName[i] = n.getLocationName();
+			c.nodeType[i] = n.getNodeType();
+			for (int t = 0; t < SERVICE_TYPES.length; t++) {
+				Integer req = n.getRequiredServices().get(SERVICE_TYPES[t]);
+				c.nodeRequired[i * SERVICE_TYPES.length + t] = req == null ? 0 : req;
+			}
+			for (NeighbourNode road: n.getNeighbour()) {
+				c.roadFrom[k] = n.getID();
+				c.roadTo[k] = road.getNode().getID();
+				c.roadDist[k] = road.getDist();
+				c.roadFlags[k] = (byte) ((road.getOpen() ? 1 : 0) | (road.getCongested() ? 2 : 0));
+				k++;
+			}
+			i++;
+		}
+
+		i = 0;
+		for (Service s: services.values()) {
+			c.unitId[i] = s.getID();
+			c.unitType[i] = typeCode(s.getServiceType());
+			c.unitNode[i] = s.getPlace().getID();
+			c.unitAvailable[i] = s.getAvailability();
+			c.unitLevel[i] = s.getIncidentLevel();
+			Route r = s.getPath();
+			c.unitRoute[i] = r == null ? -1 : routeIndex.get(r);
+			c.unitHop[i] = s.getHop();
+			c.unitTravelled[i] = s.getDistanceTravelled();
+			c.unitSpeed[i] = s.getSpeed();
+			i++;
+		}
+
+		i = 0;
+		for (Incident inc: incidents.values()) {
+			c.incidentId[i] = inc.getId();
+			c.incidentNode[i] = inc.getNodeId();
+			c.incidentType[i] = inc.getIncidentType();
+			c.incidentLevel[i] = inc.getIncidentLevel();
+			c.incidentRunning[i] = inc.getRunning();
+			int count = 0;
+			for (List<Integer> ids: inc.getDispatchList().values()) {
+				count += ids.size();
+			}
+			int[] d = new int[count * 2];
+			int q = 0;
+			for (Map.Entry<String, ArrayList<Integer>> e: inc.getDispatchList().entrySet()) {
+				byte code = typeCode(e.getKey());
+				for (int id: e.getValue()) {
+					d[q++] = code;
+					d[q++] = id;
+				}
+			}
+			c.incidentDispatch[i] = d;
+			i++;
+		}
+		return c;
+	}
+
+	private static byte typeCode(String serviceType) {
+		for (byte t = 0; t < SERVICE_TYPES.length; t++) {
+			if (SERVICE_TYPES[t].equals(serviceType)) return t;
+		}
+		throw new IllegalArgumentException("unknown service type " + serviceType);
+	}
+
+	/**
+	 * @return number of updates the environment had run at the cut
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * @return offset to replay the journal from after restoring, -1 if no journal was recording
+	 */
+	public long getJournalOffset() {
+		return this.journalOffset;
+	}
+
+	/**
+	 * compares the state of two checkpoints, e.g. one of a live environment and one of the
+	 * environment restored from its checkpoint and journal. the journal offset is not compared
+	 * @param o the other checkpoint
+	 * @param exact also compare the tick and how far the units are along their roads, a journal
+	 * only brings a unit back at the last node it reached
+	 * @return the first difference found, null if there is none
+	 */
+	public String difference(Checkpoint o, boolean exact) {
+		if (exact && this.tick != o.tick) return "tick " + this.tick + " vs " + o.tick;
+		if (this.nodeId.length != o.nodeId.length) return "nodes " + this.nodeId.length + " vs " + o.nodeId.length;
+		Map<Integer, Integer> other = indexOf(o.nodeId);
+		for (int i = 0; i < this.nodeId.length; i++) {
+			Integer j = other.get(this.nodeId[i]);
+			if (j == null) return "node " + this.nodeId[i] + " missing";
+			int t = SERVICE_TYPES.length;
+			if (!Arrays.equals(this.nodeRequired, i * t, i * t + t, o.nodeRequired, j * t, j * t + t)) {
+				return "node " + this.nodeId[i] + " required services";
+			}
+		}
+
+		if (this.roadFrom.length != o.roadFrom.length) return "roads " + this.roadFrom.length + " vs " + o.roadFrom.length;
+		Map<Long, Integer> roads = new HashMap<>();
+		for (int i = 0; i < o.roadFrom.length; i++) {
+			roads.put(((long) o.roadFrom[i] << 32) | (o.roadTo[i] & 0xffffffffL), i);
+		}
+		for (int i = 0; i < this.roadFrom.length; i++) {
+			Integer j = roads.get(((long) this.roadFrom[i] << 32) | (this.roadTo[i] & 0xffffffffL));
+			if (j == null) return "road " + this.roadFrom[i] + " -> " + this.roadTo[i] + " missing";
+			if (this.roadFlags[i] != o.roadFlags[j] || this.roadDist[i] != o.roadDist[j]) {
+				return "road " + this.roadFrom[i] + " -> " + this.roadTo[i];
+			}
+		}
+
+		if (this.unitId.length != o.unitId.length) return "units " + this.unitId.length + " vs " + o.unitId.length;
+		other = indexOf(o.unitId);
+		for (int i = 0; i < this.unitId.length; i++) {
+			Integer j = other.get(this.unitId[i]);
+			String unit = "unit " + this.unitId[i];
+			if (j == null) return unit + " missing";
+			if (this.unitType[i] != o.unitType[j]) return unit + " type";
+			if (this.unitNode[i] != o.unitNode[j]) return unit + " at " + this.unitNode[i] + " vs " + o.unitNode[j];
+			if (this.unitAvailable[i] != o.unitAvailable[j]) return unit + " available " + this.unitAvailable[i] + " vs " + o.unitAvailable[j];
+			Route a = this.unitRoute[i] < 0 ? null : this.routes[this.unitRoute[i]];
+			Route b = o.unitRoute[j] < 0 ? null : o.routes[o.unitRoute[j]];
+			if (!sameRoute(a, b)) return unit + " route";
+			if (a != null && this.unitLevel[i] != o.unitLevel[j]) return unit + " level " + this.unitLevel[i] + " vs " + o.unitLevel[j];
+			if (a != null && this.unitHop[i] != o.unitHop[j]) return unit + " hop " + this.unitHop[i] + " vs " + o.unitHop[j];
+			if (exact && this.unitTravelled[i] != o.unitTravelled[j]) {
+				return unit + " travelled " + this.unitTravelled[i] + " vs " + o.unitTravelled[j];
+			}
+		}
+
+		if (this.incidentId.length != o.incidentId.length) return "incidents " + this.incidentId.length + " vs " + o.incidentId.length;
+		other = indexOf(o.incidentId);
+		for (int i = 0; i < this.incidentId.length; i++) {
+			Integer j = other.get(this.incidentId[i]);
+			String inc = "incident " + this.incidentId[i];
+			if (j == null) return inc + " missing";
+			if (this.incidentNode[i] != o.incidentNode[j] || this.incidentType[i] != o.incidentType[j] || this.incidentLevel[i] != o.incidentLevel[j]) {
+				return inc;
+			}
+			if (this.incidentRunning[i] != o.incidentRunning[j]) return inc + " running " + this.incidentRunning[i] + " vs " + o.incidentRunning[j];
+			if (!Arrays.equals(dispatched(this.incidentDispatch[i]), dispatched(o.incidentDispatch[j]))) return inc + " dispatched units";
+		}
+		return null;
+	}
+
+	private static Map<Integer, Integer> indexOf(int[] ids) {
+		Map<Integer, Integer> m = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			m.put(ids[i], i);
+		}
+		return m;
+	}
+
+	/** the type code and id pairs as sorted longs, the order of the dispatch list doesn't matter **/
+	private static long[] dispatched(int[] pairs) {
+		long[] d = new long[pairs.length / 2];
+		for (int q = 0; q < d.length; q++) {
+			d[q] = ((long) pairs[2 * q] << 32) | (pairs[2 * q + 1] & 0xffffffffL);
+		}
+		Arrays.sort(d);
+		return d;
+	}
+
+	private static boolean sameRoute(Route a, Route b) {
+		if (a == null || b == null) return a == b;
+		if (a.size() != b.size()) return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (a.nodeAt(i).getID() != b.nodeAt(i).getID() || a.distAt(i) != b.distAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * writes the checkpoint on a background thread
+	 * @param file the file to write
+	 * @return completed with the file once it is written
+	 */
+	public CompletableFuture<Path> writeAsync(Path file) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				this.write(file);
+				return file;
+			} catch (IOException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+		}, WRITER);
+	}
+
+	/**
+	 * writes the checkpoint, replacing the file only once it is complete
+	 * @param file the file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(this.tick);
+			out.writeLong(this.journalOffset);
+
+			out.writeInt(this.nodeId.length);
+			for (int i = 0; i < this.nodeId.length; i++) {
+				out.writeInt(this.nodeId[i]);
+				out.writeUTF(this.nodeName[i]);
+				out.writeUTF(this.nodeType[i]);
+				for (int t = 0; t < SERVICE_TYPES.length; t++) {
+					out.writeInt(this.nodeRequired[i * SERVICE_TYPES.length + t]);
+				}
+			}
+
+			out.writeInt(this.roadFrom.length);
+			for (int i = 0; i < this.roadFrom.length; i++) {
+				out.writeInt(this.roadFrom[i]);
+				out.writeInt(this.roadTo[i]);
+				out.writeFloat(this.roadDist[i]);
+				out.writeByte(this.roadFlags[i]);
+			}
+
+			out.writeInt(this.routes.length);
+			for (Route r: this.routes) {
+				out.writeInt(r.size());
+				for (int i = 0; i < r.size(); i++) {
+					out.writeInt(r.nodeAt(i).getID());
+					out.writeFloat(r.distAt(i));
+				}
+			}
+
+			out.writeInt(this.unitId.length);
+			for (int i = 0; i < this.unitId.length; i++) {
+				out.writeInt(this.unitId[i]);
+				out.writeByte(this.unitType[i]);
+				out.writeInt(this.unitNode[i]);
+				out.writeBoolean(this.unitAvailable[i]);
+				out.writeInt(this.unitLevel[i]);
+				out.writeInt(this.unitRoute[i]);
+				out.writeInt(this.unitHop[i]);
+				out.writeFloat(this.unitTravelled[i]);
+				out.writeFloat(this.unitSpeed[i]);
+			}
+
+			out.writeInt(this.incidentId.length);
+			for (int i = 0; i < this.incidentId.length; i++) {
+				out.writeInt(this.incidentId[i]);
+				out.writeInt(this.incidentNode[i]);
+				out.writeInt(this.incidentType[i]);
+				out.writeInt(this.incidentLevel[i]);
+				out.writeBoolean(this.incidentRunning[i]);
+				int[] d = this.incidentDispatch[i];
+				out.writeInt(d.length / 2);
+				for (int q = 0; q < d.length; q += 2) {
+					out.writeByte(d[q]);
+					out.writeInt(d[q + 1]);
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * rebuilds an environment from a checkpoint file
+	 * @param file the checkpoint
+	 * @return the environment, with its graph built and its tick at the cut
+	 * @throws IOException if the file can't be read or is not a checkpoint
+	 */
+	public static Environment restore(Path file) throws IOException {
+		Environment env = new Environment();
+		restore(file, env);
+		return env;
+	}
+
+	/**
+	 * rebuilds the state of a checkpoint file in an empty environment, e.g. one whose ui executor is already set
+	 * @param file the checkpoint
+	 * @param env an environment without nodes or services
+	 * @return the offset to replay the journal from, -1 if no journal was recording
+	 * @throws IOException if the file can't be read or is not a checkpoint
+	 */
+	public static long restore(Path file, Environment env) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) throw new IOException(file + " is not a checkpoint");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException(file + " is checkpoint version " + version + ", expected " + VERSION);
+			long tick = in.readLong();
+			long journalOffset = in.readLong();
+
+			int nodeCount = in.readInt();
+			for (int i = 0; i < nodeCount; i++) {
+				int id = in.readInt();
+				String name = in.readUTF();
+				Node n = newNode(in.readUTF(), id, name);
+				for (String t: SERVICE_TYPES) {
+					n.getRequiredServices().put(t, in.readInt());
+				}
+				env.addNode(id, n);
+			}
+			Map<Integer, Node> nodes = env.getNodes();
+
+			int roadCount = in.readInt();
+			for (int i = 0; i < roadCount; i++) {
+				Node from = nodes.get(in.readInt());
+				Node to = nodes.get(in.readInt());
+				NeighbourNode road = new NeighbourNode(to, in.readFloat());
+				byte flags = in.readByte();
+				if ((flags & 1) == 0) road.toggleOpen();
+				if ((flags & 2) != 0) road.toggleCOngested();
+				from.addNeighbor(road);
+			}
+			RoadGraph g = env.buildGraph();
+
+			Route[] routes = new Route[in.readInt()];
+			for (int r = 0; r < routes.length; r++) {
+				int n = in.readInt();
+				int[] idx = new int[n];
+				float[] dist = new float[n];
+				for (int i = 0; i < n; i++) {
+					idx[i] = g.indexOf(nodes.get(in.readInt()));
+					dist[i] = in.readFloat();
+				}
+				routes[r] = new Route(g, idx, dist);
+			}
+
+			int unitCount = in.readInt();
+			for (int i = 0; i < unitCount; i++) {
+				int id = in.readInt();
+				byte type = in.readByte();
+				Node place = nodes.get(in.readInt());
+				Service s = newService(type, place, id);
+				boolean available = in.readBoolean();
+				int level = in.readInt();
+				int route = in.readInt();
+				s.restoreState(place, available, level, route < 0 ? null : routes[route], in.readInt(), in.readFloat(), in.readFloat());
+				env.addService(s);
+				place.addService(s);
+			}
+
+			Map<Integer, Service> services = env.getServices();
+			int incidentCount = in.readInt();
+			for (int i = 0; i < incidentCount; i++) {
+				int id = in.readInt();
+				Node node = nodes.get(in.readInt());
+				int type = in.readInt();
+				int level = in.readInt();
+				boolean running = in.readBoolean();
+				Incident inc = env.restoreIncident(id, node, level, type);
+				int dispatched = in.readInt();
+				for (int q = 0; q < dispatched; q++) {
+					String serviceType = SERVICE_TYPES[in.readByte()];
+					Service s = services.get(in.readInt());
+					inc.addToDispatchList(serviceType, s.getID());
+				}
+				if (!running) {
+					node.removeRunningIncident(inc);
+					inc.offRunning();
+				}
+			}
+			env.skipTicks(tick - env.getTick());
+			return journalOffset;
+		}
+	}
+
+	private static Node newNode(String type, int id, String name) {
+		switch (type) {
+			case "City": return new City(id, name);
+			case "Police Station": return new PoliceStation(id, name);
+			case "Hospital": return new Hospital(id, name);
+			case "Fire Station": return new FireStation(id, name);
+			default: return new Borough(id, name);
+		}
+	}
+
+	private static Service newService(byte type, Node place, int id) {
+		switch (type) {
+			case 0: return new Police(place, id);
+			case 1: return new Ambulance(place, id);
+			default: return new FireTruck(place, id);
+		}
+	}
+}
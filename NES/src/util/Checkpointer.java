@@ -0,0 +1,116 @@
+package util;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Takes a Checkpoint of an environment every so many ticks, for a restart to go on from.
+ *
+ * <p>
+ * Attached to the engine it captures the state on the tick thread between two
+ * ticks and writes it in the background, replacing the last checkpoint file.
+ * A checkpoint is skipped while the one before it is still being written. With a
+ * journal recording, the file is only written once the journal up to the cut is
+ * on disk, so the journal after the checkpoint's offset is always there to replay.
+ * </p>
+ */
+
+public class Checkpointer implements SimulationEngine.TickListener {
+	private final Environment env;
+	private final Path file;
+	private final long everyTicks;
+	private long lastTick;
+	private CompletableFuture<Path> writing = CompletableFuture.completedFuture(null);
+	private long written = 0;
+	private long failed = 0;
+
+	/**
+	 * @param env the environment
+	 * @param file the checkpoint file
+	 * @param everyTicks ticks between two checkpoints
+	 */
+	public Checkpointer(Environment env, Path file, long everyTicks) {
+		if (everyTicks <= 0) throw new IllegalArgumentException("ticks between checkpoints must be positive: " + everyTicks);
+		this.env = env;
+		this.file = file;
+		this.everyTicks = everyTicks;
+		this.lastTick = env.getTick();
+	}
+
+	/**
+	 * starts taking checkpoints as the engine runs
+	 * @param engine the engine running the environment
+	 */
+	public void attach(SimulationEngine engine) {
+		engine.subscribe(this, SimulationEngine.DIRECT);
+	}
+
+	/**
+	 * stops taking checkpoints
+	 * @param engine the engine it was attached to
+	 */
+	public void detach(SimulationEngine engine) {
+		engine.unsubscribe(this);
+	}
+
+	@Override
+	public void ticked(long tick, long simulatedNanos) {
+		if (tick + 1 - this.lastTick < this.everyTicks || !this.writing.isDone()) return;
+		this.checkpoint();
+	}
+
+	/**
+	 * takes a checkpoint now, on the thread running the ticks or while the engine is stopped
+	 * @return completed with the file once it is written
+	 */
+	public CompletableFuture<Path> checkpoint() {
+		Checkpoint c = Checkpoint.capture(this.env);
+		this.lastTick = c.getTick();
+		Journal j = this.env.getJournal();
+		CompletableFuture<Void> synced = j == null ? CompletableFuture.completedFuture(null) : CompletableFuture.runAsync(() -> {
+			try {
+				j.sync();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted waiting for the journal", e);
+			}
+		});
+		this.writing = synced.thenCompose(v -> c.writeAsync(this.file)).whenComplete((f, err) -> {
+			synchronized(this) {
+				if (err != null) {
+					this.failed++;
+					Log.warn(Log.Category.GENERAL, "checkpoint to " + this.file + " failed: " + err);
+				}
+				else {
+					this.written++;
+				}
+			}
+		});
+		return this.writing;
+	}
+
+	/**
+	 * waits for the checkpoint being written, if any
+	 */
+	public void await() {
+		this.writing.exceptionally(err -> null).join();
+	}
+
+	/**
+	 * @return checkpoints written so far
+	 */
+	public long getWritten() {
+		synchronized(this) {
+			return this.written;
+		}
+	}
+
+	/**
+	 * @return checkpoints that could not be written
+	 */
+	public long getFailed() {
+		synchronized(this) {
+			return this.failed;
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import util.nodes.Borough;
+import util.nodes.FireStation;
+import util.nodes.Hospital;
+import util.nodes.Node;
+import util.nodes.PoliceStation;
+import util.nodes.CustomDSA.GraphFile;
+import util.nodes.CustomDSA.NeighbourNode;
+
+/**
+ * Generates synthetic cities to test the simulation at sizes the London files can't show.
+ *
+ * <p>
+ * Road networks:
+ * <ul>
+ *     <li>GRID - a square lattice, roads to the right and below, lengths jittered around the block size</li>
+ *     <li>RANDOM_GEOMETRIC - points spread over a square, joined when they are closer than the radius that
+ *     gives the wanted mean degree, roads as long as the straight line. parts that end up cut off are joined
+ *     to the closest point found outside of them so every node can be reached</li>
+ *     <li>SCALE_FREE - Barabasi-Albert preferential attachment, every new node gets degree roads to nodes
+ *     picked by how many roads they have already, a few hubs and many quiet streets</li>
+ * </ul>
+ * The network is kept as flat arrays of roads, so 10^7 nodes fit in a few hundred MB and can go straight to
+ * a GraphFile. A share of the nodes become police stations, fire stations and hospitals, the rest boroughs.
+ * Every node gets unitsPerNode units of each type and every station unitsPerStation more of its own type.
+ * </p>
+ *
+ * <p>
+ * load() builds the nodes, units and roads in an Environment. writeCsv() writes the two files
+ * EnvironmentLoader reads, which only carry names and roads, so loading them gives boroughs with the
+ * loader's own fleet. writeGraphFile() writes the compiled form. The same seed gives the same city.
+ * </p>
+ */
+
+public class CityGenerator {
+	/** road network shapes **/
+	public enum Topology {
+		GRID, RANDOM_GEOMETRIC, SCALE_FREE
+	}
+
+	/** node kinds **/
+	private static final byte BOROUGH = 0;
+	private static final byte POLICE_STATION = 1;
+	private static final byte FIRE_STATION = 2;
+	private static final byte HOSPITAL = 3;
+
+	/** average road length of the grid and of the scale free graph **/
+	public static final float BLOCK = 1.0f;
+
+	private final Topology topology;
+	private final int size;
+	private final long seed;
+	private int degree = 4;
+	private int unitsPerNode = 3;
+	private int unitsPerStation = 10;
+	private double stationShare = 0.01;
+
+	/** kind of every node, by dense index **/
+	private byte[] kind;
+	/** roads, each one goes both ways **/
+	private int[] from;
+	private int[] to;
+	private float[] dist;
+	private int roads;
+
+	/**
+	 * @param topology shape of the road network
+	 * @param size number of nodes
+	 * @param seed random seed, the same seed gives the same city
+	 */
+	public CityGenerator(Topology topology, int size, long seed) {
+		if (size < 2) throw new IllegalArgumentException("a city needs at least 2 nodes: " + size);
+		this.topology = topology;
+		this.size = size;
+		this.seed = seed;
+	}
+
+	/**
+	 * mean degree of a random geometric graph, roads per new node of a scale free graph. ignored by grids
+	 * @param degree roads per node
+	 */
+	public void setDegree(int degree) {
+		if (degree < 1) throw new IllegalArgumentException("degree must be positive: " + degree);
+		this.degree = degree;
+		this.kind = null;
+	}
+
+	/**
+	 * @param units units of every type placed on every node
+	 */
+	public void setUnitsPerNode(int units) {
+		this.unitsPerNode = units;
+	}
+
+	/**
+	 * @param units extra units of its own type placed on every station
+	 */
+	public void setUnitsPerStation(int units) {
+		this.unitsPerStation = units;
+	}
+
+	/**
+	 * @param share share of the nodes that become stations of each kind, 0.01 makes 1% police stations,
+	 * 1% fire stations and 1% hospitals, rounded and at most a third of the nodes each
+	 */
+	public void setStationShare(double share) {
+		if (share < 0 || share * 3 > 1) throw new IllegalArgumentException("station share out of range: " + share);
+		this.stationShare = share;
+		this.kind = null;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return number of roads, each one goes both ways
+	 */
+	public int roadCount() {
+		this.generate();
+		return this.roads;
+	}
+
+	/**
+	 * @return number of units load() places
+	 */
+	public long unitCount() {
+		this.generate();
+		long stations = 0;
+		for (byte k: this.kind) {
+			if (k != BOROUGH) stations++;
+		}
+		return 3L * this.unitsPerNode * this.size + stations * this.unitsPerStation;
+	}
+
+	/**
+	 * @param v dense index
+	 * @return name of the node
+	 */
+	public String name(int v) {
+		return "Node " + (v + 1);
+	}
+
+	/**
+	 * builds the nodes, units and roads in the environment and builds its road graph.
+	 * node ids are 1 .. size()
+	 * @param env an environment without nodes
+	 */
+	public void load(Environment env) {
+		this.generate();
+		Node[] nodes = new Node[this.size];
+		for (int v = 0; v < this.size; v++) {
+			Node n;
+			switch (this.kind[v]) {
+				case POLICE_STATION: n = new PoliceStation(v + 1, this.name(v)); break;
+				case FIRE_STATION: n = new FireStation(v + 1, this.name(v)); break;
+				case HOSPITAL: n = new Hospital(v + 1, this.name(v)); break;
+				default: n = new Borough(v + 1, this.name(v));
+			}
+			for (int j = 0; j < this.unitsPerNode; j++) {
+				this.addUnit(env, n, Police.Type);
+				this.addUnit(env, n, FireTruck.Type);
+				this.addUnit(env, n, Ambulance.Type);
+			}
+			String own = this.kind[v] == POLICE_STATION ? Police.Type
+					: this.kind[v] == FIRE_STATION ? FireTruck.Type
+					: this.kind[v] == HOSPITAL ? Ambulance.Type : null;
+			for (int j = 0; own != null && j < this.unitsPerStation; j++) {
+				this.addUnit(env, n, own);
+			}
+			env.addNode(v + 1, n);
+			nodes[v] = n;
+		}
+		for (int r = 0; r < this.roads; r++) {
+			Node a = nodes[this.from[r]];
+			Node b = nodes[this.to[r]];
+			a.addNeighbor(new NeighbourNode(b, this.dist[r]));
+			b.addNeighbor(new NeighbourNode(a, this.dist[r]));
+		}
+		env.buildGraph();
+	}
+
+	private void addUnit(Environment env, Node n, String type) {
+		Service s;
+		if (type.equals(Police.Type)) s = new Police(n, env.getNewServiceId());
+		else if (type.equals(FireTruck.Type)) s = new FireTruck(n, env.getNewServiceId());
+		else s = new Ambulance(n, env.getNewServiceId());
+		env.addService(s);
+		n.addService(s);
+	}
+
+	/**
+	 * writes the city in the CSV format EnvironmentLoader reads
+	 * @param locations file for the location names
+	 * @param neighbours file for the roads
+	 * @throws IOException if a file can't be written
+	 */
+	public void writeCsv(Path locations, Path neighbours) throws IOException {
+		this.generate();
+		try (BufferedWriter w = Files.newBufferedWriter(locations, StandardCharsets.UTF_8)) {
+			w.write("Name\n");
+			for (int v = 0; v < this.size; v++) {
+				w.write(this.name(v));
+				w.write('\n');
+			}
+		}
+		try (BufferedWriter w = Files.newBufferedWriter(neighbours, StandardCharsets.UTF_8)) {
+			w.write("location,neighbor,distance\n");
+			for (int r = 0; r < this.roads; r++) {
+				w.write(this.name(this.from[r]));
+				w.write(',');
+				w.write(this.name(this.to[r]));
+				w.write(',');
+				w.write(Float.toString(this.dist[r]));
+				w.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * writes the city as a compiled graph file, the same file CsvImporter.compile() makes
+	 * from the CSV files writeCsv() writes
+	 * @param out the graph file
+	 * @throws IOException if the file can't be written
+	 */
+	public void writeGraphFile(Path out) throws IOException {
+		this.generate();
+		int n = this.size;
+		int[] targets = new int[2 * this.roads];
+		float[] weights = new float[2 * this.roads];
+		int[] offsets = GraphFile.byNode(n, this.from, this.to, this.dist, this.roads, targets, weights);
+		int[] ids = new int[n];
+		String[] names = new String[n];
+		for (int v = 0; v < n; v++) {
+			ids[v] = v + 1;
+			names[v] = this.name(v);
+		}
+		GraphFile.write(out, ids, names, offsets, targets, weights);
+	}
+
+	/**
+	 * makes the network and picks the stations, once per setting
+	 */
+	private void generate() {
+		if (this.kind != null) return;
+		Random r = new Random(this.seed);
+		this.roads = 0;
+		this.from = new int[Math.max(16, this.size * 2)];
+		this.to = new int[this.from.length];
+		this.dist = new float[this.from.length];
+		switch (this.topology) {
+			case GRID: this.grid(r); break;
+			case RANDOM_GEOMETRIC: this.geometric(r); break;
+			case SCALE_FREE: this.scaleFree(r); break;
+		}
+		byte[] k = new byte[this.size];
+		// rounding up can ask for more stations than there are nodes in a small city
+		int stations = (int) Math.min(Math.round(this.size * this.stationShare), this.size / 3);
+		byte[] kinds = {POLICE_STATION, FIRE_STATION, HOSPITAL};
+		for (byte s: kinds) {
+			for (int placed = 0; placed < stations; ) {
+				int v = r.nextInt(this.size);
+				if (k[v] == BOROUGH) {
+					k[v] = s;
+					placed++;
+				}
+			}
+		}
+		this.kind = k;
+	}
+
+	private void road(int a, int b, float d) {
+		if (this.roads == this.from.length) {
+			int c = this.roads * 2;
+			this.from = Arrays.copyOf(this.from, c);
+			this.to = Arrays.copyOf(this.to, c);
+			this.dist = Arrays.copyOf(this.dist, c);
+		}
+		this.from[this.roads] = a;
+		this.to[this.roads] = b;
+		this.dist[this.roads++] = d;
+	}
+
+	/** length of a road between points d apart, never 0 so no two nodes are in the same place **/
+	private static float length(double d) {
+		return (float) Math.max(0.01, Math.round(d * 100) / 100.0);
+	}
+
+	private void grid(Random r) {
+		int w = (int) Math.ceil(Math.sqrt(this.size));
+		for (int v = 0; v < this.size; v++) {
+			if ((v + 1) % w != 0 && v + 1 < this.size) this.road(v, v + 1, length(BLOCK * (0.7 + 0.6 * r.nextDouble())));
+			if (v + w < this.size) this.road(v, v + w, length(BLOCK * (0.7 + 0.6 * r.nextDouble())));
+		}
+	}
+
+	private void geometric(Random r) {
+		int n = this.size;
+		// a square of one block per node
+		double side = Math.sqrt(n) * BLOCK;
+		double radius = Math.sqrt(this.degree * side * side / (Math.PI * n));
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int v = 0; v < n; v++) {
+			x[v] = (float) (r.nextDouble() * side);
+			y[v] = (float) (r.nextDouble() * side);
+		}
+		// bucket the points into cells of the radius so only the 9 cells around a point are looked at
+		int cells = Math.max(1, (int) (side / radius));
+		int[] cellStart = new int[cells * cells + 1];
+		int[] cellOf = new int[n];
+		for (int v = 0; v < n; v++) {
+			int cx = Math.min(cells - 1, (int) (x[v] / side * cells));
+			int cy = Math.min(cells - 1, (int) (y[v] / side * cells));
+			cellOf[v] = cy * cells + cx;
+			cellStart[cellOf[v] + 1]++;
+		}
+		for (int c = 0; c < cells * cells; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] byCell = new int[n];
+		int[] fill = Arrays.copyOf(cellStart, cells * cells);
+		for (int v = 0; v < n; v++) {
+			byCell[fill[cellOf[v]]++] = v;
+		}
+
+		int[] parent = new int[n];
+		for (int v = 0; v < n; v++) {
+			parent[v] = v;
+		}
+		double r2 = radius * radius;
+		for (int v = 0; v < n; v++) {
+			int cx = cellOf[v] % cells;
+			int cy = cellOf[v] / cells;
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					int nx = cx + dx;
+					int ny = cy + dy;
+					if (nx < 0 || ny < 0 || nx >= cells || ny >= cells) continue;
+					int c = ny * cells + nx;
+					for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+						int u = byCell[k];
+						if (u <= v) continue;
+						double ddx = x[u] - x[v];
+						double ddy = y[u] - y[v];
+						double d2 = ddx * ddx + ddy * ddy;
+						if (d2 <= r2) {
+							this.road(v, u, length(Math.sqrt(d2)));
+							union(parent, u, v);
+						}
+					}
+				}
+			}
+		}
+
+		// join every part that is cut off to the closest point found outside of it, ring by ring of cells
+		for (int v = 0; v < n; v++) {
+			if (find(parent, v) == find(parent, 0)) continue;
+			int cx = cellOf[v] % cells;
+			int cy = cellOf[v] / cells;
+			int best = -1;
+			double bestD = Double.POSITIVE_INFINITY;
+			for (int ring = 0; best < 0 && ring < cells; ring++) {
+				for (int ny = cy - ring; ny <= cy + ring; ny++) {
+					for (int nx = cx - ring; nx <= cx + ring; nx++) {
+						if (nx < 0 || ny < 0 || nx >= cells || ny >= cells) continue;
+						if (Math.max(Math.abs(nx - cx), Math.abs(ny - cy)) != ring) continue;
+						int c = ny * cells + nx;
+						for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+							int u = byCell[k];
+							if (find(parent, u) == find(parent, v)) continue;
+							double ddx = x[u] - x[v];
+							double ddy = y[u] - y[v];
+							double d = ddx * ddx + ddy * ddy;
+							if (d < bestD) {
+								bestD = d;
+								best = u;
+							}
+						}
+					}
+				}
+			}
+			this.road(v, best, length(Math.sqrt(bestD)));
+			union(parent, v, best);
+		}
+	}
+
+	private static int find(int[] parent, int v) {
+		while (parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		parent[find(parent, a)] = find(parent, b);
+	}
+
+	private void scaleFree(Random r) {
+		int n = this.size;
+		int m = Math.min(this.degree, n - 1);
+		// every road adds both its ends, so picking a random entry picks a node by its degree
+		int[] ends = new int[2 * (m * (m + 1) / 2 + m * (n - m - 1))];
+		int count = 0;
+		for (int a = 0; a <= m; a++) {
+			for (int b = a + 1; b <= m; b++) {
+				this.road(a, b, length(BLOCK * (0.5 + r.nextDouble())));
+				ends[count++] = a;
+				ends[count++] = b;
+			}
+		}
+		int[] picked = new int[m];
+		for (int v = m + 1; v < n; v++) {
+			int k = 0;
+			int total = count;
+			while (k < m) {
+				int u = ends[r.nextInt(total)];
+				boolean again = false;
+				for (int j = 0; j < k; j++) {
+					if (picked[j] == u) again = true;
+				}
+				if (again) continue;
+				picked[k++] = u;
+			}
+			for (int j = 0; j < m; j++) {
+				this.road(v, picked[j], length(BLOCK * (0.5 + r.nextDouble())));
+				ends[count++] = v;
+				ends[count++] = picked[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,605 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import util.nodes.Borough;
+import util.nodes.Node;
+import util.nodes.CustomDSA.GraphFile;
+import util.nodes.CustomDSA.NeighbourNode;
+
+/**
+ * Loads the location and neighbour CSV files into an Environment on several threads.
+ *
+ * <p>
+ * Each file is mapped in chunks that are cut at line breaks and parsed by the
+ * workers of a pool. Location names are interned as UTF-8 bytes in an open
+ * addressing table, so a road row is looked up straight from the mapped bytes,
+ * and distances are parsed from the bytes as well. Neither allocates anything
+ * per row. Once every chunk is parsed the boroughs with their units are made in
+ * parallel, then the roads are grouped by the node they leave and every worker
+ * fills the neighbour queues of its own range of nodes.
+ * </p>
+ *
+ * <p>
+ * The result is the same as EnvironmentLoader's single threaded reader: ids are
+ * given out by line, the units of a borough get consecutive ids and the roads of
+ * a node are queued in file order. A road naming a location that is not in the
+ * locations file, or a row that can't be parsed, is skipped and listed in the
+ * Report instead of stopping the load. compile() parses the files the same way and
+ * writes them straight into a GraphFile.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * An importer can be used from one thread at a time. The environment must not
+ * be used by other threads while it is loaded.
+ * </p>
+ */
+
+public class CsvImporter {
+	/** most bytes of a file one worker parses in one go **/
+	public static final int CHUNK_SIZE = 4 << 20;
+
+	/** exact powers of ten as floats **/
+	private static final float[] POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+	private final int threads;
+
+	/**
+	 * @param threads number of workers
+	 */
+	public CsvImporter(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * What an import did.
+	 */
+	public static final class Report {
+		private final int locations;
+		private final int roads;
+		private final long nanos;
+		private final List<String> skipped;
+		private final Set<String> unknown;
+
+		private Report(int locations, int roads, long nanos, List<String> skipped, Set<String> unknown) {
+			this.locations = locations;
+			this.roads = roads;
+			this.nanos = nanos;
+			this.skipped = Collections.unmodifiableList(skipped);
+			this.unknown = Collections.unmodifiableSet(unknown);
+		}
+
+		/**
+		 * @return number of locations loaded
+		 */
+		public int getLocations() {
+			return this.locations;
+		}
+
+		/**
+		 * @return number of road rows loaded, every row is a road both ways
+		 */
+		public int getRoads() {
+			return this.roads;
+		}
+
+		/**
+		 * @return wall time of the import
+		 */
+		public double getSeconds() {
+			return this.nanos / 1e9;
+		}
+
+		/**
+		 * @return rows of both files loaded per second
+		 */
+		public double getRowsPerSecond() {
+			return (this.locations + this.roads) / Math.max(1e-9, this.getSeconds());
+		}
+
+		/**
+		 * @return one line per skipped row with the file, the line number and why
+		 */
+		public List<String> getSkippedRows() {
+			return this.skipped;
+		}
+
+		/**
+		 * @return the location names roads used that are not in the locations file
+		 */
+		public Set<String> getUnknownLocations() {
+			return this.unknown;
+		}
+
+		@Override
+		public String toString() {
+			return this.locations + " locations, " + this.roads + " roads in " + String.format("%.2f", this.getSeconds())
+					+ " s (" + String.format("%.0f", this.getRowsPerSecond()) + " rows/s), " + this.skipped.size() + " rows skipped";
+		}
+	}
+
+	/**
+	 * loads both files and builds the road graph
+	 * @param env environment to fill
+	 * @param locations csv with a header and one location name per line
+	 * @param neighbours csv with a header and location,location,distance per line
+	 * @return what was loaded and the rows that were skipped
+	 * @throws IOException if a file can't be read
+	 */
+	public Report load(Environment env, Path locations, Path neighbours) throws IOException {
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(this.threads);
+		try {
+			Parsed p = this.parse(pool, locations, neighbours);
+			String[] names = p.names;
+			int n = names.length;
+
+			// boroughs and their units, the units of borough v get the ids after the ones of v - 1
+			Node[] nodes = new Node[n];
+			int firstId = env.reserveServiceIds(9 * n);
+			Service[] units = new Service[9 * n];
+			this.forRanges(pool, n, (from, to) -> {
+				for (int v = from; v < to; v++) {
+					Borough b = new Borough(v + 1, names[v]);
+					for (int j = 0; j < 3; j++) {
+						int k = 9 * v + 3 * j;
+						units[k] = new Police(b, firstId + k);
+						units[k + 1] = new FireTruck(b, firstId + k + 1);
+						units[k + 2] = new Ambulance(b, firstId + k + 2);
+						b.addService(units[k + 2]);
+						b.addService(units[k]);
+						b.addService(units[k + 1]);
+					}
+					nodes[v] = b;
+				}
+			});
+			for (int v = 0; v < n; v++) {
+				for (int k = 9 * v; k < 9 * v + 9; k++) {
+					env.addService(units[k]);
+				}
+				env.addNode(v + 1, nodes[v]);
+			}
+
+			int[] targets = new int[2 * p.roads];
+			float[] weights = new float[2 * p.roads];
+			int[] offsets = GraphFile.byNode(n, p.a, p.b, p.d, p.roads, targets, weights);
+			this.forRanges(pool, n, (from, to) -> {
+				for (int v = from; v < to; v++) {
+					for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+						nodes[v].addNeighbor(new NeighbourNode(nodes[targets[k]], weights[k]));
+					}
+				}
+			});
+			env.buildGraph();
+			return report(neighbours, p, start);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * converts both files into a graph file without building any nodes. rows are
+	 * skipped and reported the same way load() does, and the graph file routes
+	 * like the environment load() would build from the same files
+	 * @param locations csv with a header and one location name per line
+	 * @param neighbours csv with a header and location,location,distance per line
+	 * @param out the graph file to write
+	 * @return what was compiled and the rows that were skipped
+	 * @throws IOException if a file can't be read or written
+	 */
+	public Report compile(Path locations, Path neighbours, Path out) throws IOException {
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(this.threads);
+		try {
+			Parsed p = this.parse(pool, locations, neighbours);
+			int n = p.names.length;
+			int[] targets = new int[2 * p.roads];
+			float[] weights = new float[2 * p.roads];
+			int[] offsets = GraphFile.byNode(n, p.a, p.b, p.d, p.roads, targets, weights);
+			int[] ids = new int[n];
+			for (int v = 0; v < n; v++) {
+				ids[v] = v + 1;
+			}
+			GraphFile.write(out, ids, p.names, offsets, targets, weights);
+			return report(neighbours, p, start);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** both files parsed, before anything is built from them **/
+	private static final class Parsed {
+		/** location names by line **/
+		String[] names;
+		/** road rows by chunk, for the skipped ones **/
+		List<Roads> rows;
+		/** ends and length of the roads in row order **/
+		int[] a;
+		int[] b;
+		float[] d;
+		int roads;
+	}
+
+	private Parsed parse(ForkJoinPool pool, Path locations, Path neighbours) throws IOException {
+		Parsed p = new Parsed();
+		// names of the locations by line
+		List<ByteBuffer> chunks = this.split(locations);
+		List<Callable<String[]>> parse = new ArrayList<>();
+		for (int i = 0; i < chunks.size(); i++) {
+			ByteBuffer c = chunks.get(i);
+			boolean header = i == 0;
+			parse.add(() -> parseLocations(c, header));
+		}
+		List<String[]> parsed = run(pool, parse);
+		int n = 0;
+		for (String[] names: parsed) {
+			n += names.length;
+		}
+		p.names = new String[n];
+		n = 0;
+		for (String[] names: parsed) {
+			System.arraycopy(names, 0, p.names, n, names.length);
+			n += names.length;
+		}
+		// a name on two lines means the later one, like the map of the single threaded loader
+		NameTable table = new NameTable(n);
+		for (int v = 0; v < n; v++) {
+			table.put(p.names[v].getBytes(StandardCharsets.UTF_8), v);
+		}
+
+		// roads by row
+		chunks = this.split(neighbours);
+		List<Callable<Roads>> roadTasks = new ArrayList<>();
+		for (int i = 0; i < chunks.size(); i++) {
+			ByteBuffer c = chunks.get(i);
+			boolean header = i == 0;
+			roadTasks.add(() -> parseRoads(c, header, table));
+		}
+		p.rows = run(pool, roadTasks);
+		for (Roads r: p.rows) {
+			p.roads += r.count;
+		}
+		p.a = new int[p.roads];
+		p.b = new int[p.roads];
+		p.d = new float[p.roads];
+		int m = 0;
+		for (Roads r: p.rows) {
+			System.arraycopy(r.a, 0, p.a, m, r.count);
+			System.arraycopy(r.b, 0, p.b, m, r.count);
+			System.arraycopy(r.d, 0, p.d, m, r.count);
+			m += r.count;
+		}
+		return p;
+	}
+
+	/** the report of a load or compile that started at start **/
+	private static Report report(Path neighbours, Parsed p, long start) {
+		// line numbers of the skipped rows, counted from the header as line 1
+		List<String> skipped = new ArrayList<>();
+		Set<String> unknown = new TreeSet<>();
+		int line = 1;
+		for (Roads r: p.rows) {
+			for (int i = 0; i < r.badLines.size(); i++) {
+				skipped.add(neighbours.getFileName() + " line " + (line + r.badLines.get(i)) + ": " + r.badReasons.get(i));
+			}
+			unknown.addAll(r.unknown);
+			line += r.lines;
+		}
+		return new Report(p.names.length, p.roads, System.nanoTime() - start, skipped, unknown);
+	}
+
+	/** parsed road rows of one chunk **/
+	private static final class Roads {
+		int[] a = new int[1024];
+		int[] b = new int[1024];
+		float[] d = new float[1024];
+		int count = 0;
+		/** lines of the chunk, the header included **/
+		int lines = 0;
+		/** lines counted from the start of the chunk **/
+		final List<Integer> badLines = new ArrayList<>();
+		final List<String> badReasons = new ArrayList<>();
+		final Set<String> unknown = new TreeSet<>();
+
+		void add(int from, int to, float dist) {
+			if (this.count == this.a.length) {
+				this.a = Arrays.copyOf(this.a, this.count * 2);
+				this.b = Arrays.copyOf(this.b, this.count * 2);
+				this.d = Arrays.copyOf(this.d, this.count * 2);
+			}
+			this.a[this.count] = from;
+			this.b[this.count] = to;
+			this.d[this.count++] = dist;
+		}
+
+		void skip(int line, String reason) {
+			this.badLines.add(line);
+			this.badReasons.add(reason);
+		}
+	}
+
+	private static String[] parseLocations(ByteBuffer c, boolean header) {
+		List<String> names = new ArrayList<>();
+		int end = c.limit();
+		int s = 0;
+		while (s < end) {
+			int e = lineEnd(c, s, end);
+			if (header) header = false;
+			else {
+				int from = trimStart(c, s, e);
+				byte[] b = new byte[trimEnd(c, from, e) - from];
+				c.get(from, b);
+				names.add(new String(b, StandardCharsets.UTF_8));
+			}
+			s = e + 1;
+		}
+		return names.toArray(new String[0]);
+	}
+
+	private static Roads parseRoads(ByteBuffer c, boolean header, NameTable table) {
+		Roads r = new Roads();
+		int end = c.limit();
+		int s = 0;
+		while (s < end) {
+			int e = lineEnd(c, s, end);
+			int line = r.lines++;
+			if (header) {
+				header = false;
+				s = e + 1;
+				continue;
+			}
+			int c1 = indexOf(c, ',', s, e);
+			int c2 = c1 < 0 ? -1 : indexOf(c, ',', c1 + 1, e);
+			if (c2 < 0) {
+				r.skip(line, "expected location,location,distance");
+				s = e + 1;
+				continue;
+			}
+			int c3 = indexOf(c, ',', c2 + 1, e);
+			int a = table.get(c, trimStart(c, s, c1), trimEnd(c, s, c1));
+			int b = table.get(c, trimStart(c, c1 + 1, c2), trimEnd(c, c1 + 1, c2));
+			if (a < 0 || b < 0) {
+				StringBuilder why = new StringBuilder("unknown location");
+				if (a < 0) why.append(' ').append(unknown(c, s, c1, r));
+				if (b < 0) why.append(' ').append(unknown(c, c1 + 1, c2, r));
+				r.skip(line, why.toString());
+				s = e + 1;
+				continue;
+			}
+			float d = parseFloat(c, c2 + 1, c3 < 0 ? e : c3);
+			if (Float.isNaN(d)) {
+				r.skip(line, "distance is not a number");
+			}
+			else r.add(a, b, d);
+			s = e + 1;
+		}
+		return r;
+	}
+
+	private static String unknown(ByteBuffer c, int from, int to, Roads r) {
+		int s = trimStart(c, from, to);
+		byte[] b = new byte[trimEnd(c, s, to) - s];
+		c.get(s, b);
+		String name = new String(b, StandardCharsets.UTF_8);
+		r.unknown.add(name);
+		return "'" + name + "'";
+	}
+
+	/**
+	 * parses a decimal number without allocating. numbers with at most 7 significant digits and
+	 * 10 decimals are one exact float division, anything else goes to Float.parseFloat
+	 * @return the number, NaN if it isn't one
+	 */
+	static float parseFloat(ByteBuffer c, int from, int to) {
+		from = trimStart(c, from, to);
+		to = trimEnd(c, from, to);
+		int i = from;
+		boolean negative = false;
+		if (i < to && (c.get(i) == '-' || c.get(i) == '+')) {
+			negative = c.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean any = false;
+		boolean point = false;
+		for (; i < to; i++) {
+			byte x = c.get(i);
+			if (x == '.' && !point) {
+				point = true;
+			}
+			else if (x >= '0' && x <= '9' && digits < 18) {
+				mantissa = mantissa * 10 + (x - '0');
+				any = true;
+				if (mantissa != 0) digits++;
+				if (point) scale++;
+			}
+			else break;
+		}
+		if (i == to && any && mantissa < (1 << 24) && scale < POW10.length) {
+			// both operands are exact floats, so the quotient is rounded once like parseFloat rounds it
+			float f = (float) mantissa / POW10[scale];
+			return negative ? -f : f;
+		}
+		byte[] b = new byte[to - from];
+		c.get(from, b);
+		try {
+			return Float.parseFloat(new String(b, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			return Float.NaN;
+		}
+	}
+
+	/**
+	 * maps the file in chunks of up to CHUNK_SIZE bytes, every chunk ends after a line break or at the end
+	 */
+	private List<ByteBuffer> split(Path file) throws IOException {
+		List<ByteBuffer> chunks = new ArrayList<>();
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = ch.size();
+			long step = Math.max(1 << 16, Math.min(CHUNK_SIZE, size / (this.threads * 4L) + 1));
+			ByteBuffer probe = ByteBuffer.allocate(4096);
+			long start = 0;
+			while (start < size) {
+				long end = Math.min(size, start + step);
+				// move the end past the line break the cut fell in
+				long p = end - 1;
+				while (end < size) {
+					probe.clear();
+					int read = ch.read(probe, p);
+					if (read <= 0) {
+						end = size;
+						break;
+					}
+					int k = 0;
+					while (k < read && probe.get(k) != '\n') {
+						k++;
+					}
+					if (k < read) {
+						end = p + k + 1;
+						break;
+					}
+					p += read;
+					end = Math.min(size, p);
+				}
+				chunks.add(ch.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+				start = end;
+			}
+		}
+		return chunks;
+	}
+
+	/** work on a range of dense indices **/
+	private interface Range {
+		void run(int from, int to);
+	}
+
+	private void forRanges(ForkJoinPool pool, int n, Range work) throws IOException {
+		int slices = Math.max(1, Math.min(this.threads * 4, n / 256));
+		List<Callable<Void>> tasks = new ArrayList<>(slices);
+		for (int i = 0; i < slices; i++) {
+			int from = (int) ((long) n * i / slices);
+			int to = (int) ((long) n * (i + 1) / slices);
+			tasks.add(() -> {
+				work.run(from, to);
+				return null;
+			});
+		}
+		run(pool, tasks);
+	}
+
+	private static <T> List<T> run(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+		List<T> out = new ArrayList<>(tasks.size());
+		for (Future<T> f: pool.invokeAll(tasks)) {
+			try {
+				out.add(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while importing", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return out;
+	}
+
+	/** position of the line break ending the line at s, or end **/
+	private static int lineEnd(ByteBuffer c, int s, int end) {
+		int e = s;
+		while (e < end && c.get(e) != '\n') {
+			e++;
+		}
+		return e;
+	}
+
+	private static int indexOf(ByteBuffer c, char x, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (c.get(i) == x) return i;
+		}
+		return -1;
+	}
+
+	/** skips what String.trim() skips **/
+	private static int trimStart(ByteBuffer c, int from, int to) {
+		while (from < to && (c.get(from) & 0xff) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	private static int trimEnd(ByteBuffer c, int from, int to) {
+		while (to > from && (c.get(to - 1) & 0xff) <= ' ') {
+			to--;
+		}
+		return to;
+	}
+
+	/**
+	 * Open addressing table from UTF-8 names to dense indices, read by all workers
+	 * once it is filled.
+	 */
+	private static final class NameTable {
+		private final byte[][] keys;
+		private final int[] values;
+		private final int mask;
+
+		NameTable(int expected) {
+			int c = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+			this.keys = new byte[c][];
+			this.values = new int[c];
+			this.mask = c - 1;
+		}
+
+		void put(byte[] key, int value) {
+			int i = hash(ByteBuffer.wrap(key), 0, key.length) & this.mask;
+			while (this.keys[i] != null && !Arrays.equals(this.keys[i], key)) {
+				i = (i + 1) & this.mask;
+			}
+			this.keys[i] = key;
+			this.values[i] = value;
+		}
+
+		/** @return the index of the name in c[from, to), -1 if there is none **/
+		int get(ByteBuffer c, int from, int to) {
+			int i = hash(c, from, to) & this.mask;
+			byte[] k;
+			while ((k = this.keys[i]) != null) {
+				if (k.length == to - from && matches(k, c, from)) return this.values[i];
+				i = (i + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		private static boolean matches(byte[] k, ByteBuffer c, int from) {
+			for (int j = 0; j < k.length; j++) {
+				if (k[j] != c.get(from + j)) return false;
+			}
+			return true;
+		}
+
+		private static int hash(ByteBuffer c, int from, int to) {
+			int h = 0;
+			for (int i = from; i < to; i++) {
+				h = 31 * h + c.get(i);
+			}
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -1,13 +1,25 @@
 package util;
 import util.nodes.Node;
-import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.ContractionHierarchy;
+import util.nodes.CustomDSA.DistanceOracle;
+import util.nodes.CustomDSA.LandmarkRouter;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+import util.nodes.CustomDSA.SearchContext;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntToDoubleFunction;
 
-import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableMap;
 import java.util.ArrayList;
@@ -47,6 +59,74 @@ public class Environment {
 			(a, b) -> Integer.compare(b.getIncidentLevel(), a.getIncidentLevel())
 			);
 	
+	/** compressed copy of the road network used by the searches, built from the nodes **/
+	private RoadGraph graph = null;
+	
+	/** optional all-pairs distance table, used to rank units without a search **/
+	private DistanceOracle oracle = null;
+	
+	/** optional landmark A* router for point-to-point routes **/
+	private LandmarkRouter landmarks = null;
+	
+	/** optional contraction hierarchy for graphs too big for a table **/
+	private ContractionHierarchy hierarchy = null;
+	
+	/** optional nearest available unit per node and service type, kept up to date as units move **/
+	private NearestUnitIndex unitIndex = null;
+	
+	/** collects the incidents of a tick and dispatches them together, null dispatches each right away **/
+	private BatchDispatcher batch = null;
+	
+	/** where changes to the observable maps of the nodes run, right away unless set. the JavaFX app reads Snapshots instead **/
+	private volatile Executor uiExecutor = Runnable::run;
+	
+	/** how update moves the services **/
+	private volatile TickMode tickMode = TickMode.EVERY_SERVICE;
+	
+	/** arrival events of the moving services, only used in TickMode.EVENT **/
+	private EventScheduler scheduler = null;
+	
+	/** workers of TickMode.PARALLEL **/
+	private ForkJoinPool pool = null;
+	
+	/** columnar state of the fleet, only used in TickMode.COLUMNAR. dropped when the graph changes
+	 * and made again on the new graph by the next update **/
+	private FleetStore fleet = null;
+	
+	/** services in iteration order, rebuilt when a service is added **/
+	private Service[] serviceOrder = null;
+	
+	/** smallest slice of the fleet a parallel worker gets **/
+	public static final int MIN_SLICE = 256;
+	
+	/** incident requests from other threads, dispatched at the start of the next update **/
+	private final IncidentIntake intake = new IncidentIntake(INTAKE_CAPACITY);
+	
+	/** dispatches the incidents drained from the intake in parallel, null dispatches them one after the other **/
+	private ForkJoinPool dispatchPool = null;
+	
+	/** records every change for replay after a restart, null records nothing **/
+	private volatile Journal journal = null;
+	
+	/** told about every incident opened and dealt with **/
+	private final List<IncidentListener> incidentListeners = new CopyOnWriteArrayList<>();
+	
+	/** last service and incident id given out **/
+	private final AtomicInteger serviceIds = new AtomicInteger();
+	private final AtomicInteger incidentIds = new AtomicInteger();
+	
+	/** number of requests the intake holds **/
+	public static final int INTAKE_CAPACITY = 1024;
+	
+	/** number of updates run so far **/
+	private volatile long tick = 0;
+	
+	/** one reusable search context per thread so a dispatch allocates close to nothing **/
+	private final ThreadLocal<SearchContext> searchContexts = ThreadLocal.withInitial(SearchContext::new);
+	
+	/** one reusable ranking per thread for the oracle and hierarchy dispatch **/
+	private final ThreadLocal<UnitRanking> rankings = ThreadLocal.withInitial(UnitRanking::new);
+	
 	public Environment() {
 		
 	}
@@ -58,22 +138,316 @@ public class Environment {
 	 * other wise just updated the services 	
 	 */
 	public void update(Boolean updateAll) {
+		this.drainIntake();
+		BatchDispatcher b = this.batch;
+		if (b != null) {
+			b.flush();
+		}
 		if (updateAll) {
 			for (Node n: this.nodes.values()) {
 				n.recalculateServiceRequired();
 			}
+			Journal j = this.journal;
+			if (j != null) {
+				j.recalculated();
+			}
+		}
+		EventScheduler es = this.scheduler;
+		ForkJoinPool fj = this.pool;
+		FleetStore fs = this.tickMode == TickMode.COLUMNAR ? this.fleetStore() : null;
+		if (es != null) {
+			es.runDue(this.tick);
+		}
+		else if (fj != null) {
+			this.runParallel(fj);
 		}
-		for (Service n: this.services.values()) {
-			n.run();
+		else if (fs != null) {
+			fs.tick();
 		}
+		else {
+			for (Service n: this.services.values()) {
+				n.run();
+			}
+		}
+		this.tick++;
 		return;
 	}
+	
+	/**
+	 * runs every service on the pool. the fleet is cut into contiguous slices of the sequential order,
+	 * each slice records its side effects and the slices are applied in order afterwards, so the result
+	 * is the same as running the services one after the other
+	 */
+	private void runParallel(ForkJoinPool fj) {
+		Service[] order = this.serviceOrder;
+		if (order == null) {
+			order = this.services.values().toArray(new Service[0]);
+			this.serviceOrder = order;
+		}
+		Service[] all = order;
+		int slices = Math.max(1, Math.min(fj.getParallelism() * 4, all.length / MIN_SLICE));
+		TickEffects[] fx = new TickEffects[slices];
+		ArrayList<Callable<Void>> tasks = new ArrayList<>(slices);
+		for (int i = 0; i < slices; i++) {
+			int slice = i;
+			fx[i] = new TickEffects();
+			tasks.add(() -> {
+				int from = (int) ((long) all.length * slice / slices);
+				int to = (int) ((long) all.length * (slice + 1) / slices);
+				for (int k = from; k < to; k++) {
+					all[k].advance(all[k].getSpeed(), fx[slice]);
+				}
+				return null;
+			});
+		}
+		for (Future<Void> f: fj.invokeAll(tasks)) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		for (TickEffects e: fx) {
+			e.apply();
+		}
+	}
+	
+	/**
+	 * brings the services the event scheduler moves up to the last tick, so how far they are
+	 * along their roads can be read. call it between updates
+	 */
+	void settleEvents() {
+		EventScheduler es = this.scheduler;
+		if (es != null) {
+			es.settle(this.services.values());
+		}
+	}
+	
+	/**
+	 * dispatches the requests waiting in the intake on the updating thread, the only thread that
+	 * changes the incidents and the services. the futures are completed once the incidents are dispatched.
+	 * update() does this first, called on its own nothing moves and no tick is counted
+	 */
+	public void drainIntake() {
+		if (this.intake.size() == 0) return;
+		ArrayList<IncidentIntake.Request> taken = new ArrayList<>();
+		ArrayList<Incident> made = new ArrayList<>();
+		ForkJoinPool dp = this.batch == null ? this.dispatchPool : null;
+		ArrayList<Callable<Void>> searches = new ArrayList<>();
+		this.intake.drain(r -> {
+			try {
+				if (dp == null) {
+					made.add(this.MakeRequest(r.getIncidentType(), r.getLevel(), r.getNode()));
+				}
+				else {
+					// the maps are filled here, only the searches run in parallel
+					Incident inc = this.openIncident(r.getIncidentType(), r.getLevel(), r.getNode());
+					Map<String, Integer> required = requiredServices(r.getIncidentType(), r.getLevel());
+					searches.add(() -> {
+						this.SearchForServices(required, inc);
+						return null;
+					});
+					made.add(inc);
+				}
+				taken.add(r);
+			} catch (RuntimeException e) {
+				r.getResult().completeExceptionally(e);
+			}
+		}, INTAKE_CAPACITY);
+		if (dp != null) {
+			List<Future<Void>> done = dp.invokeAll(searches);
+			for (int i = 0; i < done.size(); i++) {
+				try {
+					done.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					taken.get(i).getResult().completeExceptionally(e.getCause());
+				}
+			}
+		}
+		BatchDispatcher b = this.batch;
+		if (b != null) {
+			b.flush();
+		}
+		for (int i = 0; i < taken.size(); i++) {
+			taken.get(i).getResult().complete(made.get(i));
+		}
+	}
+	
+	/**
+	 * dispatches the incidents of each drain in parallel, one search per worker. units are claimed with
+	 * Service.tryReserve so two searches never take the same unit, a search that loses a unit moves on to
+	 * the next closest one. has no effect while batch dispatch is enabled
+	 * @param parallelism number of workers
+	 */
+	public void enableConcurrentDispatch(int parallelism) {
+		synchronized(this) {
+			this.disableConcurrentDispatch();
+			this.getGraph();
+			this.dispatchPool = new ForkJoinPool(Math.max(1, parallelism));
+		}
+	}
+	
+	/**
+	 * goes back to dispatching the drained incidents one after the other
+	 */
+	public void disableConcurrentDispatch() {
+		synchronized(this) {
+			if (this.dispatchPool != null) {
+				this.dispatchPool.shutdown();
+				this.dispatchPool = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return the queue other threads submit incident requests to, e.g. the UI
+	 */
+	public IncidentIntake getIncidentIntake() {
+		return this.intake;
+	}
+	
+	/**
+	 * @return number of updates run so far, the clock of the event scheduler
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+	
+	/**
+	 * @return how many of the next updates would do nothing and could be skipped, 0 unless the
+	 * tick mode is EVENT, Long.MAX_VALUE if nothing is scheduled at all
+	 */
+	public long idleTicks() {
+		EventScheduler es = this.scheduler;
+		if (es == null) return 0;
+		BatchDispatcher b = this.batch;
+		if (b != null && b.pendingCount() > 0) return 0;
+		if (this.intake.size() > 0) return 0;
+		long next = es.nextDue();
+		if (next == Long.MAX_VALUE) return Long.MAX_VALUE;
+		return Math.max(0, next - this.tick);
+	}
+	
+	/**
+	 * moves the tick on without running the updates, only meant for ticks idleTicks() says are idle
+	 * @param ticks number of ticks to skip
+	 */
+	public void skipTicks(long ticks) {
+		this.tick += ticks;
+	}
+	
+	/**
+	 * sets how update moves the services. EVENT only runs the services that reach a node in that tick,
+	 * a service is then moved by the whole time since it last moved. PARALLEL runs every service
+	 * on one worker per core with the same result as EVERY_SERVICE. COLUMNAR moves the state of
+	 * the services into a FleetStore and runs them off its arrays, also with the same result
+	 * @param mode the tick mode
+	 */
+	public void setTickMode(TickMode mode) {
+		this.setTickMode(mode, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * sets how update moves the services
+	 * @param mode the tick mode
+	 * @param parallelism number of workers for TickMode.PARALLEL
+	 */
+	public void setTickMode(TickMode mode, int parallelism) {
+		synchronized(this) {
+			if (mode == this.tickMode && (mode != TickMode.PARALLEL || this.pool.getParallelism() == parallelism)) return;
+			if (this.scheduler != null) {
+				this.scheduler.close(this.services.values());
+				this.scheduler = null;
+			}
+			if (this.pool != null) {
+				this.pool.shutdown();
+				this.pool = null;
+			}
+			this.dropFleet();
+			if (mode == TickMode.PARALLEL) {
+				this.pool = new ForkJoinPool(Math.max(1, parallelism));
+			}
+			if (mode == TickMode.EVENT) {
+				EventScheduler es = new EventScheduler(this);
+				for (Service s: this.services.values()) {
+					es.add(s);
+				}
+				this.scheduler = es;
+			}
+			this.tickMode = mode;
+			if (mode == TickMode.COLUMNAR) {
+				this.fleetStore();
+			}
+		}
+	}
+
+	/**
+	 * @return the fleet store of TickMode.COLUMNAR, made on the current graph with every service if there is none
+	 */
+	private FleetStore fleetStore() {
+		FleetStore fs = this.fleet;
+		if (fs != null) return fs;
+		synchronized(this) {
+			fs = this.fleet;
+			if (fs == null) {
+				fs = new FleetStore(this.getGraph(), this.services.size());
+				for (Service s: this.services.values()) {
+					fs.attach(s);
+				}
+				this.fleet = fs;
+			}
+			return fs;
+		}
+	}
+
+	/**
+	 * moves the state of the services back out of the fleet store, which holds dense indices of a graph
+	 * that is about to change. the next update makes a new one
+	 */
+	private void dropFleet() {
+		if (this.fleet == null) return;
+		synchronized(this) {
+			if (this.fleet != null) {
+				this.fleet.detachAll();
+				this.fleet = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return the tick mode
+	 */
+	public TickMode getTickMode() {
+		return this.tickMode;
+	}
+	/**
+	 * sets where changes to the observable maps of the nodes run, e.g. Platform::runLater for a UI bound
+	 * to them. the default runs them right away, the JavaFX app reads Snapshots instead
+	 * @param executor the executor
+	 */
+	public void setUiExecutor(Executor executor) {
+		this.uiExecutor = executor == null ? Runnable::run : executor;
+	}
+	
 	/**
 	 * generates a new service id
 	 * @return the next available service id
 	 */
 	public int getNewServiceId() {
-		return services.size() + 1;
+		return this.serviceIds.incrementAndGet();
+	}
+
+	/**
+	 * hands out a block of service ids at once, for loaders that make units on several threads
+	 * @param count number of ids
+	 * @return the first id of the block, the block is first .. first + count - 1
+	 */
+	public int reserveServiceIds(int count) {
+		return this.serviceIds.getAndAdd(count) + 1;
 	}
 	
 	/**
@@ -82,6 +456,101 @@ public class Environment {
 	 */
 	public void addService(Service s) {
 		services.put(s.getID(), s);
+		// ids given out elsewhere are never handed out again
+		this.serviceIds.accumulateAndGet(s.getID(), Math::max);
+		this.serviceOrder = null;
+		NearestUnitIndex idx = this.unitIndex;
+		if (idx != null) {
+			idx.add(s);
+		}
+		EventScheduler es = this.scheduler;
+		if (es != null) {
+			es.add(s);
+		}
+		FleetStore fs = this.fleet;
+		if (fs != null) {
+			// a unit on a node the store's graph doesn't have, e.g. while loading, waits for the next store
+			if (fs.covers(s.getPlace())) fs.attach(s);
+			else this.dropFleet();
+		}
+		Journal j = this.journal;
+		if (j != null) {
+			s.addListener(j);
+		}
+	}
+	
+	/**
+	 * adds a unit to the dispatch list of an incident
+	 * @param inc the incident
+	 * @param s the unit sent to it
+	 */
+	void assign(Incident inc, Service s) {
+		inc.addToDispatchList(s.getServiceType(), s.getID());
+		Journal j = this.journal;
+		if (j != null) {
+			j.dispatched(inc, s);
+		}
+	}
+	
+	/**
+	 * starts recording every change to the journal, or stops with null. open the journal with
+	 * Journal.open first, which replays what it already holds
+	 * @param j the journal
+	 */
+	public void setJournal(Journal j) {
+		synchronized(this) {
+			Journal old = this.journal;
+			if (old != null) {
+				for (Service s: this.services.values()) {
+					s.removeListener(old);
+				}
+				this.getGraph().removeListener(old);
+			}
+			if (j != null) {
+				for (Service s: this.services.values()) {
+					s.addListener(j);
+				}
+				this.getGraph().addListener(j);
+			}
+			this.journal = j;
+		}
+	}
+	
+	/**
+	 * @return the journal changes are recorded to, or null
+	 */
+	public Journal getJournal() {
+		return this.journal;
+	}
+	
+	/**
+	 * @param listener told about every incident opened and dealt with from now on
+	 */
+	public void addIncidentListener(IncidentListener listener) {
+		if (!this.incidentListeners.contains(listener)) this.incidentListeners.add(listener);
+	}
+	
+	/**
+	 * @param listener no longer told about incidents
+	 */
+	public void removeIncidentListener(IncidentListener listener) {
+		this.incidentListeners.remove(listener);
+	}
+	
+	/**
+	 * returns all the incidents made so far
+	 * @return the Map of incident id to incident
+	 */
+	public Map<Integer, Incident> getIncidents(){
+		return this.incident;
+	}
+	
+	/**
+	 * returns all the services in the environment
+	 * @return the Map of service id to service
+	 */
+	public Map<Integer, Service> getServices(){
+		return this.services;
 	}
 	
 	/**
@@ -100,6 +569,219 @@ public class Environment {
 	 */
 	public void addNode(int id, Node node) {
 		this.nodes.put(id, node);
+		this.graph = null;
+		this.dropFleet();
+	}
+	
+	/**
+	 * (re)builds the compressed road graph from the current nodes and their neighbours.
+	 * should be called once all the nodes and roads are loaded
+	 * @return the new graph
+	 */
+	public RoadGraph buildGraph() {
+		this.dropFleet();
+		this.graph = RoadGraph.build(this.nodes.values());
+		this.disableDistanceOracle();
+		this.disableLandmarks();
+		this.disableContractionHierarchy();
+		this.disableNearestUnitIndex();
+		return this.graph;
+	}
+
+	/**
+	 * uses a graph that was made elsewhere instead of building one, e.g. a graph mapped from a GraphFile.
+	 * should be called once all the nodes are added
+	 * @param g the road graph, the nodes of the environment have to be bound to it
+	 * @throws IllegalArgumentException if a node of the environment is not on the graph
+	 */
+	public void setGraph(RoadGraph g) {
+		for (Node n: this.nodes.values()) {
+			if (g.indexOf(n) < 0) throw new IllegalArgumentException("node " + n.getID() + " is not on the road graph");
+		}
+		this.dropFleet();
+		this.graph = g;
+		this.disableDistanceOracle();
+		this.disableLandmarks();
+		this.disableContractionHierarchy();
+		this.disableNearestUnitIndex();
+	}
+	
+	/**
+	 * builds the all-pairs distance table for the current road graph.
+	 * from then on dispatch ranks the available units by their table distance to the incident
+	 * instead of searching outward from it
+	 * @return the oracle
+	 * @throws IllegalArgumentException if the graph is too big for a table
+	 */
+	public DistanceOracle enableDistanceOracle() {
+		this.disableDistanceOracle();
+		this.oracle = DistanceOracle.build(this.getGraph());
+		return this.oracle;
+	}
+	
+	/**
+	 * drops the distance table, dispatch goes back to searching
+	 */
+	public void disableDistanceOracle() {
+		if (this.oracle != null) {
+			this.oracle.close();
+			this.oracle = null;
+		}
+	}
+	
+	/**
+	 * @return the distance table or null if it is not enabled
+	 */
+	public DistanceOracle getDistanceOracle() {
+		return this.oracle;
+	}
+	
+	/**
+	 * picks k landmarks on the current road graph and uses A* with them for point-to-point routes
+	 * @param k number of landmarks
+	 * @return the router
+	 */
+	public LandmarkRouter enableLandmarks(int k) {
+		this.disableLandmarks();
+		this.landmarks = LandmarkRouter.build(this.getGraph(), k);
+		return this.landmarks;
+	}
+	
+	/**
+	 * drops the landmark router, point-to-point routes go back to plain Dijkstra
+	 */
+	public void disableLandmarks() {
+		if (this.landmarks != null) {
+			this.landmarks.close();
+			this.landmarks = null;
+		}
+	}
+	
+	/**
+	 * contracts the current road graph. from then on dispatch ranks all available units with one
+	 * many-to-one query and routes are answered by upward searches in the hierarchy
+	 * @return the hierarchy
+	 */
+	public ContractionHierarchy enableContractionHierarchy() {
+		this.disableContractionHierarchy();
+		this.hierarchy = ContractionHierarchy.build(this.getGraph());
+		return this.hierarchy;
+	}
+	
+	/**
+	 * drops the contraction hierarchy
+	 */
+	public void disableContractionHierarchy() {
+		if (this.hierarchy != null) {
+			this.hierarchy.close();
+			this.hierarchy = null;
+		}
+	}
+	
+	/**
+	 * @return the contraction hierarchy or null if it is not enabled
+	 */
+	public ContractionHierarchy getContractionHierarchy() {
+		return this.hierarchy;
+	}
+	
+	/**
+	 * indexes the nearest available unit of every type for every node of the current road graph.
+	 * from then on dispatch looks the closest units up instead of searching for them
+	 * @return the index
+	 */
+	public NearestUnitIndex enableNearestUnitIndex() {
+		this.disableNearestUnitIndex();
+		this.unitIndex = new NearestUnitIndex(this.getGraph(), this.services.values());
+		return this.unitIndex;
+	}
+	
+	/**
+	 * drops the nearest unit index
+	 */
+	public void disableNearestUnitIndex() {
+		if (this.unitIndex != null) {
+			this.unitIndex.close(this.services.values());
+			this.unitIndex = null;
+		}
+	}
+	
+	/**
+	 * @return the nearest unit index or null if it is not enabled
+	 */
+	public NearestUnitIndex getNearestUnitIndex() {
+		return this.unitIndex;
+	}
+	
+	/**
+	 * from now on incidents are queued and dispatched together at the start of the next update
+	 * @return the batch dispatcher
+	 */
+	public BatchDispatcher enableBatchDispatch() {
+		if (this.batch == null) {
+			this.batch = new BatchDispatcher(this);
+		}
+		return this.batch;
+	}
+	
+	/**
+	 * dispatches whatever is still queued and goes back to dispatching each incident right away
+	 */
+	public void disableBatchDispatch() {
+		BatchDispatcher b = this.batch;
+		this.batch = null;
+		if (b != null) {
+			b.flush();
+		}
+	}
+	
+	/**
+	 * @return the batch dispatcher or null if incidents are dispatched right away
+	 */
+	public BatchDispatcher getBatchDispatcher() {
+		return this.batch;
+	}
+	
+	/**
+	 * finds the shortest route between two nodes, e.g. for sending a unit to an incident or back to a station.
+	 * uses the distance table if enabled, otherwise the contraction hierarchy, otherwise landmark A*,
+	 * otherwise a Dijkstra that stops at the destination
+	 * @param from start node
+	 * @param to destination node
+	 * @return the route in travel order with distances from the start, or null if to can't be reached
+	 */
+	public Route route(Node from, Node to) {
+		RoadGraph g = this.getGraph();
+		int a = g.indexOf(from);
+		int b = g.indexOf(to);
+		if (a < 0 || b < 0) return null;
+		DistanceOracle o = this.oracle;
+		if (o != null) return o.route(a, b);
+		ContractionHierarchy ch = this.hierarchy;
+		if (ch != null) return ch.route(a, b);
+		LandmarkRouter l = this.landmarks;
+		if (l != null) return l.route(a, b);
+		
+		SearchContext ctx = this.searchContext();
+		ctx.start(a);
+		int v;
+		while ((v = ctx.next()) >= 0 && v != b) {
+			// settle until the destination is reached
+		}
+		if (v < 0) return null;
+		return flipPath(ctx.routeTo(b));
+	}
+	
+	/**
+	 * returns the compressed road graph, building it if no graph was built yet
+	 * @return the road graph
+	 */
+	public RoadGraph getGraph() {
+		RoadGraph g = this.graph;
+		if (g == null) {
+			g = this.buildGraph();
+		}
+		return g;
 	}
 	
 	/**
@@ -111,19 +793,63 @@ public class Environment {
 	 * @param incidentType used to determine the type of incident
 	 * @param EmergencyLevel used to indicate the severity of the incident
 	 * @param node used to know which node the incidet took place
+	 * @return the new incident
 	 */
-	public void MakeRequest(int incidentType, int EmergencyLevel, Node node) {
-		Incident New = new Incident(incident.size()+1, node, EmergencyLevel, incidentType);
+	public Incident MakeRequest(int incidentType, int EmergencyLevel, Node node) {
+		Incident New = this.openIncident(incidentType, EmergencyLevel, node);
+		
+		Map<String, Integer> requestedServices = requiredServices(incidentType, EmergencyLevel);
+		BatchDispatcher b = this.batch;
+		if (b != null) {
+			// solved together with the other incidents of this tick
+			b.submit(New, requestedServices);
+			return New;
+		}
+		this.SearchForServices(requestedServices, New);
+		return New;
+	}
+	
+	/**
+	 * makes the incident and adds it to the incident map, runningIncident and its node
+	 * @return the new incident
+	 */
+	private Incident openIncident(int incidentType, int EmergencyLevel, Node node) {
+		Incident New = this.restoreIncident(this.incidentIds.incrementAndGet(), node, EmergencyLevel, incidentType);
+		Journal j = this.journal;
+		if (j != null) {
+			j.incident(New);
+		}
+		for (IncidentListener l: this.incidentListeners) {
+			l.opened(New);
+		}
+		return New;
+	}
+	
+	/**
+	 * makes an incident with a given id, e.g. one read back from a journal
+	 * @return the new incident
+	 */
+	Incident restoreIncident(int id, Node node, int EmergencyLevel, int incidentType) {
+		this.incidentIds.accumulateAndGet(id, Math::max);
+		Incident New = new Incident(id, node, EmergencyLevel, incidentType);
 		this.incident.put(New.getId(), New);
 		this.runningIncidents.add(New);
-		Platform.runLater(() -> {
+		this.uiExecutor.execute(() -> {
 	        node.addToIncidents(New);   // ObservableMap mutation
 	    });
 		node.addToRunningIncident(New);
-		
-		// Service requirement base of incident type and EmergencyLevel
+		return New;
+	}
+	
+	/**
+	 * Service requirement base of incident type and EmergencyLevel
+	 * @param incidentType 1 fire, 2 injury / attack, anything else police only
+	 * @param level severity of the incident
+	 * @return Map of service type to number of services required
+	 */
+	public static Map<String, Integer> requiredServices(int incidentType, int level) {
 		Map<String, Integer> requestedServices = new HashMap<>();
-		if (EmergencyLevel >= 9) {
+		if (level >= 9) {
 			
 			// Police 5
 			requestedServices.put(Police.Type, 5);
@@ -138,7 +864,7 @@ public class Environment {
 			}
 			
 		}
-		else if(EmergencyLevel >= 7) {
+		else if(level >= 7) {
 			
 			// Police 4
 			requestedServices.put(Police.Type, 4);
@@ -153,7 +879,7 @@ public class Environment {
 			}
 			
 		}
-		else if(EmergencyLevel >= 5) {
+		else if(level >= 5) {
 			// Police 3
 			
 			requestedServices.put(Police.Type, 3);
@@ -168,7 +894,7 @@ public class Environment {
 			}
 			
 		}
-		else if(EmergencyLevel >= 3) {
+		else if(level >= 3) {
 			
 			// police 2
 			requestedServices.put(Police.Type, 2);
@@ -198,187 +924,227 @@ public class Environment {
 			}
 			
 		}
-		this.SearchForServices(requestedServices, New);
-		
+		return requestedServices;
 	}
 	
 	/**
 	 * Used to recalculate the total distance from node 1 to end node
 	 * input: endNode<x-node1<y+x-node2
 	 * right now the starting holds the total distance to travel 
-	 * the algorithm flips it and makes the end node the total distance to travel
-	 * and recalculates the total distance from curr node to each node in the path
+	 * the view makes the end node the total distance to travel
+	 * and the distance from curr node to each node in the path
 	 * 
-	 * @param node linkedlist to recalculate the distance
-	 * @return recalculated distance 
+	 * @param route route to recalculate the distance
+	 * @return view of the route with recalculated distance 
 	 */
-	public NeighbourNode flipStartPos(NeighbourNode node) {
-		ArrayList<NeighbourNode> ls = new ArrayList<>();
-		ArrayList<Float> ds = new ArrayList<>();
-		
-		while (node != null) {
-			//[n1,n2,n2,n3,dest
-			ls.add(new NeighbourNode(node));
-			//[ 43,33,22,11,0]
-			ds.add(node.getDist());
-			node = node.getParent();
-		}
-		
-		for (int i = 0; i < ls.size() - 1; i++) {
-	        ls.get(i).setParent(ls.get(i + 1));
-	    }
-	    ls.get(ls.size() - 1).setParent(null);
-		
-		// start from the end 
-		float prev = 0;
-		for (int i = 1; i < (ls.size()); i++) {
-			NeighbourNode n = ls.get(i);
-			float x = ds.get(i);
-			float y = ds.get(i-1);
-			float newDist = y - x + prev;
-			prev = newDist;
-			n.setDist(newDist);
-		}
-		
-		NeighbourNode head = ls.get(0); 
-		head.setDist(0);
-		return head;
+	public Route flipStartPos(Route route) {
+		return route.fromStart();
 	}
 	
 	/**
 	 * Flips the path
 	 * input: start<-node1<-node2<-end
 	 * output: start->node1->node2->end
-	 * @param node  linked list to flip 
-	 * @return
-	 */
-	public NeighbourNode flipPath(NeighbourNode node) {
-		NeighbourNode head = new NeighbourNode(node);
-		NeighbourNode ptr = new NeighbourNode(head.getParent());
-		head.setParent(null);
-		while (ptr != null ) {
-			NeighbourNode nxt = ptr.getParent();
-			ptr.setParent(head);
-			head = ptr;
-			ptr = nxt;
-		}
-		return head;
-		
+	 * @param route route to flip 
+	 * @return reversed view of the route
+	 */
+	public Route flipPath(Route route) {
+		return route.reversed();
 	}
 	
 	/**
-	 * Allocates the needed services, to the incident node at node, mentioned in map s 
-	 * @param s Map of services required to number of services
-	 * @param node the current node
+	 * Allocates the needed services, to the incident node, from the services at a settled node of the search
+	 * the path is only built when a service at the node can actually be allocated
+	 * @param s Map of services required to number of services, types that are fully served are removed
+	 * @param ctx search context that has settled the node
+	 * @param settled dense index of the settled node
 	 * @param incident incident used to know the incident location and store the information about dispatched services
 	 * @return returns the Map s after updating the number of more required services
 	 */
-	public Map<String, Integer> DispatchServices(Map<String, Integer> s, NeighbourNode node, Incident incident) {
-		
-		Map<String, Map<Integer, Service>> mainMap = new HashMap<>(node.getNode().getServices());
-		for (String st: mainMap.keySet()) {
-			mainMap.put(st, new HashMap<>(mainMap.get(st)));
-		}
-		
-		for (String key : s.keySet()) {
+	public Map<String, Integer> DispatchServices(Map<String, Integer> s, SearchContext ctx, int settled, Incident incident) {
+		Node node = ctx.getGraph().nodeAt(settled);
+		Route route = null;
+		Iterator<Map.Entry<String, Integer>> required = s.entrySet().iterator();
+		while (required.hasNext()) {
+			Map.Entry<String, Integer> entry = required.next();
 			// checks if the node has the services
-			
-				if (mainMap.containsKey(key)) {
-					Map<Integer, Service> services = mainMap.get(key);
-					// get the map of type of incident
-					Iterator<Integer> it = services.keySet().iterator();
-					
-					while (it.hasNext() && s.get(key) > 0){
-						Service curr = services.get(it.next()); 
-						if (curr.available) {
-							
-							curr.allocate(flipStartPos(node), incident.getIncidentLevel());
-							
-							incident.addToDispatchList(key, curr.getID());
-							it.remove();
-							s.put(key, s.get(key)-1);
-						}
-						
+			Map<Integer, Service> services = node.getServices().get(entry.getKey());
+			int num = entry.getValue();
+			if (services != null) {
+				for (Service curr: services.values()) {
+					if (num <= 0) break;
+					// claimed atomically so a concurrent dispatch can't take the same unit
+					if (!curr.tryReserve()) continue;
+					if (route == null) {
+						route = flipStartPos(ctx.routeTo(settled));
 					}
+					curr.allocate(route, incident.getIncidentLevel());
+					this.assign(incident, curr);
+					num--;
 				}
+			}
+			if (num <= 0) {
+				required.remove();
+			}
+			else {
+				entry.setValue(num);
+			}
 		}
-
-			
-		
 		return s;
 	}
 	
+	/**
+	 * returns the search context of the calling thread bound to the current road graph
+	 * @return the search context
+	 */
+	private SearchContext searchContext() {
+		SearchContext ctx = this.searchContexts.get();
+		ctx.prepare(this.getGraph());
+		return ctx;
+	}
 	
 	/**
-	 * 
-	 * @param s
-	 * @param incident
+	 * Searches outward from the incident node in order of distance and dispatches the closest
+	 * available services until every requested service is allocated or no node is left
+	 * @param s Map of services required to number of services
+	 * @param incident the incident to dispatch to
 	 */
 	public void SearchForServices(Map<String, Integer> s, Incident incident) {
-		// check if the node itself has the services needed
-		// iterating through the list of services that are needed
-		Node n = incident.getNode();
+		DistanceOracle o = this.oracle;
+		ContractionHierarchy ch = this.hierarchy;
+		NearestUnitIndex idx = this.unitIndex;
+		int target = this.getGraph().indexOf(incident.getNode());
+		if (idx != null && target >= 0) {
+			this.nearestDispatch(s, incident, idx, target);
+			if (s.isEmpty()) return;
+		}
+		if (o != null && target >= 0) {
+			this.rankedDispatch(s, incident, v -> o.distance(v, target));
+		}
+		else if (ch != null && target >= 0) {
+			float[] d = ch.distancesTo(target, this.rankings.get().toTarget(this.getGraph().size()));
+			this.rankedDispatch(s, incident, v -> d[v]);
+		}
+		// anything that could not be ranked or routed falls through to the search
+		if (s.isEmpty()) return;
+		SearchContext ctx = this.searchContext();
+		int source = ctx.getGraph().indexOf(incident.getNode());
+		if (source < 0) return;
 		
-
-		PriorityQueue<NeighbourNode> hp = new PriorityQueue<>(
-				(a, b) -> Float.compare(a.getDist(), b.getDist())
-				);
-		s = this.DispatchServices(s, new NeighbourNode(n, 0), incident);	
-		if (!s.isEmpty()) {
-			PriorityQueue<NeighbourNode> heap = this.makeDuplicate(new NeighbourNode(n, 0), hp);
-			NeighbourNode node = heap.poll();
-			HashSet<Integer> visited = new HashSet<>();
-			visited.add(n.getID());
-			while (!s.isEmpty() && node != null) {
-				if (!node.getOpen()) {
-					node = heap.poll();
-					continue;
-				}
-				if (!visited.contains(node.getNode().getID())) {
-					visited.add(node.getNode().getID());
-					s = this.DispatchServices(s, node, incident);
-					if(s.isEmpty()) {
-						break;
-					}
-					
-					this.makeDuplicate(node, heap);
+		// the incident node itself is the first node to be settled
+		ctx.start(source);
+		int settled;
+		while (!s.isEmpty() && (settled = ctx.next()) >= 0) {
+			this.DispatchServices(s, ctx, settled, incident);
+		}
+	}
+	
+	/**
+	 * Dispatches the closest available services using the nearest unit index:
+	 * the closest unit of each requested type is looked up and sent along the path stored in the index.
+	 * allocating it makes it unavailable which repairs the index, so the next lookup gives the next closest
+	 * @param s Map of services required to number of services, types that are fully served are removed
+	 * @param incident the incident to dispatch to
+	 * @param idx the index
+	 * @param target dense index of the incident node
+	 */
+	private void nearestDispatch(Map<String, Integer> s, Incident incident, NearestUnitIndex idx, int target) {
+		Iterator<Map.Entry<String, Integer>> required = s.entrySet().iterator();
+		while (required.hasNext()) {
+			Map.Entry<String, Integer> entry = required.next();
+			int num = entry.getValue();
+			while (num > 0) {
+				Route route = idx.routeTo(entry.getKey(), target);
+				if (route == null) break;
+				Service curr;
+				// another dispatch can take the unit first, then try the next one at the node
+				while ((curr = availableAt(route.start(), entry.getKey())) != null && !curr.tryReserve()) {
+					// lost the claim
 				}
-				node = heap.poll();
+				// the index can be a step behind a unit that is changing right now, the search picks it up
+				if (curr == null) break;
+				curr.allocate(route, incident.getIncidentLevel());
+				this.assign(incident, curr);
+				num--;
+			}
+			if (num <= 0) {
+				required.remove();
+			}
+			else {
+				entry.setValue(num);
 			}
-			
 		}
-		
-
-		return;
-		
-	};
-	/**
-	 * makes a duplicate of the neighbour node and pushesh it into a heap
-	 * @param start parent node whose neighbours are to be passed to the heap 
-	 * @param heap heap too push the nodes to 
-	 * @return priority queue heap 
-	 */
-	private PriorityQueue<NeighbourNode> makeDuplicate(NeighbourNode start, PriorityQueue<NeighbourNode> heap) {
-		NeighbourNode parent = new NeighbourNode(start);
-		// add the copy to the heap with increased distance 
-		for (NeighbourNode i:  new PriorityQueue<>(parent.getNode().getNeighbour())) {
-			// makes sure the closed road is avoided
-			if (i.getOpen() == true) {
-				float dist = i.getDist()+parent.getDist();
-				Node n = i.getNode();
-				// if the road is congested then the distance is assumed to be 1.1 times the original
-				if (i.getCongested()) {
-					dist *= 1.1;
-				}
-				NeighbourNode y = new NeighbourNode(n, dist);
-				y.setParent(parent);
-				heap.add(y);
+	}
+	
+	/**
+	 * @param node node to look at
+	 * @param type service type
+	 * @return an available service of the type at the node with the lowest id, or null
+	 */
+	private static Service availableAt(Node node, String type) {
+		Map<Integer, Service> services = node.getServices().get(type);
+		if (services == null) return null;
+		Service best = null;
+		for (Service curr: services.values()) {
+			if (curr.getAvailability() && (best == null || curr.getID() < best.getID())) best = curr;
+		}
+		return best;
+	}
+	
+	/**
+	 * Dispatches the closest available services without searching outward:
+	 * every available service of a requested type is ranked by its distance to the incident
+	 * and the closest ones are sent along the route from route()
+	 * @param s Map of services required to number of services, types that are fully served are removed
+	 * @param incident the incident to dispatch to
+	 * @param distanceToIncident distance from a dense node index to the incident node
+	 */
+	private void rankedDispatch(Map<String, Integer> s, Incident incident, IntToDoubleFunction distanceToIncident) {
+		RoadGraph g = this.getGraph();
+		UnitRanking ranking = this.rankings.get();
+		ranking.clear();
+		for (Service curr: this.services.values()) {
+			if (!curr.getAvailability() || !s.containsKey(curr.getServiceType())) continue;
+			int from = g.indexOf(curr.getPlace());
+			if (from < 0) continue;
+			double d = distanceToIncident.applyAsDouble(from);
+			if (d == Double.POSITIVE_INFINITY) continue;
+			ranking.add(curr, d);
+		}
+		// only as many candidates are taken off the ranking as get sent
+		Service curr;
+		while ((curr = ranking.poll()) != null) {
+			Integer num = s.get(curr.getServiceType());
+			if (num == null) continue;
+			// another dispatch took it since the ranking, the next candidate is the retry.
+			// claimed before routing so a lost claim doesn't cost a route search
+			if (!curr.tryReserve()) continue;
+			Route route = this.route(curr.getPlace(), incident.getNode());
+			if (route == null) {
+				curr.setAvailable();
+				continue;
+			}
+			curr.allocate(route, incident.getIncidentLevel());
+			this.assign(incident, curr);
+			if (num <= 1) {
+				s.remove(curr.getServiceType());
+				if (s.isEmpty()) break;
+			}
+			else {
+				s.put(curr.getServiceType(), num - 1);
 			}
 		}
-		return heap;
+		ranking.clear();
 	}
 	
 	public void incidentDelt(Incident inc) {
+		Journal j = this.journal;
+		if (j != null) {
+			j.dealt(inc);
+		}
+		for (IncidentListener l: this.incidentListeners) {
+			l.dealt(inc);
+		}
 		inc.getNode().removeRunningIncident(inc);
 		Map<String, ArrayList<Integer>> dsList = inc.getDispatchList();
 		for (String s: dsList.keySet()) {
@@ -430,23 +1196,18 @@ public class Environment {
 		}
 		
 
-		// A deep copy of the neighbouring node priority queue
-		PriorityQueue<NeighbourNode> hp = new PriorityQueue<>(
-				(a, b) -> Float.compare(a.getDist(), b.getDist())
-				);
-		PriorityQueue<NeighbourNode> queue = makeDuplicate(new NeighbourNode(node, 0), hp);
-		// HashSet to keep track of the visited nodes
-		HashSet<Integer> visited = new HashSet<>();
-		// loop should end wither when all the services are allocated or when the queue is empty
-		while (!queue.isEmpty() && !services.isEmpty()) {
-			// pull a node from the queue 
-			NeighbourNode node1 = queue.poll();
-			// check if its already in the visited list
-			if (visited.contains(node1.getNode().getID())) continue;
-			// add to visisted
-			visited.add(node1.getNode().getID());
+		SearchContext ctx = this.searchContext();
+		int source = ctx.getGraph().indexOf(node);
+		if (source < 0) return;
+		ctx.start(source);
+		// the incident node itself is skipped, its needs were taken out above
+		ctx.next();
+		int settled;
+		// loop should end wither when all the services are allocated or when every node is settled
+		while (!services.isEmpty() && (settled = ctx.next()) >= 0) {
 			// get the needed services 
-			Map<String, Integer> req = node1.getNode().getNeededServices();
+			Map<String, Integer> req = ctx.getGraph().nodeAt(settled).getNeededServices();
+			Route route = null;
 			// loop through the Map of list of services
 			for (String s: req.keySet()) {
 					Map<Integer, Service> serv = services.get(s);
@@ -458,7 +1219,10 @@ public class Environment {
 						int key = iter.next();
 						Service curr = serv.get(key);
 						if (!curr.getAvailability()) continue;
-						curr.reallocate(flipPath(node1));
+						if (route == null) {
+							route = flipPath(ctx.routeTo(settled));
+						}
+						curr.reallocate(route);
 						iter.remove();
 						// decrement the req.get(s) by 1
 						num --;
@@ -468,9 +1232,6 @@ public class Environment {
 						services.remove(s);
 					}
 				}
-			// add the neighbour of current node and point the node1 to the new nodes
-			this.makeDuplicate(node1, queue);
-			
 		}
 
 	}
@@ -0,0 +1,104 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import util.nodes.Borough;
+import util.nodes.Node;
+import util.nodes.CustomDSA.GraphFile;
+import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.RoadGraph;
+
+/**
+ * Loads the boroughs and roads from the CSV files into an Environment.
+ *
+ * <p>
+ * Every location becomes a Borough with three units of each service type, every
+ * row of the neighbour file becomes a road in both directions. Shared by the
+ * JavaFX app and the headless runner. The CSV files are read by CsvImporter.
+ * </p>
+ *
+ * <p>
+ * A compiled GraphFile loads the same way, but the roads come from the mapped
+ * file and the environment routes on the mapping.
+ * </p>
+ */
+
+public class EnvironmentLoader {
+	private EnvironmentLoader() {
+	}
+
+	/**
+	 * loads both files and builds the road graph, on as many threads as there are cores.
+	 * roads naming an unknown location are skipped and printed
+	 * @param env environment to fill
+	 * @param locations csv with a header and one location name per line
+	 * @param neighbours csv with a header and location,location,distance per line
+	 */
+	public static void load(Environment env, String locations, String neighbours) {
+		try {
+			CsvImporter.Report r = new CsvImporter(Runtime.getRuntime().availableProcessors())
+					.load(env, Paths.get(locations), Paths.get(neighbours));
+			for (String skipped: r.getSkippedRows()) {
+				Log.warn(Log.Category.LOADING, skipped);
+			}
+		} catch (IOException e) {
+			Log.error(Log.Category.LOADING, e.getMessage());
+			env.buildGraph();
+		}
+	}
+
+	/**
+	 * loads a compiled graph file. the roads are read from the mapping and the
+	 * environment routes on the mapped graph instead of building its own
+	 * @param env environment to fill
+	 * @param graph the mapped graph file
+	 */
+	public static void load(Environment env, GraphFile graph) {
+		RoadGraph g = graph.getGraph();
+		Node[] nodes = new Node[g.size()];
+		for (int v = 0; v < nodes.length; v++) {
+			nodes[v] = addBorough(env, graph.nodeId(v), graph.name(v));
+		}
+		for (int v = 0; v < nodes.length; v++) {
+			for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+				NeighbourNode n = new NeighbourNode(nodes[g.target(e)], g.weight(e));
+				nodes[v].addNeighbor(n);
+				n.bind(g, e);
+			}
+		}
+		g.bindNodes(nodes);
+		env.setGraph(g);
+	}
+
+	/**
+	 * loads a compiled graph file
+	 * @param env environment to fill
+	 * @param graph path of the graph file
+	 * @throws IOException if the file can't be mapped
+	 */
+	public static void load(Environment env, String graph) throws IOException {
+		load(env, GraphFile.map(Paths.get(graph)));
+	}
+
+	/**
+	 * adds a borough with three units of each service type
+	 * @return the borough
+	 */
+	private static Borough addBorough(Environment env, int id, String name) {
+		Borough New = new Borough(id, name);
+		for (int j = 0; j<3; j++) {
+			Police p = new Police(New, env.getNewServiceId());
+			env.addService(p);
+			FireTruck f = new FireTruck(New, env.getNewServiceId());
+			env.addService(f);
+			Ambulance a = new Ambulance(New, env.getNewServiceId());
+			env.addService(a);
+			New.addService(a);
+			New.addService(p);
+			New.addService(f);
+		}
+		env.addNode(id, New);
+		return New;
+	}
+}
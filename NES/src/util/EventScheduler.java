@@ -0,0 +1,254 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Discrete-event core for moving services.
+ *
+ * <p>
+ * Instead of running every service every tick, each service with a path has
+ * one event in a heap keyed by the tick it reaches its next node. Running the
+ * events of a tick advances each of those services by the whole time since it
+ * last moved, speed * ticks, passing as many nodes as that covers, and pushes
+ * the event for its next node. Idle services and the ticks between two nodes
+ * cost nothing, the work per simulated second scales with the number of nodes
+ * passed.
+ * </p>
+ *
+ * <p>
+ * A new path (allocate, reallocate, setPath) schedules the service through
+ * ServiceListener.pathChanged. Each event remembers the path version it was
+ * made for and is dropped if the service got another path since.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * The heap is synchronized on the scheduler, paths may be set from any thread.
+ * Events are run by the thread calling runDue().
+ * </p>
+ */
+
+public class EventScheduler implements ServiceListener {
+	private final Environment env;
+	/** binary heap ordered by due tick, then by sequence so equal ticks run in schedule order **/
+	private long[] due = new long[64];
+	private long[] seq = new long[64];
+	private Service[] service = new Service[64];
+	private int[] version = new int[64];
+	/** tick the service was last advanced to **/
+	private long[] since = new long[64];
+	private int size = 0;
+	private long nextSeq = 0;
+	/** path version each service has an event for, so a path is never scheduled twice **/
+	private final Map<Service, Integer> scheduled = new HashMap<>();
+
+	/**
+	 * @param env the environment, its tick is the clock of the events
+	 */
+	public EventScheduler(Environment env) {
+		this.env = env;
+	}
+
+	/**
+	 * starts scheduling a service and schedules the path it has now
+	 * @param s the service
+	 */
+	public void add(Service s) {
+		s.addListener(this);
+		this.schedule(s, this.env.getTick() - 1);
+	}
+
+	/**
+	 * stops scheduling the services
+	 * @param services the services that were scheduled
+	 */
+	public void close(Iterable<Service> services) {
+		for (Service s: services) {
+			s.removeListener(this);
+		}
+		synchronized(this) {
+			Arrays.fill(this.service, 0, this.size, null);
+			this.size = 0;
+			this.scheduled.clear();
+		}
+	}
+
+	/**
+	 * moves every scheduled service up to the last tick run and schedules them all again from there,
+	 * the way add() schedules the services of a fresh scheduler. until its event runs a service's
+	 * distance travelled is where it was when it last passed a node, after this it is where it really is,
+	 * e.g. for a checkpoint
+	 * @param services the services that are scheduled
+	 */
+	public void settle(Iterable<Service> services) {
+		long tick = this.env.getTick() - 1;
+		Service[] s;
+		int[] v;
+		long[] from;
+		int n;
+		synchronized(this) {
+			n = this.size;
+			s = Arrays.copyOf(this.service, n);
+			v = Arrays.copyOf(this.version, n);
+			from = Arrays.copyOf(this.since, n);
+			Arrays.fill(this.service, 0, n, null);
+			this.size = 0;
+			this.scheduled.clear();
+		}
+		for (int i = 0; i < n; i++) {
+			int current;
+			synchronized(s[i]) {
+				current = s[i].pathVersion;
+			}
+			// events not due yet are short of the next node, so this passes none
+			if (current == v[i] && from[i] < tick) s[i].advance((tick - from[i]) * s[i].getSpeed());
+		}
+		for (Service x: services) {
+			this.schedule(x, tick);
+		}
+	}
+
+	@Override
+	public void pathChanged(Service s) {
+		// the first tick that has not run the services yet is the first the new path moves in
+		this.schedule(s, this.env.getTick() - 1);
+	}
+
+	/**
+	 * @return number of events waiting
+	 */
+	public int size() {
+		synchronized(this) {
+			return this.size;
+		}
+	}
+
+	/**
+	 * @return tick of the earliest event or Long.MAX_VALUE if there is none
+	 */
+	public long nextDue() {
+		synchronized(this) {
+			return this.size == 0 ? Long.MAX_VALUE : this.due[0];
+		}
+	}
+
+	/**
+	 * runs every event due at or before tick
+	 * @param tick the current tick
+	 * @return number of events run
+	 */
+	public int runDue(long tick) {
+		int count = 0;
+		while (true) {
+			Service s;
+			int v;
+			long from;
+			synchronized(this) {
+				if (this.size == 0 || this.due[0] > tick) return count;
+				s = this.service[0];
+				v = this.version[0];
+				from = this.since[0];
+				this.pop();
+			}
+			count++;
+			int current;
+			synchronized(s) {
+				current = s.pathVersion;
+			}
+			// the service got another path, that path has its own event
+			if (current != v) continue;
+			s.advance((tick - from) * s.getSpeed());
+			this.next(s, v, tick);
+		}
+	}
+
+	/** schedules the path s has now, unless it already has an event **/
+	private void schedule(Service s, long since) {
+		int v;
+		synchronized(s) {
+			v = s.pathVersion;
+		}
+		synchronized(this) {
+			Integer has = this.scheduled.get(s);
+			if (has != null && has == v) return;
+			this.scheduled.put(s, v);
+		}
+		this.next(s, v, since);
+	}
+
+	/** pushes the event for the next node of path version v, or forgets s if it is done **/
+	private void next(Service s, int v, long since) {
+		int ticks = s.ticksToNextHop();
+		synchronized(this) {
+			if (ticks < 0) {
+				this.scheduled.remove(s, v);
+				return;
+			}
+			this.scheduled.put(s, v);
+			this.push(since + ticks, s, v, since);
+		}
+	}
+
+	private void push(long at, Service s, int v, long from) {
+		if (this.size == this.due.length) {
+			int n = this.size * 2;
+			this.due = Arrays.copyOf(this.due, n);
+			this.seq = Arrays.copyOf(this.seq, n);
+			this.service = Arrays.copyOf(this.service, n);
+			this.version = Arrays.copyOf(this.version, n);
+			this.since = Arrays.copyOf(this.since, n);
+		}
+		long q = this.nextSeq++;
+		int p = this.size++;
+		while (p > 0) {
+			int parent = (p - 1) >> 1;
+			if (!this.before(at, q, parent)) break;
+			this.move(parent, p);
+			p = parent;
+		}
+		this.set(p, at, q, s, v, from);
+	}
+
+	private void pop() {
+		int last = --this.size;
+		long at = this.due[last];
+		long q = this.seq[last];
+		Service s = this.service[last];
+		int v = this.version[last];
+		long from = this.since[last];
+		this.service[last] = null;
+		if (last == 0) return;
+		int p = 0;
+		while (true) {
+			int child = 2 * p + 1;
+			if (child >= last) break;
+			if (child + 1 < last && this.before(this.due[child + 1], this.seq[child + 1], child)) child++;
+			if (!this.earlier(this.due[child], this.seq[child], at, q)) break;
+			this.move(child, p);
+			p = child;
+		}
+		this.set(p, at, q, s, v, from);
+	}
+
+	private boolean before(long at, long q, int slot) {
+		return this.earlier(at, q, this.due[slot], this.seq[slot]);
+	}
+
+	private boolean earlier(long at, long q, long otherAt, long otherQ) {
+		return at < otherAt || (at == otherAt && q < otherQ);
+	}
+
+	private void move(int from, int to) {
+		this.set(to, this.due[from], this.seq[from], this.service[from], this.version[from], this.since[from]);
+	}
+
+	private void set(int p, long at, long q, Service s, int v, long from) {
+		this.due[p] = at;
+		this.seq[p] = q;
+		this.service[p] = s;
+		this.version[p] = v;
+		this.since[p] = from;
+	}
+}
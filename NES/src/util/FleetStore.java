@@ -0,0 +1,234 @@
+package util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import util.nodes.Node;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+
+/**
+ * Struct of arrays store for the moving state of the fleet.
+ *
+ * <p>
+ * Every attached service gets a dense row and its state lives in parallel arrays
+ * instead of its own fields: the node it is at as a dense graph index, the distance
+ * travelled on its path, its speed, a status byte, its route and the position on it.
+ * The service objects stay as views, their getters and setters read and write their row.
+ * </p>
+ *
+ * <p>
+ * tick() moves the whole fleet by walking the arrays front to back. A row only goes
+ * through its service when it reaches the next node of its path, otherwise the
+ * update is one add and one compare on floats that sit next to each other in memory.
+ * nextHop caches the distance of the next node on the path so the loop never touches
+ * the Route. Rows are given out in the order the services are attached, which is the
+ * order EVERY_SERVICE runs them in, so both modes give the same result.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * The rows belong to the thread updating the environment. tick() and Service.advance
+ * write them without a lock, and the dispatches that give a unit a new route run
+ * inside update() or between two updates, never while the fleet moves, so no two
+ * threads write a row at once. A service's lock only gives readers on other threads
+ * a consistent route, hop and place. The status bytes are the exception: they are
+ * only changed with atomic bitwise updates, so concurrent dispatches can claim the
+ * AVAILABLE bit of a row. tick(), attach() and detachAll() run on the thread
+ * updating the environment.
+ * </p>
+ */
+
+public class FleetStore {
+	/** status bit, the unit is available **/
+	public static final byte AVAILABLE = 1;
+	/** status bit, the unit has a route **/
+	public static final byte MOVING = 2;
+
+	private static final VarHandle STATUS = MethodHandles.arrayElementVarHandle(byte[].class);
+
+	private final RoadGraph graph;
+	private int size = 0;
+
+	/** dense graph index of the node each unit is at **/
+	private int[] node;
+	/** distance travelled on the route **/
+	private float[] progress;
+	private float[] speed;
+	/** AVAILABLE and MOVING bits **/
+	private byte[] status;
+	/** position on the route of the node the unit is at **/
+	private int[] hop;
+	/** distance of the next node on the route, -infinity at the end so the next tick arrives **/
+	private float[] nextHop;
+	private Route[] route;
+	/** the service each row belongs to **/
+	private Service[] views;
+
+	/**
+	 * @param graph the road graph the units are on
+	 * @param capacity number of rows to make room for up front
+	 */
+	public FleetStore(RoadGraph graph, int capacity) {
+		this.graph = graph;
+		int c = Math.max(16, capacity);
+		this.node = new int[c];
+		this.progress = new float[c];
+		this.speed = new float[c];
+		this.status = new byte[c];
+		this.hop = new int[c];
+		this.nextHop = new float[c];
+		this.route = new Route[c];
+		this.views = new Service[c];
+	}
+
+	/**
+	 * gives the service the next row and moves its state there
+	 * @param s the service, its node must be part of the graph
+	 */
+	public void attach(Service s) {
+		if (s.store != null) throw new IllegalStateException("service " + s.getID() + " is already in a store");
+		if (this.graph.indexOf(s.getPlace()) < 0) {
+			throw new IllegalArgumentException("service " + s.getID() + " is not on the road graph");
+		}
+		if (this.size == this.views.length) this.grow();
+		int row = this.size++;
+		this.views[row] = s;
+		s.attach(this, row);
+	}
+
+	/**
+	 * @param n a node
+	 * @return true if the node is on the graph of the store, so a service there can be attached
+	 */
+	public boolean covers(Node n) {
+		return this.graph.indexOf(n) >= 0;
+	}
+
+	/**
+	 * copies the state of every row back into its service, the store is empty afterwards
+	 */
+	public void detachAll() {
+		for (int i = 0; i < this.size; i++) {
+			this.views[i].detach();
+			this.views[i] = null;
+			this.route[i] = null;
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * @return number of rows in use
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * moves every unit with a route by its speed
+	 */
+	public void tick() {
+		int n = this.size;
+		byte[] status = this.status;
+		float[] progress = this.progress;
+		float[] speed = this.speed;
+		float[] nextHop = this.nextHop;
+		for (int i = 0; i < n; i++) {
+			if ((status[i] & MOVING) == 0) continue;
+			float p = progress[i] + speed[i];
+			if (p < nextHop[i]) {
+				progress[i] = p;
+			}
+			else {
+				// reaches a node: moving between nodes, printing and listeners are the service's job
+				this.views[i].advance(speed[i], null);
+			}
+		}
+	}
+
+	void write(int row, Node place, Route r, int h, float travelled, float v, boolean available) {
+		this.node[row] = this.graph.indexOf(place);
+		this.speed[row] = v;
+		this.progress[row] = travelled;
+		this.status[row] = available ? AVAILABLE : 0;
+		this.route[row] = r;
+		this.hop[row] = h;
+		this.refresh(row);
+	}
+
+	Node place(int row) {
+		return this.graph.nodeAt(this.node[row]);
+	}
+
+	void setPlace(int row, Node n) {
+		int v = this.graph.indexOf(n);
+		if (v < 0) throw new IllegalArgumentException("node " + n.getID() + " is not on the road graph");
+		this.node[row] = v;
+	}
+
+	Route route(int row) {
+		return this.route[row];
+	}
+
+	void setRoute(int row, Route r) {
+		this.route[row] = r;
+		this.refresh(row);
+	}
+
+	int hop(int row) {
+		return this.hop[row];
+	}
+
+	void setHop(int row, int h) {
+		this.hop[row] = h;
+		this.refresh(row);
+	}
+
+	float travelled(int row) {
+		return this.progress[row];
+	}
+
+	void setTravelled(int row, float d) {
+		this.progress[row] = d;
+	}
+
+	float speed(int row) {
+		return this.speed[row];
+	}
+
+	boolean isAvailable(int row) {
+		return ((byte) STATUS.getVolatile(this.status, row) & AVAILABLE) != 0;
+	}
+
+	/** sets or clears the AVAILABLE bit atomically and returns whether it was set **/
+	boolean swapAvailable(int row, boolean a) {
+		byte was = a ? (byte) STATUS.getAndBitwiseOr(this.status, row, AVAILABLE)
+				: (byte) STATUS.getAndBitwiseAnd(this.status, row, (byte) ~AVAILABLE);
+		return (was & AVAILABLE) != 0;
+	}
+
+	/** keeps the MOVING bit and nextHop in step with the route and hop **/
+	private void refresh(int row) {
+		Route r = this.route[row];
+		if (r == null) {
+			STATUS.getAndBitwiseAnd(this.status, row, (byte) ~MOVING);
+			return;
+		}
+		STATUS.getAndBitwiseOr(this.status, row, MOVING);
+		int h = this.hop[row];
+		this.nextHop[row] = h < r.size() - 1 ? r.distAt(h + 1) : Float.NEGATIVE_INFINITY;
+	}
+
+	private void grow() {
+		int c = this.views.length * 2;
+		this.node = Arrays.copyOf(this.node, c);
+		this.progress = Arrays.copyOf(this.progress, c);
+		this.speed = Arrays.copyOf(this.speed, c);
+		this.status = Arrays.copyOf(this.status, c);
+		this.hop = Arrays.copyOf(this.hop, c);
+		this.nextHop = Arrays.copyOf(this.nextHop, c);
+		this.route = Arrays.copyOf(this.route, c);
+		this.views = Arrays.copyOf(this.views, c);
+	}
+}
@@ -105,6 +105,14 @@ public class Incident {
 		return this.incidentLevel;
 	}
 
+	/**
+	 * 
+	 * @return incident type, 1 fire, 2 injury / attack, anything else police only
+	 */
+	public int getIncidentType() {
+		return this.incidentType;
+	}
+
 	/**
 	 * 
 	 * @return incident type in string form
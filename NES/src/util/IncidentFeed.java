@@ -0,0 +1,184 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import util.nodes.Node;
+
+/**
+ * Plays an IncidentSource into an environment as the simulated time passes.
+ *
+ * <p>
+ * Subscribed to a SimulationEngine with the DIRECT executor it runs on the tick
+ * thread after every tick: every incident reported up to the simulated time is
+ * made with MakeRequest, and every incident whose duration is over is closed
+ * with incidentDelt. An incident without a known duration stays open until the
+ * source closes it, when the simulated time reaches the close. Incidents at node
+ * ids the environment doesn't have are skipped and counted.
+ * </p>
+ */
+
+public class IncidentFeed implements SimulationEngine.TickListener {
+	/** an incident made by the feed and when to close it **/
+	private static final class Open {
+		final long closeAt;
+		final Incident incident;
+
+		Open(long closeAt, Incident incident) {
+			this.closeAt = closeAt;
+			this.incident = incident;
+		}
+	}
+
+	private final Environment env;
+	private final IncidentSource src;
+	private final PriorityQueue<Open> open = new PriorityQueue<>((a, b) -> Long.compare(a.closeAt, b.closeAt));
+	/** made incidents without a duration, by their number in the source, until it closes them **/
+	private final Map<Long, Incident> unclosed = new HashMap<>();
+	/** incidents the source has given so far, skipped ones included **/
+	private long incidents = 0;
+	/** the source is at an incident not made yet **/
+	private boolean pending = false;
+	private boolean exhausted = false;
+	private long made = 0;
+	private long closed = 0;
+	private long skipped = 0;
+
+	/**
+	 * @param env the environment to make the incidents in
+	 * @param src the incidents
+	 */
+	public IncidentFeed(Environment env, IncidentSource src) {
+		this.env = env;
+		this.src = src;
+	}
+
+	/**
+	 * subscribes the feed to the engine, on the tick thread
+	 * @param engine the engine running the environment
+	 */
+	public void attach(SimulationEngine engine) {
+		engine.subscribe(this, SimulationEngine.DIRECT);
+	}
+
+	@Override
+	public void ticked(long tick, long simulatedNanos) {
+		try {
+			this.feedUntil(simulatedNanos);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * the next incident to make or close, so the engine doesn't skip past it
+	 */
+	@Override
+	public long nextEventNanos() {
+		long next = Long.MAX_VALUE;
+		if (!this.exhausted) {
+			// before the first tick the source hasn't been looked at yet
+			next = this.pending ? this.src.getTime() : 0;
+		}
+		if (!this.open.isEmpty()) next = Math.min(next, this.open.peek().closeAt);
+		return next;
+	}
+
+	/**
+	 * makes the incidents reported and closes the ones dealt with up to a time
+	 * @param nanos simulated nanoseconds
+	 * @throws IOException if the source can't be read
+	 */
+	public void feedUntil(long nanos) throws IOException {
+		while (!this.exhausted) {
+			if (!this.pending) {
+				if (!this.src.next()) {
+					this.exhausted = true;
+					break;
+				}
+				this.pending = true;
+			}
+			long t = this.src.getTime();
+			if (t > nanos) break;
+			this.pending = false;
+			long k = this.src.getClosedIncident();
+			if (k >= 0) {
+				Incident inc = this.unclosed.remove(k);
+				if (inc != null) {
+					this.env.incidentDelt(inc);
+					this.closed++;
+				}
+			}
+			else this.make(t);
+		}
+		while (!this.open.isEmpty() && this.open.peek().closeAt <= nanos) {
+			this.env.incidentDelt(this.open.poll().incident);
+			this.closed++;
+		}
+	}
+
+	private void make(long t) {
+		long k = this.incidents++;
+		Node n = this.env.getNodes().get(this.src.getNodeId());
+		if (n == null) {
+			this.skipped++;
+			return;
+		}
+		long d0 = System.nanoTime();
+		Incident inc = this.env.MakeRequest(this.src.getIncidentType(), this.src.getLevel(), n);
+		long d1 = System.nanoTime();
+		this.made++;
+		this.made(t, inc, d1 - d0);
+		long d = this.src.getDuration();
+		if (d >= 0) this.open.add(new Open(t + d, inc));
+		else this.unclosed.put(k, inc);
+	}
+
+	/**
+	 * called for every incident made, does nothing here
+	 * @param time simulated nanoseconds it was reported at
+	 * @param inc the incident MakeRequest made
+	 * @param dispatchNanos wall nanoseconds MakeRequest took
+	 */
+	protected void made(long time, Incident inc, long dispatchNanos) {
+	}
+
+	/**
+	 * @return incidents made
+	 */
+	public long getMade() {
+		return this.made;
+	}
+
+	/**
+	 * @return incidents closed
+	 */
+	public long getClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * @return incidents skipped for a node the environment doesn't have
+	 */
+	public long getSkipped() {
+		return this.skipped;
+	}
+
+	/**
+	 * @return incidents made and not closed yet
+	 */
+	public int getOpen() {
+		return this.open.size() + this.unclosed.size();
+	}
+
+	/**
+	 * @return true once the source has no more incidents
+	 */
+	public boolean isExhausted() {
+		return this.exhausted;
+	}
+}
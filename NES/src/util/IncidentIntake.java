@@ -0,0 +1,200 @@
+package util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import util.nodes.Node;
+
+/**
+ * Bounded queue of incident requests between any number of submitting threads
+ * and the one thread that updates the Environment.
+ *
+ * <p>
+ * The queue is a ring of slots, each with a sequence number (a bounded
+ * multi-producer queue in the style of Vyukov's). A producer claims the next
+ * slot with one compare and set on the tail, writes the request and publishes
+ * it by moving the slot's sequence on. The consumer reads the slots in order
+ * without any atomic read-modify-write and hands each one back by moving its
+ * sequence on by a lap. No locks are taken on either side.
+ * </p>
+ *
+ * <p>
+ * Every request comes with a CompletableFuture that is completed with the
+ * incident once it has been dispatched, on the thread draining the queue, so
+ * dependent work should use the async variants to leave that thread alone.
+ * When the ring is full submit() waits for room and trySubmit() gives back a
+ * future failed with a RejectedExecutionException.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * submit() and trySubmit() can be called from any thread, drain() from one
+ * thread at a time only.
+ * </p>
+ */
+
+public class IncidentIntake {
+	/** one queued request **/
+	public static final class Request {
+		private final int incidentType;
+		private final int level;
+		private final Node node;
+		private final CompletableFuture<Incident> result = new CompletableFuture<>();
+
+		private Request(int incidentType, int level, Node node) {
+			this.incidentType = incidentType;
+			this.level = level;
+			this.node = node;
+		}
+
+		/**
+		 * @return 1 fire, 2 injury / attack, anything else police only
+		 */
+		public int getIncidentType() {
+			return this.incidentType;
+		}
+
+		/**
+		 * @return severity of the incident
+		 */
+		public int getLevel() {
+			return this.level;
+		}
+
+		/**
+		 * @return the node the incident is at
+		 */
+		public Node getNode() {
+			return this.node;
+		}
+
+		/**
+		 * @return completed with the incident once it is dispatched
+		 */
+		public CompletableFuture<Incident> getResult() {
+			return this.result;
+		}
+	}
+
+	private final Request[] slots;
+	/** sequence[i] == position: slot free for that position, position + 1: holds it **/
+	private final AtomicLongArray sequence;
+	private final int mask;
+	/** next position to claim **/
+	private final AtomicLong tail = new AtomicLong();
+	/** next position to read, only touched by the consumer **/
+	private volatile long head = 0;
+
+	/**
+	 * @param capacity number of requests that can wait, rounded up to a power of two
+	 */
+	public IncidentIntake(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		int c = Integer.highestOneBit(capacity);
+		if (c < capacity) c <<= 1;
+		this.slots = new Request[c];
+		this.sequence = new AtomicLongArray(c);
+		this.mask = c - 1;
+		for (int i = 0; i < c; i++) {
+			this.sequence.set(i, i);
+		}
+	}
+
+	/**
+	 * queues a request, waiting for room while the ring is full
+	 * @param incidentType 1 fire, 2 injury / attack, anything else police only
+	 * @param level severity of the incident
+	 * @param node the node the incident is at
+	 * @return completed with the incident once it is dispatched
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	public CompletableFuture<Incident> submit(int incidentType, int level, Node node) throws InterruptedException {
+		Request r = new Request(incidentType, level, node);
+		int spins = 0;
+		while (!this.offer(r)) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			// spin a little, then back off up to a millisecond
+			if (spins < 64) Thread.onSpinWait();
+			else LockSupport.parkNanos(Math.min(1_000_000L, 1_000L << Math.min(10, spins - 64)));
+			spins++;
+		}
+		return r.result;
+	}
+
+	/**
+	 * queues a request unless the ring is full, never waits. meant for threads that must not block,
+	 * e.g. the FX thread, while the engine thread drains the queue at the start of every tick
+	 * @param incidentType 1 fire, 2 injury / attack, anything else police only
+	 * @param level severity of the incident
+	 * @param node the node the incident is at
+	 * @return completed with the incident once it is dispatched, or failed with a RejectedExecutionException if full
+	 */
+	public CompletableFuture<Incident> trySubmit(int incidentType, int level, Node node) {
+		Request r = new Request(incidentType, level, node);
+		if (!this.offer(r)) {
+			r.result.completeExceptionally(new RejectedExecutionException("incident intake is full"));
+		}
+		return r.result;
+	}
+
+	private boolean offer(Request r) {
+		while (true) {
+			long t = this.tail.get();
+			int i = (int) (t & this.mask);
+			long diff = this.sequence.get(i) - t;
+			if (diff == 0) {
+				if (this.tail.compareAndSet(t, t + 1)) {
+					this.slots[i] = r;
+					// publishes the slot write to the consumer
+					this.sequence.set(i, t + 1);
+					return true;
+				}
+			}
+			else if (diff < 0) {
+				// the consumer has not freed the slot from the previous lap
+				return false;
+			}
+			// else another producer took t, read the tail again
+		}
+	}
+
+	/**
+	 * hands the queued requests to the handler in the order they were claimed
+	 * @param handler called for every request, on the calling thread
+	 * @param max most requests to take, the rest stays for the next drain
+	 * @return number of requests taken
+	 */
+	public int drain(Consumer<Request> handler, int max) {
+		int taken = 0;
+		while (taken < max) {
+			long h = this.head;
+			int i = (int) (h & this.mask);
+			if (this.sequence.get(i) != h + 1) break;
+			Request r = this.slots[i];
+			this.slots[i] = null;
+			this.sequence.set(i, h + this.slots.length);
+			this.head = h + 1;
+			taken++;
+			handler.accept(r);
+		}
+		return taken;
+	}
+
+	/**
+	 * @return number of requests waiting, a snapshot when producers are active
+	 */
+	public int size() {
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/**
+	 * @return number of requests that fit in the ring
+	 */
+	public int capacity() {
+		return this.slots.length;
+	}
+}
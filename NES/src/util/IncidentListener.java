@@ -0,0 +1,26 @@
+package util;
+
+/**
+ * Gets told when an incident is opened by MakeRequest or dealt with by
+ * incidentDelt. Every method does nothing by default.
+ *
+ * <p>
+ * Calls come from whichever thread made or closed the incident. opened() is
+ * called before the units are searched for, dealt() before they are released.
+ * Incidents read back from a journal are not reported.
+ * </p>
+ */
+
+public interface IncidentListener {
+	/**
+	 * @param incident the new incident
+	 */
+	default void opened(Incident incident) {
+	}
+
+	/**
+	 * @param incident the incident that was dealt with
+	 */
+	default void dealt(Incident incident) {
+	}
+}
@@ -0,0 +1,109 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the incidents of a live run to a trace file for replay.
+ *
+ * <p>
+ * Every incident is written with the engine's simulated time as soon as it is
+ * opened, and closed by a record of its own once it is dealt with, so an incident
+ * that stays open for long holds nothing else back. The file is flushed after
+ * every tick something was written in, a run that crashes loses the incidents of
+ * the tick it crashed in at most. Incidents still open when the recorder is closed
+ * are left open in the trace.
+ * </p>
+ */
+
+public class IncidentRecorder implements IncidentListener, SimulationEngine.TickListener, AutoCloseable {
+	private final Environment env;
+	private final SimulationEngine engine;
+	private final IncidentTrace.Writer out;
+	/** record numbers of the open incidents, by incident id **/
+	private final Map<Integer, Long> open = new HashMap<>();
+	/** written to since the last flush **/
+	private boolean dirty = false;
+
+	/**
+	 * starts recording the incidents of the engine's environment
+	 * @param engine the engine, its simulated time stamps the incidents
+	 * @param file the trace file to make
+	 * @throws IOException if the file can't be made
+	 */
+	public IncidentRecorder(SimulationEngine engine, Path file) throws IOException {
+		this.env = engine.getEnvironment();
+		this.engine = engine;
+		this.out = IncidentTrace.create(file);
+		this.env.addIncidentListener(this);
+		engine.subscribe(this, SimulationEngine.DIRECT);
+	}
+
+	@Override
+	public void opened(Incident inc) {
+		synchronized(this) {
+			try {
+				long record = this.out.write(this.engine.getSimulatedNanos(), inc.getNodeId(), inc.getIncidentType(), inc.getIncidentLevel(), -1);
+				this.open.put(inc.getId(), record);
+				this.dirty = true;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	@Override
+	public void dealt(Incident inc) {
+		synchronized(this) {
+			Long record = this.open.remove(inc.getId());
+			if (record == null) return;
+			try {
+				this.out.dealt(record, this.engine.getSimulatedNanos());
+				this.dirty = true;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	@Override
+	public void ticked(long tick, long simulatedNanos) {
+		synchronized(this) {
+			if (!this.dirty) return;
+			try {
+				this.out.flush();
+				this.dirty = false;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * @return incidents written to the file so far
+	 */
+	public long getCount() {
+		synchronized(this) {
+			return this.out.getCount();
+		}
+	}
+
+	/**
+	 * stops recording and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		this.env.removeIncidentListener(this);
+		this.engine.unsubscribe(this);
+		synchronized(this) {
+			this.open.clear();
+			this.out.close();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * A stream of incidents in time order, read like a cursor: next() moves to the
+ * following entry and the getters describe it until the next call.
+ *
+ * <p>
+ * An entry is an incident, or the close of an earlier incident whose duration
+ * wasn't known when it was reported. A close only has a time and the number of
+ * the incident it closes, incidents are numbered from 0 in the order of the
+ * stream. Entries of both kinds are in time order together.
+ * </p>
+ *
+ * <p>
+ * Times are simulated nanoseconds from the start of the run, the same clock as
+ * SimulationEngine.getSimulatedNanos(). Nodes are given by node id so a stream
+ * can be played against any environment loaded from the same city.
+ * </p>
+ */
+
+public interface IncidentSource {
+	/**
+	 * moves to the next entry
+	 * @return false when there are no more
+	 * @throws IOException if the incidents are read from a file that can't be read
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * @return simulated nanoseconds at which the incident is reported, or at which a close closes it
+	 */
+	long getTime();
+
+	/**
+	 * @return id of the node the incident is at
+	 */
+	int getNodeId();
+
+	/**
+	 * @return 1 fire, 2 injury / attack, 3 police
+	 */
+	int getIncidentType();
+
+	/**
+	 * @return severity, 1 to 10
+	 */
+	int getLevel();
+
+	/**
+	 * @return simulated nanoseconds from the report until the incident is dealt with, negative if not known
+	 */
+	long getDuration();
+
+	/**
+	 * @return number of the incident this entry closes, -1 if the entry is an incident
+	 */
+	default long getClosedIncident() {
+		return -1;
+	}
+}
@@ -0,0 +1,296 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A file of incidents in time order, gzip compressed and read as a stream so it never has to fit in memory.
+ *
+ * <p>
+ * After the header (magic, version) come records in simulated time order, each starting with a 1 byte mark:
+ * <ul>
+ *     <li>1, an incident - 8 bytes simulated nanoseconds it was reported at, 4 bytes node id,
+ *     1 byte type, 1 byte level, 8 bytes simulated nanoseconds until it was dealt with,
+ *     negative if not known when it was written</li>
+ *     <li>2, an incident dealt with - 8 bytes number of its incident record counted from 0,
+ *     8 bytes simulated nanoseconds it was dealt with at</li>
+ *     <li>0, the end of the file</li>
+ * </ul>
+ * An incident recorded from a live run is written when it is reported and a record
+ * of its own closes it when it is dealt with, so neither the writer nor the reader
+ * has to hold anything back while an incident is open. The reader hands both out
+ * as they come, a close as an entry whose getClosedIncident() is the number of the
+ * incident.
+ * </p>
+ *
+ * <p>
+ * flush() pushes everything written so far to the file as a complete piece of the
+ * gzip stream. A file cut short, by a crash say, is read up to the last record
+ * before the cut, so a crash only loses what was written after the last flush().
+ * Version 1 files, with incident records only, can still be read.
+ * </p>
+ */
+
+public final class IncidentTrace {
+	public static final int MAGIC = 0x4E455354; // "NEST"
+	public static final int VERSION = 2;
+	private static final int RECORD = 1;
+	private static final int DEALT = 2;
+	private static final int END = 0;
+	private static final int BUFFER = 1 << 16;
+
+	private IncidentTrace() {
+	}
+
+	/**
+	 * Appends incidents to a new trace file.
+	 */
+	public static final class Writer implements AutoCloseable {
+		private final DataOutputStream out;
+		private long last = Long.MIN_VALUE;
+		private long count = 0;
+
+		private Writer(Path file) throws IOException {
+			// sync flush, so flush() leaves a file that can be read up to there
+			this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file), BUFFER, true), BUFFER));
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.flush();
+		}
+
+		/**
+		 * @param time simulated nanoseconds the incident was reported at, not before the last record written
+		 * @param nodeId id of its node
+		 * @param type incident type
+		 * @param level incident level
+		 * @param duration simulated nanoseconds until it was dealt with, negative if not known yet
+		 * @return number of the incident in the file, counted from 0, to give dealt()
+		 * @throws IOException if the file can't be written
+		 */
+		public long write(long time, int nodeId, int type, int level, long duration) throws IOException {
+			this.advance(time);
+			this.out.writeByte(RECORD);
+			this.out.writeLong(time);
+			this.out.writeInt(nodeId);
+			this.out.writeByte(type);
+			this.out.writeByte(level);
+			this.out.writeLong(duration);
+			return this.count++;
+		}
+
+		/**
+		 * closes an incident written without a duration
+		 * @param incident number write() returned for it
+		 * @param time simulated nanoseconds it was dealt with at, not before the last record written
+		 * @throws IOException if the file can't be written
+		 */
+		public void dealt(long incident, long time) throws IOException {
+			if (incident < 0 || incident >= this.count) throw new IllegalArgumentException("no incident " + incident + " written");
+			this.advance(time);
+			this.out.writeByte(DEALT);
+			this.out.writeLong(incident);
+			this.out.writeLong(time);
+		}
+
+		private void advance(long time) {
+			if (time < this.last) throw new IllegalArgumentException("records out of order: " + time + " after " + this.last);
+			this.last = time;
+		}
+
+		/**
+		 * writes the current entry of a source, an incident or the close of one
+		 * @param src the source
+		 * @throws IOException if the file can't be written
+		 */
+		public void write(IncidentSource src) throws IOException {
+			if (src.getClosedIncident() >= 0) this.dealt(src.getClosedIncident(), src.getTime());
+			else this.write(src.getTime(), src.getNodeId(), src.getIncidentType(), src.getLevel(), src.getDuration());
+		}
+
+		/**
+		 * pushes the records written so far to the file, where a reader finds them even if
+		 * the writer is never closed
+		 * @throws IOException if the file can't be written
+		 */
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		/**
+		 * @return incidents written
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		/**
+		 * writes the end mark and closes the file
+		 */
+		@Override
+		public void close() throws IOException {
+			this.out.writeByte(END);
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Reads a trace file back as an IncidentSource.
+	 */
+	public static final class Reader implements IncidentSource, AutoCloseable {
+		private final Path file;
+		/** null for a file cut short in its header **/
+		private final DataInputStream in;
+		private final int version;
+		private boolean done = false;
+		private boolean truncated = false;
+		private long time;
+		private int nodeId;
+		private int type;
+		private int level;
+		private long duration;
+		private long closed = -1;
+
+		private Reader(Path file) throws IOException {
+			this.file = file;
+			InputStream raw = Files.newInputStream(file);
+			DataInputStream data = null;
+			int version = 0;
+			try {
+				data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw, BUFFER), BUFFER));
+				if (data.readInt() != MAGIC) throw new IOException(file + " is not an incident trace");
+				version = data.readInt();
+				if (version != 1 && version != VERSION) throw new IOException(file + " has trace version " + version + ", expected " + VERSION);
+			}
+			catch (EOFException e) {
+				// cut short before the header was flushed, a trace without incidents
+				raw.close();
+				data = null;
+				this.done = this.truncated = true;
+			}
+			catch (IOException e) {
+				raw.close();
+				throw e;
+			}
+			this.in = data;
+			this.version = version;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (this.done) return false;
+			try {
+				int mark = this.in.read();
+				if (mark == RECORD) {
+					this.time = this.in.readLong();
+					this.nodeId = this.in.readInt();
+					this.type = this.in.readByte();
+					this.level = this.in.readByte();
+					this.duration = this.in.readLong();
+					this.closed = -1;
+					return true;
+				}
+				if (mark == DEALT && this.version > 1) {
+					this.closed = this.in.readLong();
+					this.time = this.in.readLong();
+					this.duration = -1;
+					return true;
+				}
+				this.done = true;
+				if (mark < 0) this.truncated = true;
+				else if (mark != END) throw new IOException(this.file + ": bad record mark " + mark);
+				return false;
+			}
+			catch (EOFException e) {
+				// cut short in the middle of a record, or after the last flush
+				this.done = this.truncated = true;
+				return false;
+			}
+		}
+
+		/**
+		 * @return true if the file ended without its end mark, e.g. the run writing it crashed.
+		 * known once next() returned false
+		 */
+		public boolean isTruncated() {
+			return this.truncated;
+		}
+
+		@Override
+		public long getTime() {
+			return this.time;
+		}
+
+		@Override
+		public int getNodeId() {
+			return this.nodeId;
+		}
+
+		@Override
+		public int getIncidentType() {
+			return this.type;
+		}
+
+		@Override
+		public int getLevel() {
+			return this.level;
+		}
+
+		@Override
+		public long getDuration() {
+			return this.duration;
+		}
+
+		@Override
+		public long getClosedIncident() {
+			return this.closed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.in != null) this.in.close();
+		}
+	}
+
+	/**
+	 * @param file the trace file to make, replaced if it exists
+	 * @return a writer at the first record
+	 * @throws IOException if the file can't be made
+	 */
+	public static Writer create(Path file) throws IOException {
+		return new Writer(file);
+	}
+
+	/**
+	 * @param file the trace file
+	 * @return a reader before the first record
+	 * @throws IOException if the file can't be read or is not a trace
+	 */
+	public static Reader open(Path file) throws IOException {
+		return new Reader(file);
+	}
+
+	/**
+	 * writes every entry of a source to a new trace file
+	 * @param src the source, read to its end
+	 * @param file the trace file to make
+	 * @return incidents written
+	 * @throws IOException if the source or the file fails
+	 */
+	public static long write(IncidentSource src, Path file) throws IOException {
+		try (Writer w = create(file)) {
+			while (src.next()) {
+				w.write(src);
+			}
+			return w.getCount();
+		}
+	}
+}
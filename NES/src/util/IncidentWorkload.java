@@ -0,0 +1,427 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import util.nodes.CustomDSA.RoadGraph;
+
+/**
+ * Generates a synthetic stream of incidents for load tests of Environment.MakeRequest.
+ *
+ * <p>
+ * Every node reports incidents as a Poisson process of its own rate, set per node
+ * or as one rate for the whole city spread evenly. On top of that:
+ * <ul>
+ *     <li>a daily profile multiplies all rates by a factor for every hour of the simulated day, time 0 being
+ *     midnight, e.g. TYPICAL_DAY with quiet nights and busy evenings. arrival times are drawn exactly for the
+ *     piecewise constant rate, no events are thrown away</li>
+ *     <li>excitation makes the process self exciting (Hawkes): every incident starts on average branching
+ *     follow ups of the same type at the same node, each after an exponential delay. with a branching
+ *     ratio below 1 the bursts die out and the long run rate is the base rate / (1 - branching)</li>
+ * </ul>
+ * Types are drawn from the type mix (1 fire, 2 injury / attack, 3 police), levels 1 to 10 from the level
+ * weights, and the time on scene is exponential around its mean.
+ * </p>
+ *
+ * <p>
+ * The stream is cheap: a node is drawn from an alias table in constant time and pending follow ups wait
+ * in a binary heap of primitive arrays, so generating an incident doesn't allocate and millions of
+ * incidents per simulated hour are no problem. The same seed and settings give the same stream. The
+ * settings are fixed once next() has been called.
+ * </p>
+ */
+
+public class IncidentWorkload implements IncidentSource {
+	public static final long HOUR = 3_600_000_000_000L;
+
+	/** relative incident rate of every hour of the day, quiet nights, a morning rise and a peak in the evening **/
+	public static final double[] TYPICAL_DAY = {
+		0.6, 0.5, 0.4, 0.35, 0.3, 0.35, 0.5, 0.7, 0.9, 1.0, 1.0, 1.05,
+		1.1, 1.1, 1.1, 1.15, 1.2, 1.3, 1.4, 1.5, 1.5, 1.3, 1.0, 0.8
+	};
+
+	private final int[] nodeIds;
+	private final long seed;
+	private double perHour = 3600;
+	private double[] nodeRates;
+	private double[] profile;
+	private double branching = 0;
+	private double delaySeconds = 0;
+	private double[] typeMix = {0.2, 0.5, 0.3};
+	private double[] levelWeights = {20, 16, 13, 11, 9, 7, 5, 3, 2, 1};
+	private double onSceneSeconds = 900;
+	private long end = Long.MAX_VALUE;
+
+	/** set up on the first call of next() **/
+	private Random random;
+	private double[] aliasProb;
+	private int[] alias;
+	private double ratePerNano;
+	private double[] typeCdf;
+	private double[] levelCdf;
+	private double noChildren;
+	private long nextRoot;
+
+	/** follow ups not reported yet, a min heap on time **/
+	private long[] heapTime = new long[16];
+	private int[] heapNode = new int[16];
+	private byte[] heapType = new byte[16];
+	private int heapSize = 0;
+
+	/** the current incident **/
+	private long time;
+	private int node;
+	private int type;
+	private int level;
+	private long duration;
+	private long count = 0;
+
+	/**
+	 * @param nodeIds ids of the nodes incidents can happen at
+	 * @param seed random seed, the same seed gives the same stream
+	 */
+	public IncidentWorkload(int[] nodeIds, long seed) {
+		if (nodeIds.length == 0) throw new IllegalArgumentException("no nodes to put incidents at");
+		this.nodeIds = nodeIds.clone();
+		this.seed = seed;
+	}
+
+	/**
+	 * incidents at every node of the environment's road graph
+	 * @param env the environment
+	 * @param seed random seed, the same seed gives the same stream
+	 */
+	public IncidentWorkload(Environment env, long seed) {
+		this(ids(env.getGraph()), seed);
+	}
+
+	private static int[] ids(RoadGraph g) {
+		int[] ids = new int[g.size()];
+		for (int v = 0; v < ids.length; v++) {
+			ids[v] = g.nodeAt(v).getID();
+		}
+		return ids;
+	}
+
+	private void settable() {
+		if (this.random != null) throw new IllegalStateException("the workload has already started");
+	}
+
+	/**
+	 * spreads one rate evenly over the nodes, replaces the node rates
+	 * @param perHour incidents per simulated hour in the whole city, before the daily profile
+	 */
+	public void setRate(double perHour) {
+		this.settable();
+		if (!(perHour >= 0)) throw new IllegalArgumentException("rate must not be negative: " + perHour);
+		this.perHour = perHour;
+		this.nodeRates = null;
+	}
+
+	/**
+	 * @param perHour incidents per simulated hour at every node, in the order of the node ids
+	 */
+	public void setNodeRates(double[] perHour) {
+		this.settable();
+		if (perHour.length != this.nodeIds.length) throw new IllegalArgumentException("one rate per node: " + perHour.length + " for " + this.nodeIds.length);
+		double total = 0;
+		for (double r: perHour) {
+			if (!(r >= 0)) throw new IllegalArgumentException("rate must not be negative: " + r);
+			total += r;
+		}
+		this.perHour = total;
+		this.nodeRates = perHour.clone();
+	}
+
+	/**
+	 * @param hourly 24 factors the rates are multiplied with in every hour of the day, null for a constant rate
+	 */
+	public void setDailyProfile(double[] hourly) {
+		this.settable();
+		if (hourly == null) {
+			this.profile = null;
+			return;
+		}
+		if (hourly.length != 24) throw new IllegalArgumentException("a factor for each of the 24 hours: " + hourly.length);
+		boolean any = false;
+		for (double f: hourly) {
+			if (!(f >= 0)) throw new IllegalArgumentException("factor must not be negative: " + f);
+			any |= f > 0;
+		}
+		if (!any) throw new IllegalArgumentException("at least one hour must have incidents");
+		this.profile = hourly.clone();
+	}
+
+	/**
+	 * makes the process self exciting
+	 * @param branching mean number of follow ups of every incident, 0 to 1, 0 for none
+	 * @param delaySeconds mean simulated seconds from an incident to each of its follow ups
+	 */
+	public void setExcitation(double branching, double delaySeconds) {
+		this.settable();
+		if (!(branching >= 0 && branching < 1)) throw new IllegalArgumentException("branching must be in [0, 1): " + branching);
+		if (branching > 0 && !(delaySeconds > 0)) throw new IllegalArgumentException("delay must be positive: " + delaySeconds);
+		this.branching = branching;
+		this.delaySeconds = delaySeconds;
+	}
+
+	/**
+	 * @param fire relative share of fires
+	 * @param injury relative share of injuries and attacks
+	 * @param police relative share of police incidents
+	 */
+	public void setTypeMix(double fire, double injury, double police) {
+		this.settable();
+		this.typeMix = new double[] {fire, injury, police};
+		cdf(this.typeMix);
+	}
+
+	/**
+	 * @param weights relative weights of the levels 1 to 10
+	 */
+	public void setLevelWeights(double[] weights) {
+		this.settable();
+		if (weights.length != 10) throw new IllegalArgumentException("a weight for each of the 10 levels: " + weights.length);
+		this.levelWeights = weights.clone();
+		cdf(this.levelWeights);
+	}
+
+	/**
+	 * @param meanSeconds mean simulated seconds an incident takes to deal with, 0 to leave the duration unknown
+	 */
+	public void setOnScene(double meanSeconds) {
+		this.settable();
+		if (!(meanSeconds >= 0)) throw new IllegalArgumentException("time on scene must not be negative: " + meanSeconds);
+		this.onSceneSeconds = meanSeconds;
+	}
+
+	/**
+	 * @param nanos simulated time the stream ends at, incidents after it are not reported
+	 */
+	public void setEnd(long nanos) {
+		this.settable();
+		this.end = nanos;
+	}
+
+	/**
+	 * @return mean incidents per simulated hour in the long run, over a whole day
+	 */
+	public double getMeanRate() {
+		double f = 1;
+		if (this.profile != null) {
+			f = 0;
+			for (double x: this.profile) {
+				f += x / 24;
+			}
+		}
+		return this.perHour * f / (1 - this.branching);
+	}
+
+	/**
+	 * @return incidents reported so far
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/** cumulative sums scaled to end at 1 **/
+	private static double[] cdf(double[] weights) {
+		double total = 0;
+		for (double w: weights) {
+			if (!(w >= 0)) throw new IllegalArgumentException("weight must not be negative: " + w);
+			total += w;
+		}
+		if (!(total > 0)) throw new IllegalArgumentException("weights must not all be 0");
+		double[] c = new double[weights.length];
+		double s = 0;
+		for (int i = 0; i < c.length; i++) {
+			s += weights[i];
+			c[i] = s / total;
+		}
+		c[c.length - 1] = 1;
+		return c;
+	}
+
+	private static int draw(double[] cdf, double u) {
+		int i = 0;
+		while (i < cdf.length - 1 && u >= cdf[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	private void start() {
+		this.random = new Random(this.seed);
+		this.typeCdf = cdf(this.typeMix);
+		this.levelCdf = cdf(this.levelWeights);
+		this.ratePerNano = this.perHour / HOUR;
+		this.noChildren = Math.exp(-this.branching);
+		if (this.nodeRates != null && this.perHour > 0) {
+			this.buildAlias(this.nodeRates);
+		}
+		this.nextRoot = this.perHour > 0 ? this.after(0) : Long.MAX_VALUE;
+	}
+
+	/** Vose's alias table, a node in constant time whatever the rates **/
+	private void buildAlias(double[] rates) {
+		int n = rates.length;
+		this.aliasProb = new double[n];
+		this.alias = new int[n];
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int ns = 0;
+		int nl = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = rates[i] * n / this.perHour;
+			if (scaled[i] < 1) small[ns++] = i;
+			else large[nl++] = i;
+		}
+		while (ns > 0 && nl > 0) {
+			int s = small[--ns];
+			int l = large[--nl];
+			this.aliasProb[s] = scaled[s];
+			this.alias[s] = l;
+			scaled[l] = scaled[l] + scaled[s] - 1;
+			if (scaled[l] < 1) small[ns++] = l;
+			else large[nl++] = l;
+		}
+		while (nl > 0) {
+			this.aliasProb[large[--nl]] = 1;
+		}
+		while (ns > 0) {
+			// only left over through rounding
+			this.aliasProb[small[--ns]] = 1;
+		}
+	}
+
+	private int drawNode() {
+		int i = this.random.nextInt(this.nodeIds.length);
+		if (this.alias == null || this.random.nextDouble() < this.aliasProb[i]) return i;
+		return this.alias[i];
+	}
+
+	private double exponential() {
+		return -Math.log(1 - this.random.nextDouble());
+	}
+
+	/** time of the next incident of the base process after t **/
+	private long after(long t) {
+		double e = this.exponential();
+		if (this.profile == null) return clamp(t + e / this.ratePerNano);
+		// walk the hours using up e of the integrated rate
+		while (true) {
+			long hourEnd = (t / HOUR + 1) * HOUR;
+			double rate = this.ratePerNano * this.profile[(int) (t / HOUR % 24)];
+			double mass = rate * (hourEnd - t);
+			if (e < mass) return clamp(t + e / rate);
+			e -= mass;
+			t = hourEnd;
+			if (t >= this.end) return Long.MAX_VALUE;
+		}
+	}
+
+	private static long clamp(double t) {
+		return t >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) t;
+	}
+
+	private void push(long t, int v, int type) {
+		if (this.heapSize == this.heapTime.length) {
+			int cap = this.heapSize * 2;
+			this.heapTime = Arrays.copyOf(this.heapTime, cap);
+			this.heapNode = Arrays.copyOf(this.heapNode, cap);
+			this.heapType = Arrays.copyOf(this.heapType, cap);
+		}
+		int i = this.heapSize++;
+		while (i > 0) {
+			int p = (i - 1) >>> 1;
+			if (this.heapTime[p] <= t) break;
+			this.heapTime[i] = this.heapTime[p];
+			this.heapNode[i] = this.heapNode[p];
+			this.heapType[i] = this.heapType[p];
+			i = p;
+		}
+		this.heapTime[i] = t;
+		this.heapNode[i] = v;
+		this.heapType[i] = (byte) type;
+	}
+
+	/** removes the top of the heap, after it has been read **/
+	private void pop() {
+		int n = --this.heapSize;
+		long t = this.heapTime[n];
+		int v = this.heapNode[n];
+		byte type = this.heapType[n];
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= n) break;
+			if (c + 1 < n && this.heapTime[c + 1] < this.heapTime[c]) c++;
+			if (this.heapTime[c] >= t) break;
+			this.heapTime[i] = this.heapTime[c];
+			this.heapNode[i] = this.heapNode[c];
+			this.heapType[i] = this.heapType[c];
+			i = c;
+		}
+		this.heapTime[i] = t;
+		this.heapNode[i] = v;
+		this.heapType[i] = type;
+	}
+
+	@Override
+	public boolean next() {
+		if (this.random == null) this.start();
+		long child = this.heapSize > 0 ? this.heapTime[0] : Long.MAX_VALUE;
+		if (Math.min(child, this.nextRoot) > this.end || Math.min(child, this.nextRoot) == Long.MAX_VALUE) return false;
+		if (this.nextRoot <= child) {
+			this.time = this.nextRoot;
+			this.node = this.drawNode();
+			this.type = 1 + draw(this.typeCdf, this.random.nextDouble());
+			this.nextRoot = this.after(this.nextRoot);
+		}
+		else {
+			this.time = child;
+			this.node = this.heapNode[0];
+			this.type = this.heapType[0];
+			this.pop();
+		}
+		this.level = 1 + draw(this.levelCdf, this.random.nextDouble());
+		this.duration = this.onSceneSeconds > 0 ? clamp(this.exponential() * this.onSceneSeconds * 1e9) : -1;
+		if (this.branching > 0) {
+			// Poisson number of follow ups, by multiplying uniforms
+			double p = this.random.nextDouble();
+			while (p > this.noChildren) {
+				long t = clamp(this.time + this.exponential() * this.delaySeconds * 1e9);
+				if (t <= this.end) this.push(t, this.node, this.type);
+				p *= this.random.nextDouble();
+			}
+		}
+		this.count++;
+		return true;
+	}
+
+	@Override
+	public long getTime() {
+		return this.time;
+	}
+
+	@Override
+	public int getNodeId() {
+		return this.nodeIds[this.node];
+	}
+
+	@Override
+	public int getIncidentType() {
+		return this.type;
+	}
+
+	@Override
+	public int getLevel() {
+		return this.level;
+	}
+
+	@Override
+	public long getDuration() {
+		return this.duration;
+	}
+}
@@ -0,0 +1,504 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import util.nodes.Node;
+import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+
+/**
+ * Append-only binary journal of everything that changes the state of an Environment,
+ * replayed on startup to rebuild it.
+ *
+ * <p>
+ * Records:
+ * <ul>
+ *     <li>INCIDENT - id, node id, type, level, written by MakeRequest</li>
+ *     <li>DISPATCH - incident id, service id, a unit added to a dispatch list</li>
+ *     <li>DEALT - incident id, written by incidentDelt</li>
+ *     <li>PATH - service id, incident level, route as node ids and distances, empty for no route</li>
+ *     <li>MOVE - service id, node id, a unit reached a node of its route</li>
+ *     <li>AVAILABLE - service id, availability</li>
+ *     <li>ROAD - from node id, to node id, open and congested flags</li>
+ *     <li>RECALC - no fields, every node recalculated the services it requires</li>
+ * </ul>
+ * Services, roads and the incidents are recorded as they happen, so replay applies
+ * the outcome of every dispatch instead of running the searches again. A unit comes
+ * back at the last node it reached.
+ * </p>
+ *
+ * <p>
+ * The file is a list of memory mapped segments of SEGMENT_SIZE bytes. A record is
+ * one type byte followed by its fields, the type byte is written last so a record
+ * cut short by a crash reads as the end of the journal. A record never crosses a
+ * segment, the rest of a segment that is too full is marked SKIP. Appends only copy
+ * into the mapping; a flusher thread forces the new bytes to disk every
+ * COMMIT_INTERVAL_NANOS as one group commit, so the tick never waits for the disk.
+ * sync() waits for the commit that covers everything appended so far.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Appends can come from any thread and are synchronized on the journal.
+ * </p>
+ */
+
+public class Journal implements ServiceListener, RoadGraph.EdgeListener, AutoCloseable {
+	public static final int MAGIC = 0x4E45534A; // "NESJ"
+	public static final int VERSION = 1;
+	public static final int SEGMENT_SIZE = 64 << 20;
+	public static final long COMMIT_INTERVAL_NANOS = 5_000_000L;
+
+	static final byte END = 0;
+	static final byte INCIDENT = 1;
+	static final byte DISPATCH = 2;
+	static final byte DEALT = 3;
+	static final byte PATH = 4;
+	static final byte MOVE = 5;
+	static final byte AVAILABLE = 6;
+	static final byte ROAD = 7;
+	static final byte SKIP = 8;
+	static final byte RECALC = 9;
+
+	/** bytes in front of the first record **/
+	private static final int HEADER = 8;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final Environment env;
+	/** the segment being appended to and the position in it **/
+	private MappedByteBuffer current;
+	private int position;
+	/** bytes appended and bytes forced to disk, as offsets in the file **/
+	private long written;
+	private long committed;
+	private final Thread flusher;
+	private volatile boolean closed = false;
+	/** records applied by the replay on open **/
+	private long replayed = 0;
+
+	private Journal(Path file, Environment env) throws IOException {
+		this.file = file;
+		this.env = env;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.flusher = new Thread(this::flushLoop, "journal-flusher");
+		this.flusher.setDaemon(true);
+	}
+
+	/**
+	 * replays the journal into the environment if the file exists, then appends to it.
+	 * the environment must already hold the nodes, roads and services it was recorded on
+	 * @param file the journal file
+	 * @param env the environment
+	 * @return the open journal, call Environment.setJournal with it to start recording
+	 * @throws IOException if the file can't be read or mapped
+	 */
+	public static Journal open(Path file, Environment env) throws IOException {
+		return open(file, env, 0);
+	}
+
+	/**
+	 * replays the journal from an offset, e.g. the one of a checkpoint the environment was restored from,
+	 * then appends to it
+	 * @param file the journal file
+	 * @param env the environment
+	 * @param from offset of the first record to replay, 0 for all of them
+	 * @return the open journal, call Environment.setJournal with it to start recording
+	 * @throws IOException if the file can't be read or mapped
+	 */
+	public static Journal open(Path file, Environment env, long from) throws IOException {
+		Journal j = new Journal(file, env);
+		try {
+			j.mapExisting();
+			j.replay(Math.max(HEADER, from));
+		} catch (IOException | RuntimeException e) {
+			j.channel.close();
+			throw e;
+		}
+		j.flusher.start();
+		return j;
+	}
+
+	/**
+	 * @return number of records the replay on open applied
+	 */
+	public long getReplayedCount() {
+		return this.replayed;
+	}
+
+	/**
+	 * @return the journal file
+	 */
+	public Path getFile() {
+		return this.file;
+	}
+
+	private void mapExisting() throws IOException {
+		long size = this.channel.size();
+		int count = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		for (int i = 0; i < count; i++) {
+			this.segments.add(this.map(i));
+		}
+		MappedByteBuffer first = this.segments.get(0);
+		int magic = first.getInt(0);
+		if (magic == 0) {
+			first.putInt(0, MAGIC);
+			first.putInt(4, VERSION);
+			first.force(0, HEADER);
+		}
+		else if (magic != MAGIC) {
+			throw new IOException(this.file + " is not a journal");
+		}
+		else if (first.getInt(4) != VERSION) {
+			throw new IOException(this.file + " is journal version " + first.getInt(4) + ", expected " + VERSION);
+		}
+	}
+
+	private MappedByteBuffer map(int segment) throws IOException {
+		return this.channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * SEGMENT_SIZE, SEGMENT_SIZE);
+	}
+
+	/** applies every record from the offset and leaves the append position after the last one **/
+	private void replay(long offset) {
+		Map<Integer, Node> nodes = this.env.getNodes();
+		Map<Integer, Service> services = this.env.getServices();
+		Map<Integer, Incident> incidents = this.env.getIncidents();
+		RoadGraph g = this.env.getGraph();
+		long events = 0;
+		int first = (int) (offset / SEGMENT_SIZE);
+		if (first >= this.segments.size()) throw new IllegalArgumentException("offset " + offset + " is past the end of " + this.file);
+		for (int s = first; s < this.segments.size(); s++) {
+			MappedByteBuffer b = this.segments.get(s);
+			int p = s == first ? (int) (offset - (long) s * SEGMENT_SIZE) : 0;
+			while (true) {
+				if (p >= SEGMENT_SIZE && s == this.segments.size() - 1) {
+					// the last record filled the segment exactly, the journal goes on in the next one
+					this.segments.add(this.mapNext());
+				}
+				byte type = p < SEGMENT_SIZE ? b.get(p) : SKIP;
+				if (type == END) {
+					// the end of the journal, appends go here
+					this.current = b;
+					this.position = p;
+					this.written = (long) s * SEGMENT_SIZE + p;
+					this.committed = this.written;
+					// a later segment can only exist if this one was full, it holds nothing
+					while (this.segments.size() > s + 1) this.segments.remove(this.segments.size() - 1);
+					// arrivals drop the path without a record
+					for (Service sv: services.values()) {
+						sv.restoreArrival();
+					}
+					this.replayed = events;
+					return;
+				}
+				if (type == SKIP) break;
+				p++;
+				switch (type) {
+					case INCIDENT: {
+						this.env.restoreIncident(b.getInt(p), nodes.get(b.getInt(p + 4)), b.getInt(p + 12), b.getInt(p + 8));
+						p += 16;
+						break;
+					}
+					case DISPATCH: {
+						Incident inc = incidents.get(b.getInt(p));
+						Service sv = services.get(b.getInt(p + 4));
+						inc.addToDispatchList(sv.getServiceType(), sv.getID());
+						p += 8;
+						break;
+					}
+					case DEALT: {
+						Incident inc = incidents.get(b.getInt(p));
+						inc.getNode().removeRunningIncident(inc);
+						inc.offRunning();
+						p += 4;
+						break;
+					}
+					case PATH: {
+						Service sv = services.get(b.getInt(p));
+						int level = b.getInt(p + 4);
+						int n = b.getInt(p + 8);
+						p += 12;
+						Route r = null;
+						if (n > 0) {
+							int[] idx = new int[n];
+							float[] dist = new float[n];
+							for (int i = 0; i < n; i++) {
+								idx[i] = g.indexOf(nodes.get(b.getInt(p)));
+								dist[i] = b.getFloat(p + 4);
+								p += 8;
+							}
+							r = new Route(g, idx, dist);
+						}
+						sv.restorePath(r, level);
+						break;
+					}
+					case MOVE: {
+						services.get(b.getInt(p)).restoreMove(nodes.get(b.getInt(p + 4)));
+						p += 8;
+						break;
+					}
+					case AVAILABLE: {
+						Service sv = services.get(b.getInt(p));
+						if (b.get(p + 4) != 0) sv.setAvailable();
+						else sv.setUnAvailable();
+						p += 5;
+						break;
+					}
+					case ROAD: {
+						Node from = nodes.get(b.getInt(p));
+						Node to = nodes.get(b.getInt(p + 4));
+						byte flags = b.get(p + 8);
+						for (NeighbourNode road: from.getNeighbour()) {
+							if (road.getNode() != to) continue;
+							if (road.getOpen() != ((flags & 1) != 0)) road.toggleOpen();
+							if (road.getCongested() != ((flags & 2) != 0)) road.toggleCOngested();
+							break;
+						}
+						p += 9;
+						break;
+					}
+					case RECALC: {
+						// the requirements follow from the incidents so far, which are replayed by now
+						for (Node n: nodes.values()) {
+							n.recalculateServiceRequired();
+						}
+						break;
+					}
+					default:
+						throw new IllegalStateException("corrupt journal " + this.file + " at " + ((long) s * SEGMENT_SIZE + p - 1));
+				}
+				events++;
+			}
+		}
+		throw new IllegalStateException("journal " + this.file + " has no end");
+	}
+
+	/**
+	 * @param inc a new incident
+	 */
+	void incident(Incident inc) {
+		synchronized(this) {
+			int p = this.reserve(16);
+			this.current.putInt(p, inc.getId());
+			this.current.putInt(p + 4, inc.getNodeId());
+			this.current.putInt(p + 8, inc.getIncidentType());
+			this.current.putInt(p + 12, inc.getIncidentLevel());
+			this.commitRecord(p, INCIDENT, 16);
+		}
+	}
+
+	/**
+	 * @param inc the incident
+	 * @param s a unit added to its dispatch list
+	 */
+	void dispatched(Incident inc, Service s) {
+		synchronized(this) {
+			int p = this.reserve(8);
+			this.current.putInt(p, inc.getId());
+			this.current.putInt(p + 4, s.getID());
+			this.commitRecord(p, DISPATCH, 8);
+		}
+	}
+
+	/**
+	 * @param inc an incident that was dealt with
+	 */
+	void dealt(Incident inc) {
+		synchronized(this) {
+			int p = this.reserve(4);
+			this.current.putInt(p, inc.getId());
+			this.commitRecord(p, DEALT, 4);
+		}
+	}
+
+	/**
+	 * every node recalculated the services it requires
+	 */
+	void recalculated() {
+		synchronized(this) {
+			int p = this.reserve(0);
+			this.commitRecord(p, RECALC, 0);
+		}
+	}
+
+	@Override
+	public void pathChanged(Service s) {
+		Route r = s.getPath();
+		int n = r == null ? 0 : r.size();
+		synchronized(this) {
+			int p = this.reserve(12 + 8 * n);
+			this.current.putInt(p, s.getID());
+			this.current.putInt(p + 4, s.getIncidentLevel());
+			this.current.putInt(p + 8, n);
+			int q = p + 12;
+			for (int i = 0; i < n; i++) {
+				this.current.putInt(q, r.nodeAt(i).getID());
+				this.current.putFloat(q + 4, r.distAt(i));
+				q += 8;
+			}
+			this.commitRecord(p, PATH, 12 + 8 * n);
+		}
+	}
+
+	@Override
+	public void moved(Service s, Node from, Node to) {
+		synchronized(this) {
+			int p = this.reserve(8);
+			this.current.putInt(p, s.getID());
+			this.current.putInt(p + 4, to.getID());
+			this.commitRecord(p, MOVE, 8);
+		}
+	}
+
+	@Override
+	public void availabilityChanged(Service s, boolean available) {
+		synchronized(this) {
+			int p = this.reserve(5);
+			this.current.putInt(p, s.getID());
+			this.current.put(p + 4, available ? (byte) 1 : (byte) 0);
+			this.commitRecord(p, AVAILABLE, 5);
+		}
+	}
+
+	@Override
+	public void edgeChanged(RoadGraph g, int e) {
+		synchronized(this) {
+			int p = this.reserve(9);
+			this.current.putInt(p, g.nodeAt(g.source(e)).getID());
+			this.current.putInt(p + 4, g.nodeAt(g.target(e)).getID());
+			this.current.put(p + 8, (byte) ((g.isOpen(e) ? 1 : 0) | (g.isCongested(e) ? 2 : 0)));
+			this.commitRecord(p, ROAD, 9);
+		}
+	}
+
+	/**
+	 * makes room for a record in the current segment, moving on to a new one if it doesn't fit
+	 * @param payload bytes after the type byte
+	 * @return position of the first payload byte
+	 */
+	private int reserve(int payload) {
+		if (this.closed) throw new IllegalStateException("journal " + this.file + " is closed");
+		if (1 + payload > SEGMENT_SIZE - HEADER) throw new IllegalArgumentException("record of " + payload + " bytes does not fit a segment");
+		if (this.position + 1 + payload > SEGMENT_SIZE) {
+			if (this.position < SEGMENT_SIZE) this.current.put(this.position, SKIP);
+			this.nextSegment();
+		}
+		return this.position + 1;
+	}
+
+	/** appends go on at the start of a new segment, whose zeros read as the end of the journal **/
+	private void nextSegment() {
+		this.current = this.mapNext();
+		this.segments.add(this.current);
+		this.written = (long) (this.segments.size() - 1) * SEGMENT_SIZE;
+		this.position = 0;
+	}
+
+	private MappedByteBuffer mapNext() {
+		try {
+			return this.map(this.segments.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** writes the type byte once the fields are in and moves the append position on **/
+	private void commitRecord(int payloadAt, byte type, int payload) {
+		this.current.put(payloadAt - 1, type);
+		this.position = payloadAt + payload;
+		this.written = (long) (this.segments.size() - 1) * SEGMENT_SIZE + this.position;
+		// a segment filled exactly has no room for a SKIP, the next one holds the end instead
+		if (this.position == SEGMENT_SIZE) this.nextSegment();
+	}
+
+	/**
+	 * @return offset the next record is appended at, replaying from here skips everything before
+	 */
+	public long position() {
+		synchronized(this) {
+			return this.written;
+		}
+	}
+
+	/**
+	 * waits until everything appended so far is on disk
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void sync() throws InterruptedException {
+		synchronized(this) {
+			long target = this.written;
+			while (this.committed < target && !this.closed) {
+				this.notifyAll();
+				this.wait();
+			}
+		}
+	}
+
+	private void flushLoop() {
+		while (!this.closed) {
+			try {
+				this.commit();
+				synchronized(this) {
+					if (!this.closed && this.committed == this.written) this.wait(COMMIT_INTERVAL_NANOS / 1_000_000L);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/** forces the bytes appended since the last commit, the appenders only wait for the lock to copy the range out **/
+	private void commit() {
+		MappedByteBuffer[] dirty;
+		long from;
+		long to;
+		synchronized(this) {
+			from = this.committed;
+			to = this.written;
+			if (to == from) return;
+			int first = (int) (from / SEGMENT_SIZE);
+			int last = (int) ((to - 1) / SEGMENT_SIZE);
+			dirty = this.segments.subList(first, last + 1).toArray(new MappedByteBuffer[0]);
+		}
+		long segStart = (from / SEGMENT_SIZE) * SEGMENT_SIZE;
+		for (int i = 0; i < dirty.length; i++) {
+			long base = segStart + (long) i * SEGMENT_SIZE;
+			int a = (int) Math.max(0, from - base);
+			int b = (int) Math.min(SEGMENT_SIZE, to - base);
+			if (b > a) dirty[i].force(a, b - a);
+		}
+		synchronized(this) {
+			this.committed = Math.max(this.committed, to);
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * commits what is left and closes the file, further appends fail
+	 */
+	@Override
+	public void close() throws IOException {
+		this.commit();
+		synchronized(this) {
+			this.closed = true;
+			this.notifyAll();
+		}
+		this.flusher.interrupt();
+		try {
+			this.flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.channel.close();
+	}
+}
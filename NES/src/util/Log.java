@@ -0,0 +1,340 @@
+package util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging of the simulation, written to a ring buffer and handed to the sinks in batches.
+ *
+ * <p>
+ * An event is a category, a level and a message template with up to two arguments,
+ * a number and an object, filled into its {} placeholders in that order. The
+ * message is only put together by the writer thread, so logging an event takes
+ * a slot of the ring buffer and allocates nothing. Objects given as arguments
+ * must not change afterwards (strings, names, reports).
+ * </p>
+ *
+ * <p>
+ * Events under the level of their category are dropped at once, and every
+ * category can be sampled to keep only 1 of every n events. When the ring buffer
+ * is full the event is dropped and counted instead of holding up the simulation.
+ * A writer thread drains the buffer every few milliseconds and hands the lines
+ * to every sink in one batch, flushing them after it. Without sinks, e.g. running
+ * headless or in benchmarks, nothing is logged and isEnabled() is false, so callers
+ * that build an argument can skip it.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Any thread can log. Sinks are only called from one thread at a time.
+ * </p>
+ */
+
+public final class Log {
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	public enum Category {
+		/** units moving and arriving **/
+		MOVEMENT,
+		/** incidents and dispatch **/
+		DISPATCH,
+		/** roads opened, closed or congested **/
+		ROADS,
+		/** reading cities and files **/
+		LOADING,
+		/** anything else **/
+		GENERAL
+	}
+
+	/**
+	 * Gets the lines of the log, always from one thread at a time.
+	 */
+	public interface Sink {
+		/**
+		 * @param millis wall clock time of the event
+		 * @param level its level
+		 * @param category its category
+		 * @param line the message
+		 * @throws IOException if the line can't be written, it is dropped
+		 */
+		void write(long millis, Level level, Category category, String line) throws IOException;
+
+		/**
+		 * called after every batch of lines
+		 * @throws IOException if the lines can't be written
+		 */
+		default void flush() throws IOException {
+		}
+
+		/**
+		 * called when the sink is removed
+		 * @throws IOException if the sink can't be closed
+		 */
+		default void close() throws IOException {
+		}
+	}
+
+	/** events the ring buffer holds **/
+	public static final int CAPACITY = 1 << 16;
+	private static final int MASK = CAPACITY - 1;
+	/** how often the writer drains the buffer **/
+	public static final long WRITE_INTERVAL_NANOS = 10_000_000L;
+
+	private static final long[] millis = new long[CAPACITY];
+	private static final byte[] levels = new byte[CAPACITY];
+	private static final byte[] categories = new byte[CAPACITY];
+	private static final String[] templates = new String[CAPACITY];
+	private static final long[] numbers = new long[CAPACITY];
+	private static final Object[] objects = new Object[CAPACITY];
+	/** sequence number of the event in each slot once it is written, -1 before **/
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	/** next sequence number to give out **/
+	private static final AtomicLong claimed = new AtomicLong();
+	/** next sequence number to write, only moved by the drain **/
+	private static volatile long consumed = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final Category[] CATEGORIES = Category.values();
+	private static final Level[] LEVELS = Level.values();
+	/** replaced, never changed, so a logging thread sees a whole setting without a lock **/
+	private static volatile int[] minLevel = new int[CATEGORIES.length];
+	private static volatile int[] sampleEvery = new int[CATEGORIES.length];
+	private static final AtomicLongArray seen = new AtomicLongArray(CATEGORIES.length);
+
+	private static final List<Sink> sinks = new CopyOnWriteArrayList<>();
+	/** any sinks, read on every call so a disabled log costs one volatile read **/
+	private static volatile boolean on = false;
+	private static final Object drainLock = new Object();
+	private static Thread writer;
+	/** reused by the drain to put lines together **/
+	private static final StringBuilder line = new StringBuilder();
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			published.set(i, -1);
+		}
+		Arrays.fill(minLevel, Level.INFO.ordinal());
+		Arrays.fill(sampleEvery, 1);
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * @param level lowest level logged in every category
+	 */
+	public static void setLevel(Level level) {
+		for (Category c: CATEGORIES) {
+			setLevel(c, level);
+		}
+	}
+
+	/**
+	 * @param category the category
+	 * @param level lowest level logged in it
+	 */
+	public static void setLevel(Category category, Level level) {
+		synchronized(drainLock) {
+			int[] m = minLevel.clone();
+			m[category.ordinal()] = level.ordinal();
+			minLevel = m;
+		}
+	}
+
+	/**
+	 * @param category the category
+	 * @param every keep 1 of every this many events of the category, 1 keeps all
+	 */
+	public static void setSampling(Category category, int every) {
+		if (every < 1) throw new IllegalArgumentException("sample every must be positive: " + every);
+		synchronized(drainLock) {
+			int[] e = sampleEvery.clone();
+			e[category.ordinal()] = every;
+			sampleEvery = e;
+		}
+	}
+
+	/**
+	 * @return events dropped because the ring buffer was full
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @param category the category
+	 * @param level the level
+	 * @return true if an event of the category and level would be kept, not counting sampling
+	 */
+	public static boolean isEnabled(Category category, Level level) {
+		return on && level.ordinal() >= minLevel[category.ordinal()];
+	}
+
+	/**
+	 * adds a sink and starts the writer thread with the first one
+	 * @param sink gets every line from now on
+	 */
+	public static void addSink(Sink sink) {
+		synchronized(drainLock) {
+			sinks.add(sink);
+			on = true;
+			if (writer == null) {
+				writer = new Thread(Log::writeLoop, "nes-log");
+				writer.setDaemon(true);
+				writer.start();
+			}
+		}
+	}
+
+	/**
+	 * writes what is logged so far, removes the sink and closes it
+	 * @param sink the sink
+	 */
+	public static void removeSink(Sink sink) {
+		flush();
+		synchronized(drainLock) {
+			if (!sinks.remove(sink)) return;
+			on = !sinks.isEmpty();
+			try {
+				sink.close();
+			}
+			catch (IOException e) {
+				// nowhere left to report it
+			}
+		}
+	}
+
+	/**
+	 * writes every event logged so far to the sinks before returning
+	 */
+	public static void flush() {
+		drain();
+	}
+
+	public static void debug(Category category, String template, long number, Object object) {
+		log(category, Level.DEBUG, template, number, object);
+	}
+
+	public static void info(Category category, String template, long number, Object object) {
+		log(category, Level.INFO, template, number, object);
+	}
+
+	public static void info(Category category, Object message) {
+		log(category, Level.INFO, "{}", 0, message);
+	}
+
+	public static void warn(Category category, String template, long number, Object object) {
+		log(category, Level.WARN, template, number, object);
+	}
+
+	public static void warn(Category category, Object message) {
+		log(category, Level.WARN, "{}", 0, message);
+	}
+
+	public static void error(Category category, Object message) {
+		log(category, Level.ERROR, "{}", 0, message);
+	}
+
+	/**
+	 * logs an event
+	 * @param category the category
+	 * @param level the level
+	 * @param template the message, its {} are filled with the number and then the object.
+	 * a template of just {} is the object alone
+	 * @param number first argument
+	 * @param object second argument, must not change afterwards
+	 */
+	public static void log(Category category, Level level, String template, long number, Object object) {
+		int c = category.ordinal();
+		if (!on || level.ordinal() < minLevel[c]) return;
+		int every = sampleEvery[c];
+		if (every > 1 && seen.getAndIncrement(c) % every != 0) return;
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - consumed >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+		int slot = (int) (seq & MASK);
+		millis[slot] = System.currentTimeMillis();
+		levels[slot] = (byte) level.ordinal();
+		categories[slot] = (byte) c;
+		templates[slot] = template;
+		numbers[slot] = number;
+		objects[slot] = object;
+		// the fields above are visible to whoever sees the sequence number
+		published.set(slot, seq);
+		if (seq - consumed == CAPACITY / 2) {
+			Thread w = writer;
+			if (w != null) LockSupport.unpark(w);
+		}
+	}
+
+	private static void writeLoop() {
+		while (true) {
+			LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+			drain();
+		}
+	}
+
+	/** hands every published event to the sinks, in order **/
+	private static void drain() {
+		synchronized(drainLock) {
+			long seq = consumed;
+			boolean any = false;
+			while (true) {
+				int slot = (int) (seq & MASK);
+				if (published.get(slot) != seq) break;
+				String l = format(templates[slot], numbers[slot], objects[slot]);
+				Level level = LEVELS[levels[slot]];
+				Category category = CATEGORIES[categories[slot]];
+				long ms = millis[slot];
+				templates[slot] = null;
+				objects[slot] = null;
+				seq++;
+				consumed = seq;
+				any = true;
+				for (Sink s: sinks) {
+					try {
+						s.write(ms, level, category, l);
+					}
+					catch (IOException e) {
+						// a sink that can't write loses the line, the others still get it
+					}
+				}
+			}
+			if (!any) return;
+			for (Sink s: sinks) {
+				try {
+					s.flush();
+				}
+				catch (IOException e) {
+					// as above
+				}
+			}
+		}
+	}
+
+	private static String format(String template, long number, Object object) {
+		if (template.equals("{}")) return String.valueOf(object);
+		line.setLength(0);
+		int args = 0;
+		int from = 0;
+		for (int i; (i = template.indexOf("{}", from)) >= 0; from = i + 2) {
+			line.append(template, from, i);
+			if (args++ == 0) line.append(number);
+			else line.append(object);
+		}
+		line.append(template, from, template.length());
+		return line.toString();
+	}
+}
@@ -0,0 +1,51 @@
+package util;
+
+/**
+ * A clock that only moves when told to.
+ *
+ * <p>
+ * sleepUntil() jumps straight to the deadline, so an engine in real time mode
+ * runs without waiting and every tick still sees exactly the time it expects.
+ * Handy for tests and replays.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * The time is synchronized on the clock.
+ * </p>
+ */
+
+public class ManualClock implements SimulationClock {
+	private long now;
+
+	/**
+	 * @param start initial time in nanoseconds
+	 */
+	public ManualClock(long start) {
+		this.now = start;
+	}
+
+	@Override
+	public long nanoTime() {
+		synchronized(this) {
+			return this.now;
+		}
+	}
+
+	/**
+	 * moves the clock forward
+	 * @param nanos time to add
+	 */
+	public void advance(long nanos) {
+		synchronized(this) {
+			this.now += nanos;
+		}
+	}
+
+	@Override
+	public void sleepUntil(long deadline) {
+		synchronized(this) {
+			if (deadline > this.now) this.now = deadline;
+		}
+	}
+}
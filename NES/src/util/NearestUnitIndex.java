@@ -0,0 +1,309 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import util.nodes.Node;
+import util.nodes.CustomDSA.IndexedMinHeap;
+import util.nodes.CustomDSA.RoadGraph;
+import util.nodes.CustomDSA.Route;
+
+/**
+ * Keeps, for every node and service type, the nearest available unit and its
+ * travel distance to that node.
+ *
+ * <p>
+ * Per service type the index is a multi-source Dijkstra from every node that
+ * has an available unit of the type (a graph Voronoi diagram): each node stores
+ * its owner, the closest such node, the distance from it and the parent on the
+ * shortest path from it. A node's owner is always its parent's owner, so the
+ * cell of an owner is a tree hanging from it.
+ * </p>
+ *
+ * <p>
+ * The index listens to the services and is repaired locally:
+ * <ul>
+ *     <li>a unit becomes available or arrives at a node - a Dijkstra from that node
+ *         that only goes as far as it is closer than the current owners</li>
+ *     <li>the last available unit of a type leaves a node or is allocated - its cell
+ *         is cleared and refilled from the neighbouring cells</li>
+ * </ul>
+ * A road change invalidates the distances, the whole index is rebuilt on the next
+ * lookup.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Lookups and repairs are synchronized on the index.
+ * </p>
+ */
+
+public class NearestUnitIndex implements ServiceListener, RoadGraph.EdgeListener {
+	/** the Voronoi partition of one service type **/
+	private static final class Partition {
+		/** number of available units of the type at each node **/
+		private final int[] units;
+		/** distance from the owner **/
+		private final float[] dist;
+		/** closest node with an available unit, -1 if none can reach **/
+		private final int[] owner;
+		/** previous node on the path from the owner, -1 for the owner itself **/
+		private final int[] parent;
+
+		private Partition(int n) {
+			this.units = new int[n];
+			this.dist = new float[n];
+			this.owner = new int[n];
+			this.parent = new int[n];
+		}
+	}
+
+	private final RoadGraph graph;
+	private final Map<String, Partition> partitions = new HashMap<>();
+	/** node each service is counted at, services that are not available are not counted **/
+	private final Map<Service, Integer> counted = new HashMap<>();
+	private final IndexedMinHeap heap;
+	/** scratch list for the cell being cleared **/
+	private int[] cell;
+	private boolean stale = false;
+
+	/**
+	 * builds the index from the services and starts listening to them and to the roads
+	 * @param graph the road graph
+	 * @param services the services to index
+	 */
+	public NearestUnitIndex(RoadGraph graph, Collection<Service> services) {
+		this.graph = graph;
+		this.heap = new IndexedMinHeap(graph.size());
+		this.cell = new int[16];
+		synchronized(this) {
+			for (Service s: services) {
+				this.add(s);
+			}
+		}
+		graph.addListener(this);
+	}
+
+	/**
+	 * starts indexing a service
+	 * @param service the service
+	 */
+	public void add(Service service) {
+		synchronized(this) {
+			service.addListener(this);
+			this.reconcile(service);
+		}
+	}
+
+	/**
+	 * stops indexing every service and listening to the roads
+	 * @param services the services that were indexed
+	 */
+	public void close(Collection<Service> services) {
+		this.graph.removeListener(this);
+		for (Service s: services) {
+			s.removeListener(this);
+		}
+	}
+
+	/**
+	 * @param type service type
+	 * @param v dense index of a node
+	 * @return dense index of the closest node with an available unit of the type, -1 if there is none
+	 */
+	public int nearest(String type, int v) {
+		synchronized(this) {
+			Partition p = this.partition(type);
+			return p == null ? -1 : p.owner[v];
+		}
+	}
+
+	/**
+	 * @param type service type
+	 * @param v dense index of a node
+	 * @return travel distance from the nearest available unit of the type to v, infinity if there is none
+	 */
+	public float distance(String type, int v) {
+		synchronized(this) {
+			Partition p = this.partition(type);
+			return p == null || p.owner[v] < 0 ? Float.POSITIVE_INFINITY : p.dist[v];
+		}
+	}
+
+	/**
+	 * reads the path from the nearest available unit of the type to v out of the index, no search is run
+	 * @param type service type
+	 * @param v dense index of a node
+	 * @return the route in travel order with distances from the start, or null if there is no unit
+	 */
+	public Route routeTo(String type, int v) {
+		synchronized(this) {
+			Partition p = this.partition(type);
+			if (p == null || p.owner[v] < 0) return null;
+			int length = 1;
+			for (int x = p.parent[v]; x >= 0; x = p.parent[x]) {
+				length++;
+			}
+			int[] nodes = new int[length];
+			float[] dists = new float[length];
+			int k = 0;
+			for (int x = v; x >= 0; x = p.parent[x]) {
+				nodes[k] = x;
+				dists[k] = p.dist[x];
+				k++;
+			}
+			// v -> ... -> owner with distances from the owner, read back to front
+			return new Route(this.graph, nodes, dists).reversed();
+		}
+	}
+
+	@Override
+	public void availabilityChanged(Service service, boolean available) {
+		synchronized(this) {
+			this.reconcile(service);
+		}
+	}
+
+	@Override
+	public void moved(Service service, Node from, Node to) {
+		synchronized(this) {
+			this.reconcile(service);
+		}
+	}
+
+	@Override
+	public void edgeChanged(RoadGraph graph, int edge) {
+		synchronized(this) {
+			this.stale = true;
+		}
+	}
+
+	/**
+	 * moves the count of a service to where it is now, events may arrive in any order
+	 * so the service itself is read instead of the event
+	 */
+	private void reconcile(Service service) {
+		int now = service.getAvailability() ? this.graph.indexOf(service.getPlace()) : -1;
+		Integer was = this.counted.get(service);
+		if (was != null && was == now) return;
+		Partition p = this.partitions.computeIfAbsent(service.getServiceType(), t -> this.emptyPartition());
+		if (was != null) {
+			this.counted.remove(service);
+			if (--p.units[was] == 0 && !this.stale) this.removeSite(p, was);
+		}
+		if (now >= 0) {
+			this.counted.put(service, now);
+			if (p.units[now]++ == 0 && !this.stale) this.addSite(p, now);
+		}
+	}
+
+	private Partition emptyPartition() {
+		Partition p = new Partition(this.graph.size());
+		Arrays.fill(p.dist, Float.POSITIVE_INFINITY);
+		Arrays.fill(p.owner, -1);
+		Arrays.fill(p.parent, -1);
+		return p;
+	}
+
+	/** the partition of a type, rebuilt first if a road changed **/
+	private Partition partition(String type) {
+		if (this.stale) {
+			this.stale = false;
+			for (Partition p: this.partitions.values()) {
+				this.rebuild(p);
+			}
+		}
+		return this.partitions.get(type);
+	}
+
+	private void rebuild(Partition p) {
+		Arrays.fill(p.dist, Float.POSITIVE_INFINITY);
+		Arrays.fill(p.owner, -1);
+		Arrays.fill(p.parent, -1);
+		this.heap.clear();
+		for (int v = 0; v < p.units.length; v++) {
+			if (p.units[v] > 0) this.seed(p, v);
+		}
+		this.grow(p);
+	}
+
+	private void seed(Partition p, int v) {
+		p.dist[v] = 0;
+		p.owner[v] = v;
+		p.parent[v] = -1;
+		this.heap.pushOrDecrease(v, 0);
+	}
+
+	private void addSite(Partition p, int v) {
+		this.heap.clear();
+		this.seed(p, v);
+		this.grow(p);
+	}
+
+	/** clears the cell of v and refills it from the cells around it **/
+	private void removeSite(Partition p, int v) {
+		int size = 0;
+		if (p.owner[v] == v) {
+			// the cell is the tree under v, every node in it is reached over a road from the cell
+			this.cell[size++] = v;
+			p.owner[v] = -1;
+			for (int i = 0; i < size; i++) {
+				int x = this.cell[i];
+				for (int e = this.graph.firstEdge(x), end = this.graph.endEdge(x); e < end; e++) {
+					int t = this.graph.target(e);
+					if (p.owner[t] != v || p.parent[t] != x) continue;
+					if (size == this.cell.length) this.cell = Arrays.copyOf(this.cell, size * 2);
+					this.cell[size++] = t;
+					p.owner[t] = -1;
+				}
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			int x = this.cell[i];
+			p.dist[x] = Float.POSITIVE_INFINITY;
+			p.parent[x] = -1;
+		}
+		this.heap.clear();
+		for (int i = 0; i < size; i++) {
+			int x = this.cell[i];
+			for (int k = this.graph.firstInEdge(x), end = this.graph.endInEdge(x); k < end; k++) {
+				int u = this.graph.inSource(k);
+				if (p.owner[u] < 0) continue;
+				float nd = p.dist[u] + this.graph.cost(this.graph.inEdge(k));
+				if (nd < p.dist[x]) {
+					p.dist[x] = nd;
+					p.owner[x] = p.owner[u];
+					p.parent[x] = u;
+				}
+			}
+			if (p.owner[x] >= 0) this.heap.pushOrDecrease(x, p.dist[x]);
+		}
+		this.grow(p);
+	}
+
+	/**
+	 * runs the heap down, a node is taken over when it gets closer or when its parent
+	 * changed owner so the owner of a node always stays its parent's owner
+	 */
+	private void grow(Partition p) {
+		while (!this.heap.isEmpty()) {
+			int v = this.heap.poll();
+			float d = p.dist[v];
+			int o = p.owner[v];
+			for (int e = this.graph.firstEdge(v), end = this.graph.endEdge(v); e < end; e++) {
+				float nd = d + this.graph.cost(e);
+				// closed roads cost infinity
+				if (nd == Float.POSITIVE_INFINITY) continue;
+				int t = this.graph.target(e);
+				if (nd < p.dist[t] || (p.parent[t] == v && p.owner[t] != o)) {
+					p.dist[t] = nd;
+					p.owner[t] = o;
+					p.parent[t] = v;
+					this.heap.pushOrDecrease(t, nd);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Writes the log to a file, rolled over when it gets too big.
+ *
+ * <p>
+ * Every line is the time, level, category and message. When the file passes
+ * its size limit it is renamed to file.1, the older ones move up to file.2 and
+ * so on, the oldest past the number kept is deleted, and a new file is started.
+ * An existing file is appended to.
+ * </p>
+ */
+
+public class RollingFileSink implements Log.Sink {
+	private final Path file;
+	private final long maxBytes;
+	private final int keep;
+	private BufferedWriter out;
+	private long bytes;
+
+	/**
+	 * @param file the log file
+	 * @param maxBytes size the file is rolled over at
+	 * @param keep rolled over files kept
+	 * @throws IOException if the file can't be opened
+	 */
+	public RollingFileSink(Path file, long maxBytes, int keep) throws IOException {
+		if (maxBytes <= 0) throw new IllegalArgumentException("max bytes must be positive: " + maxBytes);
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.keep = Math.max(0, keep);
+		this.open();
+	}
+
+	private void open() throws IOException {
+		this.bytes = Files.exists(this.file) ? Files.size(this.file) : 0;
+		this.out = Files.newBufferedWriter(this.file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	private Path rolled(int k) {
+		return this.file.resolveSibling(this.file.getFileName() + "." + k);
+	}
+
+	private void roll() throws IOException {
+		this.out.close();
+		if (this.keep == 0) {
+			Files.delete(this.file);
+		}
+		else {
+			Files.deleteIfExists(this.rolled(this.keep));
+			for (int k = this.keep - 1; k >= 1; k--) {
+				if (Files.exists(this.rolled(k))) Files.move(this.rolled(k), this.rolled(k + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(this.file, this.rolled(1), StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.open();
+	}
+
+	@Override
+	public void write(long millis, Log.Level level, Log.Category category, String line) throws IOException {
+		if (this.bytes >= this.maxBytes) this.roll();
+		String s = Instant.ofEpochMilli(millis) + " " + level + " " + category + " " + line;
+		this.out.write(s);
+		this.out.newLine();
+		// close enough for ascii, which the simulation's lines are
+		this.bytes += s.length() + 1;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.out.close();
+	}
+}
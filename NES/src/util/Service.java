@@ -1,6 +1,11 @@
 package util;
 import util.nodes.*;
-import util.nodes.CustomDSA.NeighbourNode;
+import util.nodes.CustomDSA.Route;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Represents the base abstract entity for all emergency or utility service
@@ -13,7 +18,7 @@ import util.nodes.CustomDSA.NeighbourNode;
  *     <li>A unique service ID</li>
  *     <li>A current location represented by a Node</li>
  *     <li>Availability and incident level indicators</li>
- *     <li>A path represented as a chain of NeighbourNode instances</li>
+ *     <li>A path represented as a shared immutable Route and the position on it</li>
  *     <li>A speed and distance tracker for movement simulation</li>
  * </ul>
  * </p>
@@ -33,9 +38,11 @@ import util.nodes.CustomDSA.NeighbourNode;
  *
  * <h2>Thread Safety</h2>
  * <p>
- * Critical fields that may be accessed by multiple threads (location, path, availability,
- * incident level) are protected via synchronized blocks to avoid inconsistent reads
- * and writes. Movement logic inside run() assumes invocation from a controlled loop.
+ * Critical fields that may be accessed by multiple threads (location, path, incident level)
+ * are protected via synchronized blocks to avoid inconsistent reads and writes.
+ * Availability is changed with atomic swaps instead, so concurrent dispatches claim a
+ * unit with tryReserve() and only one of them wins. Movement logic inside run() assumes
+ * invocation from a controlled loop.
  * </p>
  */
 
@@ -46,14 +53,26 @@ public abstract class Service{
 	/** stores the node where the service is at **/
 	protected Node place;
 	
-	/** store weather the service is available **/
-	protected boolean available = true;
+	/** store weather the service is available, only changed through AVAILABLE **/
+	protected volatile boolean available = true;
+	
+	private static final VarHandle AVAILABLE;
+	static {
+		try {
+			AVAILABLE = MethodHandles.lookup().findVarHandle(Service.class, "available", boolean.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 	
 	/** stores the incident level it is assigned to**/
 	protected int incidentLevel = 0;
 	
-	/** stores the linked list of path **/
-	protected NeighbourNode path;
+	/** stores the route being travelled **/
+	protected Route path;
+	
+	/** stores the position on the route of the node the service is at **/
+	protected int hop;
 	
 	/** stores the speed of the services **/
 	protected float speed = 0.5f;
@@ -61,6 +80,21 @@ public abstract class Service{
 	/** stores the distace travelled **/
 	protected float distanceTravelled;
 	
+	/** get told about availability flips, moves and new paths, e.g. the nearest unit index **/
+	protected final List<ServiceListener> listeners = new CopyOnWriteArrayList<>();
+	
+	/** bumped every time the path is set, lets the event scheduler drop events of an old path **/
+	protected int pathVersion = 0;
+	
+	/**
+	 * the columnar store holding place, path, hop, distance travelled, speed and availability
+	 * instead of the fields above, null when the fields are used
+	 **/
+	protected FleetStore store = null;
+	
+	/** the row of this service in the store **/
+	protected int slot = -1;
+	
 	/**
 	 * a constructor 
 	 * @param place current location 
@@ -76,7 +110,17 @@ public abstract class Service{
 	 * @return the current location 
 	 */
 	public String getlocation() {
-		return this.place.getLocationName();
+		return this.getPlace().getLocationName();
+	}
+	
+	/**
+	 * 
+	 * @return the node the service is at
+	 */
+	public Node getPlace() {
+		synchronized (this) {
+			return this.place();
+		}
 	}
 	
 	/**
@@ -84,10 +128,46 @@ public abstract class Service{
 	 * @param place where the service is at
 	 */
 	public void setLocation(Node place) {
+		Node from;
 		synchronized (this) {
-			this.place = place;
+			from = this.place();
+			this.putPlace(place);
 	    }
-		
+		this.fireMoved(from, place);
+	}
+	
+	/**
+	 * adds a listener told about availability flips, moves and new paths
+	 * @param listener the listener
+	 */
+	public void addListener(ServiceListener listener) {
+		if (!this.listeners.contains(listener)) this.listeners.add(listener);
+	}
+	
+	/**
+	 * @param listener listener to remove
+	 */
+	public void removeListener(ServiceListener listener) {
+		this.listeners.remove(listener);
+	}
+	
+	void fireMoved(Node from, Node to) {
+		if (from == to) return;
+		for (ServiceListener l: this.listeners) {
+			l.moved(this, from, to);
+		}
+	}
+	
+	void fireAvailability(boolean available) {
+		for (ServiceListener l: this.listeners) {
+			l.availabilityChanged(this, available);
+		}
+	}
+	
+	private void firePathChanged() {
+		for (ServiceListener l: this.listeners) {
+			l.pathChanged(this);
+		}
 	}
 	
 	/**
@@ -99,12 +179,49 @@ public abstract class Service{
 	}
 	
 	/**
-	 * 
+	 * sets the path and starts it from the first node
 	 * @param Path sets the path 
 	 */
-	public void setPath(NeighbourNode Path) {
+	public void setPath(Route Path) {
+		synchronized(this) {
+			this.putRoute(Path);
+			this.putHop(0);
+			this.putTravelled(0);
+			this.pathVersion++;
+		}
+		this.firePathChanged();
+	}
+	
+	/**
+	 * @return the speed, distance per tick
+	 */
+	public float getSpeed() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.speed(this.slot) : this.speed;
+	}
+	
+	/**
+	 * @return how many more ticks until the service reaches the next node of its path,
+	 * 1 if it is at the end and only has to finish, -1 if it has no path
+	 */
+	public int ticksToNextHop() {
+		synchronized(this) {
+			Route p = this.route();
+			if (p == null) return -1;
+			int h = this.hop();
+			if (h >= p.size() - 1) return 1;
+			double left = p.distAt(h + 1) - this.travelled();
+			return (int) Math.max(1, Math.ceil(left / this.getSpeed()));
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the route being travelled or null
+	 */
+	public Route getPath() {
 		synchronized(this) {
-			this.path = Path;
+			return this.route();
 		}
 	}
 	
@@ -112,7 +229,7 @@ public abstract class Service{
 	 * when it is reallocated to a node it sets the path and makes the service available
 	 * @param path
 	 */
-	public void reallocate(NeighbourNode path) {
+	public void reallocate(Route path) {
 		
 		this.incidentLevel = 0;
 		this.setAvailable();
@@ -125,73 +242,306 @@ public abstract class Service{
 	 * @param path
 	 * @param level
 	 */
-	public void allocate(NeighbourNode path, int level) {
+	public void allocate(Route path, int level) {
 		
-			setPath(path);
+			// the level is set first so listeners of the new path see it
 			this.incidentLevel = level;
+			setPath(path);
 			this.setUnAvailable();
 		
 	}
 	
+	/**
+	 * sets the path and the incident level as a journal recorded them
+	 * @param path the route or null
+	 * @param level the incident level
+	 */
+	void restorePath(Route path, int level) {
+		this.incidentLevel = level;
+		this.setPath(path);
+	}
+	
+	/**
+	 * @return position on the path of the node the service is at
+	 */
+	int getHop() {
+		synchronized(this) {
+			return this.hop();
+		}
+	}
+	
+	/**
+	 * @return distance travelled on the path
+	 */
+	float getDistanceTravelled() {
+		synchronized(this) {
+			return this.travelled();
+		}
+	}
+	
+	/**
+	 * puts the service where a checkpoint saw it, listeners are not told
+	 * @param place the node, the service is not added to it here
+	 * @param available availability
+	 * @param level incident level
+	 * @param path route or null
+	 * @param hop position on the route
+	 * @param travelled distance travelled on the route
+	 * @param speed speed
+	 */
+	void restoreState(Node place, boolean available, int level, Route path, int hop, float travelled, float speed) {
+		synchronized(this) {
+			this.putPlace(place);
+			this.swapAvailable(available);
+			this.incidentLevel = level;
+			this.putRoute(path);
+			this.putHop(hop);
+			this.putTravelled(travelled);
+			if (this.store == null) this.speed = speed;
+		}
+	}
+	
+	/**
+	 * drops a path that is already travelled to its end, as the arrival on the next run would
+	 */
+	void restoreArrival() {
+		synchronized(this) {
+			Route p = this.route();
+			if (p != null && this.hop() >= p.size() - 1) {
+				this.putRoute(null);
+				this.putTravelled(0);
+			}
+		}
+	}
+	
+	/**
+	 * moves the service to a node a journal recorded it reaching, along its path if the node is on it
+	 * @param to the node
+	 */
+	void restoreMove(Node to) {
+		Node from;
+		synchronized(this) {
+			from = this.place();
+			Route p = this.route();
+			if (p != null) {
+				int h = this.hop();
+				while (h < p.size() - 1 && p.nodeAt(h) != to) h++;
+				if (h >= p.size() - 1) {
+					// reached the end, the path was dropped on arrival
+					this.putRoute(null);
+					this.putTravelled(0);
+				}
+				else if (p.nodeAt(h) == to) {
+					this.putHop(h);
+					this.putTravelled(p.distAt(h));
+				}
+			}
+			this.putPlace(to);
+		}
+		from.removeService(this);
+		to.addService(this);
+		this.fireMoved(from, to);
+	}
+	
 	/**
 	 * increase the distance and changes the position of the node and moves along the path 
 	 */
 	public void run() {
-		if (path == null) return;
-		if (path.getParent() == null) {
-			if (this.incidentLevel == 0) {
-				this.setAvailable();
-			}
-			path = null;
-			this.distanceTravelled = 0;
+		this.advance(this.getSpeed());
+	}
+	
+	/**
+	 * moves the given distance along the path, passing as many nodes as that covers
+	 * @param distance distance to travel
+	 */
+	public void advance(float distance) {
+		this.advance(distance, null);
+	}
+	
+	/**
+	 * moves the given distance along the path, passing as many nodes as that covers.
+	 * with fx the changes to the nodes, the prints and the listener calls are recorded in fx instead
+	 * of done, so services can advance in parallel and fx is applied in a fixed order afterwards
+	 * @param distance distance to travel
+	 * @param fx where to record the side effects, null to do them right away
+	 */
+	public void advance(float distance, TickEffects fx) {
+		Route p = this.route();
+		if (p == null) return;
+		int hop = this.hop();
+		if (hop >= p.size() - 1) {
+			this.arrive(fx);
 			return;
 		}
 		// increase the distance
-		this.distanceTravelled += this.speed;
-		// check if the distance travelled is equal or greater than the nex node dist
-		if (this.distanceTravelled >= path.getParent().getDist()) {
-			System.out.println(this.id +": "+ "at location " + this.place.getLocationName());
-			// remove the service from current node
-			path.getNode().removeService(this);
+		float travelled = this.travelled() + distance;
+		this.putTravelled(travelled);
+		// move on while the distance travelled is equal or greater than the next node dist
+		while (hop < p.size() - 1 && travelled >= p.distAt(hop + 1)) {
+			Node from = this.place();
+			this.log(fx, "{}: at location {}", from);
+			Node leaving = p.nodeAt(hop);
 			// move to next node
-			path = path.getParent();
-			Node n = path.getNode();
-			// update the position
-			n.addService(this);
-			if (path != null) {
-				this.place = path.getNode();
+			hop++;
+			Node n = p.nodeAt(hop);
+			if (fx == null) {
+				// remove the service from current node
+				leaving.removeService(this);
+				// update the position
+				n.addService(this);
+			}
+			synchronized(this) {
+				this.putHop(hop);
+				this.putPlace(n);
+			}
+			if (fx == null) {
+				this.fireMoved(from, n);
+			}
+			else {
+				fx.moved(this, leaving, n, from);
 			}
 		}
 		
-		if (path.getParent() == null) {
-			System.out.println(this.id + " arrived at destination " + this.path.getNode().getLocationName());
-			if (this.incidentLevel == 0) {
-				this.setAvailable();
-			}
-			path = null;
-			this.distanceTravelled = 0;
-			return;
+		if (hop >= p.size() - 1) {
+			this.log(fx, "{} arrived at destination {}", this.place());
+			this.arrive(fx);
 		}
 		
 	}
 	
+	private void log(TickEffects fx, String template, Node n) {
+		if (!Log.isEnabled(Log.Category.MOVEMENT, Log.Level.INFO)) return;
+		if (fx == null) Log.info(Log.Category.MOVEMENT, template, this.id, n.getLocationName());
+		else fx.log(template, this, n);
+	}
+	
+	/** the path is done, a service that is not on an incident is free again **/
+	private void arrive(TickEffects fx) {
+		if (this.incidentLevel == 0) {
+			boolean flipped = !this.swapAvailable(true);
+			if (flipped && fx == null) this.fireAvailability(true);
+			else if (flipped) fx.availabilityChanged(this, true);
+		}
+		synchronized(this) {
+			this.putRoute(null);
+			this.putTravelled(0);
+		}
+	}
+	
+	/**
+	 * moves the state of this service into a row of the store, from then on the store holds it
+	 * @param fs the store
+	 * @param row the row given to this service
+	 */
+	void attach(FleetStore fs, int row) {
+		synchronized(this) {
+			fs.write(row, this.place, this.path, this.hop, this.distanceTravelled, this.speed, this.available);
+			this.store = fs;
+			this.slot = row;
+		}
+	}
+	
+	/**
+	 * copies the state back out of the store into the fields
+	 */
+	void detach() {
+		synchronized(this) {
+			FleetStore fs = this.store;
+			if (fs == null) return;
+			this.place = fs.place(this.slot);
+			this.path = fs.route(this.slot);
+			this.hop = fs.hop(this.slot);
+			this.distanceTravelled = fs.travelled(this.slot);
+			this.speed = fs.speed(this.slot);
+			this.available = fs.isAvailable(this.slot);
+			this.store = null;
+			this.slot = -1;
+		}
+	}
+	
+	// the state goes through these so it is read from the store when the service is attached to one
+	
+	private Node place() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.place(this.slot) : this.place;
+	}
+	
+	private void putPlace(Node n) {
+		FleetStore fs = this.store;
+		if (fs != null) fs.setPlace(this.slot, n);
+		else this.place = n;
+	}
+	
+	private Route route() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.route(this.slot) : this.path;
+	}
+	
+	private void putRoute(Route r) {
+		FleetStore fs = this.store;
+		if (fs != null) fs.setRoute(this.slot, r);
+		else this.path = r;
+	}
+	
+	private int hop() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.hop(this.slot) : this.hop;
+	}
+	
+	private void putHop(int h) {
+		FleetStore fs = this.store;
+		if (fs != null) fs.setHop(this.slot, h);
+		else this.hop = h;
+	}
+	
+	private float travelled() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.travelled(this.slot) : this.distanceTravelled;
+	}
+	
+	private void putTravelled(float d) {
+		FleetStore fs = this.store;
+		if (fs != null) fs.setTravelled(this.slot, d);
+		else this.distanceTravelled = d;
+	}
+	
+	private boolean available() {
+		FleetStore fs = this.store;
+		return fs != null ? fs.isAvailable(this.slot) : this.available;
+	}
+	
+	/** sets the availability atomically and returns what it was **/
+	private boolean swapAvailable(boolean a) {
+		FleetStore fs = this.store;
+		if (fs != null) return fs.swapAvailable(this.slot, a);
+		return (boolean) AVAILABLE.getAndSet(this, a);
+	}
+	
 	/**
 	 * 
 	 * @return availability of the service 
 	 */
 	public boolean getAvailability() {
-		synchronized(this) {
-			return this.available;
-		}
+		return this.available();
+	}
+	
+	/**
+	 * claims the service for a dispatch. of several threads trying to claim the same
+	 * available service exactly one gets true
+	 * @return true if the service was available and is now taken by the caller
+	 */
+	public boolean tryReserve() {
+		FleetStore fs = this.store;
+		boolean won = fs != null ? fs.swapAvailable(this.slot, false) : AVAILABLE.compareAndSet(this, true, false);
+		if (won) this.fireAvailability(false);
+		return won;
 	}
 	
 	/**
 	 * make the service unavailable
 	 */
 	public void setUnAvailable() {
-		synchronized(this) {
-			this.available = false;
-		}
+		if (this.swapAvailable(false)) this.fireAvailability(false);
 	}
 	
 	/** 
@@ -199,9 +549,7 @@ public abstract class Service{
 	 */
 	
 	public void setAvailable() {
-		synchronized(this) {
-			this.available = true;
-		}
+		if (!this.swapAvailable(true)) this.fireAvailability(true);
 	}
 	
 	/**
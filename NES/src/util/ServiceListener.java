@@ -0,0 +1,37 @@
+package util;
+
+import util.nodes.Node;
+
+/**
+ * Gets told when a service changes in a way that matters for dispatch or the
+ * simulation: it became available / unavailable, it moved to another node or
+ * it was given a new path. Every method does nothing by default.
+ *
+ * <p>
+ * Calls come from whichever thread changed the service, after the change is made
+ * and outside the service's lock.
+ * </p>
+ */
+
+public interface ServiceListener {
+	/**
+	 * @param service the service that flipped
+	 * @param available the new availability
+	 */
+	default void availabilityChanged(Service service, boolean available) {
+	}
+
+	/**
+	 * @param service the service that moved
+	 * @param from node it left
+	 * @param to node it is at now
+	 */
+	default void moved(Service service, Node from, Node to) {
+	}
+
+	/**
+	 * @param service the service whose path was set or cleared
+	 */
+	default void pathChanged(Service service) {
+	}
+}
@@ -0,0 +1,53 @@
+package util;
+
+/**
+ * The time source of the simulation engine.
+ *
+ * <p>
+ * The engine reads the time and waits for the next tick through this
+ * interface only, so the same engine runs against the wall clock, a manual
+ * clock in a test, or a clock that never waits.
+ * </p>
+ */
+
+public interface SimulationClock {
+	/**
+	 * @return current time in nanoseconds, only differences are meaningful
+	 */
+	long nanoTime();
+
+	/**
+	 * blocks until nanoTime() has reached deadline
+	 * @param deadline time to wait for
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	void sleepUntil(long deadline) throws InterruptedException;
+
+	/**
+	 * @return the wall clock, System.nanoTime() and Thread.sleep()
+	 */
+	static SimulationClock system() {
+		return SystemClock.INSTANCE;
+	}
+
+	/** the wall clock **/
+	final class SystemClock implements SimulationClock {
+		private static final SystemClock INSTANCE = new SystemClock();
+
+		private SystemClock() {
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleepUntil(long deadline) throws InterruptedException {
+			long left;
+			while ((left = deadline - System.nanoTime()) > 0) {
+				Thread.sleep(left / 1_000_000L, (int) (left % 1_000_000L));
+			}
+		}
+	}
+}
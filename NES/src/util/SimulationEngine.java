@@ -0,0 +1,354 @@
+package util;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Drives an Environment with a fixed timestep, with or without a UI.
+ *
+ * <p>
+ * Every tick calls Environment.update once, and every fullUpdateTicks-th tick
+ * also lets the nodes recalculate what they need, as Main's
+ * AnimationTimer used to do every 10 seconds. Simulated time is
+ * tick * tickNanos, whatever the wall clock says.
+ * </p>
+ *
+ * <p>
+ * Pacing:
+ * <ul>
+ *     <li>REAL_TIME - one tick per tick period of the SimulationClock, deadlines are
+ *         absolute so a slow tick does not push the following ones back</li>
+ *     <li>AS_FAST_AS_POSSIBLE - ticks back to back, e.g. a week of simulated time on a
+ *         server without a display. With TickMode.EVENT the ticks in which no event
+ *         is due are skipped altogether</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Ticks run on the tick executor, by default the engine's own thread, and the
+ * engine waits for each tick to finish before it schedules the next one. The
+ * JavaFX app keeps them there and draws from Snapshots, changes the UI makes go
+ * through post(). TickListeners subscribe with their own executor.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * start() / stop() can be called from any thread. runTicks() runs on the
+ * calling thread and must not be mixed with a started engine.
+ * </p>
+ */
+
+public class SimulationEngine {
+	/** how ticks are spaced in time **/
+	public enum Pacing {
+		REAL_TIME,
+		AS_FAST_AS_POSSIBLE
+	}
+
+	/**
+	 * Gets told after every tick.
+	 */
+	public interface TickListener {
+		/**
+		 * @param tick number of ticks run so far
+		 * @param simulatedNanos simulated time after this tick
+		 */
+		void ticked(long tick, long simulatedNanos);
+
+		/**
+		 * when running as fast as possible idle ticks are skipped, a listener that acts
+		 * on the simulated time says here when it next has something to do
+		 * @return simulated nanoseconds the listener next needs to be called at or after, Long.MAX_VALUE for never
+		 */
+		default long nextEventNanos() {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/** a listener and the executor it is called on **/
+	private static final class Subscription {
+		private final TickListener listener;
+		private final Executor executor;
+
+		private Subscription(TickListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	/** a direct executor, runs the task on the calling thread **/
+	public static final Executor DIRECT = Runnable::run;
+
+	private final Environment env;
+	private final SimulationClock clock;
+	private final long tickNanos;
+	private volatile Pacing pacing = Pacing.REAL_TIME;
+	private volatile int fullUpdateTicks;
+	private volatile Executor tickExecutor = DIRECT;
+	private final List<Subscription> listeners = new CopyOnWriteArrayList<>();
+	/** changes from other threads, run before the next tick **/
+	private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<>();
+
+	/** ticks run so far, only written by the thread running the ticks **/
+	private volatile long tick;
+	private volatile boolean running = false;
+	private Thread thread;
+
+	/**
+	 * @param env the environment to drive, one restored from a checkpoint goes on from its tick
+	 * @param clock time source used for real time pacing
+	 * @param tickRate ticks per simulated second
+	 */
+	public SimulationEngine(Environment env, SimulationClock clock, int tickRate) {
+		if (tickRate <= 0) throw new IllegalArgumentException("tick rate must be positive: " + tickRate);
+		this.env = env;
+		this.tick = env.getTick();
+		this.clock = clock;
+		this.tickNanos = 1_000_000_000L / tickRate;
+		// nodes recalculate their needs every 10 simulated seconds
+		this.fullUpdateTicks = 10 * tickRate;
+	}
+
+	/**
+	 * @param pacing REAL_TIME or AS_FAST_AS_POSSIBLE
+	 */
+	public void setPacing(Pacing pacing) {
+		this.pacing = pacing;
+	}
+
+	/**
+	 * @return the current pacing
+	 */
+	public Pacing getPacing() {
+		return this.pacing;
+	}
+
+	/**
+	 * @param ticks every how many ticks the nodes recalculate their needs, 0 for never
+	 */
+	public void setFullUpdateTicks(int ticks) {
+		this.fullUpdateTicks = ticks;
+	}
+
+	/**
+	 * @param executor where ticks run, the thread running the engine unless set
+	 */
+	public void setTickExecutor(Executor executor) {
+		this.tickExecutor = executor == null ? DIRECT : executor;
+	}
+
+	/**
+	 * calls the listener after every tick
+	 * @param listener the listener
+	 * @param executor where the listener runs, e.g. Platform::runLater
+	 */
+	public void subscribe(TickListener listener, Executor executor) {
+		this.listeners.add(new Subscription(listener, executor == null ? DIRECT : executor));
+	}
+
+	/**
+	 * @param listener listener to remove
+	 */
+	public void unsubscribe(TickListener listener) {
+		this.listeners.removeIf(s -> s.listener == listener);
+	}
+
+	/**
+	 * @return the environment driven by the engine
+	 */
+	public Environment getEnvironment() {
+		return this.env;
+	}
+
+	/**
+	 * @return number of ticks run so far
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * @return length of one tick in simulated nanoseconds
+	 */
+	public long getTickNanos() {
+		return this.tickNanos;
+	}
+
+	/**
+	 * @return simulated time in nanoseconds
+	 */
+	public long getSimulatedNanos() {
+		return this.tick * this.tickNanos;
+	}
+
+	/**
+	 * @return if the engine thread is running
+	 */
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * starts ticking on a daemon thread until stop() is called
+	 */
+	public void start() {
+		synchronized(this) {
+			if (this.running) return;
+			this.running = true;
+			this.thread = new Thread(() -> {
+				try {
+					this.run(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					// stopped
+				} finally {
+					this.running = false;
+				}
+			}, "simulation-engine");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * stops the engine thread after the tick in progress and waits for it
+	 */
+	public void stop() {
+		Thread t;
+		synchronized(this) {
+			t = this.thread;
+			this.thread = null;
+			this.running = false;
+		}
+		if (t == null || t == Thread.currentThread()) return;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * runs ticks on the calling thread
+	 * @param ticks number of ticks to run
+	 * @throws InterruptedException if interrupted while waiting for the next tick
+	 */
+	public void runTicks(long ticks) throws InterruptedException {
+		this.running = true;
+		try {
+			this.run(ticks);
+		} finally {
+			this.running = false;
+		}
+	}
+
+	/**
+	 * runs ticks on the calling thread until the given simulated time has passed
+	 * @param simulatedNanos simulated time to run for
+	 * @throws InterruptedException if interrupted while waiting for the next tick
+	 */
+	public void runFor(long simulatedNanos) throws InterruptedException {
+		this.runTicks((simulatedNanos + this.tickNanos - 1) / this.tickNanos);
+	}
+
+	private void run(long ticks) throws InterruptedException {
+		long deadline = this.clock.nanoTime();
+		for (long i = 0; i < ticks && this.running; i++) {
+			if (this.pacing == Pacing.REAL_TIME) {
+				deadline += this.tickNanos;
+				long now = this.clock.nanoTime();
+				if (now - deadline > 10 * this.tickNanos) {
+					// far behind, e.g. after a pause: drop the missed ticks instead of bursting through them
+					deadline = now;
+				}
+				this.clock.sleepUntil(deadline);
+			}
+			else {
+				if (Thread.interrupted()) throw new InterruptedException();
+				long skip = Math.min(this.idleTicks(), ticks - i);
+				if (skip > 0) {
+					// nothing happens in these ticks, jump straight to the next event
+					this.env.skipTicks(skip);
+					this.tick += skip;
+					i += skip - 1;
+					this.notifyListeners(this.tick - 1);
+					continue;
+				}
+			}
+			this.execute(this::step);
+		}
+	}
+	
+	/**
+	 * @return how many of the next ticks do nothing, neither the environment nor a full update
+	 */
+	private long idleTicks() {
+		if (!this.posted.isEmpty()) return 0;
+		long idle = this.env.idleTicks();
+		if (idle <= 0) return 0;
+		int full = this.fullUpdateTicks;
+		if (full > 0) {
+			long t = this.tick;
+			long untilFull = t > 0 && t % full == 0 ? 0 : full - t % full;
+			idle = Math.min(idle, untilFull);
+		}
+		for (Subscription s: this.listeners) {
+			long next = s.listener.nextEventNanos();
+			if (next == Long.MAX_VALUE) continue;
+			// the first tick whose end is at or after the event
+			long due = Math.floorDiv(next + this.tickNanos - 1, this.tickNanos) - this.tick;
+			idle = Math.min(idle, Math.max(0, due));
+		}
+		return idle;
+	}
+
+	/**
+	 * runs the task on the tick executor and waits for it. the wait is interruptible so
+	 * stop() called from the executor's own thread (e.g. the FX thread) can't deadlock
+	 */
+	private void execute(Runnable task) throws InterruptedException {
+		Executor ex = this.tickExecutor;
+		if (ex == DIRECT) {
+			task.run();
+			return;
+		}
+		try {
+			CompletableFuture.runAsync(task, ex).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * runs a change to the environment on the tick thread before the next tick, e.g. a
+	 * button on the UI closing an incident, so the UI never changes the simulation mid tick
+	 * @param task the change
+	 */
+	public void post(Runnable task) {
+		this.posted.add(task);
+	}
+
+	/** one tick **/
+	private void step() {
+		for (Runnable r; (r = this.posted.poll()) != null; ) {
+			r.run();
+		}
+		long t = this.tick;
+		int full = this.fullUpdateTicks;
+		this.env.update(full > 0 && t > 0 && t % full == 0);
+		this.tick = t + 1;
+		this.notifyListeners(t);
+	}
+	
+	private void notifyListeners(long t) {
+		long simulated = this.getSimulatedNanos();
+		for (Subscription s: this.listeners) {
+			s.executor.execute(() -> s.listener.ticked(t + 1, simulated));
+		}
+	}
+}
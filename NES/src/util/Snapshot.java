@@ -0,0 +1,349 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable picture of the simulation for the UI to render from, made by a SnapshotPublisher.
+ *
+ * <p>
+ * Nothing in a snapshot changes after it is published, so the UI can read it from
+ * any thread without locks while the simulation goes on. Snapshots are numbered
+ * by version. The incidents of a node are kept in an array that is shared with the
+ * snapshots before it for as long as they don't change, and every node carries the
+ * version it last changed in, so a view can skip nodes that are the same as the
+ * last time it was drawn.
+ * </p>
+ *
+ * <p>
+ * Nodes are given by the dense index of the road graph, indexOf() finds the index
+ * of a node id. Services are grouped by node and type, types are indexed as in TYPES.
+ * </p>
+ */
+
+public final class Snapshot {
+	/** the service types, in the order types are indexed by **/
+	public static final String[] TYPES = {Police.Type, FireTruck.Type, Ambulance.Type};
+
+	/**
+	 * @param type a service type
+	 * @return its index in TYPES, -1 for none
+	 */
+	public static int typeIndex(String type) {
+		for (int t = 0; t < TYPES.length; t++) {
+			if (TYPES[t].equals(type)) return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * An incident as it was when the snapshot was made.
+	 */
+	public static final class IncidentView {
+		private final int id;
+		private final int nodeId;
+		private final int incidentType;
+		private final String type;
+		private final int level;
+		private final boolean running;
+		/** dispatched service ids by type index **/
+		private final int[][] dispatched;
+
+		IncidentView(Incident inc) {
+			this.id = inc.getId();
+			this.nodeId = inc.getNodeId();
+			this.incidentType = inc.getIncidentType();
+			this.type = inc.getType();
+			this.level = inc.getIncidentLevel();
+			this.running = inc.getRunning();
+			this.dispatched = new int[TYPES.length][];
+			Map<String, ArrayList<Integer>> list = inc.getDispatchList();
+			for (int t = 0; t < TYPES.length; t++) {
+				List<Integer> ids = list.get(TYPES[t]);
+				int[] a = new int[ids == null ? 0 : ids.size()];
+				for (int k = 0; k < a.length; k++) {
+					a[k] = ids.get(k);
+				}
+				this.dispatched[t] = a;
+			}
+		}
+
+		public int getId() {
+			return this.id;
+		}
+
+		public int getNodeId() {
+			return this.nodeId;
+		}
+
+		/**
+		 * @return 1 fire, 2 injury / attack, 3 police
+		 */
+		public int getIncidentType() {
+			return this.incidentType;
+		}
+
+		/**
+		 * @return the service type the incident is filed under
+		 */
+		public String getType() {
+			return this.type;
+		}
+
+		public int getLevel() {
+			return this.level;
+		}
+
+		public boolean isRunning() {
+			return this.running;
+		}
+
+		/**
+		 * @param t type index
+		 * @return number of services of the type dispatched
+		 */
+		public int dispatchedCount(int t) {
+			return this.dispatched[t].length;
+		}
+
+		/**
+		 * @param t type index
+		 * @param k which one
+		 * @return id of the k-th service of the type dispatched
+		 */
+		public int dispatched(int t, int k) {
+			return this.dispatched[t][k];
+		}
+
+		/** same as another view of the same incident **/
+		boolean sameAs(IncidentView o) {
+			return o != null && this.id == o.id && this.level == o.level && this.running == o.running
+					&& this.incidentType == o.incidentType && Arrays.deepEquals(this.dispatched, o.dispatched);
+		}
+	}
+
+	private final long version;
+	private final long tick;
+	private final long simulatedNanos;
+	/** shared by every snapshot of a publisher **/
+	private final Map<Integer, Integer> indexOfId;
+	private final int[] nodeIds;
+	private final String[] names;
+	private final String[] nodeTypes;
+	/** version every node last changed in **/
+	private final long[] changed;
+	/** incidents of every node by id, arrays are shared between snapshots **/
+	private final IncidentView[][] incidents;
+	private final int[] running;
+	/** per node and type index, node * 3 + type **/
+	private final int[] incidentCounts;
+	private final int[] required;
+	/** services of node v and type t are serviceIds[serviceStart[3v + t] .. serviceStart[3v + t + 1]] **/
+	private final int[] serviceStart;
+	private final int[] serviceIds;
+	private final boolean[] available;
+
+	Snapshot(long version, long tick, long simulatedNanos, Map<Integer, Integer> indexOfId, int[] nodeIds, String[] names,
+			String[] nodeTypes, long[] changed, IncidentView[][] incidents, int[] running, int[] incidentCounts,
+			int[] required, int[] serviceStart, int[] serviceIds, boolean[] available) {
+		this.version = version;
+		this.tick = tick;
+		this.simulatedNanos = simulatedNanos;
+		this.indexOfId = indexOfId;
+		this.nodeIds = nodeIds;
+		this.names = names;
+		this.nodeTypes = nodeTypes;
+		this.changed = changed;
+		this.incidents = incidents;
+		this.running = running;
+		this.incidentCounts = incidentCounts;
+		this.required = required;
+		this.serviceStart = serviceStart;
+		this.serviceIds = serviceIds;
+		this.available = available;
+	}
+
+	/**
+	 * @return number of the snapshot, higher is newer
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @return ticks run when the snapshot was made
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * @return simulated time when the snapshot was made
+	 */
+	public long getSimulatedNanos() {
+		return this.simulatedNanos;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return this.nodeIds.length;
+	}
+
+	/**
+	 * @param nodeId a node id
+	 * @return its index, -1 if there is no such node
+	 */
+	public int indexOf(int nodeId) {
+		Integer v = this.indexOfId.get(nodeId);
+		return v == null ? -1 : v;
+	}
+
+	public int nodeId(int v) {
+		return this.nodeIds[v];
+	}
+
+	public String name(int v) {
+		return this.names[v];
+	}
+
+	public String nodeType(int v) {
+		return this.nodeTypes[v];
+	}
+
+	/**
+	 * @param v node index
+	 * @return version of the last snapshot the node looked different in
+	 */
+	public long changedAt(int v) {
+		return this.changed[v];
+	}
+
+	/**
+	 * @param v node index
+	 * @return every incident at the node so far, by id
+	 */
+	public List<IncidentView> incidents(int v) {
+		return Collections.unmodifiableList(Arrays.asList(this.incidents[v]));
+	}
+
+	/**
+	 * @param v node index
+	 * @return the running incidents at the node, most severe first
+	 */
+	public List<IncidentView> runningIncidents(int v) {
+		List<IncidentView> l = new ArrayList<>(this.running[v]);
+		for (IncidentView i: this.incidents[v]) {
+			if (i.running) l.add(i);
+		}
+		l.sort((a, b) -> Integer.compare(b.level, a.level));
+		return l;
+	}
+
+	/**
+	 * @param v node index
+	 * @param t type index
+	 * @return incidents of the type at the node so far
+	 */
+	public int incidentCount(int v, int t) {
+		return this.incidentCounts[3 * v + t];
+	}
+
+	/**
+	 * @param v node index
+	 * @return incidents at the node so far
+	 */
+	public int incidentCount(int v) {
+		return this.incidents[v].length;
+	}
+
+	/**
+	 * @param v node index
+	 * @return if the node has a running incident
+	 */
+	public boolean hasIncident(int v) {
+		return this.running[v] > 0;
+	}
+
+	/**
+	 * @param v node index
+	 * @param t type index
+	 * @return services of the type the node wants
+	 */
+	public int required(int v, int t) {
+		return this.required[3 * v + t];
+	}
+
+	/**
+	 * @param v node index
+	 * @param t type index
+	 * @return services of the type at the node
+	 */
+	public int serviceCount(int v, int t) {
+		return this.serviceStart[3 * v + t + 1] - this.serviceStart[3 * v + t];
+	}
+
+	/**
+	 * @param v node index
+	 * @return services of every type at the node
+	 */
+	public int serviceCount(int v) {
+		return this.serviceStart[3 * v + 3] - this.serviceStart[3 * v];
+	}
+
+	/**
+	 * @param v node index
+	 * @param t type index
+	 * @param k which one, by id
+	 * @return id of the k-th service of the type at the node
+	 */
+	public int serviceId(int v, int t, int k) {
+		return this.serviceIds[this.serviceStart[3 * v + t] + k];
+	}
+
+	/**
+	 * @param v node index
+	 * @param t type index
+	 * @param k which one, by id
+	 * @return if the k-th service of the type at the node is available
+	 */
+	public boolean isAvailable(int v, int t, int k) {
+		return this.available[this.serviceStart[3 * v + t] + k];
+	}
+
+	int[] serviceStart() {
+		return this.serviceStart;
+	}
+
+	int[] serviceIds() {
+		return this.serviceIds;
+	}
+
+	boolean[] available() {
+		return this.available;
+	}
+
+	int[] requiredArray() {
+		return this.required;
+	}
+
+	int[] runningArray() {
+		return this.running;
+	}
+
+	int[] incidentCountArray() {
+		return this.incidentCounts;
+	}
+
+	IncidentView[][] incidentArrays() {
+		return this.incidents;
+	}
+
+	long[] changedArray() {
+		return this.changed;
+	}
+}
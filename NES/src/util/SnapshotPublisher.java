@@ -0,0 +1,281 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import util.nodes.Node;
+import util.nodes.CustomDSA.RoadGraph;
+
+/**
+ * Publishes Snapshots of an environment for the UI at a bounded rate.
+ *
+ * <p>
+ * Attached to the engine it makes a snapshot after a tick, at most once every
+ * minimum interval, on the tick thread, so the snapshot sees the simulation
+ * between two ticks and nothing else has to lock. The UI reads getLatest() and
+ * never touches the live maps and queues of nodes and services.
+ * </p>
+ *
+ * <p>
+ * Snapshots are built copy on write from the last one: incidents are tracked
+ * through an IncidentListener and only the nodes whose incidents changed get
+ * new incident arrays, the rest share them with the snapshot before. Services
+ * move every tick, so their positions are regrouped by node every time, in a
+ * handful of int arrays.
+ * </p>
+ */
+
+public class SnapshotPublisher implements SimulationEngine.TickListener, IncidentListener {
+	private static final Snapshot.IncidentView[] NO_INCIDENTS = new Snapshot.IncidentView[0];
+
+	private final Environment env;
+	private final long minIntervalNanos;
+	private volatile Snapshot latest;
+	private long lastPublished;
+	/** simulated time of the last tick seen **/
+	private volatile long simulatedNanos;
+
+	/** incidents opened or dealt with since the last snapshot, from any thread **/
+	private final ConcurrentLinkedQueue<Incident> changedIncidents = new ConcurrentLinkedQueue<>();
+	/** running incidents and how the last snapshot saw them, only touched while publishing **/
+	private final Map<Integer, Incident> running = new LinkedHashMap<>();
+	private final Map<Integer, Snapshot.IncidentView> views = new HashMap<>();
+
+	/** fixed for the publisher's life **/
+	private Node[] nodes;
+	private Map<Integer, Integer> indexOfId;
+	private int[] nodeIds;
+	private String[] names;
+	private String[] nodeTypes;
+	/** the fleet sorted by id, remade when it grows **/
+	private Service[] fleet;
+
+	/**
+	 * @param env the environment
+	 * @param minIntervalNanos wall nanoseconds between two snapshots at least
+	 */
+	public SnapshotPublisher(Environment env, long minIntervalNanos) {
+		this.env = env;
+		this.minIntervalNanos = minIntervalNanos;
+	}
+
+	/**
+	 * publishes the first snapshot and then one after ticks, at the bounded rate.
+	 * call before the engine starts
+	 * @param engine the engine running the environment
+	 */
+	public void attach(SimulationEngine engine) {
+		this.env.addIncidentListener(this);
+		this.changedIncidents.addAll(this.env.getIncidents().values());
+		this.publish();
+		engine.subscribe(this, SimulationEngine.DIRECT);
+	}
+
+	/**
+	 * stops publishing, the last snapshot stays
+	 * @param engine the engine it was attached to
+	 */
+	public void detach(SimulationEngine engine) {
+		engine.unsubscribe(this);
+		this.env.removeIncidentListener(this);
+	}
+
+	/**
+	 * @return the newest snapshot, null before the first
+	 */
+	public Snapshot getLatest() {
+		return this.latest;
+	}
+
+	@Override
+	public void opened(Incident inc) {
+		this.changedIncidents.add(inc);
+	}
+
+	@Override
+	public void dealt(Incident inc) {
+		this.changedIncidents.add(inc);
+	}
+
+	@Override
+	public void ticked(long tick, long simulatedNanos) {
+		this.simulatedNanos = simulatedNanos;
+		long now = System.nanoTime();
+		if (now - this.lastPublished < this.minIntervalNanos) return;
+		this.publish();
+	}
+
+	private void setUp() {
+		RoadGraph g = this.env.getGraph();
+		int n = g.size();
+		this.nodes = new Node[n];
+		this.indexOfId = new HashMap<>();
+		this.nodeIds = new int[n];
+		this.names = new String[n];
+		this.nodeTypes = new String[n];
+		for (int v = 0; v < n; v++) {
+			Node node = g.nodeAt(v);
+			this.nodes[v] = node;
+			this.nodeIds[v] = node.getID();
+			this.names[v] = node.getLocationName();
+			this.nodeTypes[v] = node.getNodeType();
+			this.indexOfId.put(node.getID(), v);
+		}
+	}
+
+	/**
+	 * makes a snapshot now, on the thread running the ticks or while the engine is stopped
+	 */
+	public void publish() {
+		synchronized(this) {
+			Snapshot prev = this.latest;
+			if (this.nodes == null) this.setUp();
+			int n = this.nodes.length;
+			long version = prev == null ? 1 : prev.getVersion() + 1;
+
+			Snapshot.IncidentView[][] incidents;
+			long[] changed;
+			int[] runningCount;
+			int[] incidentCounts;
+			if (prev == null) {
+				incidents = new Snapshot.IncidentView[n][];
+				Arrays.fill(incidents, NO_INCIDENTS);
+				changed = new long[n];
+				Arrays.fill(changed, version);
+				runningCount = new int[n];
+				incidentCounts = new int[3 * n];
+			}
+			else {
+				incidents = prev.incidentArrays().clone();
+				changed = prev.changedArray().clone();
+				runningCount = prev.runningArray().clone();
+				incidentCounts = prev.incidentCountArray().clone();
+			}
+
+			// incidents, only the nodes whose incidents changed get new arrays
+			boolean[] copied = new boolean[n];
+			Map<Integer, Incident> touched = new LinkedHashMap<>();
+			for (Incident i; (i = this.changedIncidents.poll()) != null; ) {
+				touched.put(i.getId(), i);
+			}
+			for (Incident i: touched.values()) {
+				if (i.getRunning()) this.running.put(i.getId(), i);
+				else this.running.remove(i.getId());
+			}
+			for (Incident i: this.running.values()) {
+				touched.put(i.getId(), i);
+			}
+			for (Incident i: touched.values()) {
+				Snapshot.IncidentView view = new Snapshot.IncidentView(i);
+				Snapshot.IncidentView old = this.views.get(i.getId());
+				if (view.isRunning()) this.views.put(i.getId(), view);
+				else this.views.remove(i.getId());
+				if (view.sameAs(old)) continue;
+				Integer v = this.indexOfId.get(i.getNodeId());
+				if (v == null) continue;
+				if (!copied[v]) {
+					incidents[v] = incidents[v].clone();
+					copied[v] = true;
+					changed[v] = version;
+				}
+				incidents[v] = put(incidents[v], view);
+			}
+			for (int v = 0; v < n; v++) {
+				// the counts of the other nodes are carried over
+				if (!copied[v]) continue;
+				runningCount[v] = 0;
+				Arrays.fill(incidentCounts, 3 * v, 3 * v + 3, 0);
+				for (Snapshot.IncidentView i: incidents[v]) {
+					if (i.isRunning()) runningCount[v]++;
+					int t = Snapshot.typeIndex(i.getType());
+					if (t >= 0) incidentCounts[3 * v + t]++;
+				}
+			}
+
+			// services, grouped by node and type, by id within a group
+			Map<Integer, Service> services = this.env.getServices();
+			if (this.fleet == null || this.fleet.length != services.size()) {
+				this.fleet = services.values().toArray(new Service[0]);
+				Arrays.sort(this.fleet, (a, b) -> Integer.compare(a.getID(), b.getID()));
+			}
+			int[] groupOf = new int[this.fleet.length];
+			int[] start = new int[3 * n + 1];
+			for (int k = 0; k < this.fleet.length; k++) {
+				Service s = this.fleet[k];
+				Node at = s.getPlace();
+				int v = at == null ? -1 : at.getGraphIndex();
+				int t = Snapshot.typeIndex(s.getServiceType());
+				groupOf[k] = v < 0 || v >= n || t < 0 ? -1 : 3 * v + t;
+				if (groupOf[k] >= 0) start[groupOf[k] + 1]++;
+			}
+			for (int i = 0; i < 3 * n; i++) {
+				start[i + 1] += start[i];
+			}
+			int[] fill = Arrays.copyOf(start, 3 * n);
+			int[] ids = new int[start[3 * n]];
+			boolean[] available = new boolean[ids.length];
+			for (int k = 0; k < this.fleet.length; k++) {
+				int grp = groupOf[k];
+				if (grp < 0) continue;
+				int at = fill[grp]++;
+				ids[at] = this.fleet[k].getID();
+				available[at] = this.fleet[k].getAvailability();
+			}
+
+			int[] required = new int[3 * n];
+			for (int v = 0; v < n; v++) {
+				Map<String, Integer> req = this.nodes[v].getRequiredServices();
+				for (int t = 0; t < 3; t++) {
+					Integer r = req.get(Snapshot.TYPES[t]);
+					required[3 * v + t] = r == null ? 0 : r;
+				}
+				if (prev != null && changed[v] != version && (!sameServices(prev, v, start, ids, available)
+						|| !Arrays.equals(required, 3 * v, 3 * v + 3, prev.requiredArray(), 3 * v, 3 * v + 3))) {
+					changed[v] = version;
+				}
+			}
+
+			this.latest = new Snapshot(version, this.env.getTick(), this.simulatedNanos, this.indexOfId, this.nodeIds, this.names, this.nodeTypes,
+					changed, incidents, runningCount, incidentCounts, required, start, ids, available);
+			this.lastPublished = System.nanoTime();
+		}
+	}
+
+	/** the services of node v are the same as in the snapshot before **/
+	private static boolean sameServices(Snapshot prev, int v, int[] start, int[] ids, boolean[] available) {
+		int[] ps = prev.serviceStart();
+		int a = start[3 * v];
+		int b = start[3 * v + 3];
+		int pa = ps[3 * v];
+		int pb = ps[3 * v + 3];
+		if (b - a != pb - pa) return false;
+		for (int t = 1; t < 3; t++) {
+			if (start[3 * v + t] - a != ps[3 * v + t] - pa) return false;
+		}
+		return Arrays.equals(ids, a, b, prev.serviceIds(), pa, pb) && Arrays.equals(available, a, b, prev.available(), pa, pb);
+	}
+
+	/** puts the view in the array sorted by id, replacing the view of the same incident, the array is already a copy **/
+	private static Snapshot.IncidentView[] put(Snapshot.IncidentView[] a, Snapshot.IncidentView view) {
+		int lo = 0;
+		int hi = a.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int id = a[mid].getId();
+			if (id < view.getId()) lo = mid + 1;
+			else if (id > view.getId()) hi = mid - 1;
+			else {
+				a[mid] = view;
+				return a;
+			}
+		}
+		Snapshot.IncidentView[] b = new Snapshot.IncidentView[a.length + 1];
+		System.arraycopy(a, 0, b, 0, lo);
+		b[lo] = view;
+		System.arraycopy(a, lo, b, lo + 1, a.length - lo);
+		return b;
+	}
+}
@@ -0,0 +1,109 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import util.nodes.Node;
+
+/**
+ * The side effects of advancing services, recorded instead of done.
+ *
+ * <p>
+ * When services advance in parallel each worker records what its services did
+ * to shared state: moving between the service maps of two nodes (JavaFX
+ * ObservableMaps), logging and telling listeners. Once every worker is done the
+ * buffers are applied one after the other in the order the services would have
+ * run sequentially, so the nodes, the log and the listeners end up exactly as
+ * after a sequential tick.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Not thread safe, one buffer per worker.
+ * </p>
+ */
+
+public class TickEffects {
+	private static final int LOG = 0;
+	private static final int MOVED = 1;
+	private static final int AVAILABLE = 2;
+
+	/** one recorded effect **/
+	private static final class Effect {
+		private final int kind;
+		private final Service service;
+		private final Node leaving;
+		private final Node to;
+		private final Node from;
+		private final String line;
+		private final boolean available;
+
+		private Effect(int kind, Service service, Node leaving, Node to, Node from, String line, boolean available) {
+			this.kind = kind;
+			this.service = service;
+			this.leaving = leaving;
+			this.to = to;
+			this.from = from;
+			this.line = line;
+			this.available = available;
+		}
+	}
+
+	private final List<Effect> effects = new ArrayList<>();
+
+	/**
+	 * @param template movement log message, filled with the id of the service and the name of the node
+	 * @param s the service
+	 * @param n the node
+	 */
+	public void log(String template, Service s, Node n) {
+		this.effects.add(new Effect(LOG, s, null, n, null, template, false));
+	}
+
+	/**
+	 * @param s the service that moved
+	 * @param leaving node whose service map it leaves
+	 * @param to node it is at now
+	 * @param from node it was at
+	 */
+	public void moved(Service s, Node leaving, Node to, Node from) {
+		this.effects.add(new Effect(MOVED, s, leaving, to, from, null, false));
+	}
+
+	/**
+	 * @param s the service that became available
+	 * @param available the new availability
+	 */
+	public void availabilityChanged(Service s, boolean available) {
+		this.effects.add(new Effect(AVAILABLE, s, null, null, null, null, available));
+	}
+
+	/**
+	 * @return if nothing was recorded
+	 */
+	public boolean isEmpty() {
+		return this.effects.isEmpty();
+	}
+
+	/**
+	 * does everything recorded, in the order it was recorded, and clears the buffer
+	 */
+	public void apply() {
+		for (Effect e: this.effects) {
+			switch (e.kind) {
+			case LOG:
+				Log.info(Log.Category.MOVEMENT, e.line, e.service.getID(), e.to.getLocationName());
+				break;
+			case MOVED:
+				e.leaving.removeService(e.service);
+				e.to.addService(e.service);
+				e.service.fireMoved(e.from, e.to);
+				break;
+			default:
+				e.service.fireAvailability(e.available);
+				break;
+			}
+		}
+		this.effects.clear();
+	}
+}
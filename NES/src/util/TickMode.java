@@ -0,0 +1,16 @@
+package util;
+
+/**
+ * How Environment.update moves the services.
+ */
+
+public enum TickMode {
+	/** every service runs every tick, the original behaviour **/
+	EVERY_SERVICE,
+	/** only services with an event due this tick run, see EventScheduler **/
+	EVENT,
+	/** every service runs every tick, split over a ForkJoinPool, see TickEffects **/
+	PARALLEL,
+	/** every service runs every tick off the arrays of a FleetStore **/
+	COLUMNAR
+}
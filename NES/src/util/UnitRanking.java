@@ -0,0 +1,103 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Ranks candidate services by their distance to an incident, closest first.
+ *
+ * <p>
+ * Candidates and distances are kept in parallel arrays that are reused from one
+ * dispatch to the next, and are turned into a binary heap in linear time, so
+ * ranking m candidates to send k of them costs O(m + k log m) without boxing or
+ * allocating once the arrays have grown. Ties are broken by the lower service id.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Not thread safe, each dispatching thread should use its own ranking.
+ * </p>
+ */
+
+final class UnitRanking {
+	private Service[] units = new Service[64];
+	private double[] dist = new double[64];
+	private int size = 0;
+	/** if the arrays are ordered as a heap yet **/
+	private boolean heaped = false;
+	/** scratch distances from every node to the target, for a ContractionHierarchy **/
+	private float[] toTarget = new float[0];
+
+	/**
+	 * @param n number of nodes
+	 * @return the scratch array for the distances to the target, at least n long
+	 */
+	float[] toTarget(int n) {
+		if (this.toTarget.length < n) this.toTarget = new float[n];
+		return this.toTarget;
+	}
+
+	/** forgets the candidates of the last dispatch **/
+	void clear() {
+		// let go of the services so a removed one isn't kept alive
+		Arrays.fill(this.units, 0, this.size, null);
+		this.size = 0;
+		this.heaped = false;
+	}
+
+	/**
+	 * @param s a candidate
+	 * @param d its distance to the incident
+	 */
+	void add(Service s, double d) {
+		if (this.size == this.units.length) {
+			this.units = Arrays.copyOf(this.units, 2 * this.size);
+			this.dist = Arrays.copyOf(this.dist, 2 * this.size);
+		}
+		this.units[this.size] = s;
+		this.dist[this.size] = d;
+		this.size++;
+		this.heaped = false;
+	}
+
+	/**
+	 * @return the closest candidate left, null when there are none
+	 */
+	Service poll() {
+		if (this.size == 0) return null;
+		if (!this.heaped) {
+			for (int i = (this.size >>> 1) - 1; i >= 0; i--) {
+				this.siftDown(i);
+			}
+			this.heaped = true;
+		}
+		Service top = this.units[0];
+		this.size--;
+		this.units[0] = this.units[this.size];
+		this.dist[0] = this.dist[this.size];
+		this.units[this.size] = null;
+		if (this.size > 0) this.siftDown(0);
+		return top;
+	}
+
+	private boolean less(int a, int b) {
+		int c = Double.compare(this.dist[a], this.dist[b]);
+		return c != 0 ? c < 0 : this.units[a].getID() < this.units[b].getID();
+	}
+
+	private void siftDown(int i) {
+		Service s = this.units[i];
+		double d = this.dist[i];
+		int half = this.size >>> 1;
+		while (i < half) {
+			int c = 2 * i + 1;
+			if (c + 1 < this.size && this.less(c + 1, c)) c++;
+			int cmp = Double.compare(this.dist[c], d);
+			if (cmp > 0 || (cmp == 0 && this.units[c].getID() > s.getID())) break;
+			this.units[i] = this.units[c];
+			this.dist[i] = this.dist[c];
+			i = c;
+		}
+		this.units[i] = s;
+		this.dist[i] = d;
+	}
+}
@@ -0,0 +1,708 @@
+package util.nodes.CustomDSA;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Contraction hierarchy (CH) over a RoadGraph for very large road networks.
+ *
+ * <p>
+ * Preprocessing contracts the nodes one by one from the least to the most
+ * important. Removing a node v adds a shortcut u->w for every pair of neighbours
+ * whose shortest path ran through v, unless a witness search finds another path
+ * that is at least as short. The node order is computed in rounds: every round
+ * contracts an independent set of nodes whose priority (edge difference plus
+ * contracted neighbours) is lower than all their neighbours', and the witness
+ * searches of a round run in parallel.
+ * </p>
+ *
+ * <p>
+ * A query only ever goes up the hierarchy: a forward search from the start over
+ * upward arcs and a backward search from the destination over downward arcs,
+ * meeting at the most important node of the shortest path. distancesTo() answers
+ * many-to-one: one backward search from the incident followed by a single sweep
+ * over all nodes from the top of the hierarchy down, giving every node's
+ * distance to the incident so all candidate units can be ranked at once.
+ * </p>
+ *
+ * <p>
+ * Congestion is handled by customisation instead of a rebuild: only the arc
+ * weights are recomputed, one linear pass in creation order (a shortcut is always
+ * created after the two arcs it stands for). The shortcuts themselves were chosen
+ * for the road states at build time, so once congestion changes a query can miss
+ * a detour the hierarchy did not need then. Every route it returns is a real
+ * route with its current cost, and since a road's cost moves at most a factor
+ * CONGESTION_FACTOR either way it is at most CONGESTION_FACTOR^2 times longer than
+ * the shortest one. Opening or closing a road changes the topology: the hierarchy is rebuilt on a
+ * background thread and queries fall back to plain Dijkstra until it is ready.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Queries can run from any number of threads. The arcs and their weights are
+ * published together as one immutable state.
+ * </p>
+ */
+
+public class ContractionHierarchy implements Router, RoadGraph.EdgeListener {
+	/** nodes a single witness search may settle before it gives up and the shortcut is added **/
+	public static final int WITNESS_SETTLE_LIMIT = 128;
+
+	/** the contracted graph, immutable once built **/
+	private static final class Hierarchy {
+		/** rank of each node, higher is more important **/
+		private int[] rank;
+		/** nodes by rank, lowest first **/
+		private int[] order;
+		private int[] arcFrom;
+		private int[] arcTo;
+		/** graph edge of an original arc, -1 for a shortcut **/
+		private int[] arcEdge;
+		/** the two arcs a shortcut stands for **/
+		private int[] arcFirst;
+		private int[] arcSecond;
+		/** arcs v->w with rank[w] > rank[v] are upArcs[upOffsets[v]] .. **/
+		private int[] upOffsets;
+		private int[] upArcs;
+		/** arcs u->v with rank[u] > rank[v] are downArcs[downOffsets[v]] .. **/
+		private int[] downOffsets;
+		private int[] downArcs;
+		/** closed roads at build time, they have no arc **/
+		private boolean[] closed;
+	}
+
+	/** a hierarchy with the arc weights of the current road states **/
+	private static final class State {
+		private final Hierarchy hierarchy;
+		private final float[] weights;
+
+		private State(Hierarchy hierarchy, float[] weights) {
+			this.hierarchy = hierarchy;
+			this.weights = weights;
+		}
+	}
+
+	private final RoadGraph graph;
+	private volatile State state;
+	/** false while a rebuild is pending, queries then use Dijkstra **/
+	private volatile boolean ready = true;
+	private final ThreadLocal<Query> queries;
+	private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+	private final ExecutorService updater;
+
+	private ContractionHierarchy(RoadGraph graph) {
+		this.graph = graph;
+		this.queries = ThreadLocal.withInitial(() -> new Query(graph.size()));
+		this.updater = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "contraction-hierarchy");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * contracts the graph, customises it to the current road states and starts listening to road changes
+	 * @param graph the road graph
+	 * @return the hierarchy
+	 */
+	public static ContractionHierarchy build(RoadGraph graph) {
+		ContractionHierarchy ch = new ContractionHierarchy(graph);
+		Hierarchy h = new Builder(graph).build();
+		ch.state = new State(h, customise(graph, h));
+		graph.addListener(ch);
+		return ch;
+	}
+
+	/**
+	 * computes the weight of every arc for the current road states.
+	 * original arcs take the road cost, shortcuts the sum of the two arcs they stand for
+	 */
+	private static float[] customise(RoadGraph graph, Hierarchy h) {
+		float[] w = new float[h.arcEdge.length];
+		for (int a = 0; a < w.length; a++) {
+			int e = h.arcEdge[a];
+			w[a] = e >= 0 ? graph.cost(e) : w[h.arcFirst[a]] + w[h.arcSecond[a]];
+		}
+		return w;
+	}
+
+	/**
+	 * @return if the hierarchy matches the open/closed state of every road
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	@Override
+	public void edgeChanged(RoadGraph graph, int edge) {
+		if (graph.isOpen(edge) == this.state.hierarchy.closed[edge]) {
+			// a road was opened or closed since the build
+			this.ready = false;
+		}
+		if (this.updateQueued.compareAndSet(false, true)) {
+			this.updater.execute(this::update);
+		}
+	}
+
+	private void update() {
+		this.updateQueued.set(false);
+		Hierarchy h = this.state.hierarchy;
+		if (!this.matches(h)) {
+			h = new Builder(this.graph).build();
+		}
+		this.state = new State(h, customise(this.graph, h));
+		// a road may have been opened or closed again while building, the queued update rebuilds then
+		this.ready = this.matches(h);
+	}
+
+	/** if every road that is open now had an arc when h was built **/
+	private boolean matches(Hierarchy h) {
+		for (int e = 0; e < this.graph.edgeCount(); e++) {
+			if (this.graph.isOpen(e) == h.closed[e]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * waits until every road change seen so far is reflected in the hierarchy
+	 */
+	public void awaitUpdate() {
+		try {
+			this.updater.submit(() -> {}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * stops listening to the graph and shuts down the update thread
+	 */
+	public void close() {
+		this.graph.removeListener(this);
+		this.updater.shutdown();
+	}
+
+	/**
+	 * @return number of arcs including shortcuts
+	 */
+	public int arcCount() {
+		return this.state.hierarchy.arcEdge.length;
+	}
+
+	@Override
+	public float distance(int from, int to) {
+		Query q = this.queries.get();
+		if (!this.ready) return q.dijkstra(from, to) < 0 ? Float.POSITIVE_INFINITY : q.fallback.distance(to);
+		return q.search(this.state, from, to);
+	}
+
+	@Override
+	public Route route(int from, int to) {
+		Query q = this.queries.get();
+		if (!this.ready) return q.dijkstra(from, to) < 0 ? null : q.fallback.routeTo(to).reversed();
+		State st = this.state;
+		if (q.search(st, from, to) == Float.POSITIVE_INFINITY) return null;
+		return q.unpack(st);
+	}
+
+	/**
+	 * many-to-one: the distance from every node to target
+	 * @param target dense index of the destination, e.g. the incident node
+	 * @return array indexed by dense node index
+	 */
+	public float[] distancesTo(int target) {
+		return this.distancesTo(target, new float[this.graph.size()]);
+	}
+
+	/**
+	 * many-to-one into an array the caller reuses, so a dispatch doesn't allocate one per incident
+	 * @param target dense index of the destination, e.g. the incident node
+	 * @param d array at least as long as the graph has nodes, every entry is overwritten
+	 * @return d
+	 */
+	public float[] distancesTo(int target, float[] d) {
+		Query q = this.queries.get();
+		if (!this.ready) {
+			q.fallback.prepare(this.graph);
+			q.fallback.start(target, true, null);
+			while (q.fallback.next() >= 0) {
+				// settle everything
+			}
+			for (int v = 0; v < this.graph.size(); v++) {
+				d[v] = q.fallback.distance(v);
+			}
+			return d;
+		}
+		State st = this.state;
+		Hierarchy h = st.hierarchy;
+		// upward backward search from the target
+		q.backward.start(target);
+		int v;
+		while ((v = q.backward.next(h.downOffsets, h.downArcs, h.arcFrom, st.weights)) >= 0) {
+			// settle the whole upward cone
+		}
+		// top down sweep: a node's distance is either its cone distance or one upward arc plus the distance from there
+		for (int i = h.order.length - 1; i >= 0; i--) {
+			v = h.order[i];
+			float best = q.backward.distance(v);
+			for (int k = h.upOffsets[v]; k < h.upOffsets[v + 1]; k++) {
+				int a = h.upArcs[k];
+				float x = st.weights[a] + d[h.arcTo[a]];
+				if (x < best) best = x;
+			}
+			d[v] = best;
+		}
+		return d;
+	}
+
+	/** one direction of an upward search **/
+	private static final class UpwardSearch {
+		private final IndexedMinHeap heap;
+		private final float[] dist;
+		private final int[] parentArc;
+		private final int[] stamp;
+		private int epoch = 0;
+
+		private UpwardSearch(int n) {
+			this.heap = new IndexedMinHeap(n);
+			this.dist = new float[n];
+			this.parentArc = new int[n];
+			this.stamp = new int[n];
+		}
+
+		private void start(int source) {
+			this.heap.clear();
+			if (++this.epoch == 0) {
+				Arrays.fill(this.stamp, 0);
+				this.epoch = 1;
+			}
+			this.stamp[source] = this.epoch;
+			this.dist[source] = 0;
+			this.parentArc[source] = -1;
+			this.heap.pushOrDecrease(source, 0);
+		}
+
+		private float minKey() {
+			return this.heap.isEmpty() ? Float.POSITIVE_INFINITY : this.heap.peekKey();
+		}
+
+		/** settles one node, following arcs[offsets[v]] .. and moving to other[arc] **/
+		private int next(int[] offsets, int[] arcs, int[] other, float[] weights) {
+			if (this.heap.isEmpty()) return -1;
+			int v = this.heap.poll();
+			float d = this.dist[v];
+			for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+				int a = arcs[k];
+				float nd = d + weights[a];
+				if (nd == Float.POSITIVE_INFINITY) continue;
+				int t = other[a];
+				if (this.stamp[t] != this.epoch || nd < this.dist[t]) {
+					this.stamp[t] = this.epoch;
+					this.dist[t] = nd;
+					this.parentArc[t] = a;
+					this.heap.pushOrDecrease(t, nd);
+				}
+			}
+			return v;
+		}
+
+		private float distance(int v) {
+			return this.stamp[v] == this.epoch ? this.dist[v] : Float.POSITIVE_INFINITY;
+		}
+	}
+
+	/** per thread query state **/
+	private final class Query {
+		private final UpwardSearch forward;
+		private final UpwardSearch backward;
+		private final SearchContext fallback = new SearchContext();
+		private int meet = -1;
+		private int source;
+		private int target;
+		private int[] stack = new int[64];
+
+		private Query(int n) {
+			this.forward = new UpwardSearch(n);
+			this.backward = new UpwardSearch(n);
+		}
+
+		private int dijkstra(int from, int to) {
+			this.fallback.prepare(ContractionHierarchy.this.graph);
+			this.fallback.start(from);
+			int v;
+			while ((v = this.fallback.next()) >= 0 && v != to) {
+				// settle until the destination is reached
+			}
+			return v;
+		}
+
+		private float search(State st, int from, int to) {
+			Hierarchy h = st.hierarchy;
+			this.source = from;
+			this.target = to;
+			this.meet = -1;
+			this.forward.start(from);
+			this.backward.start(to);
+			float best = from == to ? 0 : Float.POSITIVE_INFINITY;
+			if (from == to) this.meet = from;
+			while (Math.min(this.forward.minKey(), this.backward.minKey()) < best) {
+				// advance the side with the smaller key
+				boolean fwd = this.forward.minKey() <= this.backward.minKey();
+				UpwardSearch s = fwd ? this.forward : this.backward;
+				UpwardSearch other = fwd ? this.backward : this.forward;
+				int v = fwd ? s.next(h.upOffsets, h.upArcs, h.arcTo, st.weights)
+						: s.next(h.downOffsets, h.downArcs, h.arcFrom, st.weights);
+				float d = s.distance(v) + other.distance(v);
+				if (d < best) {
+					best = d;
+					this.meet = v;
+				}
+			}
+			return best;
+		}
+
+		/** expands the arcs of the last search into original roads **/
+		private Route unpack(State st) {
+			Hierarchy h = st.hierarchy;
+			RoadGraph g = ContractionHierarchy.this.graph;
+			// arcs from source to meet, collected backwards
+			int[] path = new int[16];
+			int count = 0;
+			for (int v = this.meet; v != this.source; v = h.arcFrom[this.forward.parentArc[v]]) {
+				if (count == path.length) path = Arrays.copyOf(path, count * 2);
+				path[count++] = this.forward.parentArc[v];
+			}
+			for (int i = 0, j = count - 1; i < j; i++, j--) {
+				int tmp = path[i];
+				path[i] = path[j];
+				path[j] = tmp;
+			}
+			for (int v = this.meet; v != this.target; v = h.arcTo[this.backward.parentArc[v]]) {
+				if (count == path.length) path = Arrays.copyOf(path, count * 2);
+				path[count++] = this.backward.parentArc[v];
+			}
+
+			int[] nodes = new int[count + 1];
+			float[] dists = new float[count + 1];
+			int length = 0;
+			nodes[length++] = this.source;
+			for (int i = 0; i < count; i++) {
+				// depth first expansion, the first half of a shortcut is travelled first
+				int top = 0;
+				this.stack[top++] = path[i];
+				while (top > 0) {
+					int a = this.stack[--top];
+					if (h.arcEdge[a] < 0) {
+						if (top + 2 > this.stack.length) this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+						this.stack[top++] = h.arcSecond[a];
+						this.stack[top++] = h.arcFirst[a];
+						continue;
+					}
+					if (length == nodes.length) {
+						nodes = Arrays.copyOf(nodes, length * 2);
+						dists = Arrays.copyOf(dists, length * 2);
+					}
+					dists[length] = dists[length - 1] + st.weights[a];
+					nodes[length++] = h.arcTo[a];
+				}
+			}
+			return new Route(g, Arrays.copyOf(nodes, length), Arrays.copyOf(dists, length));
+		}
+	}
+
+	/** growable int list **/
+	private static final class IntList {
+		private int[] items = new int[4];
+		private int size = 0;
+
+		private void add(int x) {
+			if (this.size == this.items.length) this.items = Arrays.copyOf(this.items, this.size * 2);
+			this.items[this.size++] = x;
+		}
+	}
+
+	/** the shortcuts contracting one node would add **/
+	private static final class Shortcuts {
+		private final IntList first = new IntList();
+		private final IntList second = new IntList();
+		private int liveDegree = 0;
+	}
+
+	/** bounded witness search, one per thread **/
+	private static final class Witness {
+		private final IndexedMinHeap heap;
+		private final float[] dist;
+		private final int[] stamp;
+		private int epoch = 0;
+
+		private Witness(int n) {
+			this.heap = new IndexedMinHeap(n);
+			this.dist = new float[n];
+			this.stamp = new int[n];
+		}
+
+		private float distance(int v) {
+			return this.stamp[v] == this.epoch ? this.dist[v] : Float.POSITIVE_INFINITY;
+		}
+	}
+
+	/** contraction state, only used while building **/
+	private static final class Builder {
+		private final RoadGraph graph;
+		private final int n;
+		private final IntList[] out;
+		private final IntList[] in;
+		private final boolean[] contracted;
+		/** nodes contracted in the current round, witness paths must avoid them **/
+		private final boolean[] inRound;
+		private final int[] deleted;
+		private final int[] priority;
+		private final IntList arcFrom = new IntList();
+		private final IntList arcTo = new IntList();
+		private final IntList arcEdge = new IntList();
+		private final IntList arcFirst = new IntList();
+		private final IntList arcSecond = new IntList();
+		/** arc weight with the road states at build time **/
+		private float[] weight = new float[16];
+		private final ThreadLocal<Witness> witnesses;
+
+		private Builder(RoadGraph graph) {
+			this.graph = graph;
+			this.n = graph.size();
+			this.out = new IntList[n];
+			this.in = new IntList[n];
+			for (int v = 0; v < n; v++) {
+				this.out[v] = new IntList();
+				this.in[v] = new IntList();
+			}
+			this.contracted = new boolean[n];
+			this.inRound = new boolean[n];
+			this.deleted = new int[n];
+			this.priority = new int[n];
+			int size = n;
+			this.witnesses = ThreadLocal.withInitial(() -> new Witness(size));
+		}
+
+		private int addArc(int from, int to, int edge, int first, int second, float w) {
+			int a = this.arcFrom.size;
+			this.arcFrom.add(from);
+			this.arcTo.add(to);
+			this.arcEdge.add(edge);
+			this.arcFirst.add(first);
+			this.arcSecond.add(second);
+			if (a == this.weight.length) {
+				this.weight = Arrays.copyOf(this.weight, a * 2);
+			}
+			this.weight[a] = w;
+			this.out[from].add(a);
+			this.in[to].add(a);
+			return a;
+		}
+
+		private Hierarchy build() {
+			RoadGraph g = this.graph;
+			boolean[] closed = new boolean[g.edgeCount()];
+			for (int v = 0; v < n; v++) {
+				for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+					closed[e] = !g.isOpen(e);
+					if (closed[e] || g.target(e) == v) continue;
+					this.addArc(v, g.target(e), e, -1, -1, g.cost(e));
+				}
+			}
+
+			int[] rank = new int[n];
+			int[] order = new int[n];
+			int next = 0;
+			IntStream.range(0, n).parallel().forEach(v -> this.priority[v] = this.priorityOf(v));
+			while (next < n) {
+				int[] round = IntStream.range(0, n).filter(v -> !this.contracted[v] && this.isLocalMinimum(v)).toArray();
+				for (int v: round) {
+					this.inRound[v] = true;
+				}
+				Shortcuts[] found = new Shortcuts[round.length];
+				IntStream.range(0, round.length).parallel().forEach(i -> found[i] = this.simulate(round[i], true));
+
+				boolean[] dirty = new boolean[n];
+				for (int i = 0; i < round.length; i++) {
+					int v = round[i];
+					Shortcuts sc = found[i];
+					for (int k = 0; k < sc.first.size; k++) {
+						int a = sc.first.items[k];
+						int b = sc.second.items[k];
+						this.addArc(this.arcFrom.items[a], this.arcTo.items[b], -1, a, b,
+								this.weight[a] + this.weight[b]);
+					}
+					this.contracted[v] = true;
+					this.inRound[v] = false;
+					rank[v] = next;
+					order[next++] = v;
+					this.markNeighbours(v, dirty);
+				}
+				for (int v = 0; v < n; v++) {
+					if (dirty[v]) this.compact(v);
+				}
+				IntStream.range(0, n).parallel().filter(v -> dirty[v]).forEach(v -> this.priority[v] = this.priorityOf(v));
+			}
+			return this.finish(rank, order, closed);
+		}
+
+		private void markNeighbours(int v, boolean[] dirty) {
+			for (int k = 0; k < this.out[v].size; k++) {
+				int t = this.arcTo.items[this.out[v].items[k]];
+				if (!this.contracted[t] && !dirty[t]) {
+					dirty[t] = true;
+					this.deleted[t]++;
+				}
+			}
+			for (int k = 0; k < this.in[v].size; k++) {
+				int u = this.arcFrom.items[this.in[v].items[k]];
+				if (!this.contracted[u] && !dirty[u]) {
+					dirty[u] = true;
+					this.deleted[u]++;
+				}
+			}
+		}
+
+		/** drops arcs to contracted nodes from the lists of v **/
+		private void compact(int v) {
+			IntList o = this.out[v];
+			int j = 0;
+			for (int k = 0; k < o.size; k++) {
+				if (!this.contracted[this.arcTo.items[o.items[k]]]) o.items[j++] = o.items[k];
+			}
+			o.size = j;
+			IntList i = this.in[v];
+			j = 0;
+			for (int k = 0; k < i.size; k++) {
+				if (!this.contracted[this.arcFrom.items[i.items[k]]]) i.items[j++] = i.items[k];
+			}
+			i.size = j;
+		}
+
+		private boolean lessImportant(int a, int b) {
+			return this.priority[a] < this.priority[b] || (this.priority[a] == this.priority[b] && a < b);
+		}
+
+		private boolean isLocalMinimum(int v) {
+			for (int k = 0; k < this.out[v].size; k++) {
+				int t = this.arcTo.items[this.out[v].items[k]];
+				if (t != v && !this.contracted[t] && !this.lessImportant(v, t)) return false;
+			}
+			for (int k = 0; k < this.in[v].size; k++) {
+				int u = this.arcFrom.items[this.in[v].items[k]];
+				if (u != v && !this.contracted[u] && !this.lessImportant(v, u)) return false;
+			}
+			return true;
+		}
+
+		private int priorityOf(int v) {
+			Shortcuts sc = this.simulate(v, false);
+			return 2 * sc.first.size - sc.liveDegree + this.deleted[v];
+		}
+
+		/**
+		 * finds the shortcuts contracting v needs: for every live u->v and v->w, unless a witness
+		 * path u->..->w avoiding v is no longer than u->v->w
+		 */
+		private Shortcuts simulate(int v, boolean avoidRound) {
+			Shortcuts sc = new Shortcuts();
+			IntList ins = this.in[v];
+			IntList outs = this.out[v];
+			for (int k = 0; k < outs.size; k++) {
+				if (!this.contracted[this.arcTo.items[outs.items[k]]]) sc.liveDegree++;
+			}
+			Witness wit = this.witnesses.get();
+			for (int i = 0; i < ins.size; i++) {
+				int a = ins.items[i];
+				int u = this.arcFrom.items[a];
+				if (this.contracted[u] || u == v) continue;
+				sc.liveDegree++;
+				float limit = 0;
+				for (int k = 0; k < outs.size; k++) {
+					int b = outs.items[k];
+					int w = this.arcTo.items[b];
+					if (this.contracted[w] || w == u || w == v) continue;
+					limit = Math.max(limit, this.weight[a] + this.weight[b]);
+				}
+				if (limit == 0) continue;
+				this.witnessSearch(wit, u, v, limit, avoidRound);
+				for (int k = 0; k < outs.size; k++) {
+					int b = outs.items[k];
+					int w = this.arcTo.items[b];
+					if (this.contracted[w] || w == u || w == v) continue;
+					if (wit.distance(w) <= this.weight[a] + this.weight[b]) continue;
+					sc.first.add(a);
+					sc.second.add(b);
+				}
+			}
+			return sc;
+		}
+
+		private void witnessSearch(Witness wit, int source, int avoid, float limit, boolean avoidRound) {
+			wit.heap.clear();
+			if (++wit.epoch == 0) {
+				Arrays.fill(wit.stamp, 0);
+				wit.epoch = 1;
+			}
+			wit.stamp[source] = wit.epoch;
+			wit.dist[source] = 0;
+			wit.heap.pushOrDecrease(source, 0);
+			int settled = 0;
+			while (!wit.heap.isEmpty() && settled++ < WITNESS_SETTLE_LIMIT) {
+				if (wit.heap.peekKey() > limit) break;
+				int x = wit.heap.poll();
+				float d = wit.dist[x];
+				IntList o = this.out[x];
+				for (int k = 0; k < o.size; k++) {
+					int a = o.items[k];
+					int t = this.arcTo.items[a];
+					if (t == avoid || this.contracted[t] || (avoidRound && this.inRound[t])) continue;
+					float nd = d + this.weight[a];
+					if (wit.stamp[t] != wit.epoch || nd < wit.dist[t]) {
+						wit.stamp[t] = wit.epoch;
+						wit.dist[t] = nd;
+						wit.heap.pushOrDecrease(t, nd);
+					}
+				}
+			}
+		}
+
+		private Hierarchy finish(int[] rank, int[] order, boolean[] closed) {
+			Hierarchy h = new Hierarchy();
+			int m = this.arcFrom.size;
+			h.rank = rank;
+			h.order = order;
+			h.closed = closed;
+			h.arcFrom = Arrays.copyOf(this.arcFrom.items, m);
+			h.arcTo = Arrays.copyOf(this.arcTo.items, m);
+			h.arcEdge = Arrays.copyOf(this.arcEdge.items, m);
+			h.arcFirst = Arrays.copyOf(this.arcFirst.items, m);
+			h.arcSecond = Arrays.copyOf(this.arcSecond.items, m);
+			h.upOffsets = new int[n + 1];
+			h.downOffsets = new int[n + 1];
+			for (int a = 0; a < m; a++) {
+				if (rank[h.arcFrom[a]] < rank[h.arcTo[a]]) h.upOffsets[h.arcFrom[a] + 1]++;
+				else h.downOffsets[h.arcTo[a] + 1]++;
+			}
+			for (int v = 0; v < n; v++) {
+				h.upOffsets[v + 1] += h.upOffsets[v];
+				h.downOffsets[v + 1] += h.downOffsets[v];
+			}
+			h.upArcs = new int[h.upOffsets[n]];
+			h.downArcs = new int[h.downOffsets[n]];
+			int[] upFill = Arrays.copyOf(h.upOffsets, n);
+			int[] downFill = Arrays.copyOf(h.downOffsets, n);
+			for (int a = 0; a < m; a++) {
+				if (rank[h.arcFrom[a]] < rank[h.arcTo[a]]) h.upArcs[upFill[h.arcFrom[a]]++] = a;
+				else h.downArcs[downFill[h.arcTo[a]]++] = a;
+			}
+			return h;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package util.nodes.CustomDSA;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * An all-pairs shortest distance table over a RoadGraph.
+ *
+ * <p>
+ * The table is built with one Dijkstra per source node, run in parallel on the
+ * common ForkJoinPool. Each row is a float array holding the distance from its
+ * source to every node, so the whole table costs size()^2 floats and is only
+ * meant for graphs up to a few thousand nodes (see MAX_NODES).
+ * </p>
+ *
+ * <p>
+ * The oracle listens to the graph. When a road is opened, closed or its
+ * congestion changes only the rows that could use that road are recomputed
+ * on a background thread. Reads keep going against the current table while
+ * that happens; the refreshed rows are published as a new table version that
+ * shares every untouched row with the previous one.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Reads are lock free and can come from any thread. A read issued right after
+ * a toggle may still see the previous version until the refresh is published.
+ * </p>
+ */
+
+public class DistanceOracle implements Router, RoadGraph.EdgeListener {
+	/** largest graph the oracle will build a table for **/
+	public static final int MAX_NODES = 8192;
+
+	/** an immutable version of the table **/
+	private static final class Table {
+		private final long version;
+		private final float[][] rows;
+
+		private Table(long version, float[][] rows) {
+			this.version = version;
+			this.rows = rows;
+		}
+	}
+
+	private final RoadGraph graph;
+	private volatile Table table;
+
+	/** roads that changed since the last refresh **/
+	private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+	private final ExecutorService refresher;
+
+	private static final ThreadLocal<SearchContext> contexts = ThreadLocal.withInitial(SearchContext::new);
+
+	private DistanceOracle(RoadGraph graph) {
+		this.graph = graph;
+		this.refresher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "distance-oracle");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * builds the table and starts listening to road changes
+	 * @param graph the road graph
+	 * @return the oracle
+	 * @throws IllegalArgumentException if the graph has more than MAX_NODES nodes
+	 */
+	public static DistanceOracle build(RoadGraph graph) {
+		if (graph.size() > MAX_NODES) {
+			throw new IllegalArgumentException("graph has " + graph.size() + " nodes, the oracle supports at most " + MAX_NODES);
+		}
+		DistanceOracle oracle = new DistanceOracle(graph);
+		float[][] rows = new float[graph.size()][];
+		IntStream.range(0, graph.size()).parallel().forEach(s -> rows[s] = oracle.computeRow(s));
+		oracle.table = new Table(0, rows);
+		graph.addListener(oracle);
+		return oracle;
+	}
+
+	private float[] computeRow(int s) {
+		SearchContext ctx = contexts.get();
+		ctx.prepare(this.graph);
+		ctx.start(s);
+		while (ctx.next() >= 0) {
+			// settle everything
+		}
+		float[] row = new float[this.graph.size()];
+		for (int t = 0; t < row.length; t++) {
+			row[t] = ctx.distance(t);
+		}
+		return row;
+	}
+
+	@Override
+	public float distance(int from, int to) {
+		return this.table.rows[from][to];
+	}
+
+	/**
+	 * walks the table from start to destination, at every node taking the open road
+	 * that minimises road cost + remaining distance. no search is run.
+	 * @return the route or null if to can't be reached
+	 */
+	@Override
+	public Route route(int from, int to) {
+		float[][] rows = this.table.rows;
+		if (rows[from][to] == Float.POSITIVE_INFINITY) return null;
+		RoadGraph g = this.graph;
+		int[] nodes = new int[16];
+		float[] dists = new float[16];
+		int length = 0;
+		int v = from;
+		float travelled = 0;
+		while (true) {
+			if (length == nodes.length) {
+				nodes = Arrays.copyOf(nodes, length * 2);
+				dists = Arrays.copyOf(dists, length * 2);
+			}
+			nodes[length] = v;
+			dists[length] = travelled;
+			length++;
+			if (v == to) break;
+			int next = -1;
+			float best = Float.POSITIVE_INFINITY;
+			float bestCost = 0;
+			for (int e = g.firstEdge(v), end = g.endEdge(v); e < end; e++) {
+				float cost = g.cost(e);
+				if (cost == RoadGraph.CLOSED) continue;
+				int t = g.target(e);
+				float remaining = rows[t][to];
+				// only step closer, a stale table must not send the walk in circles
+				if (remaining >= rows[v][to]) continue;
+				if (cost + remaining < best) {
+					best = cost + remaining;
+					bestCost = cost;
+					next = t;
+				}
+			}
+			if (next < 0 || length > g.size()) return null;
+			travelled += bestCost;
+			v = next;
+		}
+		return new Route(g, Arrays.copyOf(nodes, length), Arrays.copyOf(dists, length));
+	}
+
+	/**
+	 * @return the version of the table reads currently see
+	 */
+	public long getVersion() {
+		return this.table.version;
+	}
+
+	/**
+	 * @return the graph the table was built from
+	 */
+	public RoadGraph getGraph() {
+		return this.graph;
+	}
+
+	@Override
+	public void edgeChanged(RoadGraph graph, int edge) {
+		this.pending.add(edge);
+		if (this.refreshQueued.compareAndSet(false, true)) {
+			this.refresher.execute(this::refresh);
+		}
+	}
+
+	/**
+	 * recomputes the rows that could use one of the changed roads.
+	 * a row s is untouched when d(s,u) + weight(u,v) > d(s,v): the road is longer than
+	 * the known distance even in its best state, so it can't be on or shorten any path from s
+	 */
+	private void refresh() {
+		this.refreshQueued.set(false);
+		Integer[] edges = this.pending.toArray(new Integer[0]);
+		this.pending.removeAll(Arrays.asList(edges));
+		if (edges.length == 0) return;
+
+		Table old = this.table;
+		int n = this.graph.size();
+		boolean[] affected = new boolean[n];
+		for (int e: edges) {
+			int u = this.graph.source(e);
+			int v = this.graph.target(e);
+			float w = this.graph.weight(e);
+			for (int s = 0; s < n; s++) {
+				float[] row = old.rows[s];
+				if (row[u] != Float.POSITIVE_INFINITY && row[u] + w <= row[v]) {
+					affected[s] = true;
+				}
+			}
+		}
+		float[][] rows = old.rows.clone();
+		IntStream.range(0, n).parallel().filter(s -> affected[s]).forEach(s -> rows[s] = this.computeRow(s));
+		this.table = new Table(old.version + 1, rows);
+	}
+
+	/**
+	 * waits until every road change seen so far is reflected in the table
+	 */
+	public void awaitRefresh() {
+		try {
+			this.refresher.submit(() -> {}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * stops listening to the graph and shuts down the refresh thread
+	 */
+	public void close() {
+		this.graph.removeListener(this);
+		this.refresher.shutdown();
+	}
+}
@@ -0,0 +1,350 @@
+package util.nodes.CustomDSA;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import util.nodes.Node;
+
+/**
+ * Compiled binary form of a road graph, loaded by mapping the file into memory.
+ *
+ * <p>
+ * Layout, all little endian, every section starting on 8 bytes:
+ * <ul>
+ *     <li>header - magic, version, node count, edge count, the position of every section and the pool size</li>
+ *     <li>ids - int per node, the node ids in ascending order, the position is the dense index</li>
+ *     <li>name offsets - n + 1 ints into the string pool</li>
+ *     <li>offsets, targets, weights - the forward CSR arrays of RoadGraph</li>
+ *     <li>in offsets, in edges, in sources - the reverse CSR arrays</li>
+ *     <li>string pool - the UTF-8 names of the nodes back to back</li>
+ * </ul>
+ * Both directions are stored so nothing has to be computed when loading. map()
+ * maps every section on its own and wraps it in a buffer, the RoadGraph reads
+ * the mapping directly, so graphs far bigger than the heap can be routed on by
+ * dense index and the OS pages the parts a search touches in and out.
+ * </p>
+ *
+ * <p>
+ * byNode() lays the roads of a node out in the order its neighbour queue would
+ * hold them, so a graph written from it, e.g. by CsvImporter.compile() straight
+ * from the CSV files, breaks ties between equal routes the same way as one built
+ * by EnvironmentLoader from the same files.
+ * A section has to fit in one mapping, so a graph is limited to 2^29 edges.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * A mapped GraphFile is read only and can be shared between threads.
+ * </p>
+ */
+
+public final class GraphFile {
+	public static final int MAGIC = 0x4E455347; // "NESG"
+	public static final int VERSION = 1;
+
+	private static final int IDS = 0;
+	private static final int NAME_OFFSETS = 1;
+	private static final int OFFSETS = 2;
+	private static final int TARGETS = 3;
+	private static final int WEIGHTS = 4;
+	private static final int IN_OFFSETS = 5;
+	private static final int IN_EDGES = 6;
+	private static final int IN_SOURCES = 7;
+	private static final int POOL = 8;
+	private static final int SECTIONS = 9;
+
+	/** magic, version, counts, section positions and pool size **/
+	private static final int HEADER = 16 + 8 * SECTIONS + 8;
+
+	private final Path file;
+	private final IntBuffer ids;
+	private final IntBuffer nameOffsets;
+	private final ByteBuffer pool;
+	private final RoadGraph graph;
+
+	private GraphFile(Path file, IntBuffer ids, IntBuffer nameOffsets, ByteBuffer pool, RoadGraph graph) {
+		this.file = file;
+		this.ids = ids;
+		this.nameOffsets = nameOffsets;
+		this.pool = pool;
+		this.graph = graph;
+	}
+
+	/**
+	 * maps a compiled graph
+	 * @param file the graph file
+	 * @return the mapped graph, no Node objects are bound to it yet
+	 * @throws IOException if the file can't be read or is not a graph file
+	 */
+	public static GraphFile map(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (h.hasRemaining()) {
+				if (ch.read(h, h.position()) < 0) throw new IOException(file + " is not a graph file");
+			}
+			if (h.getInt(0) != MAGIC) throw new IOException(file + " is not a graph file");
+			if (h.getInt(4) != VERSION) throw new IOException(file + " has graph file version " + h.getInt(4));
+			int n = h.getInt(8);
+			int m = h.getInt(12);
+			long[] at = new long[SECTIONS];
+			for (int s = 0; s < SECTIONS; s++) {
+				at[s] = h.getLong(16 + 8 * s);
+			}
+			long poolSize = h.getLong(16 + 8 * SECTIONS);
+			if (at[POOL] + poolSize > ch.size()) throw new IOException(file + " is cut short");
+
+			IntBuffer ids = ints(ch, at[IDS], n);
+			IntBuffer nameOffsets = ints(ch, at[NAME_OFFSETS], n + 1);
+			ByteBuffer pool = section(ch, at[POOL], poolSize);
+			RoadGraph g = new RoadGraph(n, ints(ch, at[OFFSETS], n + 1), ints(ch, at[TARGETS], m),
+					section(ch, at[WEIGHTS], 4L * m).asFloatBuffer(), ints(ch, at[IN_OFFSETS], n + 1),
+					ints(ch, at[IN_EDGES], m), ints(ch, at[IN_SOURCES], m));
+			// the mappings stay valid after the channel is closed
+			return new GraphFile(file, ids, nameOffsets, pool, g);
+		}
+	}
+
+	private static ByteBuffer section(FileChannel ch, long position, long size) throws IOException {
+		return ch.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static IntBuffer ints(FileChannel ch, long position, int count) throws IOException {
+		return section(ch, position, 4L * count).asIntBuffer();
+	}
+
+	/**
+	 * @return the graph over the mapped sections
+	 */
+	public RoadGraph getGraph() {
+		return this.graph;
+	}
+
+	/**
+	 * @return the file that is mapped
+	 */
+	public Path getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return this.graph.size();
+	}
+
+	/**
+	 * @param v dense index
+	 * @return id of the node
+	 */
+	public int nodeId(int v) {
+		return this.ids.get(v);
+	}
+
+	/**
+	 * @param v dense index
+	 * @return location name of the node
+	 */
+	public String name(int v) {
+		int from = this.nameOffsets.get(v);
+		byte[] b = new byte[this.nameOffsets.get(v + 1) - from];
+		this.pool.get(from, b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param id a node id
+	 * @return dense index of the node, -1 if there is none with that id
+	 */
+	public int indexOfId(int id) {
+		int lo = 0;
+		int hi = this.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int x = this.ids.get(mid);
+			if (x < id) lo = mid + 1;
+			else if (x > id) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * groups roads by the node they leave into the CSR arrays write() takes, every road
+	 * both ways. the roads of a node are laid out the way its neighbour queue holds them
+	 * once they are added in order, a then b, so a graph file written from them routes
+	 * and breaks ties like the nodes built from the same roads
+	 * @param n number of nodes
+	 * @param a dense index of one end of every road
+	 * @param b dense index of the other end
+	 * @param d length of every road
+	 * @param roads number of roads in the arrays
+	 * @param targets filled with the node every edge leads to, 2 * roads long
+	 * @param weights filled with the length of every edge, 2 * roads long
+	 * @return offsets, the edges of node v are offsets[v] .. offsets[v+1]-1
+	 */
+	public static int[] byNode(int n, int[] a, int[] b, float[] d, int roads, int[] targets, float[] weights) {
+		int[] offsets = new int[n + 1];
+		for (int r = 0; r < roads; r++) {
+			offsets[a[r] + 1]++;
+			offsets[b[r] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = Arrays.copyOf(offsets, n);
+		for (int r = 0; r < roads; r++) {
+			queue(offsets, fill, targets, weights, a[r], b[r], d[r]);
+			queue(offsets, fill, targets, weights, b[r], a[r], d[r]);
+		}
+		return offsets;
+	}
+
+	/** adds an edge to the heap of edges of the node it leaves, sifting it up like PriorityQueue does **/
+	private static void queue(int[] offsets, int[] fill, int[] targets, float[] weights, int from, int to, float d) {
+		int base = offsets[from];
+		int k = fill[from]++ - base;
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (Float.compare(d, weights[base + parent]) >= 0) break;
+			targets[base + k] = targets[base + parent];
+			weights[base + k] = weights[base + parent];
+			k = parent;
+		}
+		targets[base + k] = to;
+		weights[base + k] = d;
+	}
+
+	/**
+	 * writes a graph that was built from nodes, e.g. the graph of a loaded Environment
+	 * @param g the graph, its nodes have to be bound
+	 * @param out the graph file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(RoadGraph g, Path out) throws IOException {
+		int n = g.size();
+		int[] ids = new int[n];
+		String[] names = new String[n];
+		int[] offsets = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			Node node = g.nodeAt(v);
+			if (node == null) throw new IllegalArgumentException("the graph has no nodes bound to it");
+			ids[v] = node.getID();
+			names[v] = node.getLocationName();
+			offsets[v + 1] = g.endEdge(v);
+		}
+		int[] targets = new int[g.edgeCount()];
+		float[] weights = new float[g.edgeCount()];
+		for (int e = 0; e < targets.length; e++) {
+			targets[e] = g.target(e);
+			weights[e] = g.weight(e);
+		}
+		write(out, ids, names, offsets, targets, weights);
+	}
+
+	/**
+	 * writes a graph given as CSR arrays, replacing the file only once it is complete
+	 * @param out the graph file to write
+	 * @param ids node id of every dense index, ascending
+	 * @param names location name of every dense index, null for no names
+	 * @param offsets edges of node v are offsets[v] .. offsets[v+1]-1
+	 * @param targets dense index each edge leads to
+	 * @param weights distance of each edge
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(Path out, int[] ids, String[] names, int[] offsets, int[] targets, float[] weights) throws IOException {
+		int n = ids.length;
+		int m = targets.length;
+		if (offsets.length != n + 1 || offsets[n] != m || weights.length != m) {
+			throw new IllegalArgumentException("the CSR arrays don't match " + n + " nodes and " + m + " edges");
+		}
+		for (int v = 1; v < n; v++) {
+			if (ids[v] <= ids[v - 1]) throw new IllegalArgumentException("node ids are not ascending at " + v);
+		}
+		int[][] in = RoadGraph.reverse(n, offsets, targets);
+
+		byte[][] utf = new byte[n][];
+		int[] nameOffsets = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			utf[v] = names == null || names[v] == null ? new byte[0] : names[v].getBytes(StandardCharsets.UTF_8);
+			nameOffsets[v + 1] = Math.addExact(nameOffsets[v], utf[v].length);
+		}
+
+		long[] size = new long[SECTIONS];
+		size[IDS] = 4L * n;
+		size[NAME_OFFSETS] = size[OFFSETS] = size[IN_OFFSETS] = 4L * (n + 1);
+		size[TARGETS] = size[WEIGHTS] = size[IN_EDGES] = size[IN_SOURCES] = 4L * m;
+		size[POOL] = nameOffsets[n];
+		long[] at = new long[SECTIONS];
+		long p = HEADER;
+		for (int s = 0; s < SECTIONS; s++) {
+			p = (p + 7) & ~7L;
+			at[s] = p;
+			p += size[s];
+		}
+
+		Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m);
+			for (long a: at) {
+				buf.putLong(a);
+			}
+			buf.putLong(size[POOL]);
+			long written = 0;
+			int[][] sections = {ids, nameOffsets, offsets, targets, null, in[0], in[1], in[2]};
+			for (int s = 0; s < SECTIONS; s++) {
+				// pad up to the start of the section
+				while (written + buf.position() < at[s]) {
+					if (!buf.hasRemaining()) written += flush(ch, buf);
+					buf.put((byte) 0);
+				}
+				if (s == WEIGHTS) {
+					for (float w: weights) {
+						if (buf.remaining() < 4) written += flush(ch, buf);
+						buf.putFloat(w);
+					}
+				}
+				else if (s == POOL) {
+					for (byte[] b: utf) {
+						if (buf.remaining() < b.length) written += flush(ch, buf);
+						if (b.length > buf.capacity()) {
+							ch.write(ByteBuffer.wrap(b));
+							written += b.length;
+						}
+						else buf.put(b);
+					}
+				}
+				else {
+					for (int x: sections[s]) {
+						if (buf.remaining() < 4) written += flush(ch, buf);
+						buf.putInt(x);
+					}
+				}
+			}
+			written += flush(ch, buf);
+			ch.force(true);
+		}
+		Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int flush(FileChannel ch, ByteBuffer buf) throws IOException {
+		buf.flip();
+		int len = buf.remaining();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		buf.clear();
+		return len;
+	}
+}
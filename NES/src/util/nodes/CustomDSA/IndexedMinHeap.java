@@ -0,0 +1,176 @@
+package util.nodes.CustomDSA;
+
+import java.util.Arrays;
+
+/**
+ * A binary min heap of int items (dense node indexes) keyed by a float.
+ *
+ * <p>
+ * Unlike PriorityQueue the heap knows where every item sits, so a key can be
+ * lowered in place (decrease-key) instead of pushing a duplicate entry.
+ * All storage is primitive arrays sized to the number of items, nothing is
+ * allocated per push or poll.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Not thread safe, each searching thread should use its own heap.
+ * </p>
+ */
+
+public class IndexedMinHeap {
+	/** heap ordered items **/
+	private int[] heap;
+
+	/** key of each item **/
+	private float[] keys;
+
+	/** position of each item in heap, -1 when not in the heap **/
+	private int[] pos;
+
+	/** number of items in the heap **/
+	private int size = 0;
+
+	/**
+	 * a constructor
+	 * @param capacity number of distinct items (0 .. capacity-1)
+	 */
+	public IndexedMinHeap(int capacity) {
+		this.heap = new int[capacity];
+		this.keys = new float[capacity];
+		this.pos = new int[capacity];
+		Arrays.fill(this.pos, -1);
+	}
+
+	/**
+	 * grows the heap so it can hold items 0 .. capacity-1
+	 * @param capacity number of distinct items
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= this.pos.length) return;
+		int old = this.pos.length;
+		this.heap = Arrays.copyOf(this.heap, capacity);
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.pos = Arrays.copyOf(this.pos, capacity);
+		Arrays.fill(this.pos, old, capacity, -1);
+	}
+
+	/**
+	 * @return if the heap is empty
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return number of items in the heap
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param item item to check
+	 * @return if the item is in the heap
+	 */
+	public boolean contains(int item) {
+		return this.pos[item] >= 0;
+	}
+
+	/**
+	 * @param item an item in the heap
+	 * @return the key of the item
+	 */
+	public float key(int item) {
+		return this.keys[item];
+	}
+
+	/**
+	 * @return the smallest key, the heap must not be empty
+	 */
+	public float peekKey() {
+		return this.keys[this.heap[0]];
+	}
+
+	/**
+	 * adds an item or lowers its key if it is already in the heap with a bigger key
+	 * @param item item to push
+	 * @param key key of the item
+	 * @return false if the item was already in the heap with a smaller or equal key
+	 */
+	public boolean pushOrDecrease(int item, float key) {
+		int p = this.pos[item];
+		if (p < 0) {
+			p = this.size++;
+			this.heap[p] = item;
+			this.pos[item] = p;
+		}
+		else if (key >= this.keys[item]) {
+			return false;
+		}
+		this.keys[item] = key;
+		this.siftUp(p);
+		return true;
+	}
+
+	/**
+	 * removes the item with the smallest key
+	 * @return the removed item, the heap must not be empty
+	 */
+	public int poll() {
+		int top = this.heap[0];
+		this.pos[top] = -1;
+		int last = this.heap[--this.size];
+		if (this.size > 0) {
+			this.heap[0] = last;
+			this.pos[last] = 0;
+			this.siftDown(0);
+		}
+		return top;
+	}
+
+	/**
+	 * removes every item, costs O(size)
+	 */
+	public void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.pos[this.heap[i]] = -1;
+		}
+		this.size = 0;
+	}
+
+	private void siftUp(int p) {
+		int item = this.heap[p];
+		float key = this.keys[item];
+		while (p > 0) {
+			int parent = (p - 1) >>> 1;
+			int pItem = this.heap[parent];
+			if (this.keys[pItem] <= key) break;
+			this.heap[p] = pItem;
+			this.pos[pItem] = p;
+			p = parent;
+		}
+		this.heap[p] = item;
+		this.pos[item] = p;
+	}
+
+	private void siftDown(int p) {
+		int item = this.heap[p];
+		float key = this.keys[item];
+		int half = this.size >>> 1;
+		while (p < half) {
+			int child = 2 * p + 1;
+			int right = child + 1;
+			if (right < this.size && this.keys[this.heap[right]] < this.keys[this.heap[child]]) {
+				child = right;
+			}
+			int cItem = this.heap[child];
+			if (key <= this.keys[cItem]) break;
+			this.heap[p] = cItem;
+			this.pos[cItem] = p;
+			p = child;
+		}
+		this.heap[p] = item;
+		this.pos[item] = p;
+	}
+}
@@ -0,0 +1,242 @@
+package util.nodes.CustomDSA;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Point-to-point router using A* with landmarks and the triangle inequality (ALT).
+ *
+ * <p>
+ * K landmark nodes are picked spread out over the graph (farthest point
+ * selection). For each landmark L the distances L->v and v->L to every node are
+ * precomputed with one forward and one backward Dijkstra. For any node v and
+ * destination t the triangle inequality then gives two lower bounds of d(v,t):
+ * <ul>
+ *     <li>d(L,t) - d(L,v)</li>
+ *     <li>d(v,L) - d(t,L)</li>
+ * </ul>
+ * The largest of these over all landmarks is the A* estimate. The closer the
+ * bound, the fewer nodes A* has to settle compared to a blind Dijkstra.
+ * </p>
+ *
+ * <p>
+ * When a road is toggled the landmark distances are recomputed on a background
+ * thread and published as a whole. Until then queries use the previous tables;
+ * the routes found are still valid routes, just not guaranteed shortest.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Queries can run from any number of threads, each uses its own SearchContext.
+ * </p>
+ */
+
+public class LandmarkRouter implements Router, RoadGraph.EdgeListener {
+	/** default number of landmarks **/
+	public static final int DEFAULT_LANDMARKS = 8;
+
+	/** an immutable set of landmark distance tables **/
+	private static final class Tables {
+		private final int[] landmarks;
+		/** fromLandmark[i][v] = d(landmark i, v) **/
+		private final float[][] fromLandmark;
+		/** toLandmark[i][v] = d(v, landmark i) **/
+		private final float[][] toLandmark;
+
+		private Tables(int[] landmarks, float[][] fromLandmark, float[][] toLandmark) {
+			this.landmarks = landmarks;
+			this.fromLandmark = fromLandmark;
+			this.toLandmark = toLandmark;
+		}
+	}
+
+	/** the per thread query state, doubles as the heuristic so a query allocates only its route **/
+	private final class Query implements SearchContext.Heuristic {
+		private final SearchContext ctx = new SearchContext();
+		private Tables tables;
+		private int target;
+
+		@Override
+		public float estimate(int v) {
+			float best = 0;
+			float[][] from = this.tables.fromLandmark;
+			float[][] to = this.tables.toLandmark;
+			for (int i = 0; i < from.length; i++) {
+				float a = from[i][this.target] - from[i][v];
+				float b = to[i][v] - to[i][this.target];
+				// infinity - infinity is NaN and gives no bound, NaN > best is false
+				if (a > best) best = a;
+				if (b > best) best = b;
+			}
+			return best;
+		}
+
+		private int search(int from, int to) {
+			this.tables = LandmarkRouter.this.tables;
+			this.target = to;
+			this.ctx.prepare(LandmarkRouter.this.graph);
+			this.ctx.start(from, false, this);
+			int v;
+			while ((v = this.ctx.next()) >= 0 && v != to) {
+				// settle until the destination is reached
+			}
+			return v;
+		}
+	}
+
+	private final RoadGraph graph;
+	private final int count;
+	private volatile Tables tables;
+	private final ThreadLocal<Query> queries = ThreadLocal.withInitial(Query::new);
+	private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+	private final ExecutorService refresher;
+
+	private LandmarkRouter(RoadGraph graph, int count) {
+		this.graph = graph;
+		this.count = Math.max(1, Math.min(count, graph.size()));
+		this.refresher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "landmark-router");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * picks the landmarks, computes their tables and starts listening to road changes
+	 * @param graph the road graph
+	 * @param landmarks number of landmarks K
+	 * @return the router
+	 */
+	public static LandmarkRouter build(RoadGraph graph, int landmarks) {
+		LandmarkRouter router = new LandmarkRouter(graph, landmarks);
+		router.tables = router.computeTables(router.selectLandmarks());
+		graph.addListener(router);
+		return router;
+	}
+
+	/**
+	 * farthest point selection: start from the node farthest from node 0, then keep adding
+	 * the node whose distance to its closest landmark is the largest
+	 */
+	private int[] selectLandmarks() {
+		int n = this.graph.size();
+		int[] chosen = new int[this.count];
+		if (n == 0) return new int[0];
+		float[] closest = new float[n];
+		Arrays.fill(closest, Float.POSITIVE_INFINITY);
+		float[] seed = this.distances(0, false);
+		chosen[0] = farthest(seed, closest);
+		for (int i = 0; i < this.count; i++) {
+			float[] d = this.distances(chosen[i], false);
+			for (int v = 0; v < n; v++) {
+				if (d[v] < closest[v]) closest[v] = d[v];
+			}
+			if (i + 1 < this.count) {
+				chosen[i + 1] = farthest(closest, closest);
+			}
+		}
+		return chosen;
+	}
+
+	/** the reachable node with the largest value, ties broken by the lowest index **/
+	private static int farthest(float[] values, float[] closest) {
+		int best = 0;
+		float bestValue = -1;
+		for (int v = 0; v < values.length; v++) {
+			float x = values[v];
+			if (x == Float.POSITIVE_INFINITY || closest[v] == 0) continue;
+			if (x > bestValue) {
+				bestValue = x;
+				best = v;
+			}
+		}
+		return best;
+	}
+
+	private float[] distances(int source, boolean reverse) {
+		SearchContext ctx = this.queries.get().ctx;
+		ctx.prepare(this.graph);
+		ctx.start(source, reverse, null);
+		while (ctx.next() >= 0) {
+			// settle everything
+		}
+		float[] d = new float[this.graph.size()];
+		for (int v = 0; v < d.length; v++) {
+			d[v] = ctx.distance(v);
+		}
+		return d;
+	}
+
+	private Tables computeTables(int[] landmarks) {
+		float[][] from = new float[landmarks.length][];
+		float[][] to = new float[landmarks.length][];
+		for (int i = 0; i < landmarks.length; i++) {
+			from[i] = this.distances(landmarks[i], false);
+			to[i] = this.distances(landmarks[i], true);
+		}
+		return new Tables(landmarks, from, to);
+	}
+
+	@Override
+	public float distance(int from, int to) {
+		Query q = this.queries.get();
+		if (q.search(from, to) < 0) return Float.POSITIVE_INFINITY;
+		return q.ctx.distance(to);
+	}
+
+	@Override
+	public Route route(int from, int to) {
+		Query q = this.queries.get();
+		if (q.search(from, to) < 0) return null;
+		// to -> ... -> from with distances from the start, read back to front
+		return q.ctx.routeTo(to).reversed();
+	}
+
+	/**
+	 * @return number of nodes the last query on this thread settled
+	 */
+	public int lastSettledCount() {
+		return this.queries.get().ctx.settledCount();
+	}
+
+	/**
+	 * @return dense indexes of the landmarks
+	 */
+	public int[] getLandmarks() {
+		return this.tables.landmarks.clone();
+	}
+
+	@Override
+	public void edgeChanged(RoadGraph graph, int edge) {
+		if (this.refreshQueued.compareAndSet(false, true)) {
+			this.refresher.execute(() -> {
+				this.refreshQueued.set(false);
+				this.tables = this.computeTables(this.tables.landmarks);
+			});
+		}
+	}
+
+	/**
+	 * waits until every road change seen so far is reflected in the tables
+	 */
+	public void awaitRefresh() {
+		try {
+			this.refresher.submit(() -> {}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * stops listening to the graph and shuts down the refresh thread
+	 */
+	public void close() {
+		this.graph.removeListener(this);
+		this.refresher.shutdown();
+	}
+}
@@ -1,5 +1,6 @@
 package util.nodes.CustomDSA;
 
+import util.Log;
 import util.nodes.Node;
 
 /**
@@ -34,15 +35,32 @@ public class NeighbourNode {
 	private Boolean congested = false;
 	private NeighbourNode parent = null;
 	
+	/** the compressed graph this road belongs to, if any **/
+	private RoadGraph graph = null;
+	
+	/** edge id of this road in graph **/
+	private int edge = -1;
+	
+	/**
+	 * copies n and its whole parent chain, iteratively so long chains can't overflow the stack
+	 * @param n node to copy
+	 */
 	public NeighbourNode(NeighbourNode n) {
+		this.copyState(n);
+		NeighbourNode tail = this;
+		for (NeighbourNode p = n.getParent(); p != null; p = p.getParent()) {
+			NeighbourNode copy = new NeighbourNode(p.getNode(), p.getDist());
+			copy.copyState(p);
+			tail.parent = copy;
+			tail = copy;
+		}
+	}
+	
+	private void copyState(NeighbourNode n) {
 		dist = n.getDist();
 		node = n.getNode();
 		open = n.getOpen();
 		congested = n.getCongested();
-		NeighbourNode p =n.getParent();
-		if (p != null) {
-			parent = new NeighbourNode(p);
-		}
 	}
 	
 	public NeighbourNode(Node node, float key) {
@@ -74,7 +92,10 @@ public class NeighbourNode {
 	public void toggleOpen() {
 		synchronized(this) {
 			this.open = !this.open;
-			System.out.println(this.open);
+			Log.info(Log.Category.ROADS, "road {} {}", this.edge, this.open ? "opened" : "closed");
+			if (this.graph != null) {
+				this.graph.setOpen(this.edge, this.open);
+			}
 		}
 	}
 	
@@ -87,6 +108,21 @@ public class NeighbourNode {
 	public void toggleCOngested() {
 		synchronized(this) {
 			this.congested = !this.congested;
+			if (this.graph != null) {
+				this.graph.setCongested(this.edge, this.congested);
+			}
+		}
+	}
+	
+	/**
+	 * binds this road to its edge in the compressed graph so toggles are mirrored there
+	 * @param graph the graph built from this road
+	 * @param edge edge id of this road
+	 */
+	public void bind(RoadGraph graph, int edge) {
+		synchronized(this) {
+			this.graph = graph;
+			this.edge = edge;
 		}
 	}
 	
@@ -0,0 +1,426 @@
+package util.nodes.CustomDSA;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import util.nodes.Node;
+
+/**
+ * A compressed sparse row (CSR) copy of the road network used by the
+ * pathfinding code.
+ *
+ * <p>
+ * Every node gets a dense index from 0 to size()-1. The outgoing edges of
+ * node v are the edge ids firstEdge(v) .. endEdge(v)-1, and each edge id
+ * points into flat primitive arrays:
+ * <ul>
+ *     <li>targets - dense index of the node the edge leads to</li>
+ *     <li>weights - the road distance</li>
+ *     <li>flags - two bits per edge (closed, congested) packed into longs</li>
+ * </ul>
+ * The incoming edges of v are kept the same way (firstInEdge / endInEdge) for
+ * searches that run backwards from a destination.
+ * </p>
+ *
+ * <p>
+ * The graph is built once from the Node / NeighbourNode objects at load time.
+ * Every NeighbourNode is bound to its edge id so toggling a road through the
+ * NeighbourNode (e.g. from the UI) updates the flags here as well.
+ * Node.getNeighbour() stays the object view of the same roads.
+ * </p>
+ *
+ * <p>
+ * The topology sits in Int/FloatBuffers, wrapping the arrays of a graph built
+ * from nodes or mapped straight from a GraphFile. A mapped graph lives outside
+ * the heap and can be routed on by dense index before (or without) any Node
+ * objects being bound to it; only the road flags are kept on the heap.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * The topology is immutable after build. Flag writes are synchronized on this,
+ * flag reads are not, so a search running at the same time as a toggle sees
+ * either the old or the new state of that road.
+ * </p>
+ */
+
+public class RoadGraph {
+	/** cost multiplier applied to a congested road **/
+	public static final float CONGESTION_FACTOR = 1.1f;
+
+	/** cost of a closed road **/
+	public static final float CLOSED = Float.POSITIVE_INFINITY;
+
+	private static final long CLOSED_BIT = 1L;
+	private static final long CONGESTED_BIT = 2L;
+
+	/** dense index to node, null for a mapped graph no nodes were bound to **/
+	private volatile Node[] nodes;
+
+	/** number of nodes **/
+	private final int nodeCount;
+
+	/** edges of node v are offsets[v] .. offsets[v+1]-1 **/
+	private final IntBuffer offsets;
+
+	/** dense index of the node each edge leads to **/
+	private final IntBuffer targets;
+
+	/** distance of each edge **/
+	private final FloatBuffer weights;
+
+	/** two flag bits per edge, 32 edges per long **/
+	private final long[] flags;
+
+	/** incoming edges of node v are inEdges[inOffsets[v]] .. inEdges[inOffsets[v+1]-1] **/
+	private final IntBuffer inOffsets;
+
+	/** edge ids grouped by target **/
+	private final IntBuffer inEdges;
+
+	/** source node of each entry of inEdges **/
+	private final IntBuffer inSources;
+
+	/** bumped every time a road changes state **/
+	private volatile long version = 0;
+
+	/** notified after a road changes state **/
+	private final List<EdgeListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Receives road state changes, e.g. to refresh tables precomputed from the graph.
+	 * Called on the thread that toggled the road, after the flags were updated.
+	 */
+	public interface EdgeListener {
+		/**
+		 * @param graph the graph that changed
+		 * @param edge edge id of the road that changed
+		 */
+		void edgeChanged(RoadGraph graph, int edge);
+	}
+
+	private RoadGraph(Node[] nodes, int[] offsets, int[] targets, float[] weights) {
+		this.nodes = nodes;
+		this.nodeCount = nodes.length;
+		this.offsets = IntBuffer.wrap(offsets);
+		this.targets = IntBuffer.wrap(targets);
+		this.weights = FloatBuffer.wrap(weights);
+		this.flags = new long[(targets.length + 31) >>> 5];
+		int[][] in = reverse(nodes.length, offsets, targets);
+		this.inOffsets = IntBuffer.wrap(in[0]);
+		this.inEdges = IntBuffer.wrap(in[1]);
+		this.inSources = IntBuffer.wrap(in[2]);
+	}
+
+	/**
+	 * a graph over buffers that already hold both directions, e.g. mapped from a file
+	 */
+	RoadGraph(int nodeCount, IntBuffer offsets, IntBuffer targets, FloatBuffer weights,
+			IntBuffer inOffsets, IntBuffer inEdges, IntBuffer inSources) {
+		this.nodes = null;
+		this.nodeCount = nodeCount;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+		this.flags = new long[(targets.capacity() + 31) >>> 5];
+		this.inOffsets = inOffsets;
+		this.inEdges = inEdges;
+		this.inSources = inSources;
+	}
+
+	/**
+	 * counting sort of the edges by target
+	 * @return inOffsets, inEdges and inSources
+	 */
+	static int[][] reverse(int n, int[] offsets, int[] targets) {
+		int[] inOffsets = new int[n + 1];
+		for (int t: targets) {
+			inOffsets[t + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			inOffsets[v + 1] += inOffsets[v];
+		}
+		int[] inEdges = new int[targets.length];
+		int[] inSources = new int[targets.length];
+		int[] fill = Arrays.copyOf(inOffsets, n);
+		for (int v = 0; v < n; v++) {
+			for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+				int k = fill[targets[e]]++;
+				inEdges[k] = e;
+				inSources[k] = v;
+			}
+		}
+		return new int[][] {inOffsets, inEdges, inSources};
+	}
+
+	/**
+	 * binds node objects to a graph that was mapped without them
+	 * @param byIndex the node of every dense index, its graph index is set here
+	 */
+	public void bindNodes(Node[] byIndex) {
+		if (byIndex.length != this.nodeCount) {
+			throw new IllegalArgumentException(byIndex.length + " nodes for a graph of " + this.nodeCount);
+		}
+		for (int i = 0; i < byIndex.length; i++) {
+			byIndex[i].setGraphIndex(i);
+		}
+		this.nodes = byIndex;
+	}
+
+	/**
+	 * builds the graph from the nodes and their neighbour queues.
+	 * assigns the graph index of every node and binds every NeighbourNode to its edge.
+	 * neighbours that point to a node outside of the collection are ignored
+	 * @param source the nodes of the environment
+	 * @return the new graph
+	 */
+	public static RoadGraph build(Collection<Node> source) {
+		Node[] nodes = source.toArray(new Node[0]);
+		Arrays.sort(nodes, (a, b) -> Integer.compare(a.getID(), b.getID()));
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i].setGraphIndex(i);
+		}
+
+		int[] offsets = new int[nodes.length + 1];
+		List<NeighbourNode> edges = new ArrayList<>();
+		for (int i = 0; i < nodes.length; i++) {
+			offsets[i] = edges.size();
+			for (NeighbourNode n: nodes[i].getNeighbour()) {
+				int t = n.getNode().getGraphIndex();
+				if (t < 0 || t >= nodes.length || nodes[t] != n.getNode()) continue;
+				edges.add(n);
+			}
+		}
+		offsets[nodes.length] = edges.size();
+
+		int[] targets = new int[edges.size()];
+		float[] weights = new float[edges.size()];
+		for (int e = 0; e < targets.length; e++) {
+			NeighbourNode n = edges.get(e);
+			targets[e] = n.getNode().getGraphIndex();
+			weights[e] = n.getDist();
+		}
+
+		RoadGraph g = new RoadGraph(nodes, offsets, targets, weights);
+		for (int e = 0; e < targets.length; e++) {
+			NeighbourNode n = edges.get(e);
+			g.setOpen(e, n.getOpen());
+			g.setCongested(e, n.getCongested());
+			n.bind(g, e);
+		}
+		return g;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * @return number of directed edges
+	 */
+	public int edgeCount() {
+		return this.targets.capacity();
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return the node at index v, null if no nodes are bound to the graph
+	 */
+	public Node nodeAt(int v) {
+		Node[] n = this.nodes;
+		return n == null ? null : n[v];
+	}
+
+	/**
+	 * @param node a node of this graph
+	 * @return its dense index or -1 if it is not part of this graph
+	 */
+	public int indexOf(Node node) {
+		Node[] n = this.nodes;
+		int v = node.getGraphIndex();
+		if (n == null || v < 0 || v >= n.length || n[v] != node) return -1;
+		return v;
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return first outgoing edge id of v
+	 */
+	public int firstEdge(int v) {
+		return this.offsets.get(v);
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return one past the last outgoing edge id of v
+	 */
+	public int endEdge(int v) {
+		return this.offsets.get(v + 1);
+	}
+
+	/**
+	 * @param e edge id
+	 * @return dense index of the node the edge leads to
+	 */
+	public int target(int e) {
+		return this.targets.get(e);
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return first position of the incoming edges of v
+	 */
+	public int firstInEdge(int v) {
+		return this.inOffsets.get(v);
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return one past the last position of the incoming edges of v
+	 */
+	public int endInEdge(int v) {
+		return this.inOffsets.get(v + 1);
+	}
+
+	/**
+	 * @param k position between firstInEdge(v) and endInEdge(v)
+	 * @return the edge id at that position
+	 */
+	public int inEdge(int k) {
+		return this.inEdges.get(k);
+	}
+
+	/**
+	 * @param k position between firstInEdge(v) and endInEdge(v)
+	 * @return the node the edge at that position starts at
+	 */
+	public int inSource(int k) {
+		return this.inSources.get(k);
+	}
+
+	/**
+	 * finds the node an edge starts at, O(log n)
+	 * @param e edge id
+	 * @return dense index of the node the edge starts at
+	 */
+	public int source(int e) {
+		int lo = 0;
+		int hi = this.nodeCount - 1;
+		// last v with offsets[v] <= e
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (this.offsets.get(mid) <= e) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @param e edge id
+	 * @return the road distance of the edge
+	 */
+	public float weight(int e) {
+		return this.weights.get(e);
+	}
+
+	/**
+	 * travel cost of the edge in its current state
+	 * @param e edge id
+	 * @return CLOSED if the road is closed, weight * CONGESTION_FACTOR if congested, otherwise the weight
+	 */
+	public float cost(int e) {
+		long bits = this.flags[e >>> 5] >>> ((e & 31) << 1);
+		if ((bits & CLOSED_BIT) != 0) return CLOSED;
+		if ((bits & CONGESTED_BIT) != 0) return this.weights.get(e) * CONGESTION_FACTOR;
+		return this.weights.get(e);
+	}
+
+	/**
+	 * @param e edge id
+	 * @return if the road is open
+	 */
+	public boolean isOpen(int e) {
+		return (this.flags[e >>> 5] & (CLOSED_BIT << ((e & 31) << 1))) == 0;
+	}
+
+	/**
+	 * @param e edge id
+	 * @return if the road is congested
+	 */
+	public boolean isCongested(int e) {
+		return (this.flags[e >>> 5] & (CONGESTED_BIT << ((e & 31) << 1))) != 0;
+	}
+
+	/**
+	 * opens or closes a road
+	 * @param e edge id
+	 * @param open new state
+	 */
+	public void setOpen(int e, boolean open) {
+		if (this.setBit(e, CLOSED_BIT, !open)) {
+			this.fireEdgeChanged(e);
+		}
+	}
+
+	/**
+	 * marks a road congested or clear
+	 * @param e edge id
+	 * @param congested new state
+	 */
+	public void setCongested(int e, boolean congested) {
+		if (this.setBit(e, CONGESTED_BIT, congested)) {
+			this.fireEdgeChanged(e);
+		}
+	}
+
+	/**
+	 * @return the number of road state changes so far
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @param listener listener to notify when a road changes state
+	 */
+	public void addListener(EdgeListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * @param listener listener to stop notifying
+	 */
+	public void removeListener(EdgeListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	private void fireEdgeChanged(int e) {
+		for (EdgeListener l: this.listeners) {
+			l.edgeChanged(this, e);
+		}
+	}
+
+	private boolean setBit(int e, long bit, boolean value) {
+		synchronized(this) {
+			long mask = bit << ((e & 31) << 1);
+			long old = this.flags[e >>> 5];
+			long updated = value ? (old | mask) : (old & ~mask);
+			if (updated == old) return false;
+			this.flags[e >>> 5] = updated;
+			this.version++;
+			return true;
+		}
+	}
+}
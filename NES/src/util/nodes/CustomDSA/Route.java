@@ -0,0 +1,140 @@
+package util.nodes.CustomDSA;
+
+import util.nodes.Node;
+
+/**
+ * An immutable route through the RoadGraph.
+ *
+ * <p>
+ * A route is an int array of dense node indexes and a float array of
+ * cumulative distances, one entry per node. The arrays are never modified
+ * after construction so any number of services can share the same route.
+ * </p>
+ *
+ * <p>
+ * The two operations the dispatcher used to do by copying and relinking
+ * NeighbourNode chains are O(1) views over the same arrays:
+ * <ul>
+ *     <li>reversed() - the same nodes in the opposite order (was flipPath)</li>
+ *     <li>fromStart() - distances measured from the first node of the route (was flipStartPos)</li>
+ * </ul>
+ * Reading a route is O(1) per node so walking it is O(L).
+ * </p>
+ */
+
+public final class Route {
+	private final RoadGraph graph;
+	private final int[] nodes;
+	private final float[] dist;
+
+	/** if the view walks the arrays back to front **/
+	private final boolean reversed;
+
+	/** distAt(k) = base + sign * dist **/
+	private final float base;
+	private final float sign;
+
+	/**
+	 * a constructor
+	 * @param graph graph the node indexes belong to
+	 * @param nodes dense node indexes in route order, not copied
+	 * @param dist cumulative distance of each node, not copied
+	 */
+	public Route(RoadGraph graph, int[] nodes, float[] dist) {
+		this(graph, nodes, dist, false, 0, 1);
+	}
+
+	private Route(RoadGraph graph, int[] nodes, float[] dist, boolean reversed, float base, float sign) {
+		this.graph = graph;
+		this.nodes = nodes;
+		this.dist = dist;
+		this.reversed = reversed;
+		this.base = base;
+		this.sign = sign;
+	}
+
+	private int raw(int k) {
+		return this.reversed ? this.nodes.length - 1 - k : k;
+	}
+
+	/**
+	 * @return number of nodes on the route, including the first one
+	 */
+	public int size() {
+		return this.nodes.length;
+	}
+
+	/**
+	 * @param k position on the route
+	 * @return dense index of the node at position k
+	 */
+	public int nodeIndexAt(int k) {
+		return this.nodes[this.raw(k)];
+	}
+
+	/**
+	 * @param k position on the route
+	 * @return the node at position k
+	 */
+	public Node nodeAt(int k) {
+		return this.graph.nodeAt(this.nodeIndexAt(k));
+	}
+
+	/**
+	 * @param k position on the route
+	 * @return the cumulative distance stored for position k
+	 */
+	public float distAt(int k) {
+		return this.base + this.sign * this.dist[this.raw(k)];
+	}
+
+	/**
+	 * @return the first node
+	 */
+	public Node start() {
+		return this.nodeAt(0);
+	}
+
+	/**
+	 * @return the last node
+	 */
+	public Node destination() {
+		return this.nodeAt(this.nodes.length - 1);
+	}
+
+	/**
+	 * @return the length of the route
+	 */
+	public float totalDistance() {
+		return Math.abs(this.distAt(this.nodes.length - 1) - this.distAt(0));
+	}
+
+	/**
+	 * @return the graph the route runs on
+	 */
+	public RoadGraph getGraph() {
+		return this.graph;
+	}
+
+	/**
+	 * input: start->node1->node2->end
+	 * output: end->node2->node1->start, distances unchanged
+	 * @return the reversed view
+	 */
+	public Route reversed() {
+		return new Route(this.graph, this.nodes, this.dist, !this.reversed, this.base, this.sign);
+	}
+
+	/**
+	 * input: endNode(x)->node1(y)->...->start(0), distances measured from the far end
+	 * output: endNode(0)->node1(x-y)->...->start(x), distances measured from the first node
+	 * @return the view with distances measured from the first node
+	 */
+	public Route fromStart() {
+		float first = this.dist[this.raw(0)];
+		float last = this.dist[this.raw(this.nodes.length - 1)];
+		// flip the sign when the distances shrink along the route
+		float s = (this.sign * (last - first) < 0) ? -this.sign : this.sign;
+		return new Route(this.graph, this.nodes, this.dist, this.reversed, -s * first, s);
+	}
+}
@@ -0,0 +1,27 @@
+package util.nodes.CustomDSA;
+
+/**
+ * Point-to-point routing over a RoadGraph.
+ *
+ * <p>
+ * Implementations answer "how far is it from a to b" and "which way" using
+ * whatever they precomputed from the graph. Both methods take dense node
+ * indexes of the graph the router was built for.
+ * </p>
+ */
+
+public interface Router {
+	/**
+	 * @param from dense index of the start node
+	 * @param to dense index of the destination node
+	 * @return the shortest travel distance or infinity if to can't be reached
+	 */
+	float distance(int from, int to);
+
+	/**
+	 * @param from dense index of the start node
+	 * @param to dense index of the destination node
+	 * @return the route in travel order with distances measured from the start, or null if to can't be reached
+	 */
+	Route route(int from, int to);
+}
@@ -0,0 +1,218 @@
+package util.nodes.CustomDSA;
+
+import java.util.Arrays;
+
+/**
+ * Reusable state for a Dijkstra search over a RoadGraph.
+ *
+ * <p>
+ * Instead of a HashSet of visited ids and a copied parent chain per heap entry
+ * the context keeps primitive arrays indexed by the dense node index:
+ * <ul>
+ *     <li>dist / parent - best known distance and predecessor</li>
+ *     <li>reached / settled - epoch stamps, a node counts as reached or settled
+ *         only if its stamp equals the current epoch so nothing has to be cleared
+ *         between searches</li>
+ * </ul>
+ * and an IndexedMinHeap with decrease-key. Once the arrays have grown to the
+ * size of the graph a search allocates nothing.
+ * </p>
+ *
+ * <p>
+ * Usage: start(source) then call next() until it returns -1 or the caller has
+ * found what it needs. Every index returned by next() is settled, its distance
+ * is final and its parent chain leads back to the source.
+ * </p>
+ *
+ * <p>
+ * The same context also runs A* (start with a Heuristic, the heap is then keyed
+ * by distance + estimate) and backward searches that follow the incoming roads,
+ * giving the distance from every node to the source.
+ * </p>
+ *
+ * <p>
+ * Thread safety:
+ * Not thread safe, one context per thread (see Environment).
+ * </p>
+ */
+
+public class SearchContext {
+	private RoadGraph graph;
+	private final IndexedMinHeap heap = new IndexedMinHeap(0);
+	private float[] dist = new float[0];
+	private int[] parent = new int[0];
+	private int[] reached = new int[0];
+	private int[] settled = new int[0];
+	private int epoch = 0;
+	private int source = -1;
+	private boolean reverse = false;
+	private Heuristic heuristic = null;
+	private int settledCount = 0;
+
+	/**
+	 * A lower bound of the remaining distance from a node to the destination of an A* search.
+	 * Must never overestimate, otherwise the route found may not be the shortest.
+	 */
+	public interface Heuristic {
+		/**
+		 * @param v dense node index
+		 * @return lower bound of the distance left from v
+		 */
+		float estimate(int v);
+	}
+
+	/**
+	 * binds the context to a graph, growing the arrays if needed
+	 * @param graph graph to search
+	 */
+	public void prepare(RoadGraph graph) {
+		this.graph = graph;
+		int n = graph.size();
+		if (n > this.dist.length) {
+			this.dist = new float[n];
+			this.parent = new int[n];
+			this.reached = new int[n];
+			this.settled = new int[n];
+			this.heap.ensureCapacity(n);
+			this.epoch = 0;
+		}
+	}
+
+	/**
+	 * @return the graph the context is bound to
+	 */
+	public RoadGraph getGraph() {
+		return this.graph;
+	}
+
+	/**
+	 * starts a new search
+	 * @param source dense index of the start node
+	 */
+	public void start(int source) {
+		this.start(source, false, null);
+	}
+
+	/**
+	 * starts a new search
+	 * @param source dense index of the start node
+	 * @param reverse if true roads are followed backwards, distances are then from each node to source
+	 * @param heuristic A* estimate of the distance left, null for plain Dijkstra
+	 */
+	public void start(int source, boolean reverse, Heuristic heuristic) {
+		this.reverse = reverse;
+		this.heuristic = heuristic;
+		this.settledCount = 0;
+		this.heap.clear();
+		if (++this.epoch == 0) {
+			// stamps wrapped around, old stamps could look current
+			Arrays.fill(this.reached, 0);
+			Arrays.fill(this.settled, 0);
+			this.epoch = 1;
+		}
+		this.source = source;
+		this.reach(source, 0, -1);
+	}
+
+	/**
+	 * settles the closest unsettled node and relaxes its open roads
+	 * @return the settled node or -1 if every reachable node is settled
+	 */
+	public int next() {
+		if (this.heap.isEmpty()) return -1;
+		int v = this.heap.poll();
+		this.settled[v] = this.epoch;
+		this.settledCount++;
+		float d = this.dist[v];
+		RoadGraph g = this.graph;
+		if (this.reverse) {
+			for (int k = g.firstInEdge(v), end = g.endInEdge(v); k < end; k++) {
+				this.relax(g.inSource(k), d + g.cost(g.inEdge(k)), v);
+			}
+		}
+		else {
+			for (int e = g.firstEdge(v), end = g.endEdge(v); e < end; e++) {
+				this.relax(g.target(e), d + g.cost(e), v);
+			}
+		}
+		return v;
+	}
+
+	private void relax(int t, float nd, int v) {
+		// closed roads cost infinity
+		if (nd == Float.POSITIVE_INFINITY || this.settled[t] == this.epoch) return;
+		if (this.reached[t] != this.epoch || nd < this.dist[t]) {
+			this.reach(t, nd, v);
+		}
+	}
+
+	private void reach(int v, float d, int p) {
+		this.reached[v] = this.epoch;
+		this.dist[v] = d;
+		this.parent[v] = p;
+		this.heap.pushOrDecrease(v, this.heuristic == null ? d : d + this.heuristic.estimate(v));
+	}
+
+	/**
+	 * @return number of nodes settled by the current search so far
+	 */
+	public int settledCount() {
+		return this.settledCount;
+	}
+
+	/**
+	 * @return the source of the current search
+	 */
+	public int source() {
+		return this.source;
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return if v was settled in the current search
+	 */
+	public boolean isSettled(int v) {
+		return this.settled[v] == this.epoch;
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return distance from the source, infinity if not reached
+	 */
+	public float distance(int v) {
+		if (this.reached[v] != this.epoch) return Float.POSITIVE_INFINITY;
+		return this.dist[v];
+	}
+
+	/**
+	 * @param v dense node index
+	 * @return the node before v on the best path from the source, -1 for the source
+	 */
+	public int parent(int v) {
+		if (this.reached[v] != this.epoch) return -1;
+		return this.parent[v];
+	}
+
+	/**
+	 * builds the route to a settled node in search order:
+	 * v (distance from source) -> parent -> ... -> source (0)
+	 * for a reverse search that is already travel order: v -> ... -> source
+	 * @param v a settled node
+	 * @return the route
+	 */
+	public Route routeTo(int v) {
+		int length = 1;
+		for (int p = this.parent[v]; p >= 0; p = this.parent[p]) {
+			length++;
+		}
+		int[] nodes = new int[length];
+		float[] dists = new float[length];
+		int k = 0;
+		for (int p = v; p >= 0; p = this.parent[p]) {
+			nodes[k] = p;
+			dists[k] = this.dist[p];
+			k++;
+		}
+		return new Route(this.graph, nodes, dists);
+	}
+}
@@ -6,7 +6,7 @@ public class FireStation extends ServiceNode{
 		super(id, LocationName);
 	}
 
-	String getNodeType() {
+	public String getNodeType() {
 		return "Fire Station";
 	}
 }
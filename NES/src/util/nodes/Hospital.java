@@ -7,7 +7,7 @@ public class Hospital extends ServiceNode{
 		super(id, LocationName);
 	}
 
-	String getNodeType() {
+	public String getNodeType() {
 		return "Hospital";
 	}
 	
@@ -61,6 +61,9 @@ public abstract class Node{
 	/** a map of service type pointing to number of such type required **/
 	public ObservableMap<String, Integer> requiredServices = FXCollections.observableHashMap();
 	
+	/** dense index of the node in the compressed road graph, -1 until a graph is built **/
+	private int graphIndex = -1;
+	
 	/**
 	 * Constructor to initialise all the variables
 	 * @param id node id
@@ -141,7 +144,7 @@ public abstract class Node{
 	 * for children class
 	 * @return the type of class
 	 */
-	abstract String getNodeType();
+	public abstract String getNodeType();
 	
 	/**
 	 * @return location name of the node
@@ -160,6 +163,22 @@ public abstract class Node{
 		return this.id;
 	}
 	
+	/**
+	 * 
+	 * @return the index of the node in the compressed road graph
+	 */
+	public int getGraphIndex() {
+		return this.graphIndex;
+	}
+	
+	/**
+	 * sets the index of the node in the compressed road graph
+	 * @param graphIndex dense index assigned by the graph
+	 */
+	public void setGraphIndex(int graphIndex) {
+		this.graphIndex = graphIndex;
+	}
+	
 	/**
 	 * returns all the neighbour of the node
 	 * @return the neighbours queue
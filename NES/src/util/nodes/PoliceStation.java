@@ -6,7 +6,7 @@ public class PoliceStation extends ServiceNode{
 		super(id, LocationName);
 	}
 
-	String getNodeType() {
+	public String getNodeType() {
 		return "Police Station";
 	}
 	